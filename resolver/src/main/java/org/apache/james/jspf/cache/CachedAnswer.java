@@ -0,0 +1,78 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import org.apache.james.jspf.core.DNSRecords;
+
+/**
+ * An answer cached by a {@link DNSCacheStore}, with the times at which it
+ * should be refreshed, expires and can no longer be served once expired.
+ */
+public final class CachedAnswer {
+
+    private final DNSRecords records;
+
+    private final long refreshAt;
+
+    private final long expires;
+
+    private final long staleUntil;
+
+    /**
+     * @param records the records, null if there are none
+     * @param refreshAt the time from which the answer is refreshed ahead
+     * @param expires the time at which the answer expires
+     * @param staleUntil the time until which the expired answer can be served
+     */
+    public CachedAnswer(DNSRecords records, long refreshAt, long expires, long staleUntil) {
+        this.records = records;
+        this.refreshAt = refreshAt;
+        this.expires = expires;
+        this.staleUntil = staleUntil;
+    }
+
+    /**
+     * @return the records, null if there are none
+     */
+    public DNSRecords getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the time in milliseconds from which the answer is refreshed ahead
+     */
+    public long getRefreshAt() {
+        return refreshAt;
+    }
+
+    /**
+     * @return the time in milliseconds at which the answer expires
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return the time in milliseconds until which the expired answer can be served
+     */
+    public long getStaleUntil() {
+        return staleUntil;
+    }
+}
@@ -0,0 +1,194 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+import org.apache.james.jspf.core.DNSRecords;
+
+/**
+ * Saves the answers of a {@link DNSCacheStore} to a file and reads them
+ * back, so that a restarted resolver does not start with an empty cache.
+ *
+ * The file starts with a magic number and a version, followed by the
+ * answers in the order the store visits them, the most valuable first.
+ * Each answer is written as its key, its refresh, expiration and stale
+ * times, and its records as encoded by {@link DNSRecords#encode(ByteBuffer)}.
+ * An empty key ends the file.
+ */
+public final class DNSCacheSnapshot {
+
+    private static final int MAGIC = 0x4a535046;
+
+    private static final int VERSION = 1;
+
+    private DNSCacheSnapshot() {
+    }
+
+    /**
+     * Write the answers of the given store to the given file, replacing it
+     * once completely written. Each save writes its own temporary file, so
+     * concurrent saves do not mix their answers.
+     *
+     * @param store the store to save
+     * @param file the file to write
+     * @return the number of saved answers
+     * @throws IOException if the file cannot be written
+     */
+    public static int save(DNSCacheStore store, Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        Writer writer;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            writer = new Writer(channel);
+            store.forEach(writer);
+            writer.finish();
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return writer.count;
+    }
+
+    /**
+     * Read the answers saved in the given file, mapping it in memory.
+     *
+     * @param file the file to read
+     * @param action called with each key and answer, the most valuable first
+     * @return the number of answers read
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static int load(Path file, BiConsumer<String, CachedAnswer> action) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a DNS cache snapshot: " + file);
+            }
+            int count = 0;
+            while (true) {
+                int keyLength = buffer.getShort() & 0xFFFF;
+                if (keyLength == 0) {
+                    return count;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                buffer.get(keyBytes);
+                long refreshAt = buffer.getLong();
+                long expires = buffer.getLong();
+                long staleUntil = buffer.getLong();
+                DNSRecords records = buffer.get() != 0 ? DNSRecords.decode(buffer) : null;
+                action.accept(new String(keyBytes, StandardCharsets.UTF_8),
+                        new CachedAnswer(records, refreshAt, expires, staleUntil));
+                count++;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupted DNS cache snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * Writes the visited answers through a buffer.
+     */
+    private static final class Writer implements BiConsumer<String, CachedAnswer> {
+
+        private final FileChannel channel;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        private IOException failure;
+
+        private int count = 0;
+
+        private Writer(FileChannel channel) {
+            this.channel = channel;
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        }
+
+        public void accept(String key, CachedAnswer answer) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (failure != null || keyBytes.length == 0 || keyBytes.length > 0xFFFF) {
+                return;
+            }
+            DNSRecords records = answer.getRecords();
+            int length = 2 + keyBytes.length + 25 + (records != null ? records.getEncodedLength() : 0);
+            try {
+                if (buffer.remaining() < length) {
+                    flush();
+                    if (buffer.capacity() < length) {
+                        buffer = ByteBuffer.allocate(length);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+            int start = buffer.position();
+            buffer.putShort((short) keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.putLong(answer.getRefreshAt());
+            buffer.putLong(answer.getExpires());
+            buffer.putLong(answer.getStaleUntil());
+            buffer.put((byte) (records != null ? 1 : 0));
+            try {
+                if (records != null) {
+                    records.encode(buffer);
+                }
+                count++;
+            } catch (IllegalArgumentException e) {
+                // records too large for the encoding are not saved
+                buffer.position(start);
+            }
+        }
+
+        private void finish() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (buffer.remaining() < 2) {
+                flush();
+            }
+            buffer.putShort((short) 0);
+            flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import java.util.function.BiConsumer;
+
+/**
+ * The storage of the answers cached by
+ * {@link org.apache.james.jspf.impl.DNSServiceCachingImpl}, keyed by the
+ * record type and name of the lookup. Implementations decide how many
+ * answers are kept and which ones are evicted, and must be thread safe.
+ *
+ * @see HeapDNSCacheStore
+ * @see OffHeapDNSCacheStore
+ */
+public interface DNSCacheStore {
+
+    /**
+     * Return the answer cached for the given key, recording its use.
+     *
+     * @param key the key
+     * @return the answer, or null
+     */
+    CachedAnswer get(String key);
+
+    /**
+     * Return the answer cached for the given key without recording its use.
+     *
+     * @param key the key
+     * @return the answer, or null
+     */
+    CachedAnswer peek(String key);
+
+    /**
+     * Cache the given answer, replacing the one cached for the key.
+     *
+     * @param key the key
+     * @param answer the answer
+     * @return the answer previously cached for the key, or null
+     */
+    CachedAnswer put(String key, CachedAnswer answer);
+
+    /**
+     * Visit all the answers, the ones most worth keeping first when the
+     * store knows which they are.
+     *
+     * @param action called with each key and answer
+     */
+    void forEach(BiConsumer<String, CachedAnswer> action);
+
+    /**
+     * Remove all the answers.
+     */
+    void clear();
+
+    /**
+     * @return the number of cached answers
+     */
+    int size();
+
+    /**
+     * @return the number of {@link #get(String)} which found an answer
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of {@link #get(String)} which found no answer
+     */
+    long getMissCount();
+}
@@ -0,0 +1,95 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A DNSCacheStore keeping the answers on the heap in a {@link TinyLFUCache}
+ * bounded by their estimated size.
+ */
+public class HeapDNSCacheStore implements DNSCacheStore {
+
+    private final TinyLFUCache<String, CachedAnswer> cache;
+
+    /**
+     * @param maximumSize the maximum estimated size of the answers in bytes
+     */
+    public HeapDNSCacheStore(long maximumSize) {
+        this.cache = new TinyLFUCache<String, CachedAnswer>(maximumSize, (key, answer) ->
+            64 + 2 * key.length() + (answer.getRecords() != null ? answer.getRecords().getWeight() : 0));
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#get(java.lang.String)
+     */
+    public CachedAnswer get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#peek(java.lang.String)
+     */
+    public CachedAnswer peek(String key) {
+        return cache.peek(key);
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#put(java.lang.String, org.apache.james.jspf.cache.CachedAnswer)
+     */
+    public CachedAnswer put(String key, CachedAnswer answer) {
+        return cache.put(key, answer);
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#forEach(java.util.function.BiConsumer)
+     */
+    public void forEach(BiConsumer<String, CachedAnswer> action) {
+        cache.forEach(action);
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#clear()
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#size()
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#getHitCount()
+     */
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#getMissCount()
+     */
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+}
@@ -0,0 +1,442 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.apache.james.jspf.core.DNSRecords;
+
+/**
+ * A DNSCacheStore keeping the answers outside of the heap, so that the
+ * heap usage does not depend on the number of cached answers.
+ *
+ * The answers are appended, in the compact form written by
+ * {@link DNSRecords#encode(ByteBuffer)}, to a log in a direct buffer used
+ * as a ring: once it is full the oldest answers are evicted to make room
+ * for the new ones. They are found through an open addressing index, in
+ * another direct buffer, keyed by a 64 bits hash of the key. Answers are
+ * only decoded when they are looked up.
+ *
+ * Each index slot holds the key hash (0 for an empty slot) and the
+ * position of the answer in the log. Each answer in the log starts with
+ * its length, the key hash and times, then the key itself, so that a
+ * lookup can verify it and the eviction can find its index slot.
+ */
+public class OffHeapDNSCacheStore implements DNSCacheStore {
+
+    private static final int SLOT_LENGTH = 12;
+
+    // length, hash, refreshAt, expires, staleUntil and key length
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + 8 + 8 + 2;
+
+    // answers copied out of the log per lock hold by forEach
+    private static final int VISIT_CHUNK = 256;
+
+    private final ByteBuffer index;
+
+    private final int indexMask;
+
+    private final int maximumEntries;
+
+    private final ByteBuffer log;
+
+    private final int capacity;
+
+    // the log holds the answers from head to tail, wrapping at its end
+    private int head = 0;
+
+    private int tail = 0;
+
+    private int used = 0;
+
+    // bytes ever appended to and evicted from the log, so that a visit
+    // can tell where it is: tail and head are these modulo the capacity
+    private long appended = 0;
+
+    private long evicted = 0;
+
+    private int size = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    /**
+     * @param capacity the size of the log in bytes
+     * @param maximumEntries the maximum number of answers
+     */
+    public OffHeapDNSCacheStore(int capacity, int maximumEntries) {
+        if (capacity < 1024 || maximumEntries < 1 || maximumEntries > (1 << 26)) {
+            throw new IllegalArgumentException("Invalid cache size: " + capacity + " bytes, " + maximumEntries + " entries");
+        }
+        // keep the index at most 3/4 full
+        int slots = Integer.highestOneBit(maximumEntries * 4 / 3 + 1) << 1;
+        this.index = ByteBuffer.allocateDirect(slots * SLOT_LENGTH);
+        this.indexMask = slots - 1;
+        this.maximumEntries = maximumEntries;
+        this.log = ByteBuffer.allocateDirect(capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Create a store of the given size, sized for answers of 128 bytes on
+     * average.
+     *
+     * @param capacity the size of the log in bytes
+     */
+    public OffHeapDNSCacheStore(int capacity) {
+        this(capacity, Math.max(1, capacity / 128));
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#get(java.lang.String)
+     */
+    public synchronized CachedAnswer get(String key) {
+        CachedAnswer answer = peek(key);
+        if (answer != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return answer;
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#peek(java.lang.String)
+     */
+    public synchronized CachedAnswer peek(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(hash(keyBytes));
+        if (slot < 0) {
+            return null;
+        }
+        int position = index.getInt(slot * SLOT_LENGTH + 8);
+        return matches(position, keyBytes) ? decode(position) : null;
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#put(java.lang.String, org.apache.james.jspf.cache.CachedAnswer)
+     */
+    public synchronized CachedAnswer put(String key, CachedAnswer answer) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        CachedAnswer previous = null;
+        int slot = findSlot(hash);
+        if (slot >= 0) {
+            int position = index.getInt(slot * SLOT_LENGTH + 8);
+            if (matches(position, keyBytes)) {
+                previous = decode(position);
+            }
+            removeSlot(slot);
+        }
+
+        DNSRecords records = answer.getRecords();
+        int length = HEADER_LENGTH + keyBytes.length + 1 + (records != null ? records.getEncodedLength() : 0);
+        if (keyBytes.length > 0xFFFF || length > capacity / 4) {
+            // too large to be worth evicting so many answers
+            return previous;
+        }
+        while (size >= maximumEntries) {
+            evictHead();
+        }
+        int position = allocate(length);
+        log.putInt(position, length);
+        log.putLong(position + 4, hash);
+        log.putLong(position + 12, answer.getRefreshAt());
+        log.putLong(position + 20, answer.getExpires());
+        log.putLong(position + 28, answer.getStaleUntil());
+        log.putShort(position + 36, (short) keyBytes.length);
+        ByteBuffer buffer = log.duplicate();
+        buffer.position(position + HEADER_LENGTH);
+        buffer.put(keyBytes);
+        buffer.put((byte) (records != null ? 1 : 0));
+        if (records != null) {
+            records.encode(buffer);
+        }
+        insertSlot(hash, position);
+        return previous;
+    }
+
+    /**
+     * Visit the answers from the oldest one. The answers are copied out of
+     * the store a chunk at a time, so the action runs without holding its
+     * lock and the store is never copied as a whole. The answers evicted
+     * or replaced during the visit are skipped, as are the ones added.
+     *
+     * @see org.apache.james.jspf.cache.DNSCacheStore#forEach(java.util.function.BiConsumer)
+     */
+    public void forEach(BiConsumer<String, CachedAnswer> action) {
+        List<String> keys = new ArrayList<String>(VISIT_CHUNK);
+        List<CachedAnswer> answers = new ArrayList<CachedAnswer>(VISIT_CHUNK);
+        long offset;
+        long end;
+        synchronized (this) {
+            offset = evicted;
+            end = appended;
+        }
+        while (offset < end) {
+            offset = copyAnswers(offset, end, keys, answers);
+            for (int i = 0; i < keys.size(); i++) {
+                action.accept(keys.get(i), answers.get(i));
+            }
+            keys.clear();
+            answers.clear();
+        }
+    }
+
+    /**
+     * Copy a chunk of the answers stored from the given offset of the log,
+     * or from the oldest one if it was evicted since.
+     *
+     * @return the offset of the answer following the chunk
+     */
+    private synchronized long copyAnswers(long from, long end, List<String> keys, List<CachedAnswer> answers) {
+        long offset = Math.max(from, evicted);
+        while (offset < end && keys.size() < VISIT_CHUNK) {
+            int position = (int) (offset % capacity);
+            int length;
+            if (capacity - position < 4) {
+                length = capacity - position;
+            } else {
+                length = log.getInt(position);
+                if (length < 0) {
+                    length = -length;
+                } else {
+                    int slot = findSlot(log.getLong(position + 4));
+                    if (slot >= 0 && index.getInt(slot * SLOT_LENGTH + 8) == position) {
+                        byte[] keyBytes = new byte[log.getShort(position + 36) & 0xFFFF];
+                        for (int i = 0; i < keyBytes.length; i++) {
+                            keyBytes[i] = log.get(position + HEADER_LENGTH + i);
+                        }
+                        keys.add(new String(keyBytes, StandardCharsets.UTF_8));
+                        answers.add(decode(position));
+                    }
+                }
+            }
+            offset += length;
+        }
+        return offset;
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#clear()
+     */
+    public synchronized void clear() {
+        for (int i = 0; i <= indexMask; i++) {
+            index.putLong(i * SLOT_LENGTH, 0);
+        }
+        head = 0;
+        tail = 0;
+        used = 0;
+        size = 0;
+        // start again at a multiple of the capacity, past what was visible
+        appended = (appended + capacity - 1) / capacity * capacity;
+        evicted = appended;
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#size()
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#getHitCount()
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @see org.apache.james.jspf.cache.DNSCacheStore#getMissCount()
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of answers evicted to make room for new ones
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of bytes of the log holding answers, including
+     *         the replaced ones which were not evicted yet
+     */
+    public synchronized int getUsedBytes() {
+        return used;
+    }
+
+    /**
+     * Reserve the given number of contiguous bytes at the tail of the log,
+     * evicting the oldest answers as needed.
+     */
+    private int allocate(int length) {
+        if (capacity - tail < length) {
+            // skip the end of the log, marking it with a negative length
+            // when there is room for it
+            int padding = capacity - tail;
+            while (capacity - used < padding) {
+                evictHead();
+            }
+            if (padding >= 4) {
+                log.putInt(tail, -padding);
+            }
+            used += padding;
+            appended += padding;
+            tail = 0;
+        }
+        while (capacity - used < length) {
+            evictHead();
+        }
+        int position = tail;
+        tail += length;
+        if (tail == capacity) {
+            tail = 0;
+        }
+        used += length;
+        appended += length;
+        return position;
+    }
+
+    /**
+     * Free the oldest bytes of the log, removing the answer stored there
+     * from the index unless it was replaced.
+     */
+    private void evictHead() {
+        int length;
+        if (capacity - head < 4) {
+            length = capacity - head;
+        } else {
+            length = log.getInt(head);
+            if (length < 0) {
+                length = -length;
+            } else {
+                int slot = findSlot(log.getLong(head + 4));
+                if (slot >= 0 && index.getInt(slot * SLOT_LENGTH + 8) == head) {
+                    removeSlot(slot);
+                    evictions++;
+                }
+            }
+        }
+        used -= length;
+        evicted += length;
+        head += length;
+        if (head == capacity) {
+            head = 0;
+        }
+    }
+
+    private boolean matches(int position, byte[] keyBytes) {
+        if ((log.getShort(position + 36) & 0xFFFF) != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (log.get(position + HEADER_LENGTH + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CachedAnswer decode(int position) {
+        int keyLength = log.getShort(position + 36) & 0xFFFF;
+        DNSRecords records = null;
+        if (log.get(position + HEADER_LENGTH + keyLength) != 0) {
+            ByteBuffer buffer = log.duplicate();
+            buffer.position(position + HEADER_LENGTH + keyLength + 1);
+            records = DNSRecords.decode(buffer);
+        }
+        return new CachedAnswer(records, log.getLong(position + 12), log.getLong(position + 20), log.getLong(position + 28));
+    }
+
+    private int findSlot(long hash) {
+        int slot = home(hash);
+        while (true) {
+            long slotHash = index.getLong(slot * SLOT_LENGTH);
+            if (slotHash == hash) {
+                return slot;
+            } else if (slotHash == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    private void insertSlot(long hash, int position) {
+        int slot = home(hash);
+        while (index.getLong(slot * SLOT_LENGTH) != 0) {
+            slot = (slot + 1) & indexMask;
+        }
+        index.putLong(slot * SLOT_LENGTH, hash);
+        index.putInt(slot * SLOT_LENGTH + 8, position);
+        size++;
+    }
+
+    /**
+     * Remove the given slot, moving back the following slots of the probe
+     * sequence so that no tombstones are needed.
+     */
+    private void removeSlot(int slot) {
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & indexMask;
+            long hash = index.getLong(next * SLOT_LENGTH);
+            if (hash == 0) {
+                break;
+            }
+            int home = home(hash);
+            boolean between = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!between) {
+                index.putLong(free * SLOT_LENGTH, hash);
+                index.putInt(free * SLOT_LENGTH + 8, index.getInt(next * SLOT_LENGTH + 8));
+                free = next;
+            }
+        }
+        index.putLong(free * SLOT_LENGTH, 0);
+        size--;
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & indexMask;
+    }
+
+    /**
+     * @return the 64 bits FNV-1a hash of the key, never 0
+     */
+    private static long hash(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < keyBytes.length; i++) {
+            hash ^= keyBytes[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+}
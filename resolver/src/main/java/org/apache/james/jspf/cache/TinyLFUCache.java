@@ -0,0 +1,462 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * A bounded cache evicting with the W-TinyLFU policy, so that bursts of
+ * keys used only once do not flush the popular ones.
+ *
+ * New entries enter a small LRU window (1% of the capacity). Entries
+ * leaving the window are admitted to the main space, a segmented LRU
+ * made of a probation and a protected segment, only if they were used
+ * more often than the entry they would evict there. Use frequencies are
+ * estimated by a {@link FrequencySketch}, which also remembers the keys
+ * which are no longer cached. Entries used again while on probation move
+ * to the protected segment (80% of the main space).
+ *
+ * The capacity is a weight, usually the estimated size in bytes of the
+ * entries as computed by the given weigher.
+ *
+ * The lookups do not take the lock of the cache: they read a concurrent
+ * map and record the use in a small ring buffer, which is replayed on the
+ * policy under the lock by one thread at a time once half full, and before
+ * every update. When the buffer is full the uses are dropped, so under
+ * heavy contention the frequencies and the LRU order are approximate, but
+ * the lookups never wait. The updates are synchronized.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class TinyLFUCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // the uses recorded by the lookups and not replayed yet, a power of 2
+    private static final int READ_BUFFER_SIZE = 128;
+
+    private final Map<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+
+    // a node for a hit, the key hash for a miss
+    private final AtomicReferenceArray<Object> readBuffer = new AtomicReferenceArray<Object>(READ_BUFFER_SIZE);
+
+    private final AtomicLong readsWritten = new AtomicLong();
+
+    private volatile long readsDrained = 0;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+
+    private final long maximumWeight;
+
+    private final long windowMaximum;
+
+    private final long protectedMaximum;
+
+    private final Node<K, V> window = new Node<K, V>();
+
+    private final Node<K, V> probation = new Node<K, V>();
+
+    private final Node<K, V> protectedSegment = new Node<K, V>();
+
+    private long weight = 0;
+
+    private long windowWeight = 0;
+
+    private long protectedWeight = 0;
+
+    private int sketchCapacity = 64;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private long evictions = 0;
+
+    /**
+     * @param maximumWeight the maximum total weight of the entries
+     * @param weigher computes the weight of an entry
+     */
+    public TinyLFUCache(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("Invalid maximum weight: " + maximumWeight);
+        }
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 80 / 100;
+        sketch.ensureCapacity(sketchCapacity);
+    }
+
+    /**
+     * @param maximumSize the maximum number of entries
+     */
+    public TinyLFUCache(int maximumSize) {
+        this(maximumSize, (key, value) -> 1);
+    }
+
+    /**
+     * Return the value cached for the given key, recording its use.
+     *
+     * @param key the key
+     * @return the cached value, or null
+     */
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            recordRead(Integer.valueOf(FrequencySketch.spread(key.hashCode())));
+            return null;
+        }
+        hits.increment();
+        recordRead(node);
+        return node.value;
+    }
+
+    /**
+     * Return the value cached for the given key without recording its use.
+     *
+     * @param key the key
+     * @return the cached value, or null
+     */
+    public V peek(K key) {
+        Node<K, V> node = data.get(key);
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Cache the given value. Values heavier than the whole cache are not
+     * cached. The use of the key is not recorded, as values are expected
+     * to be put after a {@link #get(Object)} missed them.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the value previously cached for the key, or null
+     */
+    public synchronized V put(K key, V value) {
+        drainReads();
+        int hash = FrequencySketch.spread(key.hashCode());
+        int entryWeight = weigher.applyAsInt(key, value);
+
+        Node<K, V> node = data.get(key);
+        if (entryWeight > maximumWeight) {
+            if (node != null) {
+                removeNode(node);
+                return node.value;
+            }
+            return null;
+        }
+        if (node != null) {
+            V previous = node.value;
+            long delta = entryWeight - node.weight;
+            node.value = value;
+            node.weight = entryWeight;
+            weight += delta;
+            if (node.queue == WINDOW) {
+                windowWeight += delta;
+            } else if (node.queue == PROTECTED) {
+                protectedWeight += delta;
+            }
+            onHit(node);
+            evict();
+            return previous;
+        }
+
+        node = new Node<K, V>(key, value, entryWeight, hash);
+        data.put(key, node);
+        link(window, node, WINDOW);
+        windowWeight += entryWeight;
+        weight += entryWeight;
+        if (data.size() > sketchCapacity) {
+            sketchCapacity = data.size() * 2;
+            sketch.ensureCapacity(sketchCapacity);
+        }
+        evict();
+        return null;
+    }
+
+    /**
+     * @param key the key
+     * @return the value which was cached for the key, or null
+     */
+    public synchronized V remove(K key) {
+        drainReads();
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        removeNode(node);
+        return node.value;
+    }
+
+    /**
+     * Visit all the entries, from the most to the least valuable: the
+     * protected ones, then the window and the probation ones, each from
+     * the most recently used. The cache is not locked during the visit.
+     *
+     * @param action called with each key and value
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        List<Node<K, V>> nodes = new ArrayList<Node<K, V>>();
+        synchronized (this) {
+            drainReads();
+            for (Node<K, V> head : Arrays.asList(protectedSegment, window, probation)) {
+                for (Node<K, V> node = head.prev; node != head; node = node.prev) {
+                    nodes.add(node);
+                }
+            }
+        }
+        for (Node<K, V> node : nodes) {
+            action.accept(node.key, node.value);
+        }
+    }
+
+    /**
+     * Remove all the entries. The use frequencies are kept.
+     */
+    public synchronized void clear() {
+        drainReads();
+        data.clear();
+        window.prev = window.next = window;
+        probation.prev = probation.next = probation;
+        protectedSegment.prev = protectedSegment.next = protectedSegment;
+        weight = 0;
+        windowWeight = 0;
+        protectedWeight = 0;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * @return the total weight of the entries
+     */
+    public synchronized long weightedSize() {
+        return weight;
+    }
+
+    /**
+     * @return the number of {@link #get(Object)} which found a value
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of {@link #get(Object)} which found no value
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to respect the maximum weight
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Record a use in the read buffer, replaying the buffer once half full
+     * unless another thread does it. The use is dropped if the buffer is
+     * full.
+     */
+    private void recordRead(Object read) {
+        long drained = readsDrained;
+        long written = readsWritten.get();
+        if (written - drained < READ_BUFFER_SIZE && readsWritten.compareAndSet(written, written + 1)) {
+            readBuffer.lazySet((int) written & (READ_BUFFER_SIZE - 1), read);
+            written++;
+        }
+        if (written - drained >= READ_BUFFER_SIZE / 2 && draining.compareAndSet(false, true)) {
+            try {
+                synchronized (this) {
+                    drainReads();
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Replay the uses recorded by the lookups on the policy. Must be called
+     * with the lock held.
+     */
+    @SuppressWarnings("unchecked")
+    private void drainReads() {
+        long drained = readsDrained;
+        long written = readsWritten.get();
+        for (; drained < written; drained++) {
+            int index = (int) drained & (READ_BUFFER_SIZE - 1);
+            Object read = readBuffer.get(index);
+            if (read == null) {
+                // reserved but not stored yet, replayed next time
+                break;
+            }
+            readBuffer.lazySet(index, null);
+            if (read instanceof Integer) {
+                sketch.increment(((Integer) read).intValue());
+            } else {
+                Node<K, V> node = (Node<K, V>) read;
+                sketch.increment(node.hash);
+                // skip the entries removed or cleared since the lookup
+                if (data.get(node.key) == node) {
+                    onHit(node);
+                }
+            }
+        }
+        readsDrained = drained;
+    }
+
+    private void onHit(Node<K, V> node) {
+        unlink(node);
+        if (node.queue == PROBATION) {
+            link(protectedSegment, node, PROTECTED);
+            protectedWeight += node.weight;
+            // demote the least recently used protected entries
+            while (protectedWeight > protectedMaximum && protectedSegment.next != node) {
+                Node<K, V> demoted = protectedSegment.next;
+                unlink(demoted);
+                link(probation, demoted, PROBATION);
+                protectedWeight -= demoted.weight;
+            }
+        } else {
+            link(node.queue == WINDOW ? window : protectedSegment, node, node.queue);
+        }
+    }
+
+    private void evict() {
+        long mainMaximum = maximumWeight - windowMaximum;
+        while (windowWeight > windowMaximum) {
+            Node<K, V> candidate = window.next;
+            unlink(candidate);
+            windowWeight -= candidate.weight;
+            link(probation, candidate, PROBATION);
+            // the candidate competes with the least recently used entries
+            // of the main space for its place
+            while (weight - windowWeight > mainMaximum) {
+                Node<K, V> victim = probation.next != candidate ? probation.next : protectedSegment.next;
+                if (victim == protectedSegment
+                        || sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                    evict(candidate);
+                    break;
+                }
+                evict(victim);
+            }
+        }
+        while (weight > maximumWeight) {
+            if (probation.next != probation) {
+                evict(probation.next);
+            } else if (protectedSegment.next != protectedSegment) {
+                evict(protectedSegment.next);
+            } else {
+                evict(window.next);
+            }
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        removeNode(node);
+        evictions++;
+    }
+
+    private void removeNode(Node<K, V> node) {
+        unlink(node);
+        data.remove(node.key);
+        weight -= node.weight;
+        if (node.queue == WINDOW) {
+            windowWeight -= node.weight;
+        } else if (node.queue == PROTECTED) {
+            protectedWeight -= node.weight;
+        }
+    }
+
+    private static <K, V> void link(Node<K, V> head, Node<K, V> node, int queue) {
+        node.queue = queue;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private static <K, V> void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * An entry, linked in the LRU list of its segment. The head of each
+     * list is a sentinel node.
+     */
+    private static final class Node<K, V> {
+
+        private final K key;
+
+        private final int hash;
+
+        // read by the lookups without the lock
+        private volatile V value;
+
+        private int weight;
+
+        private int queue;
+
+        private Node<K, V> prev;
+
+        private Node<K, V> next;
+
+        private Node() {
+            this.key = null;
+            this.hash = 0;
+            this.prev = this;
+            this.next = this;
+        }
+
+        private Node(K key, V value, int weight, int hash) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.hash = hash;
+        }
+    }
+}
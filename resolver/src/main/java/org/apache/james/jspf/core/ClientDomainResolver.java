@@ -0,0 +1,366 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.jspf.cache.TinyLFUCache;
+import org.apache.james.jspf.core.exceptions.NeutralException;
+import org.apache.james.jspf.core.exceptions.NoneException;
+import org.apache.james.jspf.core.exceptions.PermErrorException;
+import org.apache.james.jspf.core.exceptions.TempErrorException;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.executor.SharedLookups;
+import org.xbill.DNS.Name;
+
+/**
+ * Resolve the validated domain names of the client ip address, used by the
+ * ptr mechanism and the %{p} macro: the names given by the PTR records of
+ * the address whose A or AAAA records lead back to it. See RFC 7208
+ * Section 5.5.
+ *
+ * The names are resolved once per session, looking up the addresses of all
+ * the candidates at once, and remembered for the other sessions of the same
+ * client until the records expire. The listeners get the outcome of every
+ * lookup, in the order of the PTR records, so that they count the void
+ * lookups as if they had done the lookups themselves.
+ */
+public class ClientDomainResolver {
+
+    private static final SPFSession.Key<ValidatedNames> ATTRIBUTE_VALIDATED_NAMES = SPFSession.Key.register("ClientDomainResolver.validatedNames");
+
+    /**
+     * Listeners which should get called with the validated names of the
+     * client.
+     */
+    public interface Listener {
+
+        /**
+         * Continue the check with the validated names of the client
+         * 
+         * @param names the validated names
+         * @param session the session
+         * @return the next lookup to do, or null
+         */
+        DNSLookupContinuation onResolved(ValidatedNames names, SPFSession session)
+                throws PermErrorException, NoneException, TempErrorException, NeutralException;
+    }
+
+    private final DNSService dnsService;
+
+    private final TinyLFUCache<String, ValidatedNames> cache;
+
+    private final AtomicLong resolutions = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param dnsService the dns service to use
+     * @param maximumSize the maximum number of clients to remember
+     */
+    public ClientDomainResolver(DNSService dnsService, int maximumSize) {
+        this.dnsService = dnsService;
+        this.cache = new TinyLFUCache<String, ValidatedNames>(maximumSize);
+    }
+
+    /**
+     * Create a resolver remembering at most 10000 clients.
+     * 
+     * @param dnsService the dns service to use
+     */
+    public ClientDomainResolver(DNSService dnsService) {
+        this(dnsService, 10000);
+    }
+
+    /**
+     * Resolve the validated names of the client of the given session and
+     * call the listener with them, at once if they are already known.
+     * 
+     * @param session the session
+     * @param listener the listener to call
+     * @return the continuation of the lookups to do, or the one returned by
+     *         the listener
+     */
+    public DNSLookupContinuation resolve(SPFSession session, Listener listener)
+            throws PermErrorException, NoneException, TempErrorException, NeutralException {
+        ValidatedNames names = session.get(ATTRIBUTE_VALIDATED_NAMES);
+        if (names == null) {
+            names = cache.get(session.getIpAddress());
+            if (names != null && names.expires <= System.currentTimeMillis()) {
+                cache.remove(session.getIpAddress());
+                names = null;
+            }
+            if (names != null) {
+                hits.incrementAndGet();
+                session.set(ATTRIBUTE_VALIDATED_NAMES, names);
+            }
+        }
+        if (names != null) {
+            // stands for the PTR lookup which is not sent again
+            session.countVoidLookup(names.ptrRequest, names.ptrResponse);
+            return listener.onResolved(names, session);
+        }
+
+        IPAddr ip = IPAddr.getAddress(session.getIpAddress());
+        DNSRequest request = new DNSRequest(ip.getReverseIP(), DNSRequest.PTR);
+        return new DNSLookupContinuation(request, (response, s) -> onPTRResponse(ip, request, response, s, listener));
+    }
+
+    private DNSLookupContinuation onPTRResponse(IPAddr ip, DNSRequest ptrRequest, DNSResponse ptrResponse,
+            SPFSession session, Listener listener)
+            throws PermErrorException, NoneException, TempErrorException, NeutralException {
+        resolutions.incrementAndGet();
+        DNSRecords records;
+        try {
+            records = ptrResponse.getRecords();
+        } catch (TimeoutException e) {
+            records = null;
+        }
+
+        int count = records != null ? records.size() : 0;
+        // Truncate the PTR list to getRecordLimit.
+        // See #ptr-limit rfc4408 test
+        if (dnsService.getRecordLimit() > 0 && count > dnsService.getRecordLimit()) {
+            count = dnsService.getRecordLimit() - 1;
+        }
+        int recordType = IPAddr.isIPV6(session.getIpAddress()) ? DNSRequest.AAAA : DNSRequest.A;
+        List<String> candidates = new ArrayList<String>(count);
+        List<DNSRequest> requests = new ArrayList<DNSRequest>(count);
+        for (int i = 0; i < count; i++) {
+            Name name = records.getName(i);
+            if (name != null) {
+                candidates.add(records.getString(i));
+                requests.add(new DNSRequest(name, recordType));
+            }
+        }
+
+        if (requests.isEmpty()) {
+            ValidatedNames names = new ValidatedNames(ip, ptrRequest, ptrResponse, candidates, requests,
+                    Collections.<DNSResponse>emptyList());
+            session.set(ATTRIBUTE_VALIDATED_NAMES, names);
+            remember(session.getIpAddress(), names);
+            return listener.onResolved(names, session);
+        }
+
+        // the executor counts the query standing for all of them
+        for (int i = 1; i < requests.size(); i++) {
+            session.increaseQueryCount();
+        }
+        // shared with the other checks of a batch, and stopped with the session
+        List<CompletableFuture<DNSRecords>> queries = new ArrayList<CompletableFuture<DNSRecords>>(requests.size());
+        @SuppressWarnings("unchecked")
+        CompletableFuture<DNSResponse>[] lookups = new CompletableFuture[requests.size()];
+        for (int i = 0; i < lookups.length; i++) {
+            CompletableFuture<DNSRecords> query = SharedLookups.lookup(session, dnsService, requests.get(i));
+            queries.add(query);
+            lookups[i] = query.handle((r, e) -> e == null ? new DNSResponse(r) : toDNSResponse(e));
+        }
+        String ipAddress = session.getIpAddress();
+        CompletableFuture<ValidatedNames> resolved = CompletableFuture.allOf(lookups).thenApply(v -> {
+            List<DNSResponse> responses = new ArrayList<DNSResponse>(lookups.length);
+            for (int i = 0; i < lookups.length; i++) {
+                responses.add(lookups[i].join());
+            }
+            ValidatedNames names = new ValidatedNames(ip, ptrRequest, ptrResponse, candidates, requests, responses);
+            remember(ipAddress, names);
+            return names;
+        });
+        CompletableFuture<DNSRecords> lookup = resolved.thenApply(names -> DNSRecords.ofStrings(names.getValidatedNames()));
+        lookup.whenComplete((r, e) -> {
+            if (e instanceof CancellationException) {
+                for (CompletableFuture<DNSRecords> query : queries) {
+                    query.cancel(false);
+                }
+            }
+        });
+        return new DNSLookupContinuation(requests.get(0), lookup,
+                (response, s) -> {
+                    ValidatedNames names = resolved.join();
+                    s.set(ATTRIBUTE_VALIDATED_NAMES, names);
+                    return listener.onResolved(names, s);
+                });
+    }
+
+    private static DNSResponse toDNSResponse(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof TimeoutException) {
+            return new DNSResponse((TimeoutException) e);
+        } else if (e instanceof IOException) {
+            return new DNSResponse(new TimeoutException(e.getMessage()));
+        }
+        // e.g. the name does not exist
+        return new DNSResponse(Collections.<String>emptyList());
+    }
+
+    private void remember(String ipAddress, ValidatedNames names) {
+        if (names.expires > System.currentTimeMillis()) {
+            cache.put(ipAddress, names);
+        }
+    }
+
+    /**
+     * @return the number of PTR records resolved
+     */
+    public long getResolutionCount() {
+        return resolutions.get();
+    }
+
+    /**
+     * @return the number of sessions which used the names resolved for
+     *         another session
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * The validated names of a client: the names given by its PTR records,
+     * at most as many as the record limit, with the response to the lookup
+     * of their addresses.
+     */
+    public static final class ValidatedNames {
+
+        private final DNSRequest ptrRequest;
+
+        private final DNSResponse ptrResponse;
+
+        private final List<String> names;
+
+        private final List<DNSRequest> requests;
+
+        private final List<DNSResponse> responses;
+
+        private final boolean[] validated;
+
+        private final long expires;
+
+        private ValidatedNames(IPAddr ip, DNSRequest ptrRequest, DNSResponse ptrResponse, List<String> names,
+                List<DNSRequest> requests, List<DNSResponse> responses) {
+            this.ptrRequest = ptrRequest;
+            this.ptrResponse = ptrResponse;
+            this.names = names;
+            this.requests = requests;
+            this.responses = responses;
+            this.validated = new boolean[responses.size()];
+
+            long ttl = -1;
+            boolean timedOut = false;
+            try {
+                DNSRecords ptrRecords = ptrResponse.getRecords();
+                ttl = ptrRecords != null ? ptrRecords.getTTL() : -1;
+            } catch (TimeoutException e) {
+                timedOut = true;
+            }
+            for (int i = 0; i < responses.size(); i++) {
+                DNSRecords records;
+                try {
+                    records = responses.get(i).getRecords();
+                } catch (TimeoutException e) {
+                    // this name is not validated, the others may be
+                    timedOut = true;
+                    continue;
+                }
+                if (records != null) {
+                    for (int j = 0; j < records.size(); j++) {
+                        // Compare raw addresses to have matching in IPV6 multiple ways to
+                        if (ip.isSameAddress(records.getAddress(j))) {
+                            validated[i] = true;
+                            break;
+                        }
+                    }
+                    if (records.getTTL() >= 0) {
+                        ttl = Math.min(ttl, records.getTTL());
+                    }
+                }
+            }
+            // names resolved after a timeout are not remembered
+            this.expires = ttl > 0 && !timedOut ? System.currentTimeMillis() + ttl * 1000 : 0;
+        }
+
+        /**
+         * @return the response to the PTR lookup, which may be a timeout
+         */
+        public DNSResponse getPTRResponse() {
+            return ptrResponse;
+        }
+
+        /**
+         * @return the number of names given by the PTR records
+         */
+        public int size() {
+            return names.size();
+        }
+
+        /**
+         * @param index the index of the name
+         * @return the name given by the PTR record, without the trailing dot
+         */
+        public String getName(int index) {
+            return names.get(index);
+        }
+
+        /**
+         * @param index the index of the name
+         * @return the request for the addresses of the name
+         */
+        public DNSRequest getRequest(int index) {
+            return requests.get(index);
+        }
+
+        /**
+         * @param index the index of the name
+         * @return the response to the lookup of the addresses of the name,
+         *         which may be a timeout
+         */
+        public DNSResponse getResponse(int index) {
+            return responses.get(index);
+        }
+
+        /**
+         * @param index the index of the name
+         * @return true if the addresses of the name include the client one
+         */
+        public boolean isValidated(int index) {
+            return validated[index];
+        }
+
+        /**
+         * @return the validated names, in the order of the PTR records
+         */
+        public List<String> getValidatedNames() {
+            List<String> result = new ArrayList<String>();
+            for (int i = 0; i < validated.length; i++) {
+                if (validated[i]) {
+                    result.add(names.get(i));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -19,7 +19,7 @@
 
 package org.apache.james.jspf.core;
 
-
+import java.util.concurrent.CompletionStage;
 
 /**
  * This object is used as the return value for spf resolving tasks.
@@ -31,12 +31,30 @@ public class DNSLookupContinuation {
     
     private DNSRequest request;
     private SPFCheckerDNSResponseListener listener;
+    private CompletionStage<DNSRecords> lookup;
 
     public DNSLookupContinuation(DNSRequest request, SPFCheckerDNSResponseListener listener) {
         this.request = request;
         this.listener = listener;
     }
 
+    /**
+     * Create a continuation for an answer the checker already started to
+     * compute, e.g. from several lookups running at once. The executor waits
+     * for it in place of sending the request and counts it as one query,
+     * while the void lookups are left to the listener. The executor cancels
+     * the stage when the session gives up waiting for it.
+     * 
+     * @param request the request standing for the answer
+     * @param lookup the stage completed with the answer
+     * @param listener the listener to invoke with the answer
+     */
+    public DNSLookupContinuation(DNSRequest request, CompletionStage<DNSRecords> lookup, SPFCheckerDNSResponseListener listener) {
+        this.request = request;
+        this.lookup = lookup;
+        this.listener = listener;
+    }
+
     /**
      * Return the DNSRequest which was used
      * 
@@ -55,5 +73,15 @@ public class DNSLookupContinuation {
         return listener;
     }
 
+    /**
+     * Return the answer started by the checker
+     * 
+     * @return the stage completed with the answer, or null if the executor
+     *         has to send the request
+     */
+    public CompletionStage<DNSRecords> getLookup() {
+        return lookup;
+    }
+
     
 }
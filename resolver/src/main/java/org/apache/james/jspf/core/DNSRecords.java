@@ -0,0 +1,422 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.TextParseException;
+
+/**
+ * The records returned by a DNS lookup in their typed form: raw address
+ * bytes for A/AAAA records, {@link Name}s for MX/PTR records and raw bytes
+ * for TXT/SPF records.
+ *
+ * The string form returned by {@link DNSService#getRecords(DNSRequest)} is
+ * derived lazily, and records built from such strings are converted to the
+ * typed form on access.
+ */
+public final class DNSRecords {
+
+    private static final int ADDRESS = 1;
+    private static final int NAME = 2;
+    private static final int TEXT = 3;
+    private static final int STRING = 4;
+
+    private final int kind;
+
+    private final int recordType;
+
+    private final List<?> values;
+
+    // built lazily by whichever thread asks first, and published safely to
+    // the other threads sharing cached records
+    private volatile List<String> strings;
+
+    private long ttl = -1;
+
+    private DNSRecords(int kind, int recordType, List<?> values) {
+        this.kind = kind;
+        this.recordType = recordType;
+        this.values = values;
+    }
+
+    /**
+     * @param addresses the addresses in network byte order (4 or 16 bytes)
+     * @return the records for an A or AAAA lookup
+     */
+    public static DNSRecords ofAddresses(List<byte[]> addresses) {
+        return new DNSRecords(ADDRESS, 0, addresses);
+    }
+
+    /**
+     * @param recordType {@link DNSRequest#MX} or {@link DNSRequest#PTR}
+     * @param names the target names
+     * @return the records for an MX or PTR lookup
+     */
+    public static DNSRecords ofNames(int recordType, List<Name> names) {
+        return new DNSRecords(NAME, recordType, names);
+    }
+
+    /**
+     * @param texts the rdata of each record, with its character-strings concatenated
+     * @return the records for a TXT or SPF lookup
+     */
+    public static DNSRecords ofTexts(List<byte[]> texts) {
+        return new DNSRecords(TEXT, 0, texts);
+    }
+
+    /**
+     * @param records the records in the string form, or null
+     * @return the records wrapping the given strings, or null if null was given
+     */
+    public static DNSRecords ofStrings(List<String> records) {
+        if (records == null) {
+            return null;
+        }
+        DNSRecords result = new DNSRecords(STRING, 0, records);
+        result.strings = records;
+        return result;
+    }
+
+    /**
+     * @param ttl the time to live of the records in seconds
+     * @return a copy of these records with the given time to live
+     */
+    public DNSRecords withTTL(long ttl) {
+        DNSRecords result = new DNSRecords(kind, recordType, values);
+        result.strings = strings;
+        result.ttl = ttl;
+        return result;
+    }
+
+    /**
+     * @return the time to live of the records in seconds, the lowest one if
+     *         they differ, -1 if it is not known
+     */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * Estimate the memory used by these records, for caches bounded in
+     * bytes. The strings derived from typed records are not counted.
+     *
+     * @return the estimated size in bytes
+     */
+    public int getWeight() {
+        int weight = 48 + 16 * values.size();
+        for (int i = 0; i < values.size(); i++) {
+            Object value = values.get(i);
+            if (value instanceof byte[]) {
+                weight += 16 + ((byte[]) value).length;
+            } else if (value instanceof Name) {
+                weight += 48 + ((Name) value).length();
+            } else if (value instanceof String) {
+                weight += 40 + ((String) value).length();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * @return the length in bytes of the form written by {@link #encode(ByteBuffer)}
+     */
+    public int getEncodedLength() {
+        int length = 8;
+        for (int i = 0; i < values.size(); i++) {
+            length += 2 + encodeValue(values.get(i)).length;
+        }
+        return length;
+    }
+
+    /**
+     * Write these records in a compact binary form: their kind, record type,
+     * time to live and count, then each record as a byte string prefixed by
+     * its 16 bits length, like in DNS messages.
+     *
+     * @param buffer the buffer to write to, at its position
+     * @throws IllegalArgumentException if a record is longer than 65535 bytes
+     */
+    public void encode(ByteBuffer buffer) {
+        if (values.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Too many records: " + values.size());
+        }
+        buffer.put((byte) kind);
+        buffer.put((byte) recordType);
+        buffer.putInt((int) Math.max(-1, Math.min(ttl, Integer.MAX_VALUE)));
+        buffer.putShort((short) values.size());
+        for (int i = 0; i < values.size(); i++) {
+            byte[] value = encodeValue(values.get(i));
+            if (value.length > 0xFFFF) {
+                throw new IllegalArgumentException("Record too long: " + value.length);
+            }
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static byte[] encodeValue(Object value) {
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        } else if (value instanceof Name) {
+            return ((Name) value).toWire();
+        } else {
+            return ((String) value).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Read records written by {@link #encode(ByteBuffer)}.
+     *
+     * @param buffer the buffer to read from, at its position
+     * @return the records
+     * @throws IllegalArgumentException if the buffer does not hold valid records
+     */
+    public static DNSRecords decode(ByteBuffer buffer) {
+        int kind = buffer.get();
+        int recordType = buffer.get();
+        int ttl = buffer.getInt();
+        int count = buffer.getShort() & 0xFFFF;
+        List<Object> values = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(value);
+            if (kind == NAME) {
+                try {
+                    values.add(new Name(value));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Invalid name in the records", e);
+                }
+            } else if (kind == STRING) {
+                values.add(new String(value, StandardCharsets.UTF_8));
+            } else if (kind == ADDRESS || kind == TEXT) {
+                values.add(value);
+            } else {
+                throw new IllegalArgumentException("Invalid kind of records: " + kind);
+            }
+        }
+        DNSRecords result = new DNSRecords(kind, recordType, values);
+        if (kind == STRING) {
+            @SuppressWarnings("unchecked")
+            List<String> strings = (List<String>) (List<?>) values;
+            result.strings = strings;
+        }
+        result.ttl = ttl;
+        return result;
+    }
+
+    /**
+     * @return the number of records
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return true if there are no records
+     */
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * @param index the index of the record
+     * @return the address (4 or 16 bytes) or null if the record is not a valid address
+     */
+    public byte[] getAddress(int index) {
+        if (kind == ADDRESS) {
+            return (byte[]) values.get(index);
+        } else if (kind == STRING) {
+            String value = (String) values.get(index);
+            if (value == null) {
+                return null;
+            }
+            byte[] bytes = new byte[16];
+            int length = IPAddr.parse(value, bytes);
+            if (length == 4) {
+                byte[] ipv4 = new byte[4];
+                System.arraycopy(bytes, 0, ipv4, 0, 4);
+                return ipv4;
+            }
+            return length == 16 ? bytes : null;
+        }
+        return null;
+    }
+
+    /**
+     * @param index the index of the record
+     * @return the name or null if the record is not a valid name
+     */
+    public Name getName(int index) {
+        if (kind == NAME) {
+            return (Name) values.get(index);
+        } else if (kind == STRING) {
+            String value = (String) values.get(index);
+            if (value == null || value.length() == 0) {
+                return null;
+            }
+            try {
+                return Name.fromString(value);
+            } catch (TextParseException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param index the index of the record
+     * @return the raw text, or the ISO-8859-1 bytes of records given as strings
+     */
+    public byte[] getText(int index) {
+        if (kind == TEXT) {
+            return (byte[]) values.get(index);
+        } else if (kind == STRING) {
+            String value = (String) values.get(index);
+            return value != null ? value.getBytes(StandardCharsets.ISO_8859_1) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Return the records in the string form used by
+     * {@link DNSService#getRecords(DNSRequest)}: addresses the way
+     * java.net.InetAddress formats them, MX targets as absolute names, PTR
+     * targets without the trailing dot and texts with non printable
+     * characters escaped as \DDD.
+     *
+     * @return the records as strings
+     */
+    public List<String> asStrings() {
+        List<String> result = strings;
+        if (result == null) {
+            result = new ArrayList<String>(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                result.add(toString(values.get(i)));
+            }
+            strings = result;
+        }
+        return result;
+    }
+
+    /**
+     * Return a single record in the string form of {@link #asStrings()},
+     * without converting the other ones.
+     *
+     * @param index the index of the record
+     * @return the record as string
+     */
+    public String getString(int index) {
+        List<String> result = strings;
+        if (result != null) {
+            return result.get(index);
+        }
+        return toString(values.get(index));
+    }
+
+    private String toString(Object value) {
+        if (kind == ADDRESS) {
+            return IPAddr.getConvertedIP((byte[]) value);
+        } else if (kind == NAME) {
+            String name = value.toString();
+            return recordType == DNSRequest.PTR ? IPAddr.stripDot(name) : name;
+        } else {
+            return textToString((byte[]) value);
+        }
+    }
+
+    /**
+     * Tell whether the string form of the given record, once trimmed, is
+     * the given tag or starts with it followed by a space, ignoring the case
+     * of ASCII letters: the way TXT records announce their version, e.g.
+     * "v=spf1". Raw texts are scanned in place, without building their
+     * string form.
+     *
+     * @param index the index of the record
+     * @param tag the tag, made of printable ASCII characters
+     * @return true if the record starts with the tag
+     */
+    public boolean hasTextTag(int index, String tag) {
+        if (kind == TEXT && strings == null) {
+            // non printable characters are escaped in the string form, so
+            // only spaces are trimmed
+            byte[] text = (byte[]) values.get(index);
+            int start = 0;
+            while (start < text.length && text[start] == ' ') {
+                start++;
+            }
+            int end = start + tag.length();
+            if (end > text.length) {
+                return false;
+            }
+            for (int i = 0; i < tag.length(); i++) {
+                if (toLowerCase(text[start + i] & 0xFF) != toLowerCase(tag.charAt(i))) {
+                    return false;
+                }
+            }
+            return end == text.length || text[end] == ' ';
+        }
+        String text = getString(index).trim();
+        if (text.length() < tag.length()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (toLowerCase(text.charAt(i)) != toLowerCase(tag.charAt(i))) {
+                return false;
+            }
+        }
+        return text.length() == tag.length() || text.charAt(tag.length()) == ' ';
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static String textToString(byte[] text) {
+        StringBuilder sb = new StringBuilder(text.length);
+        for (int i = 0; i < text.length; i++) {
+            int c = text[i] & 0xFF;
+            if (c < 0x20 || c >= 0x7F) {
+                sb.append('\\');
+                sb.append((char) ('0' + c / 100));
+                sb.append((char) ('0' + c / 10 % 10));
+                sb.append((char) ('0' + c % 10));
+            } else if (c == '"' || c == '\\') {
+                sb.append('\\');
+                sb.append((char) c);
+            } else {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return asStrings().toString();
+    }
+}
@@ -40,6 +40,11 @@ public final class DNSRequest {
      * The hostname to be resolved
      */
     private final String hostname;
+
+    /**
+     * The parsed hostname, null if it is not a valid name
+     */
+    private final Name name;
     
     /**
      * The record type to look for
@@ -47,14 +52,30 @@ public final class DNSRequest {
     private final int recordType;
 
     public DNSRequest(final String hostname, final int recordType) throws NoneException {
-        if (recordType == MX || recordType == A || recordType == AAAA) {
-            try {
-                Name.fromString(hostname);
-            } catch (TextParseException e) {
+        Name parsed;
+        try {
+            parsed = Name.fromString(hostname);
+        } catch (TextParseException e) {
+            if (recordType == MX || recordType == A || recordType == AAAA) {
                 throw new NoneException(e.getMessage());
             }
+            parsed = null;
         }
         this.hostname = hostname;
+        this.name = parsed;
+        this.recordType = recordType;
+    }
+
+    /**
+     * Create a request for an already parsed name, e.g. the target of a
+     * MX or PTR record
+     * 
+     * @param name the name to be resolved
+     * @param recordType the record type to look for
+     */
+    public DNSRequest(final Name name, final int recordType) {
+        this.hostname = name.toString();
+        this.name = name;
         this.recordType = recordType;
     }
 
@@ -67,6 +88,15 @@ public final class DNSRequest {
         return hostname;
     }
 
+    /**
+     * Return the parsed hostname
+     * 
+     * @return the name or null if the hostname is not a valid name
+     */
+    public final Name getName() {
+        return name;
+    }
+
     /**
      * Return the RecordType which is use for this request
      * 
@@ -30,7 +30,7 @@ import java.util.List;
  */
 public class DNSResponse {
     
-    private List<String> response;
+    private DNSRecords response;
     
     private TimeoutException exception;
     
@@ -40,6 +40,11 @@ public class DNSResponse {
     }
     
     public DNSResponse(List<String> response) {
+        this.exception = null;
+        this.response = DNSRecords.ofStrings(response);
+    }
+    
+    public DNSResponse(DNSRecords response) {
         this.exception = null;
         this.response = response;
     }
@@ -52,6 +57,18 @@ public class DNSResponse {
      *         process a dns request
      */
     public List<String> getResponse() throws TimeoutException {
+        DNSRecords records = getRecords();
+        return records != null ? records.asStrings() : null;
+    }
+
+    /**
+     * Returns the DNS response in its typed form
+     * 
+     * @return the records or null if nothing was found
+     * @throws TimeoutException get thrown if an timeout was returned while tried to 
+     *         process a dns request
+     */
+    public DNSRecords getRecords() throws TimeoutException {
         if (exception != null) {
             throw exception;
         } else {
@@ -42,6 +42,29 @@ public interface DNSService {
 
     CompletionStage<List<String>> getRecordsAsync(DNSRequest request);
 
+    /**
+     * Retrieve dns records for the given host in their typed form. The
+     * default implementation wraps the result of {@link #getRecords(DNSRequest)}.
+     * 
+     * @param request the dns request
+     * @return the records or null if nothing was found
+     * @throws TimeoutException
+     */
+    default DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+        return DNSRecords.ofStrings(getRecords(request));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getDNSRecords(DNSRequest)}. The default
+     * implementation wraps the result of {@link #getRecordsAsync(DNSRequest)}.
+     * 
+     * @param request the dns request
+     * @return a stage completed with the records or null if nothing was found
+     */
+    default CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+        return getRecordsAsync(request).thenApply(DNSRecords::ofStrings);
+    }
+
     /**
      * Try to get all domain names for the running host
      * 
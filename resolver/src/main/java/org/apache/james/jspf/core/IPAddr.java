@@ -19,10 +19,7 @@
 
 package org.apache.james.jspf.core;
 
-import java.net.UnknownHostException;
-
 import org.apache.james.jspf.core.exceptions.PermErrorException;
-import org.xbill.DNS.Address;
 
 public class IPAddr {
 
@@ -43,8 +40,6 @@ public class IPAddr {
     private int ipRun = 4;
 
     private String ipJoiner = ".";
-    
-    private static String ipv4MappedRegex = "::FFFF:[1-9][0-9]{0,2}\\.[1-9][0-9]{0,2}\\.[1-9][0-9]{0,2}\\.[1-9][0-9]{0,2}";
 
     // Allow factory creates only
     private IPAddr() {
@@ -90,12 +85,33 @@ public class IPAddr {
      * @return true or false
      */
     public static boolean isIPAddr(String data) {
-        try {
-            getAddress(data);
-            return true;
-        } catch (PermErrorException e) {
-            return false;
+        return parse(data, null) != 0;
+    }
+
+    /**
+     * Parse the given ipAddress, ignoring surrounding whitespaces and a
+     * trailing dot.
+     * 
+     * @param netAddress
+     *            The ipAddress to parse
+     * @param dst
+     *            The buffer receiving the address or null
+     * @return 4 or 16 for an IPv4 or IPv6 address, 0 if it is invalid
+     * @see Inet6Util#parseAddress(CharSequence, int, int, byte[])
+     */
+    static int parse(String netAddress, byte[] dst) {
+        int start = 0;
+        int end = netAddress.length();
+        while (start < end && netAddress.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && netAddress.charAt(end - 1) <= ' ') {
+            end--;
         }
+        if (end > start && netAddress.charAt(end - 1) == '.') {
+            end--;
+        }
+        return Inet6Util.parseAddress(netAddress, start, end, dst);
     }
 
     /**
@@ -179,27 +195,104 @@ public class IPAddr {
      *             on error
      */
     private void stringToInternal(String netAddress) throws PermErrorException {
-        netAddress = stripDot(netAddress);
+        byte[] bytes = new byte[16];
+        int length = parse(netAddress, bytes);
 
-        try {
-            byte[] bytes = Inet6Util.createByteArrayFromIPAddressString(netAddress);
-    
-            if (bytes.length == 4) {
-                for (int i = 0; i < bytes.length; i++) {
-                    address[i] = bytes[i];
-                }
-            } else if (bytes.length == 16) {
-                setIP6Defaults();
-                for (int i = 0; i < bytes.length / 2; i++) {
-                    address[i] = unsigned(bytes[i * 2]) * 256
-                            + unsigned(bytes[i * 2 + 1]);
-                }
-            } else {
-                throw new PermErrorException("Not a valid address: " + netAddress);
+        if (length == 4) {
+            for (int i = 0; i < length; i++) {
+                address[i] = unsigned(bytes[i]);
+            }
+        } else if (length == 16) {
+            setIP6Defaults();
+            for (int i = 0; i < length / 2; i++) {
+                address[i] = unsigned(bytes[i * 2]) * 256
+                        + unsigned(bytes[i * 2 + 1]);
+            }
+        } else {
+            throw new PermErrorException("Not a valid address: " + stripDot(netAddress));
+        }
+    }
+
+    /**
+     * Check if the given ipAddress is in the network described by this
+     * address and its mask length. Invalid addresses and addresses of the
+     * other ip version never match.
+     * 
+     * @param ipAddress
+     *            The ipAddress to check
+     * @return true or false
+     */
+    public boolean contains(String ipAddress) {
+        return matches(ipAddress, mask);
+    }
+
+    /**
+     * Check if the given ipAddress is the same as this address, regardless
+     * of the mask length and of the textual representation.
+     * 
+     * @param ipAddress
+     *            The ipAddress to check
+     * @return true or false
+     */
+    public boolean isSameAddress(String ipAddress) {
+        return matches(ipAddress, null);
+    }
+
+    /**
+     * Check if the given raw address is in the network described by this
+     * address and its mask length. IPv4-mapped addresses are handled as
+     * IPv4 addresses.
+     * 
+     * @param ipAddress
+     *            The address in network byte order (4 or 16 bytes), may be null
+     * @return true or false
+     */
+    public boolean contains(byte[] ipAddress) {
+        return matches(ipAddress, mask);
+    }
+
+    /**
+     * Check if the given raw address is the same as this address, regardless
+     * of the mask length.
+     * 
+     * @param ipAddress
+     *            The address in network byte order (4 or 16 bytes), may be null
+     * @return true or false
+     */
+    public boolean isSameAddress(byte[] ipAddress) {
+        return matches(ipAddress, null);
+    }
+
+    private boolean matches(String ipAddress, int[] maskData) {
+        byte[] bytes = new byte[16];
+        return matches(bytes, parse(ipAddress, bytes), maskData);
+    }
+
+    private boolean matches(byte[] ipAddress, int[] maskData) {
+        if (ipAddress == null) {
+            return false;
+        }
+        if (ipAddress.length == 16 && Inet6Util.isIPV4Mapped(ipAddress)) {
+            byte[] bytes = new byte[4];
+            System.arraycopy(ipAddress, 12, bytes, 0, 4);
+            return matches(bytes, 4, maskData);
+        }
+        return matches(ipAddress, ipAddress.length, maskData);
+    }
+
+    private boolean matches(byte[] bytes, int length, int[] maskData) {
+        if (length != ipLength) {
+            return false;
+        }
+        for (int i = 0; i < ipRun; i++) {
+            int other = length == 4 ? unsigned(bytes[i])
+                    : unsigned(bytes[i * 2]) * 256 + unsigned(bytes[i * 2 + 1]);
+            int m = maskData != null ? maskData[i] : MASK16;
+            if ((address[i] & m) != (other & m)) {
+                return false;
             }
-        } catch (NumberFormatException e) {
-            throw new PermErrorException("Not a valid address: " + netAddress);
         }
+        return true;
     }
 
     /**
@@ -364,7 +457,7 @@ public class IPAddr {
         return getIPAddress();
     }
 
-    private int unsigned(byte data) {
+    private static int unsigned(byte data) {
         return data >= 0 ? data : 256 + data;
     }
 
@@ -427,19 +520,50 @@ public class IPAddr {
     public static String getReadableIP(String ip) {
 
         // Convert the ip if its an ipv6 ip. For ipv4 no conversion is needed
-        if (Inet6Util.isValidIP6Address(ip)) {
-            try {
-                return getConvertedIP(ip);
-            } catch (UnknownHostException e) {
-                // ignore this
+        if (ip.indexOf(':') >= 0) {
+            byte[] bytes = new byte[16];
+            int length = Inet6Util.parseAddress(ip, 0, ip.length(), bytes);
+            if (length != 0) {
+                return getConvertedIP(bytes, length);
             }
         }
         return ip;
     }
     
-    private static String getConvertedIP(String ip) throws UnknownHostException {
-        // Convert the ip if its an ipv6 ip. For ipv4 no conversion is needed
-        return Address.getByName(ip).getHostAddress();
+    /**
+     * Format the given raw address the way java.net.InetAddress does,
+     * IPv4-mapped addresses are formatted as IPv4 addresses
+     */
+    static String getConvertedIP(byte[] bytes) {
+        if (bytes.length == 16 && Inet6Util.isIPV4Mapped(bytes)) {
+            byte[] ipv4 = new byte[4];
+            System.arraycopy(bytes, 12, ipv4, 0, 4);
+            return getConvertedIP(ipv4, 4);
+        }
+        return getConvertedIP(bytes, bytes.length);
+    }
+
+    /**
+     * Format the given address the way java.net.InetAddress does
+     */
+    private static String getConvertedIP(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder(39);
+        if (length == 4) {
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                sb.append(unsigned(bytes[i]));
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                if (i > 0) {
+                    sb.append(':');
+                }
+                sb.append(Integer.toHexString(unsigned(bytes[i * 2]) * 256 + unsigned(bytes[i * 2 + 1])));
+            }
+        }
+        return sb.toString();
     }
     
     /**
@@ -461,24 +585,14 @@ public class IPAddr {
      * @throws PermErrorException if the given ipAddress is invalid
      */
     public static String getProperIpAddress(String ip) throws PermErrorException {
-        if (isIPV6(ip) && isIPV4MappedIP(ip)) {
-            try {
-                return getConvertedIP(ip);
-            } catch (UnknownHostException e) {
-                throw new PermErrorException("Invalid ipAddress: " + ip);
+        if (ip.indexOf(':') >= 0) {
+            byte[] bytes = new byte[16];
+            if (Inet6Util.parseAddress(ip, 0, ip.length(), bytes) == 4) {
+                return getConvertedIP(bytes, 4);
             }
         }
         return ip;
         
     }
-    
-    /**
-     * Return true if the given ipAddress is a ipv4-mapped-address
-     * @param ip
-     * @return
-     */
-    private static boolean isIPV4MappedIP(String ip) {
-        return ip.toUpperCase().matches(ipv4MappedRegex);
-    }
 
 }
\ No newline at end of file
@@ -19,9 +19,6 @@
 
 package org.apache.james.jspf.core;
 
-import java.util.ArrayList;
-import java.util.StringTokenizer;
-
 /**
  * Utility functions for IPV6 operations.
  * 
@@ -36,126 +33,240 @@ public class Inet6Util {
     }
 
     /**
-     * Creates an byte[] based on an ipAddressString. No error handling is
-     * performed here.
+     * Creates an byte[] based on an ipAddressString. IPv4-mapped IPv6
+     * addresses are returned as 4 bytes IPv4 addresses.
+     * 
+     * @throws NumberFormatException
+     *             if the given string is not a valid ip address
      */
     public static byte[] createByteArrayFromIPAddressString(
             String ipAddressString) {
-
-        if (isValidIPV4Address(ipAddressString)) {
-            StringTokenizer tokenizer = new StringTokenizer(ipAddressString,
-                    ".");
-            String token = "";
-            int tempInt = 0;
-            byte[] byteAddress = new byte[4];
-            for (int i = 0; i < 4; i++) {
-                token = tokenizer.nextToken();
-                tempInt = Integer.parseInt(token);
-                byteAddress[i] = (byte) tempInt;
-            }
-
-            return byteAddress;
-        }
-
-        if (ipAddressString.charAt(0) == '[') {
-            ipAddressString = ipAddressString.substring(1, ipAddressString
-                    .length() - 1);
+        byte[] ipByteArray = new byte[16];
+        int length = parseAddress(ipAddressString, 0, ipAddressString.length(), ipByteArray);
+        if (length == 0) {
+            throw new NumberFormatException("Not a valid ip address: " + ipAddressString);
+        } else if (length == 4) {
+            byte[] ipv4ByteArray = new byte[4];
+            System.arraycopy(ipByteArray, 0, ipv4ByteArray, 0, 4);
+            return ipv4ByteArray;
         }
+        return ipByteArray;
+    }
 
-        StringTokenizer tokenizer = new StringTokenizer(ipAddressString, ":.",
-                true);
-        ArrayList<String> hexStrings = new ArrayList<String>();
-        ArrayList<String> decStrings = new ArrayList<String>();
-        String token = "";
-        String prevToken = "";
-        int doubleColonIndex = -1; // If a double colon exists, we need to
-        // insert 0s.
-
-        // Go through the tokens, including the seperators ':' and '.'
-        // When we hit a : or . the previous token will be added to either
-        // the hex list or decimal list. In the case where we hit a ::
-        // we will save the index of the hexStrings so we can add zeros
-        // in to fill out the string
-        while (tokenizer.hasMoreTokens()) {
-            prevToken = token;
-            token = tokenizer.nextToken();
-
-            if (token.equals(":")) {
-                if (prevToken.equals(":")) {
-                    doubleColonIndex = hexStrings.size();
-                } else if (!prevToken.equals("")) {
-                    hexStrings.add(prevToken);
+    /**
+     * Parse the IPv4 or IPv6 literal found between start and end of the
+     * given value in a single pass, without creating any object and without
+     * throwing exceptions.
+     * <p>
+     * IPv6 literals may be enclosed in brackets and may carry a numeric
+     * "%" scope, which is ignored. IPv4-mapped IPv6 addresses (::ffff:d.d.d.d)
+     * are written and reported as IPv4 addresses, unless dst is null.
+     * 
+     * @param value
+     *            the characters to parse
+     * @param start
+     *            the index of the first character
+     * @param end
+     *            the index after the last character
+     * @param dst
+     *            the buffer (at least 16 bytes) receiving the address in
+     *            network byte order or null to only validate the literal.
+     *            Its content is undefined when 0 is returned.
+     * @return 4 for an IPv4 address, 16 for an IPv6 address, 0 if the
+     *         characters are not a valid ip address
+     */
+    public static int parseAddress(CharSequence value, int start, int end, byte[] dst) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == ':' || c == '[') {
+                if (!parseIPV6(value, start, end, dst)) {
+                    return 0;
                 }
-            } else if (token.equals(".")) {
-                decStrings.add(prevToken);
+                if (dst != null && isIPV4Mapped(dst)) {
+                    System.arraycopy(dst, 12, dst, 0, 4);
+                    return 4;
+                }
+                return 16;
             }
         }
+        return parseIPV4(value, start, end, dst, 0) ? 4 : 0;
+    }
 
-        if (prevToken.equals(":")) {
-            if (token.equals(":")) {
-                doubleColonIndex = hexStrings.size();
-            } else {
-                hexStrings.add(token);
+    /**
+     * Parse a dotted IPv4 address.
+     * 
+     * @param value
+     *            the characters to parse
+     * @param start
+     *            the index of the first character
+     * @param end
+     *            the index after the last character
+     * @param dst
+     *            the buffer receiving the 4 bytes or null
+     * @param offset
+     *            the position of the first byte in dst
+     * @return true if the characters are a valid IPv4 address
+     */
+    public static boolean parseIPV4(CharSequence value, int start, int end, byte[] dst, int offset) {
+        int octets = 0;
+        int i = start;
+        while (true) {
+            int octet = 0;
+            int digits = 0;
+            char c;
+            while (i < end && (c = value.charAt(i)) >= '0' && c <= '9') {
+                if (++digits > 3) {
+                    return false;
+                }
+                octet = octet * 10 + (c - '0');
+                i++;
+            }
+            if (digits == 0 || octet > 255) {
+                return false;
+            }
+            if (dst != null) {
+                dst[offset + octets] = (byte) octet;
+            }
+            octets++;
+            if (i == end) {
+                return octets == 4;
             }
-        } else if (prevToken.equals(".")) {
-            decStrings.add(token);
+            if (octets == 4 || value.charAt(i) != '.') {
+                return false;
+            }
+            i++;
         }
+    }
 
-        // figure out how many hexStrings we should have
-        // also check if it is a IPv4 address
-        int hexStringsLength = 8;
-
-        // If we have an IPv4 address tagged on at the end, subtract
-        // 4 bytes, or 2 hex words from the total
-        if (decStrings.size() > 0) {
-            hexStringsLength -= 2;
+    /**
+     * Parse an IPv6 address, optionally enclosed in brackets, with an
+     * optional numeric scope and an optional IPv4 ending.
+     * 
+     * @param value
+     *            the characters to parse
+     * @param start
+     *            the index of the first character
+     * @param end
+     *            the index after the last character
+     * @param dst
+     *            the buffer receiving the 16 bytes or null
+     * @return true if the characters are a valid IPv6 address
+     */
+    public static boolean parseIPV6(CharSequence value, int start, int end, byte[] dst) {
+        if (end - start > 1 && value.charAt(start) == '[') {
+            if (value.charAt(end - 1) != ']') {
+                return false;
+            }
+            start++;
+            end--;
         }
-
-        // if we hit a double Colon add the appropriate hex strings
-        if (doubleColonIndex != -1) {
-            int numberToInsert = hexStringsLength - hexStrings.size();
-            for (int i = 0; i < numberToInsert; i++) {
-                hexStrings.add(doubleColonIndex, "0");
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == '%') {
+                // only numeric scopes are supported
+                if (i + 1 == end) {
+                    return false;
+                }
+                for (int j = i + 1; j < end; j++) {
+                    char c = value.charAt(j);
+                    if (c < '0' || c > '9') {
+                        return false;
+                    }
+                }
+                end = i;
+                break;
             }
         }
-
-        byte ipByteArray[] = new byte[16];
-
-        // Finally convert these strings to bytes...
-        for (int i = 0; i < hexStrings.size(); i++) {
-            convertToBytes((String) hexStrings.get(i), ipByteArray, i * 2);
+        if (end - start < 2) {
+            return false;
         }
 
-        // Now if there are any decimal values, we know where they go...
-        for (int i = 0; i < decStrings.size(); i++) {
-            ipByteArray[i + 12] = (byte) (Integer.parseInt((String) decStrings
-                    .get(i)) & 255);
+        int groups = 0;
+        // the group index where "::" was found
+        int gap = -1;
+        int i = start;
+        if (value.charAt(i) == ':') {
+            // An IPV6 address can only start with "::" or with a number.
+            if (value.charAt(i + 1) != ':') {
+                return false;
+            }
+            gap = 0;
+            i += 2;
         }
-
-        // now check to see if this guy is actually and IPv4 address
-        // an ipV4 address is ::FFFF:d.d.d.d
-        boolean ipV4 = true;
-        for (int i = 0; i < 10; i++) {
-            if (ipByteArray[i] != 0) {
-                ipV4 = false;
+        while (i < end) {
+            int group = 0;
+            int j = i;
+            int digit;
+            while (j < end && j - i < 5 && (digit = hexValue(value.charAt(j))) >= 0) {
+                group = (group << 4) | digit;
+                j++;
+            }
+            if (j < end && value.charAt(j) == '.') {
+                // the last 32 bits represented as IPv4
+                if (groups + 2 > (gap < 0 ? 8 : 7) || (gap < 0 && groups != 6)) {
+                    return false;
+                }
+                if (!parseIPV4(value, i, end, dst, groups * 2)) {
+                    return false;
+                }
+                groups += 2;
                 break;
             }
+            if (j == i || j - i > 4 || groups == (gap < 0 ? 8 : 7)) {
+                return false;
+            }
+            if (dst != null) {
+                dst[groups * 2] = (byte) (group >> 8);
+                dst[groups * 2 + 1] = (byte) group;
+            }
+            groups++;
+            i = j;
+            if (i == end) {
+                break;
+            }
+            if (value.charAt(i) != ':' || ++i == end) {
+                return false;
+            }
+            if (value.charAt(i) == ':') {
+                if (gap >= 0) {
+                    return false;
+                }
+                gap = groups;
+                i++;
+            }
         }
 
-        if (ipByteArray[10] != -1 || ipByteArray[11] != -1) {
-            ipV4 = false;
+        if (gap < 0 ? groups != 8 : groups > 7) {
+            return false;
         }
-
-        if (ipV4) {
-            byte ipv4ByteArray[] = new byte[4];
-            for (int i = 0; i < 4; i++) {
-                ipv4ByteArray[i] = ipByteArray[i + 12];
+        if (gap >= 0 && dst != null) {
+            // move the groups after "::" to the end and fill the gap with zeros
+            int tail = (groups - gap) * 2;
+            System.arraycopy(dst, gap * 2, dst, 16 - tail, tail);
+            for (int k = gap * 2; k < 16 - tail; k++) {
+                dst[k] = 0;
             }
-            return ipv4ByteArray;
         }
+        return true;
+    }
 
-        return ipByteArray;
+    static boolean isIPV4Mapped(byte[] address) {
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return false;
+            }
+        }
+        return address[10] == -1 && address[11] == -1;
+    }
 
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
     }
 
     /** Converts a 4 character hex word into a 2 byte word equivalent */
@@ -235,135 +346,7 @@ public class Inet6Util {
     }
 
     public static boolean isValidIP6Address(String ipAddress) {
-        int length = ipAddress.length();
-        boolean doubleColon = false;
-        int numberOfColons = 0;
-        int numberOfPeriods = 0;
-        int numberOfPercent = 0;
-        String word = "";
-        char c = 0;
-        char prevChar = 0;
-        int offset = 0; // offset for [] ip addresses
-
-        if (length < 2)
-            return false;
-
-        for (int i = 0; i < length; i++) {
-            prevChar = c;
-            c = ipAddress.charAt(i);
-            switch (c) {
-
-            // case for an open bracket [x:x:x:...x]
-            case '[':
-                if (i != 0)
-                    return false; // must be first character
-                if (ipAddress.charAt(length - 1) != ']')
-                    return false; // must have a close ]
-                offset = 1;
-                if (length < 4)
-                    return false;
-                break;
-
-            // case for a closed bracket at end of IP [x:x:x:...x]
-            case ']':
-                if (i != length - 1)
-                    return false; // must be last charcter
-                if (ipAddress.charAt(0) != '[')
-                    return false; // must have a open [
-                break;
-
-            // case for the last 32-bits represented as IPv4 x:x:x:x:x:x:d.d.d.d
-            case '.':
-                numberOfPeriods++;
-                if (numberOfPeriods > 3)
-                    return false;
-                if (!isValidIP4Word(word))
-                    return false;
-                if (numberOfColons != 6 && !doubleColon)
-                    return false;
-                // a special case ::1:2:3:4:5:d.d.d.d allows 7 colons with an
-                // IPv4 ending, otherwise 7 :'s is bad
-                if (numberOfColons == 7 && ipAddress.charAt(0 + offset) != ':'
-                        && ipAddress.charAt(1 + offset) != ':')
-                    return false;
-                word = "";
-                break;
-
-            case ':':
-                // FIX "IP6 mechanism syntax #ip6-bad1"
-                // An IPV6 address cannot start with a single ":".
-                // Either it can starti with "::" or with a number.
-                if (i == offset && (ipAddress.length() <= i || ipAddress.charAt(i+1) != ':')) {
-                    return false;
-                }
-                // END FIX "IP6 mechanism syntax #ip6-bad1"
-                numberOfColons++;
-                if (numberOfColons > 7)
-                    return false;
-                if (numberOfPeriods > 0)
-                    return false;
-                if (prevChar == ':') {
-                    if (doubleColon)
-                        return false;
-                    doubleColon = true;
-                }
-                word = "";
-                break;
-            case '%':
-                if (numberOfColons == 0)
-                    return false;
-                numberOfPercent++;
-
-                // validate that the stuff after the % is valid
-                if ((i + 1) >= length) {
-                    // in this case the percent is there but no number is
-                    // available
-                    return false;
-                }
-                try {
-                    Integer.parseInt(ipAddress.substring(i + 1));
-                } catch (NumberFormatException e) {
-                    // right now we just support an integer after the % so if
-                    // this is not
-                    // what is there then return
-                    return false;
-                }
-                break;
-
-            default:
-                if (numberOfPercent == 0) {
-                    if (word.length() > 3)
-                        return false;
-                    if (!isValidHexChar(c))
-                        return false;
-                }
-                word += c;
-            }
-        }
-
-        // Check if we have an IPv4 ending
-        if (numberOfPeriods > 0) {
-            if (numberOfPeriods != 3 || !isValidIP4Word(word))
-                return false;
-        } else {
-            // If we're at then end and we haven't had 7 colons then there is a
-            // problem unless we encountered a doubleColon
-            if (numberOfColons != 7 && !doubleColon) {
-                return false;
-            }
-
-            // If we have an empty word at the end, it means we ended in either
-            // a : or a .
-            // If we did not end in :: then this is invalid
-            if (numberOfPercent == 0) {
-                if (word == "" && ipAddress.charAt(length - 1 - offset) == ':'
-                        && ipAddress.charAt(length - 2 - offset) != ':') {
-                    return false;
-                }
-            }
-        }
-
-        return true;
+        return parseIPV6(ipAddress, 0, ipAddress.length(), null);
     }
 
     public static boolean isValidIP4Word(String word) {
@@ -381,9 +364,7 @@ public class Inet6Util {
     }
 
     static boolean isValidHexChar(char c) {
-
-        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F')
-                || (c >= 'a' && c <= 'f');
+        return hexValue(c) >= 0;
     }
 
     /**
@@ -393,40 +374,7 @@ public class Inet6Util {
      *         notation, false otherwise
      */
     public static boolean isValidIPV4Address(String value) {
-
-        int periods = 0;
-        int i = 0;
-        int length = value.length();
-
-        if (length > 15)
-            return false;
-        char c = 0;
-        String word = "";
-        for (i = 0; i < length; i++) {
-            c = value.charAt(i);
-            if (c == '.') {
-                periods++;
-                if (periods > 3)
-                    return false;
-                if (word == "")
-                    return false;
-                if (Integer.parseInt(word) > 255)
-                    return false;
-                word = "";
-            } else if (!(Character.isDigit(c)))
-                return false;
-            else {
-                if (word.length() > 2)
-                    return false;
-                word += c;
-            }
-        }
-
-        if (word == "" || Integer.parseInt(word) > 255)
-            return false;
-        if (periods != 3)
-            return false;
-        return true;
+        return parseIPV4(value, 0, value.length(), null, 0);
     }
 
 }
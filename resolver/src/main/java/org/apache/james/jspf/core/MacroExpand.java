@@ -29,7 +29,6 @@ package org.apache.james.jspf.core;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,7 +37,6 @@ import org.apache.james.jspf.core.exceptions.NeutralException;
 import org.apache.james.jspf.core.exceptions.NoneException;
 import org.apache.james.jspf.core.exceptions.PermErrorException;
 import org.apache.james.jspf.core.exceptions.TempErrorException;
-import org.apache.james.jspf.core.exceptions.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,6 +55,8 @@ public class MacroExpand {
 
     private DNSService dnsProbe;
 
+    private ClientDomainResolver clientDomainResolver;
+
     public static final boolean EXPLANATION = true;
     
     public static final boolean DOMAIN = false;
@@ -81,90 +81,69 @@ public class MacroExpand {
         macroLettersExpPattern = Pattern.compile(SPFTermsRegexps.MACRO_LETTER_PATTERN_EXP);
         macroLettersPattern = Pattern.compile(SPFTermsRegexps.MACRO_LETTER_PATTERN);
         this.dnsProbe = dnsProbe;
+        this.clientDomainResolver = new ClientDomainResolver(dnsProbe);
     }
-    
 
-    private static final class AResponseListener implements
-            SPFCheckerDNSResponseListener {
-        
-        /**
-         * @see org.apache.james.jspf.core.SPFCheckerDNSResponseListener#onDNSResponse(org.apache.james.jspf.core.DNSResponse, org.apache.james.jspf.core.SPFSession)
-         */
-        public DNSLookupContinuation onDNSResponse(DNSResponse response, SPFSession session)
-                throws PermErrorException, NoneException, TempErrorException,
-                NeutralException {
-            // just return the default "unknown" if we cannot find anything
-            // later
-            session.setClientDomain("unknown");
-            try {
-                List<String> records = response.getResponse();
-                if (records != null && records.size() > 0) {
-                    Iterator<String> i = records.iterator();
-                    while (i.hasNext()) {
-                        String next = i.next();
-                        if (IPAddr.getAddress(session.getIpAddress())
-                                .toString().equals(
-                                        IPAddr.getAddress(next).toString())) {
-                            session
-                                    .setClientDomain((String) session
-                                            .getAttribute(ATTRIBUTE_MACRO_EXPAND_CHECKED_RECORD));
-                            break;
-                        }
-                    }
-                }
-            } catch (TimeoutException e) {
-                // just return the default "unknown".
-            } catch (PermErrorException e) {
-                // just return the default "unknown".
-            }
-            return null;
-        }
+    /**
+     * Return the resolver of the validated names of the client, shared with
+     * the ptr mechanism
+     * 
+     * @return the resolver
+     */
+    public ClientDomainResolver getClientDomainResolver() {
+        return clientDomainResolver;
     }
+    
 
-    private static final class PTRResponseListener implements
-            SPFCheckerDNSResponseListener {
+    /**
+     * Set the client domain to the validated name of the client matching the
+     * current domain best: the current domain itself, else a subdomain of
+     * it, else the first one. The void lookups are counted up to the chosen
+     * name.
+     */
+    private static final class ClientDomainListener implements ClientDomainResolver.Listener {
 
         /**
-         * @see org.apache.james.jspf.core.SPFCheckerDNSResponseListener#onDNSResponse(org.apache.james.jspf.core.DNSResponse, org.apache.james.jspf.core.SPFSession)
+         * @see org.apache.james.jspf.core.ClientDomainResolver.Listener#onResolved(org.apache.james.jspf.core.ClientDomainResolver.ValidatedNames, org.apache.james.jspf.core.SPFSession)
          */
-        public DNSLookupContinuation onDNSResponse(DNSResponse response, SPFSession session)
-                throws PermErrorException, NoneException, TempErrorException,
-                NeutralException {
-
-            try {
-                boolean ip6 = IPAddr.isIPV6(session.getIpAddress());
-                List<String> records = response.getResponse();
-
-                if (records != null && records.size() > 0) {
-                    String record = records.get(0);
-                    session.setAttribute(ATTRIBUTE_MACRO_EXPAND_CHECKED_RECORD,
-                            record);
-
-                    return new DNSLookupContinuation(new DNSRequest(record,
-                            ip6 ? DNSRequest.AAAA : DNSRequest.A), 
-                            new AResponseListener());
-
+        public DNSLookupContinuation onResolved(ClientDomainResolver.ValidatedNames names, SPFSession session)
+                throws PermErrorException, NoneException, TempErrorException, NeutralException {
+            String domain = session.getCurrentDomain();
+            int first = -1;
+            int subdomain = -1;
+            int exact = -1;
+            for (int i = 0; i < names.size() && exact < 0; i++) {
+                if (names.isValidated(i)) {
+                    String name = names.getName(i);
+                    if (name.equalsIgnoreCase(domain)) {
+                        exact = i;
+                    } else if (subdomain < 0 && name.toLowerCase().endsWith("." + domain.toLowerCase())) {
+                        subdomain = i;
+                    } else if (first < 0) {
+                        first = i;
+                    }
                 }
-            } catch (TimeoutException e) {
-                // just return the default "unknown".
             }
-                    
-            session.setClientDomain("unknown");        
+            int chosen = exact >= 0 ? exact : subdomain >= 0 ? subdomain : first;
+            int looked = chosen >= 0 ? chosen + 1 : names.size();
+            for (int i = 0; i < looked; i++) {
+                session.countVoidLookup(names.getRequest(i), names.getResponse(i));
+            }
+            // just return the default "unknown" if we cannot find anything
+            session.setClientDomain(chosen >= 0 ? names.getName(chosen) : "unknown");
             return null;
-
         }
     }
 
-    private static final String ATTRIBUTE_MACRO_EXPAND_CHECKED_RECORD = "MacroExpand.checkedRecord";
+    private static final ClientDomainResolver.Listener CLIENT_DOMAIN_LISTENER = new ClientDomainListener();
 
-    public DNSLookupContinuation checkExpand(String input, SPFSession session, boolean isExplanation) throws PermErrorException, NoneException {
+    public DNSLookupContinuation checkExpand(String input, SPFSession session, boolean isExplanation)
+            throws PermErrorException, NoneException, TempErrorException, NeutralException {
         if (input != null) {
             String host = this.expand(input, session, isExplanation);
             if (host == null) {
 
-                return new DNSLookupContinuation(new DNSRequest(IPAddr
-                        .getAddress(session.getIpAddress()).getReverseIP(),
-                        DNSRequest.PTR), new PTRResponseListener());
+                return clientDomainResolver.resolve(session, CLIENT_DOMAIN_LISTENER);
             }
         }
         return null;
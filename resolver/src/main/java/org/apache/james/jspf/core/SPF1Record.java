@@ -46,6 +46,18 @@ public class SPF1Record {
         this.record = record;
     }
 
+    /**
+     * Create a copy of the given record sharing its terms, so that the
+     * copy can be extended by the policies without changing the original.
+     *
+     * @param spfRecord the record to copy
+     */
+    public SPF1Record(SPF1Record spfRecord) {
+        this.record = spfRecord.record;
+        this.directives.addAll(spfRecord.directives);
+        this.modifiers.addAll(spfRecord.modifiers);
+    }
+
     /**
      * Return the directives as Collection
      * 
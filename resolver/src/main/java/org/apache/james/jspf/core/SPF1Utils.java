@@ -35,6 +35,7 @@ public class SPF1Utils {
     public static final String DEFAULT_EXPLANATION = "http://www.openspf.org/why.html?sender=%{S}&ip=%{I}";
     public static final String BEST_GUESS_RECORD = "v=spf1 a/24 mx/24 ptr ?all";
     public static final String ATTRIBUTE_SPF1_RECORD = "SPF.SPF1Record";
+    public static final SPFSession.Key<SPF1Record> SPF1_RECORD = SPFSession.Key.register(ATTRIBUTE_SPF1_RECORD);
 
     /**
      * Convert raw SPF results to SPF names
@@ -21,10 +21,18 @@
 package org.apache.james.jspf.core;
 
 import org.apache.james.jspf.core.exceptions.PermErrorException;
+import org.apache.james.jspf.core.exceptions.SPFResultException;
+import org.apache.james.jspf.core.exceptions.TempErrorException;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.function.Predicate;
 
 /**
@@ -36,6 +44,74 @@ import java.util.function.Predicate;
 
 public class SPFSession implements MacroData {
 
+    /**
+     * A typed key for a value stored in the session. Keys are registered once
+     * (usually in a static initializer) and map to a fixed slot in a per-session
+     * array, so reading or writing a value needs no hashing and no map lookup.
+     *
+     * @param <T> the type of the value stored under this key
+     */
+    public static final class Key<T> {
+
+        private static final Map<String, Key<?>> REGISTRY = new ConcurrentHashMap<String, Key<?>>();
+
+        private static int count = 0;
+
+        private final String name;
+
+        private final int index;
+
+        private Key(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        /**
+         * Register a new key. Registering the same name twice returns the
+         * key which was registered first.
+         *
+         * @param name the name of the key, also usable with the String based attribute methods
+         * @return the key
+         */
+        @SuppressWarnings("unchecked")
+        public static synchronized <T> Key<T> register(String name) {
+            Key<?> key = REGISTRY.get(name);
+            if (key == null) {
+                key = new Key<T>(name, count++);
+                REGISTRY.put(name, key);
+            }
+            return (Key<T>) key;
+        }
+
+        /**
+         * Return the key registered with the given name
+         *
+         * @param name the name of the key
+         * @return the key or null if no key was registered with this name
+         */
+        static Key<?> forName(String name) {
+            return REGISTRY.get(name);
+        }
+
+        private static synchronized int count() {
+            return count;
+        }
+
+        /**
+         * @return the name of this key
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        public String toString() {
+            return name;
+        }
+    }
+
     private String ipAddress = ""; // also used for (i)<sending-host>
 
     private String mailFrom = ""; // (s)<responsible-sender>
@@ -63,18 +139,71 @@ public class SPFSession implements MacroData {
      */
     public static final int MAX_DEPTH = 10;
 
+    /**
+     * The maximum lookups which should be allowed to return no records
+     */
+    public static final int MAX_VOID_LOOKUPS = 2;
+
+    private int voidLookups = 0;
+
+    private int voidLookupLimit = -1;
+
+    private int queryCount = 0;
+
+    private int queryBudget = 0;
+
+    private long deadline = 0;
+
+    private boolean cancelOnDeadline = true;
+
+    private volatile boolean cancelled = false;
+
+    private volatile Future<?> outstandingLookup = null;
+
     private String explanation = null;
 
     private String currentResult = null;
 
     private boolean ignoreExplanation = false;
+
+    private boolean lazyExplanation = false;
+
+    /**
+     * Proceed without explanation on errors, the result being already known
+     */
+    private static final class ExplanationErrorCatcher implements SPFChecker, SPFCheckerExceptionCatcher {
+
+        /**
+         * @see org.apache.james.jspf.core.SPFChecker#checkSPF(org.apache.james.jspf.core.SPFSession)
+         */
+        public DNSLookupContinuation checkSPF(SPFSession spfData) {
+            return null;
+        }
+
+        /**
+         * @see org.apache.james.jspf.core.SPFCheckerExceptionCatcher#onException(java.lang.Throwable, org.apache.james.jspf.core.SPFSession)
+         */
+        public void onException(Throwable exception, SPFSession session) {
+            session.setExplanation(null);
+        }
+    }
+
+    private static final SPFChecker EXPLANATION_ERROR_CATCHER = new ExplanationErrorCatcher();
+
+    private SPFSession explanationSession = null;
+
+    private List<SPFChecker> explanationCheckers = null;
     
-    private Map<String,Object> attributes = new HashMap<String,Object>();
+    private Object[] slots = new Object[Key.count()];
+
+    private Map<String,Object> attributes = null;
     
-    private Stack<SPFChecker> checkers = new Stack<SPFChecker>();
+    private ArrayDeque<SPFChecker> checkers = new ArrayDeque<SPFChecker>();
     
     private String currentResultExpanded;
     
+    private SPFResultException signaledResult = null;
+    
     /**
      * Build the SPFSession from the given parameters
      * 
@@ -88,6 +217,74 @@ public class SPFSession implements MacroData {
      */
     public SPFSession(String mailFrom, String heloDomain, String clientIP) {
         super();
+        init(mailFrom, heloDomain, clientIP);
+    }
+
+    /**
+     * Copy the macro data, the result and the deadline of the given session
+     * 
+     * @param session the session to copy
+     */
+    private SPFSession(SPFSession session) {
+        super();
+        this.ipAddress = session.ipAddress;
+        this.mailFrom = session.mailFrom;
+        this.hostName = session.hostName;
+        this.currentSenderPart = session.currentSenderPart;
+        this.currentDomain = session.currentDomain;
+        this.inAddress = session.inAddress;
+        this.clientDomain = session.clientDomain;
+        this.senderDomain = session.senderDomain;
+        this.readableIP = session.readableIP;
+        this.receivingDomain = session.receivingDomain;
+        this.currentResult = session.currentResult;
+        this.deadline = session.deadline;
+        this.cancelOnDeadline = session.cancelOnDeadline;
+    }
+
+    /**
+     * Clear all the state of this session and initialize it again with the
+     * given parameters, so that the instance can be reused for a new check.
+     * 
+     * @param mailFrom
+     *            The emailaddress of the sender
+     * @param heloDomain
+     *            The helo provided by the sender
+     * @param clientIP
+     *            The ipaddress of the client
+     */
+    public void reset(String mailFrom, String heloDomain, String clientIP) {
+        this.ipAddress = "";
+        this.inAddress = "invalid";
+        this.clientDomain = null;
+        this.readableIP = null;
+        this.receivingDomain = null;
+        this.currentDepth = 0;
+        this.explanation = null;
+        this.currentResult = null;
+        this.ignoreExplanation = false;
+        this.lazyExplanation = false;
+        this.explanationSession = null;
+        this.explanationCheckers = null;
+        this.currentResultExpanded = null;
+        this.signaledResult = null;
+        this.voidLookups = 0;
+        this.voidLookupLimit = -1;
+        this.queryCount = 0;
+        this.queryBudget = 0;
+        this.deadline = 0;
+        this.cancelOnDeadline = true;
+        this.cancelled = false;
+        this.outstandingLookup = null;
+        Arrays.fill(slots, null);
+        if (attributes != null) {
+            attributes.clear();
+        }
+        checkers.clear();
+        init(mailFrom, heloDomain, clientIP);
+    }
+
+    private void init(String mailFrom, String heloDomain, String clientIP) {
         this.mailFrom = mailFrom.trim();
         this.hostName = heloDomain.trim();
        
@@ -251,6 +448,180 @@ public class SPFSession implements MacroData {
                         + currentDepth);
     }
 
+    /**
+     * Count the given response to a lookup done while the record is
+     * evaluated:
+     * 
+     * if more lookups than allowed returned no records we must throw a
+     * PermErrorException. See RFC 7208 Section 4.6.4. DNS Lookup Limits.
+     * Lookups done once a result is known (for the explanation or by local
+     * policies) and lookups of the obsolete SPF type are not counted.
+     * 
+     * @param request the request which was sent
+     * @param response the response to the request
+     */
+    public void countVoidLookup(DNSRequest request, DNSResponse response) throws PermErrorException {
+        if (voidLookupLimit < 0 || currentResult != null || request.getRecordType() == DNSRequest.SPF) {
+            return;
+        }
+        DNSRecords records;
+        try {
+            records = response.getRecords();
+        } catch (TimeoutException e) {
+            return;
+        }
+        if (records == null || records.isEmpty()) {
+            this.voidLookups++;
+            if (voidLookups > voidLookupLimit)
+                throw new PermErrorException(
+                        "Maximum void lookups done: " + voidLookups);
+        }
+    }
+
+    /**
+     * Set the maximum number of lookups which may return no records, RFC 7208
+     * recommends {@link #MAX_VOID_LOOKUPS}. Disabled by default, as RFC 4408
+     * has no such limit.
+     * 
+     * @param voidLookupLimit the limit, a negative value disables it
+     */
+    public void setVoidLookupLimit(int voidLookupLimit) {
+        this.voidLookupLimit = voidLookupLimit;
+    }
+
+    /**
+     * Count a DNS query which is about to be sent:
+     * 
+     * if the check was cancelled, its deadline is passed or its query budget
+     * is exhausted we must throw a TempErrorException.
+     */
+    public void increaseQueryCount() throws TempErrorException {
+        checkDeadline();
+        this.queryCount++;
+        if (queryBudget > 0 && queryCount > queryBudget)
+            throw new TempErrorException(
+                    "Maximum DNS queries done: " + queryCount);
+    }
+
+    /**
+     * @return the number of DNS queries sent for this check
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Set the maximum number of DNS queries the check may send, including
+     * the queries for the records of the mechanisms and for the macros.
+     * 
+     * @param queryBudget the maximum number of queries, 0 for no limit
+     */
+    public void setQueryBudget(int queryBudget) {
+        this.queryBudget = queryBudget;
+    }
+
+    /**
+     * Set the time at which the check gives up: no lookup is sent after it
+     * and the outstanding one is abandoned.
+     * 
+     * @param deadline the time in milliseconds as returned by
+     *        {@link System#currentTimeMillis()}, 0 for no deadline
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the deadline of the check, 0 if there is none
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return the milliseconds left until the deadline, 
+     *         {@link Long#MAX_VALUE} if there is none
+     */
+    public long getRemainingTime() {
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Set whether the lookup outstanding when the deadline passes is
+     * cancelled. When it is not, the lookup still completes in the
+     * background, so that its answer ends up in the DNS cache for the next
+     * checks. The result is a TempError in both cases. Defaults to true.
+     * 
+     * @param cancelOnDeadline true to cancel the lookup
+     */
+    public void setCancelOnDeadline(boolean cancelOnDeadline) {
+        this.cancelOnDeadline = cancelOnDeadline;
+    }
+
+    /**
+     * @return true if the lookup outstanding when the deadline passes is cancelled
+     */
+    public boolean isCancelOnDeadline() {
+        return cancelOnDeadline;
+    }
+
+    /**
+     * Check whether the check may go on:
+     * 
+     * if it was cancelled or its deadline is passed we must throw a
+     * TempErrorException.
+     */
+    public void checkDeadline() throws TempErrorException {
+        if (cancelled || (deadline > 0 && System.currentTimeMillis() >= deadline)) {
+            throw getAbortError();
+        }
+    }
+
+    /**
+     * @return the error ending the check once it was cancelled or its
+     *         deadline passed
+     */
+    public TempErrorException getAbortError() {
+        return new TempErrorException(cancelled ? "SPF check cancelled" : "SPF check deadline exceeded");
+    }
+
+    /**
+     * Register the DNS lookup the check is waiting for, so that
+     * {@link #cancel()} can abort it. The executors clear it once the
+     * response is processed.
+     * 
+     * @param lookup the lookup or null
+     */
+    public void setOutstandingLookup(Future<?> lookup) {
+        this.outstandingLookup = lookup;
+        if (lookup != null && cancelled) {
+            lookup.cancel(false);
+        }
+    }
+
+    /**
+     * Cancel the check: the outstanding lookup is cancelled, no further
+     * lookup is sent and the result becomes a TempError. May be called from
+     * any thread.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        Future<?> lookup = outstandingLookup;
+        if (lookup != null) {
+            lookup.cancel(false);
+        }
+    }
+
+    /**
+     * @return true if the check was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     /**
      * Set the currentDomain
      * 
@@ -315,25 +686,138 @@ public class SPFSession implements MacroData {
     public boolean ignoreExplanation() {
         return ignoreExplanation;
     }
+
+    /**
+     * Set to true to build the explanation only once it is asked for
+     * 
+     * @param lazyExplanation true or false
+     * @see #deferExplanation(SPFChecker)
+     */
+    public void setLazyExplanation(boolean lazyExplanation) {
+        this.lazyExplanation = lazyExplanation;
+    }
+
+    /**
+     * Return true if the explanation should be built only once it is asked
+     * for
+     * 
+     * @return true or false
+     */
+    public boolean isLazyExplanation() {
+        return lazyExplanation;
+    }
+
+    /**
+     * Defer the given checker building the explanation: it will run on a
+     * copy of the macro data of this session as they are now, once the
+     * explanation is asked for. Checkers deferred later run after it.
+     * 
+     * @param checker the checker
+     * @see #takeDeferredExplanation()
+     */
+    public void deferExplanation(SPFChecker checker) {
+        if (explanationSession == null) {
+            explanationSession = new SPFSession(this);
+            explanationCheckers = new ArrayList<SPFChecker>();
+        }
+        explanationCheckers.add(checker);
+    }
+
+    /**
+     * Return the session which builds the deferred explanation when its
+     * checkers are run, and forget it.
+     * 
+     * @return the session, or null if no explanation was deferred
+     */
+    public SPFSession takeDeferredExplanation() {
+        SPFSession session = explanationSession;
+        if (session == null) {
+            return null;
+        }
+        session.pushChecker(EXPLANATION_ERROR_CATCHER);
+        for (int i = explanationCheckers.size() - 1; i >= 0; i--) {
+            session.pushChecker(explanationCheckers.get(i));
+        }
+        session.currentResult = currentResult;
+        session.currentResultExpanded = currentResultExpanded;
+        explanationSession = null;
+        explanationCheckers = null;
+        return session;
+    }
     
     /**
-     * Retrieve a stored attribute
+     * Retrieve the value stored under the given key
+     * 
+     * @param key the key
+     * @return the stored value or null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Key<T> key) {
+        int index = key.index;
+        return index < slots.length ? (T) slots[index] : null;
+    }
+
+    /**
+     * Store a value under the given key
+     * 
+     * @param key the key
+     * @param value the value, null clears the slot
+     */
+    public <T> void set(Key<T> key, T value) {
+        int index = key.index;
+        if (index >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(index + 1, Key.count()));
+        }
+        slots[index] = value;
+    }
+
+    /**
+     * Remove the value stored under the given key
+     * 
+     * @param key the key
+     * @return the value which was stored with the key
+     */
+    public <T> T remove(Key<T> key) {
+        T value = get(key);
+        if (key.index < slots.length) {
+            slots[key.index] = null;
+        }
+        return value;
+    }
+
+    /**
+     * Retrieve a stored attribute. Names of registered {@link Key}s are
+     * resolved to the typed slot.
      * 
      * @param key the attribute key
      * @return the stored attribute
      */
     public Object getAttribute(String key) {
-        return attributes.get(key);
+        Key<?> typed = Key.forName(key);
+        if (typed != null) {
+            return get(typed);
+        }
+        return attributes != null ? attributes.get(key) : null;
     }
     
     /**
-     * Sets a new attribute in the session
+     * Sets a new attribute in the session. Names of registered {@link Key}s
+     * are resolved to the typed slot.
      * 
      * @param key attribute key
      * @param value the value for this attribute
      */
+    @SuppressWarnings("unchecked")
     public void setAttribute(String key, Object value) {
-        this.attributes.put(key, value);
+        Key<Object> typed = (Key<Object>) Key.forName(key);
+        if (typed != null) {
+            set(typed, value);
+        } else {
+            if (attributes == null) {
+                attributes = new HashMap<String,Object>();
+            }
+            this.attributes.put(key, value);
+        }
     }
     
     /**
@@ -343,7 +827,11 @@ public class SPFSession implements MacroData {
      * @return object the attribute which was stored with the key
      */
     public Object removeAttribute(String key) {
-        return this.attributes.remove(key);
+        Key<?> typed = Key.forName(key);
+        if (typed != null) {
+            return remove(typed);
+        }
+        return attributes != null ? this.attributes.remove(key) : null;
     }
 
     /**
@@ -365,8 +853,7 @@ public class SPFSession implements MacroData {
         if (checkers.isEmpty()) {
             return null;
         } else {
-            SPFChecker checker = checkers.pop();
-            return checker;
+            return checkers.pop();
         }
     }
 
@@ -400,6 +887,28 @@ public class SPFSession implements MacroData {
         return currentResultExpanded;
     }
 
+    /**
+     * Signal an SPF outcome without throwing it. Once the current checker or
+     * DNS response listener returns (it must return <code>null</code>), the
+     * executor handles the signaled result exactly as if it had been thrown.
+     * 
+     * @param result the outcome to signal
+     */
+    public void signalResult(SPFResultException result) {
+        this.signaledResult = result;
+    }
+
+    /**
+     * Return and clear the outcome signaled by {@link #signalResult(SPFResultException)}.
+     * 
+     * @return the signaled outcome or null
+     */
+    public SPFResultException takeSignaledResult() {
+        SPFResultException result = signaledResult;
+        signaledResult = null;
+        return result;
+    }
+
     @Override
     public String toString() {
         return "SPFSession{" +
@@ -417,6 +926,7 @@ public class SPFSession implements MacroData {
                ", explanation='" + explanation + '\'' +
                ", currentResult='" + currentResult + '\'' +
                ", ignoreExplanation=" + ignoreExplanation +
+               ", slots=" + Arrays.toString(slots) +
                ", attributes=" + attributes +
                ", checkers=" + checkers +
                ", currentResultExpanded='" + currentResultExpanded + '\'' +
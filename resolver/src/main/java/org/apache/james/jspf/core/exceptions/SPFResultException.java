@@ -20,7 +20,12 @@
 package org.apache.james.jspf.core.exceptions;
 
 /**
- * Root exception for SPF methods
+ * Root exception for SPF methods.
+ * 
+ * These exceptions signal regular SPF outcomes (none, neutral, permerror,
+ * temperror) rather than programming errors, so they don't capture a stack
+ * trace and don't support suppression. This also makes them safe to be
+ * cached and rethrown.
  */
 public abstract class SPFResultException extends Exception {
 
@@ -35,7 +40,7 @@ public abstract class SPFResultException extends Exception {
      * @param strErrorMessage string
      */
     public SPFResultException(String strErrorMessage) {
-        super(strErrorMessage);
+        super(strErrorMessage, null, false, false);
     }
 
     /**
@@ -21,9 +21,17 @@ package org.apache.james.jspf.executor;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSResponse;
 import org.apache.james.jspf.core.DNSService;
 import org.apache.james.jspf.core.SPFChecker;
@@ -45,6 +53,17 @@ import org.xbill.DNS.lookup.LookupFailedException;
 public class AsynchronousSPFExecutor implements SPFExecutor {
     private static final Logger LOGGER = LoggerFactory.getLogger(AsynchronousSPFExecutor.class);
 
+    // Fires the deadlines of the sessions, which are cancelled when their lookup completes first
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "jspf-spf-deadline");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
     private DNSService dnsProbe;
 
     public AsynchronousSPFExecutor(DNSService service) {
@@ -55,6 +74,7 @@ public class AsynchronousSPFExecutor implements SPFExecutor {
      * @see SPFExecutor#execute(SPFSession, FutureSPFResult)
      */
     public void execute(SPFSession session, FutureSPFResult result) {
+        result.setPendingSession(session);
         SPFChecker checker = session.popChecker();
         if (checker == null) {
             result.setSPFResult(session);
@@ -66,46 +86,35 @@ public class AsynchronousSPFExecutor implements SPFExecutor {
             DNSLookupContinuation cont = checker.checkSPF(session);
             handleCont(session, result, cont, checker);
         } catch (Exception e) {
+            session.takeSignaledResult();
             handleError(session, e);
             result.setSPFResult(session);
         }
     }
 
     private void handleCont(SPFSession session, FutureSPFResult result, DNSLookupContinuation cont, SPFChecker checker) {
-        if (cont != null) {
+        SPFResultException signaled = session.takeSignaledResult();
+        if (signaled != null) {
+            handleError(session, signaled);
+            result.setSPFResult(session);
+        } else if (cont != null) {
             // if the checker returns a continuation we return it
-            dnsProbe.getRecordsAsync(cont.getRequest())
-                .thenAccept(results -> {
-                    try {
-                        DNSLookupContinuation dnsLookupContinuation = cont.getListener().onDNSResponse(new DNSResponse(results), session);
-                        handleCont(session, result, dnsLookupContinuation, checker);
-                    } catch (PermErrorException | NoneException | TempErrorException | NeutralException e) {
-                        handleError(session, e);
-                        result.setSPFResult(session);
-                    }
-                })
+            try {
+                session.increaseQueryCount();
+            } catch (TempErrorException e) {
+                handleError(session, e);
+                result.setSPFResult(session);
+                return;
+            }
+            watch(session, lookup(session, dnsProbe, cont))
+                .thenAccept(results -> handleResponse(cont, new DNSResponse(results), session, result, checker))
                 .exceptionally(e -> {
                     if (e instanceof CompletionException && e.getCause() != null) {
                         e = e.getCause();
                     }
-                    if (e instanceof IOException && e.getMessage() != null && e.getMessage().startsWith("Timed out ")) {
-                        e = new TimeoutException(e.getMessage());
-                    }
-                    if (e instanceof LookupFailedException) {
-                        try {
-                            DNSLookupContinuation dnsLookupContinuation = cont.getListener().onDNSResponse(new DNSResponse(new ArrayList<>()), session);
-                            handleCont(session, result, dnsLookupContinuation, checker);
-                            result.setSPFResult(session);
-                            return null;
-                        } catch (PermErrorException | NoneException | TempErrorException | NeutralException ex2) {
-                            handleError(session, ex2);
-                            result.setSPFResult(session);
-                            return null;
-                        }
-                    }
-                    if (e instanceof TimeoutException) {
-                        handleTimeout(cont, new DNSResponse((TimeoutException) e), session, result, checker);
-                        result.setSPFResult(session);
+                    DNSResponse response = toDNSResponse(e);
+                    if (response != null) {
+                        handleResponse(cont, response, session, result, checker);
                         return null;
                     }
                     handleError(session, e);
@@ -117,13 +126,88 @@ public class AsynchronousSPFExecutor implements SPFExecutor {
         }
     }
 
-    private void handleTimeout(DNSLookupContinuation cont, DNSResponse e, SPFSession session, FutureSPFResult result, SPFChecker checker) {
+    private void handleResponse(DNSLookupContinuation cont, DNSResponse response, SPFSession session, FutureSPFResult result, SPFChecker checker) {
+        session.setOutstandingLookup(null);
         try {
-            DNSLookupContinuation dnsLookupContinuation = cont.getListener().onDNSResponse(e, session);
+            if (cont.getLookup() == null) {
+                session.countVoidLookup(cont.getRequest(), response);
+            }
+            DNSLookupContinuation dnsLookupContinuation = cont.getListener().onDNSResponse(response, session);
             handleCont(session, result, dnsLookupContinuation, checker);
-        } catch (PermErrorException | NoneException | TempErrorException | NeutralException ex2) {
-            handleError(session, ex2);
+        } catch (PermErrorException | NoneException | TempErrorException | NeutralException e) {
+            handleError(session, e);
+            result.setSPFResult(session);
+        }
+    }
+
+    /**
+     * Run the lookup of the given continuation, or join the one its checker
+     * started. Cancelling the returned future also cancels the checker's
+     * one, which belongs to the session.
+     */
+    static CompletableFuture<DNSRecords> lookup(SPFSession session, DNSService dnsService, DNSLookupContinuation cont) {
+        if (cont.getLookup() != null) {
+            CompletableFuture<DNSRecords> started = cont.getLookup().toCompletableFuture();
+            CompletableFuture<DNSRecords> lookup = started.thenApply(Function.identity());
+            lookup.whenComplete((records, e) -> {
+                if (e instanceof CancellationException) {
+                    started.cancel(false);
+                }
+            });
+            return lookup;
+        }
+        return SharedLookups.lookup(session, dnsService, cont.getRequest());
+    }
+
+    /**
+     * Register the given lookup as the outstanding one of the session and
+     * bound it by the deadline of the session.
+     * 
+     * @return a future completed with the records, or with the TempError
+     *         ending the check once it is cancelled or the deadline passed
+     */
+    static CompletableFuture<DNSRecords> watch(SPFSession session, CompletableFuture<DNSRecords> lookup) {
+        CompletableFuture<DNSRecords> watched = new CompletableFuture<DNSRecords>();
+        lookup.whenComplete((records, e) -> {
+            if (e instanceof CancellationException) {
+                watched.completeExceptionally(session.getAbortError());
+            } else if (e != null) {
+                watched.completeExceptionally(e);
+            } else {
+                watched.complete(records);
+            }
+        });
+        long remaining = session.getRemainingTime();
+        if (remaining != Long.MAX_VALUE) {
+            ScheduledFuture<?> deadline = DEADLINES.schedule(() -> ForkJoinPool.commonPool().execute(() -> {
+                if (session.isCancelOnDeadline()) {
+                    lookup.cancel(false);
+                }
+                watched.completeExceptionally(session.getAbortError());
+            }), remaining, TimeUnit.MILLISECONDS);
+            lookup.whenComplete((records, e) -> deadline.cancel(false));
+        }
+        session.setOutstandingLookup(lookup);
+        return watched;
+    }
+
+    /**
+     * Convert the failure of an asynchronous lookup to the response handed
+     * to the listener.
+     * 
+     * @return the response or null if the failure is not the outcome of the lookup
+     */
+    static DNSResponse toDNSResponse(Throwable e) {
+        if (e instanceof IOException && e.getMessage() != null && e.getMessage().startsWith("Timed out ")) {
+            e = new TimeoutException(e.getMessage());
+        }
+        if (e instanceof LookupFailedException) {
+            return new DNSResponse(new ArrayList<String>());
+        }
+        if (e instanceof TimeoutException) {
+            return new DNSResponse((TimeoutException) e);
         }
+        return null;
     }
 
     private void handleError(SPFSession session, Throwable e) {
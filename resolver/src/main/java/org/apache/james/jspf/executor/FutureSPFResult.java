@@ -22,6 +22,8 @@ package org.apache.james.jspf.executor;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.apache.james.jspf.core.SPFSession;
 import org.slf4j.Logger;
@@ -38,6 +40,10 @@ public class FutureSPFResult extends SPFResult {
     private boolean isReady;
     private List<IFutureSPFResultListener> listeners;
     private int waiters;
+    private SPFSession pendingSession;
+    private SPFExecutor explanationExecutor;
+    private SPFSession explanationSession;
+    private CompletableFuture<String> explanationFuture;
     
     public FutureSPFResult() {
         isReady = false;
@@ -54,7 +60,9 @@ public class FutureSPFResult extends SPFResult {
         synchronized (this) {
             if (!isReady) {
                 setSPFSession(session);
+                explanationSession = session.takeDeferredExplanation();
                 isReady = true;
+                pendingSession = null;
                 if (waiters > 0) {
                     notifyAll();
                 }
@@ -96,11 +104,83 @@ public class FutureSPFResult extends SPFResult {
     }
 
     /**
+     * Set the executor building the explanation when it was deferred by a
+     * lazy check. Called by {@link org.apache.james.jspf.impl.SPF}.
+     * 
+     * @param executor the executor, or null to keep the explanation found
+     *        by the check
+     */
+    public synchronized void setExplanationExecutor(SPFExecutor executor) {
+        this.explanationExecutor = executor;
+    }
+
+    /**
+     * Waits until the SPFResult is set and the explanation built, which
+     * starts the lookups of a deferred explanation. Do not call it from a
+     * listener running on the thread of a StagedMultipleSPFExecutor, use
+     * {@link #getExplanationAsync()} instead.
+     * 
      * @see org.apache.james.jspf.executor.SPFResult#getExplanation()
      */
     public String getExplanation() {
         checkReady();
-        return super.getExplanation();
+        synchronized (this) {
+            if (explanationSession == null && explanationFuture == null) {
+                return super.getExplanation();
+            }
+        }
+        return getExplanationAsync().toCompletableFuture().join();
+    }
+
+    /**
+     * Return a stage completed with the explanation once the SPFResult is
+     * set. The lookups of a deferred explanation are started by the first
+     * call.
+     * 
+     * @see org.apache.james.jspf.executor.SPFResult#getExplanationAsync()
+     */
+    public CompletionStage<String> getExplanationAsync() {
+        CompletableFuture<String> future;
+        synchronized (this) {
+            if (explanationFuture != null) {
+                return explanationFuture;
+            }
+            future = new CompletableFuture<String>();
+            explanationFuture = future;
+        }
+        addListener(result -> explain(future));
+        return future;
+    }
+
+    /**
+     * Complete the given future with the explanation, building it first if
+     * it was deferred.
+     */
+    private void explain(CompletableFuture<String> future) {
+        SPFSession session;
+        SPFExecutor executor;
+        synchronized (this) {
+            session = explanationSession;
+            executor = explanationExecutor;
+            explanationSession = null;
+        }
+        if (session == null || executor == null) {
+            future.complete(super.getExplanation());
+            return;
+        }
+        FutureSPFResult explained = new FutureSPFResult();
+        explained.addListener(result -> {
+            synchronized (this) {
+                explanation = result.explanation;
+            }
+            future.complete(super.getExplanation());
+        });
+        try {
+            executor.execute(session, explained);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not build the explanation", e);
+            future.complete(super.getExplanation());
+        }
     }
 
     /**
@@ -144,6 +224,62 @@ public class FutureSPFResult extends SPFResult {
         return isReady;
     }
 
+    /**
+     * Remember the session being checked for this result, so that the check
+     * can be cancelled. Called by the executors.
+     * 
+     * @param session the session
+     */
+    synchronized void setPendingSession(SPFSession session) {
+        if (!isReady) {
+            pendingSession = session;
+        }
+    }
+
+    /**
+     * Cancel the check: the outstanding DNS lookup is cancelled and the
+     * result becomes a TempError. A synchronous check without deadline only
+     * stops before its next lookup. Has no effect once the result is ready.
+     * 
+     * @return true if the check was still running
+     */
+    public boolean cancel() {
+        SPFSession session;
+        synchronized (this) {
+            session = pendingSession;
+        }
+        if (session == null) {
+            return false;
+        }
+        session.cancel();
+        return true;
+    }
+
+    /**
+     * Release this result once the caller is done with it. When the result
+     * was obtained from a pooling {@link org.apache.james.jspf.impl.SPF} the
+     * holder and its session get recycled, so the result must not be used
+     * anymore after calling this method. Otherwise this is a no-op.
+     */
+    public void release() {
+    }
+
+    /**
+     * Clear this result so that it can be reused for a new check.
+     * Must not be called while a check is still running on it.
+     */
+    protected synchronized void reset() {
+        isReady = false;
+        listeners = null;
+        pendingSession = null;
+        explanationExecutor = null;
+        explanationSession = null;
+        explanationFuture = null;
+        result = null;
+        explanation = null;
+        headerTextAsString = "";
+    }
+
     /**
      * Add a {@link IFutureSPFResultListener} which will get notified once {@link #isReady()} returns <code>true</code>
      * 
@@ -0,0 +1,72 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.executor;
+
+/**
+ * The values of one SPF check: the client ip address, the MAIL FROM and
+ * the HELO name.
+ */
+public final class SPFCheckRequest {
+
+    private final String ipAddress;
+
+    private final String mailFrom;
+
+    private final String hostName;
+
+    /**
+     * @param ipAddress the ip address the connection is coming from
+     * @param mailFrom the MAIL FROM, empty for the null sender
+     * @param hostName the name given as HELO/EHLO
+     */
+    public SPFCheckRequest(String ipAddress, String mailFrom, String hostName) {
+        this.ipAddress = ipAddress;
+        this.mailFrom = mailFrom;
+        this.hostName = hostName;
+    }
+
+    /**
+     * @return the ip address the connection is coming from
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * @return the MAIL FROM
+     */
+    public String getMailFrom() {
+        return mailFrom;
+    }
+
+    /**
+     * @return the name given as HELO/EHLO
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return "SPFCheckRequest[ip=" + ipAddress + ", mailFrom=" + mailFrom + ", helo=" + hostName + "]";
+    }
+}
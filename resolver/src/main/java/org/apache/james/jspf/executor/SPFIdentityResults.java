@@ -0,0 +1,55 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.executor;
+
+/**
+ * The results of the checks of the HELO and the MAIL FROM identities of a
+ * message.
+ */
+public final class SPFIdentityResults {
+
+    private final SPFResult heloResult;
+
+    private final SPFResult mailFromResult;
+
+    /**
+     * @param heloResult the result of the HELO identity
+     * @param mailFromResult the result of the MAIL FROM identity
+     */
+    public SPFIdentityResults(SPFResult heloResult, SPFResult mailFromResult) {
+        this.heloResult = heloResult;
+        this.mailFromResult = mailFromResult;
+    }
+
+    /**
+     * @return the result of the HELO identity, checked as postmaster@helo
+     */
+    public SPFResult getHeloResult() {
+        return heloResult;
+    }
+
+    /**
+     * @return the result of the MAIL FROM identity, the same as the HELO
+     *         one for the null sender
+     */
+    public SPFResult getMailFromResult() {
+        return mailFromResult;
+    }
+}
@@ -20,6 +20,9 @@
 
 package org.apache.james.jspf.executor;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 import org.apache.james.jspf.core.SPF1Utils;
 import org.apache.james.jspf.core.SPFSession;
 import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
@@ -158,6 +161,17 @@ public class SPFResult  {
     public String getExplanation() {
         return explanation != null ? explanation : "";
     }
+
+    /**
+     * Get the explanation string without blocking
+     * 
+     * @return a stage completed with the explanation, the empty string if
+     *         no explanation exists
+     * @see #getExplanation()
+     */
+    public CompletionStage<String> getExplanationAsync() {
+        return CompletableFuture.completedFuture(getExplanation());
+    }
     
     
 }
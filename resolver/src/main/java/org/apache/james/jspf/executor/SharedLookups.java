@@ -0,0 +1,104 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.executor;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.SPFSession;
+
+/**
+ * The DNS lookups shared by a group of sessions, such as the checks of a
+ * batch: each name and record type is looked up once and all the sessions
+ * asking for it get the same answer, whether the lookup is still running
+ * or already done.
+ *
+ * Each session still counts its own lookups against its limits, so the
+ * results are the same as when every session does its own lookups. Used
+ * by the {@link AsynchronousSPFExecutor} and the
+ * {@link SynchronousSPFExecutor}.
+ */
+public final class SharedLookups {
+
+    private static final SPFSession.Key<SharedLookups> ATTRIBUTE_SHARED_LOOKUPS = SPFSession.Key.register("SharedLookups");
+
+    private final Map<String, CompletableFuture<DNSRecords>> lookups = new ConcurrentHashMap<String, CompletableFuture<DNSRecords>>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Make the given session use these lookups.
+     *
+     * @param session the session
+     */
+    public void attach(SPFSession session) {
+        session.set(ATTRIBUTE_SHARED_LOOKUPS, this);
+    }
+
+    /**
+     * @param session the session
+     * @return true if the session uses shared lookups
+     */
+    static boolean isShared(SPFSession session) {
+        return session.get(ATTRIBUTE_SHARED_LOOKUPS) != null;
+    }
+
+    /**
+     * Run the given lookup, or join the one already run for the group of
+     * the session. The returned future can be cancelled without affecting
+     * the other sessions. A request without a name is never shared.
+     *
+     * @param session the session asking for the lookup
+     * @param dnsService the service running the lookup
+     * @param request the request to send
+     * @return a future completed with the records
+     */
+    public static CompletableFuture<DNSRecords> lookup(SPFSession session, DNSService dnsService, DNSRequest request) {
+        SharedLookups shared = session.get(ATTRIBUTE_SHARED_LOOKUPS);
+        if (shared == null || request.getName() == null) {
+            return dnsService.getDNSRecordsAsync(request).toCompletableFuture();
+        }
+        shared.requests.incrementAndGet();
+        String key = request.getRecordType() + ":" + request.getName().toString().toLowerCase();
+        return shared.lookups
+            .computeIfAbsent(key, k -> dnsService.getDNSRecordsAsync(request).toCompletableFuture())
+            .thenApply(Function.identity());
+    }
+
+    /**
+     * @return the number of distinct lookups run
+     */
+    public int getLookupCount() {
+        return lookups.size();
+    }
+
+    /**
+     * @return the number of lookups asked for by the sessions
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+}
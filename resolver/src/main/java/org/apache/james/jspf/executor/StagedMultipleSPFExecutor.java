@@ -23,6 +23,9 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
 import org.apache.james.jspf.core.DNSResponse;
@@ -30,6 +33,7 @@ import org.apache.james.jspf.core.SPFChecker;
 import org.apache.james.jspf.core.SPFCheckerExceptionCatcher;
 import org.apache.james.jspf.core.SPFSession;
 import org.apache.james.jspf.core.exceptions.SPFResultException;
+import org.apache.james.jspf.core.exceptions.TempErrorException;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,7 +44,8 @@ import org.slf4j.LoggerFactory;
  */
 public class StagedMultipleSPFExecutor implements SPFExecutor, Runnable {
     private static final Logger LOGGER = LoggerFactory.getLogger(StagedMultipleSPFExecutor.class);
-    private static final String ATTRIBUTE_STAGED_EXECUTOR_CONTINUATION = "StagedMultipleSPFExecutor.continuation";
+    private static final SPFSession.Key<DNSLookupContinuation> ATTRIBUTE_STAGED_EXECUTOR_CONTINUATION = SPFSession.Key.register("StagedMultipleSPFExecutor.continuation");
+    private static final SPFSession.Key<CompletableFuture<Void>> ATTRIBUTE_STAGED_EXECUTOR_LOOKUP = SPFSession.Key.register("StagedMultipleSPFExecutor.lookup");
 
     private static class ResponseQueueImpl extends LinkedList<IResponse> implements IResponseQueue {
 
@@ -111,6 +116,7 @@ public class StagedMultipleSPFExecutor implements SPFExecutor, Runnable {
      * @see org.apache.james.jspf.executor.SPFExecutor#execute(org.apache.james.jspf.core.SPFSession, org.apache.james.jspf.executor.FutureSPFResult)
      */
     public void execute(SPFSession session, FutureSPFResult result) {
+        result.setPendingSession(session);
         execute(session, result, true);
     }
         
@@ -119,32 +125,43 @@ public class StagedMultipleSPFExecutor implements SPFExecutor, Runnable {
         while ((checker = session.popChecker()) != null) {
             // only execute checkers we added (better recursivity)
             LOGGER.debug("Executing checker: {}", checker);
+            Exception error;
             try {
                 DNSLookupContinuation cont = checker.checkSPF(session);
+                error = session.takeSignaledResult();
                 // if the checker returns a continuation we return it
-                if (cont != null) {
+                if (error == null && cont != null) {
+                    session.increaseQueryCount();
                     invokeAsynchService(session, result, cont, throttle);
                     return;
                 }
             } catch (Exception e) {
-                while (e != null) {
-                    checker = session.popChecker(c -> c instanceof SPFCheckerExceptionCatcher);
-                    if (checker == null) {
-                        // Error case not handled by JSPF. Throw to avoid infinite loop. See JSPF-110.
-                        throw new RuntimeException("SPFCheckerExceptionCatcher implementation not found, session: " + session, e);
-                    }
-                    try {
-                        ((SPFCheckerExceptionCatcher) checker).onException(e, session);
-                        e = null;
-                    } catch (SPFResultException ex) {
-                        e = ex;
-                    }
-                }
+                session.takeSignaledResult();
+                error = e;
+            }
+            if (error != null) {
+                handleError(session, error);
             }
         }
         result.setSPFResult(session);
     }
 
+    private void handleError(SPFSession session, Exception e) {
+        while (e != null) {
+            SPFChecker checker = session.popChecker(c -> c instanceof SPFCheckerExceptionCatcher);
+            if (checker == null) {
+                // Error case not handled by JSPF. Throw to avoid infinite loop. See JSPF-110.
+                throw new RuntimeException("SPFCheckerExceptionCatcher implementation not found, session: " + session, e);
+            }
+            try {
+                ((SPFCheckerExceptionCatcher) checker).onException(e, session);
+                e = null;
+            } catch (SPFResultException ex) {
+                e = ex;
+            }
+        }
+    }
+
     /**
      * throttle should be true only when the caller thread is the client and not the worker thread.
      * We could even remove the throttle parameter and check the currentThread.
@@ -162,8 +179,54 @@ public class StagedMultipleSPFExecutor implements SPFExecutor, Runnable {
         int nextId = nextId();
         sessions.put(new Integer(nextId), session);
         results.put(new Integer(nextId), result);
-        session.setAttribute(ATTRIBUTE_STAGED_EXECUTOR_CONTINUATION, cont);
-        dnsProbe.getRecordsAsynch(cont.getRequest(), nextId, responseQueue);
+        session.set(ATTRIBUTE_STAGED_EXECUTOR_CONTINUATION, cont);
+        session.set(ATTRIBUTE_STAGED_EXECUTOR_LOOKUP, watch(session, nextId));
+        if (cont.getLookup() != null) {
+            queueResponse(new Integer(nextId), cont);
+        } else {
+            dnsProbe.getRecordsAsynch(cont.getRequest(), nextId, responseQueue);
+        }
+    }
+
+    /**
+     * Queue the answer the checker of the given continuation started, once
+     * it is available.
+     */
+    private void queueResponse(Integer id, DNSLookupContinuation cont) {
+        cont.getLookup().whenComplete((records, e) -> {
+            if (e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            if (e == null) {
+                responseQueue.insertResponse(new IResponseImpl(id, records != null ? records.asStrings() : null));
+            } else if (e instanceof TimeoutException || e instanceof SPFResultException) {
+                responseQueue.insertResponse(new IResponseImpl(id, (Exception) e));
+            } else {
+                responseQueue.insertResponse(new IResponseImpl(id, new TempErrorException("Lookup failed: " + e)));
+            }
+        });
+    }
+
+    /**
+     * Return a future standing for the lookup with the given id. When it is
+     * cancelled or the deadline of the session passes first, the TempError
+     * ending the check is queued in place of the response, which will be
+     * ignored.
+     */
+    private CompletableFuture<Void> watch(SPFSession session, int id) {
+        CompletableFuture<Void> lookup = new CompletableFuture<Void>();
+        lookup.whenComplete((v, e) -> {
+            if (e != null) {
+                responseQueue.insertResponse(new IResponseImpl(new Integer(id), session.getAbortError()));
+            }
+        });
+        long remaining = session.getRemainingTime();
+        if (remaining != Long.MAX_VALUE) {
+            CompletableFuture.delayedExecutor(remaining, TimeUnit.MILLISECONDS)
+                .execute(() -> lookup.completeExceptionally(session.getAbortError()));
+        }
+        session.setOutstandingLookup(lookup);
+        return lookup;
     }
 
     public void run() {
@@ -175,41 +238,46 @@ public class StagedMultipleSPFExecutor implements SPFExecutor, Runnable {
             Integer respId = (Integer)resp.getId();
             SPFSession session = sessions.remove(respId);
             FutureSPFResult result = results.remove(respId);
-            
-            DNSLookupContinuation cont = (DNSLookupContinuation) session.getAttribute(ATTRIBUTE_STAGED_EXECUTOR_CONTINUATION);
-            
-            DNSResponse response;
-            if (resp.getException() != null) {
-                response = new DNSResponse((TimeoutException) resp.getException());
-            } else {
-                response = new DNSResponse(resp.getValue());
+            if (session == null) {
+                // the response to a lookup which was already given up
+                continue;
             }
             
+            DNSLookupContinuation cont = session.get(ATTRIBUTE_STAGED_EXECUTOR_CONTINUATION);
+            session.remove(ATTRIBUTE_STAGED_EXECUTOR_LOOKUP).complete(null);
+            session.setOutstandingLookup(null);
             
             try {
+                if (resp.getException() instanceof SPFResultException) {
+                    throw (SPFResultException) resp.getException();
+                }
+
+                DNSResponse response;
+                if (resp.getException() != null) {
+                    response = new DNSResponse((TimeoutException) resp.getException());
+                } else {
+                    response = new DNSResponse(resp.getValue());
+                }
+
+                if (cont.getLookup() == null) {
+                    session.countVoidLookup(cont.getRequest(), response);
+                }
                 cont = cont.getListener().onDNSResponse(response, session);
                 
-                if (cont != null) {
+                SPFResultException signaled = session.takeSignaledResult();
+                if (signaled != null) {
+                    handleError(session, signaled);
+                    execute(session, result, false);
+                } else if (cont != null) {
+                    session.increaseQueryCount();
                     invokeAsynchService(session, result, cont, false);
                 } else {
                     execute(session, result, false);
                 }
 
             } catch (Exception e) {
-                SPFChecker checker = null;
-                while (e != null) {
-                    while (checker == null || !(checker instanceof SPFCheckerExceptionCatcher)) {
-                        checker = session.popChecker();
-                    }
-                    try {
-                        ((SPFCheckerExceptionCatcher) checker).onException(e, session);
-                        e = null;
-                    } catch (SPFResultException ex) {
-                        e = ex;
-                    } finally {
-                        checker = null;
-                    }
-                }
+                session.takeSignaledResult();
+                handleError(session, e);
                 execute(session, result, false);
             }
         }
@@ -19,13 +19,18 @@
 
 package org.apache.james.jspf.executor;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
 import org.apache.james.jspf.core.DNSLookupContinuation;
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSResponse;
 import org.apache.james.jspf.core.DNSService;
 import org.apache.james.jspf.core.SPFChecker;
 import org.apache.james.jspf.core.SPFCheckerExceptionCatcher;
 import org.apache.james.jspf.core.SPFSession;
 import org.apache.james.jspf.core.exceptions.SPFResultException;
+import org.apache.james.jspf.core.exceptions.TempErrorException;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,40 +51,86 @@ public class SynchronousSPFExecutor implements SPFExecutor {
      * @see org.apache.james.jspf.executor.SPFExecutor#execute(org.apache.james.jspf.core.SPFSession, org.apache.james.jspf.executor.FutureSPFResult)
      */
     public void execute(SPFSession session, FutureSPFResult result) {
+        result.setPendingSession(session);
         SPFChecker checker;
         while ((checker = session.popChecker()) != null) {
             // only execute checkers we added (better recursivity)
             LOGGER.debug("Executing checker: {}", checker);
+            Exception error;
             try {
                 DNSLookupContinuation cont = checker.checkSPF(session);
                 // if the checker returns a continuation we return it
                 while (cont != null) {
-                    DNSResponse response;
-                    try {
-                        response = new DNSResponse(dnsProbe.getRecords(cont
-                                .getRequest()));
-                    } catch (TimeoutException e) {
-                        response = new DNSResponse(e);
+                    session.increaseQueryCount();
+                    DNSResponse response = lookup(session, cont);
+                    if (cont.getLookup() == null) {
+                        session.countVoidLookup(cont.getRequest(), response);
                     }
                     cont = cont.getListener().onDNSResponse(response, session);
                 }
+                error = session.takeSignaledResult();
             } catch (Exception e) {
-                while (e != null) {
-                    checker = session.popChecker(c -> c instanceof SPFCheckerExceptionCatcher);
-                    if (checker == null) {
-                        // Error case not handled by JSPF. Throw to avoid infinite loop. See JSPF-110.
-                        throw new RuntimeException("SPFCheckerExceptionCatcher implementation not found, session: " + session, e);
-                    }
-                    try {
-                        ((SPFCheckerExceptionCatcher) checker).onException(e, session);
-                        e = null;
-                    } catch (SPFResultException ex) {
-                        e = ex;
-                    }
-                }
+                session.takeSignaledResult();
+                error = e;
+            }
+            if (error != null) {
+                handleError(session, error);
             }
         }
         result.setSPFResult(session);
     }
 
+    /**
+     * Run the given lookup. Without deadline the lookup blocks for as long
+     * as the DNSService needs, otherwise the wait is bounded by the deadline
+     * and can be cancelled through the session. Lookups shared with other
+     * sessions and the ones started by the checker are always waited for
+     * that way.
+     */
+    private DNSResponse lookup(SPFSession session, DNSLookupContinuation cont) throws SPFResultException {
+        if (session.getDeadline() == 0 && !SharedLookups.isShared(session) && cont.getLookup() == null) {
+            try {
+                return new DNSResponse(dnsProbe.getDNSRecords(cont.getRequest()));
+            } catch (TimeoutException e) {
+                return new DNSResponse(e);
+            }
+        }
+        CompletableFuture<DNSRecords> lookup = AsynchronousSPFExecutor.watch(session,
+                AsynchronousSPFExecutor.lookup(session, dnsProbe, cont));
+        try {
+            return new DNSResponse(lookup.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.cancel();
+            throw session.getAbortError();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SPFResultException) {
+                throw (SPFResultException) e.getCause();
+            }
+            DNSResponse response = AsynchronousSPFExecutor.toDNSResponse(e.getCause());
+            if (response == null) {
+                throw new TempErrorException("Lookup failed: " + e.getCause());
+            }
+            return response;
+        } finally {
+            session.setOutstandingLookup(null);
+        }
+    }
+
+    private void handleError(SPFSession session, Exception e) {
+        while (e != null) {
+            SPFChecker checker = session.popChecker(c -> c instanceof SPFCheckerExceptionCatcher);
+            if (checker == null) {
+                // Error case not handled by JSPF. Throw to avoid infinite loop. See JSPF-110.
+                throw new RuntimeException("SPFCheckerExceptionCatcher implementation not found, session: " + session, e);
+            }
+            try {
+                ((SPFCheckerExceptionCatcher) checker).onException(e, session);
+                e = null;
+            } catch (SPFResultException ex) {
+                e = ex;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,678 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.jspf.cache.CachedAnswer;
+import org.apache.james.jspf.cache.DNSCacheSnapshot;
+import org.apache.james.jspf.cache.DNSCacheStore;
+import org.apache.james.jspf.cache.HeapDNSCacheStore;
+import org.apache.james.jspf.cache.TinyLFUCache;
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.SPF1Constants;
+import org.apache.james.jspf.core.exceptions.NoneException;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.parser.CachingSPFRecordParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.lookup.NoSuchDomainException;
+import org.xbill.DNS.lookup.NoSuchRRSetException;
+
+/**
+ * A DNSService caching the answers of another one, and serving expired
+ * answers when they cannot be refreshed (RFC 8767).
+ *
+ * Expired answers are kept for {@link #setMaxStale(long)} seconds. A lookup
+ * hitting such an answer asks the wrapped service again, but falls back to
+ * the expired answer when the refresh fails or is not answered within
+ * {@link #setStaleAnswerTimeout(long)} milliseconds. The refresh goes on in
+ * the background and updates the cache once answered. After a failed
+ * refresh the expired answer is served without asking again for
+ * {@link #setFailureRecheck(long)} seconds.
+ *
+ * Answers used in the last {@link #setRefreshAhead(int)} percent of their
+ * time to live are refreshed in the background, so that the names in use
+ * do not expire on the lookup path. At most
+ * {@link #setMaxRefreshesAhead(int)} such refreshes run at the same time.
+ * When a {@link CachingSPFRecordParser} is set, the SPF records whose text
+ * changed on refresh are parsed again as well.
+ *
+ * The answers are kept by a {@link DNSCacheStore}. The default one is
+ * bounded by the estimated size of the answers, and evicts with the
+ * {@link TinyLFUCache} policy so that the popular names survive bursts of
+ * names looked up only once. An
+ * {@link org.apache.james.jspf.cache.OffHeapDNSCacheStore} can be given
+ * instead to cache many more answers outside of the heap.
+ *
+ * The answers can be saved to a file, on demand or periodically with
+ * {@link #scheduleSnapshots(Path, long)}, and restored after a restart with
+ * {@link #loadSnapshot(Path)}. Only the answers which have not expired are
+ * restored, and the most used ones are refreshed in the background.
+ */
+public class DNSServiceCachingImpl implements DNSService, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DNSServiceCachingImpl.class);
+
+    private final DNSService dnsService;
+
+    private final DNSCacheStore cache;
+
+    private final Map<String, Long> failedRefreshes = new ConcurrentHashMap<String, Long>();
+
+    private final Map<String, CompletableFuture<DNSRecords>> refreshes = new ConcurrentHashMap<String, CompletableFuture<DNSRecords>>();
+
+    private final AtomicLong staleAnswers = new AtomicLong();
+
+    private final AtomicLong refreshesAhead = new AtomicLong();
+
+    private final AtomicLong skippedRefreshesAhead = new AtomicLong();
+
+    private final AtomicInteger refreshesAheadInFlight = new AtomicInteger();
+
+    private volatile long maxStale = 86400 * 1000L;
+
+    private volatile long staleAnswerTimeout = 1800;
+
+    private volatile long failureRecheck = 30 * 1000L;
+
+    private volatile long negativeTTL = 60 * 1000L;
+
+    private volatile long defaultTTL = 300 * 1000L;
+
+    private volatile int refreshAhead = 10;
+
+    private volatile int maxRefreshesAhead = 32;
+
+    private volatile CachingSPFRecordParser recordParser;
+
+    private volatile int snapshotRefreshCount = 100;
+
+    private ScheduledExecutorService snapshotScheduler;
+
+    private ScheduledFuture<?> snapshotTask;
+
+    private Path snapshotFile;
+
+    /**
+     * @param dnsService the service to cache
+     * @param cache the storage of the answers
+     */
+    public DNSServiceCachingImpl(DNSService dnsService, DNSCacheStore cache) {
+        this.dnsService = dnsService;
+        this.cache = cache;
+    }
+
+    /**
+     * @param dnsService the service to cache
+     * @param maximumSize the maximum estimated size of the cached answers in bytes
+     */
+    public DNSServiceCachingImpl(DNSService dnsService, long maximumSize) {
+        this(dnsService, new HeapDNSCacheStore(maximumSize));
+    }
+
+    /**
+     * Create a cache of at most 8 MB of answers.
+     *
+     * @param dnsService the service to cache
+     */
+    public DNSServiceCachingImpl(DNSService dnsService) {
+        this(dnsService, 8 * 1024 * 1024);
+    }
+
+    /**
+     * Set how long expired answers are kept to be served when they cannot
+     * be refreshed. Default is one day.
+     *
+     * @param maxStale the time in seconds, 0 disables serving expired answers
+     */
+    public void setMaxStale(long maxStale) {
+        this.maxStale = maxStale * 1000L;
+    }
+
+    /**
+     * Set how long a lookup hitting an expired answer waits for the refresh
+     * before it is served the expired answer. Default is 1800 milliseconds.
+     *
+     * @param staleAnswerTimeout the time in milliseconds
+     */
+    public void setStaleAnswerTimeout(long staleAnswerTimeout) {
+        this.staleAnswerTimeout = staleAnswerTimeout;
+    }
+
+    /**
+     * Set how long an expired answer whose refresh failed is served without
+     * trying to refresh it again. Default is 30 seconds.
+     *
+     * @param failureRecheck the time in seconds
+     */
+    public void setFailureRecheck(long failureRecheck) {
+        this.failureRecheck = failureRecheck * 1000L;
+    }
+
+    /**
+     * Set how long the absence of records is cached. Default is 60 seconds.
+     *
+     * @param negativeTTL the time in seconds
+     */
+    public void setNegativeTTL(long negativeTTL) {
+        this.negativeTTL = negativeTTL * 1000L;
+    }
+
+    /**
+     * Set how long the answers whose time to live is not known are cached.
+     * Default is 300 seconds.
+     *
+     * @param defaultTTL the time in seconds
+     */
+    public void setDefaultTTL(long defaultTTL) {
+        this.defaultTTL = defaultTTL * 1000L;
+    }
+
+    /**
+     * Set the last part of the time to live of an answer during which using
+     * it triggers a refresh in the background. Default is 10 percent.
+     *
+     * @param refreshAhead the percentage of the time to live, 0 disables
+     *            refreshing ahead
+     */
+    public void setRefreshAhead(int refreshAhead) {
+        if (refreshAhead < 0 || refreshAhead > 100) {
+            throw new IllegalArgumentException("Invalid refresh ahead percentage: " + refreshAhead);
+        }
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * Set how many background refreshes may run at the same time. Answers
+     * needing one beyond this are refreshed once they expire. Default is 32.
+     *
+     * @param maxRefreshesAhead the maximum number of refreshes
+     */
+    public void setMaxRefreshesAhead(int maxRefreshesAhead) {
+        this.maxRefreshesAhead = maxRefreshesAhead;
+    }
+
+    /**
+     * Set the parser whose cached SPF records are updated when the text of
+     * a refreshed answer changed.
+     *
+     * @param recordParser the parser, or null
+     */
+    public void setRecordParser(CachingSPFRecordParser recordParser) {
+        this.recordParser = recordParser;
+    }
+
+    /**
+     * Set how many of the most used answers restored from a snapshot are
+     * refreshed in the background. Default is 100.
+     *
+     * @param snapshotRefreshCount the number of answers to refresh
+     */
+    public void setSnapshotRefreshCount(int snapshotRefreshCount) {
+        this.snapshotRefreshCount = snapshotRefreshCount;
+    }
+
+    /**
+     * @return the number of expired answers which were served
+     */
+    public long getStaleAnswerCount() {
+        return staleAnswers.get();
+    }
+
+    /**
+     * @return the number of background refreshes which were started
+     */
+    public long getRefreshAheadCount() {
+        return refreshesAhead.get();
+    }
+
+    /**
+     * @return the number of background refreshes which were skipped because
+     *         too many were running
+     */
+    public long getSkippedRefreshAheadCount() {
+        return skippedRefreshesAhead.get();
+    }
+
+    /**
+     * @return the number of background refreshes currently running
+     */
+    public int getRefreshesAheadInFlight() {
+        return refreshesAheadInFlight.get();
+    }
+
+    /**
+     * @return the number of lookups answered from the cache, including
+     *         the expired answers
+     */
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    /**
+     * @return the number of lookups for which nothing was cached
+     */
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    /**
+     * Remove all the cached answers.
+     */
+    public void clear() {
+        cache.clear();
+        failedRefreshes.clear();
+    }
+
+    /**
+     * Save the cached answers to the given file.
+     *
+     * @param file the file to write
+     * @return the number of saved answers
+     * @throws IOException if the file cannot be written
+     * @see DNSCacheSnapshot
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        return DNSCacheSnapshot.save(cache, file);
+    }
+
+    /**
+     * Restore the answers saved in the given file which have not expired,
+     * and refresh the most used ones in the background.
+     *
+     * @param file the file to read
+     * @return the number of restored answers
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        List<String> hottest = new ArrayList<String>();
+        int[] restored = new int[1];
+        DNSCacheSnapshot.load(file, (key, answer) -> {
+            if (answer.getExpires() > now) {
+                cache.put(key, answer);
+                restored[0]++;
+                if (hottest.size() < snapshotRefreshCount) {
+                    hottest.add(key);
+                }
+            }
+        });
+        LOGGER.debug("Restored {} answers from {}", restored[0], file);
+        Iterator<String> keys = hottest.iterator();
+        for (int i = 0; i < maxRefreshesAhead && keys.hasNext(); i++) {
+            refreshNext(keys);
+        }
+        return restored[0];
+    }
+
+    /**
+     * Refresh the next answer of the given keys, and so on once refreshed.
+     */
+    private void refreshNext(Iterator<String> keys) {
+        String key;
+        DNSRequest request = null;
+        do {
+            synchronized (keys) {
+                if (!keys.hasNext()) {
+                    return;
+                }
+                key = keys.next();
+            }
+            int separator = key.indexOf(':');
+            try {
+                request = new DNSRequest(key.substring(separator + 1), Integer.parseInt(key.substring(0, separator)));
+            } catch (NoneException | RuntimeException e) {
+                LOGGER.debug("Not refreshing {}: {}", key, e.getMessage());
+            }
+        } while (request == null);
+
+        refreshesAheadInFlight.incrementAndGet();
+        refreshInBackground(key, request).whenComplete((records, e) -> refreshNext(keys));
+    }
+
+    /**
+     * Save the cached answers to the given file periodically, and once more
+     * when closed.
+     *
+     * @param file the file to write
+     * @param period the time between two snapshots in seconds
+     */
+    public synchronized void scheduleSnapshots(Path file, long period) {
+        if (snapshotScheduler == null) {
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "jspf-dns-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+        }
+        snapshotFile = file;
+        snapshotTask = snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                saveSnapshot(file);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to save the DNS cache to {}", file, e);
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the scheduled snapshots, saving a last one.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public synchronized void close() throws IOException {
+        if (snapshotScheduler != null) {
+            // let a running snapshot finish: interrupting it would close its file
+            snapshotScheduler.shutdown();
+            try {
+                snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            snapshotScheduler = null;
+            snapshotTask = null;
+            saveSnapshot(snapshotFile);
+        }
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setTimeOut(int)
+     */
+    public void setTimeOut(int timeOut) {
+        dnsService.setTimeOut(timeOut);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getLocalDomainNames()
+     */
+    public List<String> getLocalDomainNames() {
+        return dnsService.getLocalDomainNames();
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordLimit()
+     */
+    public int getRecordLimit() {
+        return dnsService.getRecordLimit();
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setRecordLimit(int)
+     */
+    public void setRecordLimit(int recordLimit) {
+        dnsService.setRecordLimit(recordLimit);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public List<String> getRecords(DNSRequest request) throws TimeoutException {
+        DNSRecords records = getDNSRecords(request);
+        return records != null ? records.asStrings() : null;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+        return getDNSRecordsAsync(request)
+            .thenApply(records -> records != null ? records.asStrings() : null);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+        String key = getKey(request);
+        CachedAnswer entry = cache.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.getExpires() > now) {
+            refreshAhead(key, request, entry, now);
+            return entry.getRecords();
+        }
+        if (entry == null || entry.getStaleUntil() <= now) {
+            DNSRecords records = dnsService.getDNSRecords(request);
+            put(key, request, records);
+            return records;
+        }
+        try {
+            return getStale(key, request, entry, now).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return entry.getRecords();
+        } catch (ExecutionException e) {
+            // not reached, expired answers are served on failures
+            throw new TimeoutException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+        String key = getKey(request);
+        CachedAnswer entry = cache.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.getExpires() > now) {
+            refreshAhead(key, request, entry, now);
+            return CompletableFuture.completedFuture(entry.getRecords());
+        }
+        if (entry == null || entry.getStaleUntil() <= now) {
+            return refresh(key, request);
+        }
+        return getStale(key, request, entry, now);
+    }
+
+    /**
+     * Refresh the given entry in the background if it is about to expire.
+     */
+    private void refreshAhead(String key, DNSRequest request, CachedAnswer entry, long now) {
+        if (entry.getRefreshAt() > now || getRetryAfter(key) > now || refreshes.containsKey(key)) {
+            return;
+        }
+        if (refreshesAheadInFlight.incrementAndGet() > maxRefreshesAhead) {
+            refreshesAheadInFlight.decrementAndGet();
+            skippedRefreshesAhead.incrementAndGet();
+            return;
+        }
+        LOGGER.debug("Refreshing {} ahead of its expiration", key);
+        refreshInBackground(key, request);
+    }
+
+    /**
+     * Refresh the given answer, counting it as a background refresh. The
+     * caller must have counted it as in flight.
+     */
+    private CompletableFuture<DNSRecords> refreshInBackground(String key, DNSRequest request) {
+        refreshesAhead.incrementAndGet();
+        try {
+            return refresh(key, request).whenComplete((records, e) -> {
+                refreshesAheadInFlight.decrementAndGet();
+                if (e != null) {
+                    refreshFailed(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshesAheadInFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Refresh the given expired entry, serving it when the refresh fails or
+     * takes too long.
+     */
+    private CompletableFuture<DNSRecords> getStale(String key, DNSRequest request, CachedAnswer entry, long now) {
+        CompletableFuture<DNSRecords> result = new CompletableFuture<DNSRecords>();
+        if (getRetryAfter(key) > now) {
+            serveStale(result, key, entry);
+            return result;
+        }
+        refresh(key, request).whenComplete((records, e) -> {
+            if (e == null) {
+                result.complete(records);
+            } else {
+                refreshFailed(key);
+                serveStale(result, key, entry);
+            }
+        });
+        if (!result.isDone()) {
+            CompletableFuture.delayedExecutor(staleAnswerTimeout, TimeUnit.MILLISECONDS)
+                .execute(() -> serveStale(result, key, entry));
+        }
+        return result;
+    }
+
+    private void serveStale(CompletableFuture<DNSRecords> result, String key, CachedAnswer entry) {
+        // counted first so the count is up to date once the caller is answered
+        staleAnswers.incrementAndGet();
+        if (result.complete(entry.getRecords())) {
+            LOGGER.debug("Serving the expired answer for {}", key);
+        } else {
+            staleAnswers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Ask the wrapped service, sharing the lookup with the concurrent
+     * requests for the same records, and cache the answer.
+     */
+    private CompletableFuture<DNSRecords> refresh(String key, DNSRequest request) {
+        CompletableFuture<DNSRecords> refresh = refreshes.get(key);
+        if (refresh != null) {
+            return refresh;
+        }
+        CompletableFuture<DNSRecords> created = new CompletableFuture<DNSRecords>();
+        refresh = refreshes.putIfAbsent(key, created);
+        if (refresh != null) {
+            return refresh;
+        }
+        try {
+            dnsService.getDNSRecordsAsync(request).whenComplete((records, e) -> {
+                if (e instanceof CompletionException && e.getCause() != null) {
+                    e = e.getCause();
+                }
+                if (e instanceof NoSuchDomainException || e instanceof NoSuchRRSetException) {
+                    e = null;
+                    records = null;
+                }
+                if (e == null) {
+                    put(key, request, records);
+                }
+                refreshes.remove(key, created);
+                if (e == null) {
+                    created.complete(records);
+                } else {
+                    created.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshes.remove(key, created);
+            throw e;
+        }
+        return created;
+    }
+
+    private long getRetryAfter(String key) {
+        Long retryAfter = failedRefreshes.get(key);
+        return retryAfter != null ? retryAfter : 0;
+    }
+
+    /**
+     * Do not try to refresh the given answer again before the failure
+     * recheck time.
+     */
+    private void refreshFailed(String key) {
+        long now = System.currentTimeMillis();
+        if (failedRefreshes.size() > 1000) {
+            // forget the failures of the answers not used anymore
+            failedRefreshes.values().removeIf(retryAfter -> retryAfter <= now);
+        }
+        failedRefreshes.put(key, now + failureRecheck);
+    }
+
+    private void put(String key, DNSRequest request, DNSRecords records) {
+        long ttl;
+        if (records == null || records.isEmpty()) {
+            ttl = negativeTTL;
+        } else if (records.getTTL() < 0) {
+            ttl = defaultTTL;
+        } else {
+            ttl = records.getTTL() * 1000L;
+        }
+        long now = System.currentTimeMillis();
+        long expires = now + ttl;
+        failedRefreshes.remove(key);
+        CachedAnswer previous = cache.put(key, new CachedAnswer(records, expires - ttl * refreshAhead / 100, expires, expires + maxStale));
+        if (previous != null && recordParser != null) {
+            reparse(request, previous.getRecords(), records);
+        }
+    }
+
+    /**
+     * Parse the SPF records of a refreshed answer whose text changed.
+     */
+    private void reparse(DNSRequest request, DNSRecords previous, DNSRecords records) {
+        if (records == null || (request.getRecordType() != DNSRequest.TXT && request.getRecordType() != DNSRequest.SPF)) {
+            return;
+        }
+        List<String> texts = records.asStrings();
+        if (previous != null && texts.equals(previous.asStrings())) {
+            return;
+        }
+        for (String text : texts) {
+            String trimmed = text.trim();
+            if (trimmed.regionMatches(true, 0, SPF1Constants.SPF_VERSION1, 0, SPF1Constants.SPF_VERSION1.length())) {
+                recordParser.preload(text);
+            }
+        }
+    }
+
+    private static String getKey(DNSRequest request) {
+        String hostname = request.getHostname().toLowerCase(Locale.ROOT);
+        if (hostname.endsWith(".")) {
+            hostname = hostname.substring(0, hostname.length() - 1);
+        }
+        return request.getRecordType() + ":" + hostname;
+    }
+}
@@ -0,0 +1,399 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Type;
+
+/**
+ * A DNSService spreading the queries over several upstream servers
+ * according to their observed latency.
+ *
+ * Each query goes first to the upstream with the lowest smoothed round trip
+ * time. If it has not answered once its 95th percentile is elapsed, the
+ * query is also sent to the next upstream and the first answer wins. The
+ * timeout of each attempt is derived from the RTT statistics of the
+ * upstream (RFC 6298) once enough of them are known, bounded by the timeout
+ * set with
+ * {@link #setTimeOut(int)}, which is also the bound of the whole lookup.
+ * Failed attempts are retried on the remaining upstreams while time is
+ * left.
+ */
+public class DNSServiceMultiUpstreamImpl implements DNSService, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DNSServiceMultiUpstreamImpl.class);
+
+    // Bounds of the timeout of a single attempt
+    private static final long MIN_ATTEMPT_TIMEOUT = 100;
+
+    // Hedge delay used until enough samples are known, the attempts get
+    // the whole timeout until then
+    private static final long DEFAULT_HEDGE_DELAY = 200;
+
+    private static final long MIN_HEDGE_DELAY = 5;
+
+    private static final int MIN_SAMPLES = 8;
+
+    private final List<Upstream> upstreams;
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long timeout = 10000;
+
+    private volatile boolean hedging = true;
+
+    // The record limit for lookups
+    protected int recordLimit = 10;
+
+    /**
+     * @param servers the upstream servers, the first ones are preferred
+     *        until their latency is known
+     */
+    public DNSServiceMultiUpstreamImpl(List<InetSocketAddress> servers) throws IOException {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream server is needed");
+        }
+        List<Upstream> list = new ArrayList<Upstream>(servers.size());
+        try {
+            for (InetSocketAddress server : servers) {
+                list.add(new Upstream(new DNSServiceNioImpl(server)));
+            }
+        } catch (IOException e) {
+            for (Upstream upstream : list) {
+                upstream.service.close();
+            }
+            throw e;
+        }
+        this.upstreams = Collections.unmodifiableList(list);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jspf-dns-hedge");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Set the bound of a whole lookup, including the retries and hedged
+     * queries on other upstreams.
+     *
+     * @see org.apache.james.jspf.core.DNSService#setTimeOut(int)
+     */
+    public void setTimeOut(int timeOut) {
+        this.timeout = timeOut * 1000L;
+    }
+
+    /**
+     * @param hedging true to send a duplicate query to a second upstream
+     *        when the first is slower than usual
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Set the EDNS0 payload size of the queries sent to all the upstreams.
+     *
+     * @see DNSServiceNioImpl#setEDNSPayloadSize(int)
+     */
+    public void setEDNSPayloadSize(int ednsPayloadSize) {
+        for (Upstream upstream : upstreams) {
+            upstream.service.setEDNSPayloadSize(ednsPayloadSize);
+        }
+    }
+
+    /**
+     * @return the upstreams, starting with the one the next query will be sent to
+     */
+    public List<InetSocketAddress> getUpstreamsByLatency() {
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+        for (Upstream upstream : rank()) {
+            result.add(upstream.service.getServer());
+        }
+        return result;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getLocalDomainNames()
+     */
+    public List<String> getLocalDomainNames() {
+        List<String> names = new ArrayList<String>();
+
+        LOGGER.debug("Start Local ipaddress lookup");
+        try {
+            InetAddress ia[] = InetAddress.getAllByName(InetAddress
+                    .getLocalHost().getHostName());
+
+            for (int i = 0; i < ia.length; i++) {
+                String host = ia[i].getHostName();
+                names.add(host);
+
+                LOGGER.debug("Add hostname {} to list", host);
+            }
+        } catch (UnknownHostException e) {
+            // just ignore this..
+        }
+        return names;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordLimit()
+     */
+    public int getRecordLimit() {
+        return recordLimit;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setRecordLimit(int)
+     */
+    public void setRecordLimit(int recordLimit) {
+        this.recordLimit = recordLimit;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public List<String> getRecords(DNSRequest request) throws TimeoutException {
+        DNSRecords records = getDNSRecords(request);
+        return records != null ? records.asStrings() : null;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+        return getDNSRecordsAsync(request)
+            .thenApply(records -> records != null ? records.asStrings() : null);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+        int type = DNSServiceNioImpl.getDnsJavaType(request);
+        if (type == 0 || request.getName() == null) {
+            LOGGER.debug("No {} Record found for host: {}", Type.string(type), request.getHostname());
+            return null;
+        }
+        try {
+            return new Lookup(request.getName(), type).start().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrupted while querying " + request.getHostname());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) e.getCause();
+            }
+            throw new TimeoutException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+        int type = DNSServiceNioImpl.getDnsJavaType(request);
+        if (type == 0 || request.getName() == null) {
+            LOGGER.debug("No {} Record found for host: {}", Type.string(type), request.getHostname());
+            return CompletableFuture.completedFuture(null);
+        }
+        return new Lookup(request.getName(), type).start();
+    }
+
+    /**
+     * Close the connections to all the upstreams.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        for (Upstream upstream : upstreams) {
+            upstream.service.close();
+        }
+    }
+
+    /**
+     * @return the upstreams sorted by smoothed RTT, the ones without
+     *         samples first so that they get probed
+     */
+    private List<Upstream> rank() {
+        List<Upstream> ranked = new ArrayList<Upstream>(upstreams);
+        Collections.sort(ranked, Comparator.comparingDouble(upstream -> upstream.stats.getSmoothedRtt()));
+        return ranked;
+    }
+
+    private static final class Upstream {
+
+        private final DNSServiceNioImpl service;
+
+        private final UpstreamStats stats = new UpstreamStats();
+
+        private Upstream(DNSServiceNioImpl service) {
+            this.service = service;
+        }
+
+        private long getHedgeDelay() {
+            if (stats.getSampleCount() < MIN_SAMPLES) {
+                return DEFAULT_HEDGE_DELAY;
+            }
+            return Math.max(MIN_HEDGE_DELAY, stats.getPercentile(95));
+        }
+
+        private long getAttemptTimeout(long timeout) {
+            if (stats.getSampleCount() < MIN_SAMPLES) {
+                return timeout;
+            }
+            return stats.getTimeout(MIN_ATTEMPT_TIMEOUT, timeout);
+        }
+    }
+
+    /**
+     * A lookup and its attempts on the different upstreams.
+     */
+    private final class Lookup {
+
+        private final Name name;
+
+        private final int type;
+
+        private final List<Upstream> order = rank();
+
+        private final long deadline = System.currentTimeMillis() + timeout;
+
+        private final CompletableFuture<DNSRecords> result = new CompletableFuture<DNSRecords>();
+
+        private final List<CompletableFuture<DNSRecords>> attempts = new ArrayList<CompletableFuture<DNSRecords>>();
+
+        private int next = 0;
+
+        private int outstanding = 0;
+
+        private ScheduledFuture<?> hedge;
+
+        private Throwable lastError;
+
+        private Lookup(Name name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        private synchronized CompletableFuture<DNSRecords> start() {
+            Upstream first = order.get(0);
+            attempt();
+            if (hedging && order.size() > 1) {
+                hedge = scheduler.schedule(this::hedge, first.getHedgeDelay(), TimeUnit.MILLISECONDS);
+            }
+            result.whenComplete((records, e) -> {
+                if (e instanceof CancellationException) {
+                    cancel();
+                }
+            });
+            return result;
+        }
+
+        /**
+         * Stop the hedge timer and the attempts still running.
+         */
+        private synchronized void cancel() {
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+            for (CompletableFuture<DNSRecords> attempt : attempts) {
+                attempt.cancel(false);
+            }
+        }
+
+        private synchronized void hedge() {
+            if (!result.isDone() && next < order.size()) {
+                LOGGER.debug("Hedging the {} query for {} to {}", Type.string(type), name,
+                        order.get(next).service.getServer());
+                attempt();
+            }
+        }
+
+        private void attempt() {
+            Upstream upstream = order.get(next++);
+            long attemptTimeout = Math.min(upstream.getAttemptTimeout(timeout),
+                    deadline - System.currentTimeMillis());
+            long start = System.nanoTime();
+            outstanding++;
+            CompletableFuture<DNSRecords> attempt = upstream.service.query(name, type, Math.max(1, attemptTimeout));
+            attempts.add(attempt);
+            attempt.whenComplete((records, e) -> onAttempt(upstream, start, attemptTimeout, records, e));
+        }
+
+        private synchronized void onAttempt(Upstream upstream, long start, long attemptTimeout,
+                DNSRecords records, Throwable e) {
+            outstanding--;
+            if (result.isCancelled()) {
+                return;
+            }
+            if (e instanceof CancellationException) {
+                // lost to a faster upstream, so at least this slow
+                upstream.stats.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return;
+            }
+            if (e == null) {
+                upstream.stats.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (result.complete(records)) {
+                    cancel();
+                }
+                return;
+            }
+            // failures count as slow answers so that the upstream is avoided
+            upstream.stats.record(Math.max(attemptTimeout, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            lastError = e;
+            if (result.isDone() || outstanding > 0) {
+                return;
+            }
+            if (next < order.size() && deadline - System.currentTimeMillis() > 0) {
+                LOGGER.debug("Retrying the {} query for {} on {}", Type.string(type), name,
+                        order.get(next).service.getServer());
+                attempt();
+            } else if (lastError instanceof TimeoutException) {
+                result.completeExceptionally(lastError);
+            } else {
+                result.completeExceptionally(new TimeoutException(String.valueOf(lastError)));
+            }
+        }
+    }
+}
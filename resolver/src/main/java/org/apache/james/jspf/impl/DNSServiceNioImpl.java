@@ -0,0 +1,909 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.DNSOutput;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.ResolverConfig;
+import org.xbill.DNS.Type;
+
+/**
+ * A DNSService talking to a single recursive server without the dnsjava
+ * Lookup machinery.
+ *
+ * All the queries share one non blocking DatagramChannel served by a
+ * selector thread and are told apart by their query id. The callers hand
+ * the queries over to the selector thread, which alone registers, sends and
+ * expires them. Queries are built
+ * from pre-encoded templates into pooled buffers and answers are decoded
+ * straight into {@link DNSRecords}. Truncated answers are retried over a pool of
+ * persistent, pipelined TCP connections. EDNS0 is used to receive answers
+ * bigger than 512 bytes over UDP.
+ *
+ * Only the record types of {@link DNSRequest} are supported and names are
+ * always resolved as absolute names, without search path.
+ */
+public class DNSServiceNioImpl implements DNSService, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DNSServiceNioImpl.class);
+
+    private static final int HEADER_LENGTH = 12;
+
+    // Queries are at most 12 + 255 + 4 bytes long
+    private static final int QUERY_BUFFER_SIZE = 512;
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final int MAX_TEMPLATES = 1024;
+
+    private static final int MAX_PENDING = 32768;
+
+    // Same limit as the dnsjava Lookup
+    private static final int MAX_ALIASES = 16;
+
+    // Time after which unused TCP connections are closed
+    private static final long TCP_IDLE_TIMEOUT = 10000;
+
+    private final InetSocketAddress server;
+
+    private final DatagramChannel channel;
+
+    private final Selector selector;
+
+    private final SelectionKey key;
+
+    private final Executor callbackExecutor;
+
+    private final Thread selectorThread;
+
+    private final Random random = new SecureRandom();
+
+    // Queries built by the callers, waiting for the selector thread
+    private final ConcurrentLinkedQueue<PendingQuery> submitted = new ConcurrentLinkedQueue<PendingQuery>();
+
+    private final ConcurrentLinkedQueue<PendingQuery> cancelled = new ConcurrentLinkedQueue<PendingQuery>();
+
+    // Only used by the selector thread
+    private final Map<Integer, PendingQuery> pending = new HashMap<Integer, PendingQuery>();
+
+    private final Queue<PendingQuery> outbox = new ArrayDeque<PendingQuery>();
+
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<Deadline>();
+
+    private final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    private final Map<String, byte[]> templates = new ConcurrentHashMap<String, byte[]>();
+
+    private volatile long timeout = 10000;
+
+    private volatile boolean closed = false;
+
+    private volatile int ednsPayloadSize = 1232;
+
+    private volatile int tcpConnections = 2;
+
+    private DNSTCPTransport tcpTransport;
+
+    // The record limit for lookups
+    protected int recordLimit = 10;
+
+    /**
+     * Default Constructor.
+     * Uses the first server of the system resolver configuration.
+     */
+    public DNSServiceNioImpl() throws IOException {
+        this(ResolverConfig.getCurrentConfig().server());
+    }
+
+    /**
+     * Constructor to specify the server to query.
+     */
+    public DNSServiceNioImpl(InetSocketAddress server) throws IOException {
+        this(server, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor to specify the server to query and the executor used to
+     * complete the returned stages.
+     */
+    public DNSServiceNioImpl(InetSocketAddress server, Executor callbackExecutor) throws IOException {
+        this.server = server;
+        this.callbackExecutor = callbackExecutor;
+        this.selector = Selector.open();
+        try {
+            this.channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(server);
+            this.key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        this.selectorThread = new Thread(this::run, "jspf-dns-" + server);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setTimeOut(int)
+     */
+    public void setTimeOut(int timeOut) {
+        this.timeout = timeOut * 1000L;
+    }
+
+    /**
+     * Set the UDP payload size advertised with EDNS0, so that answers up to
+     * this size are not truncated. The default of 1232 bytes avoids IP
+     * fragmentation on common links.
+     *
+     * @param ednsPayloadSize the payload size, 0 to send plain queries
+     */
+    public void setEDNSPayloadSize(int ednsPayloadSize) {
+        if (ednsPayloadSize < 0 || ednsPayloadSize > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Invalid EDNS0 payload size: " + ednsPayloadSize);
+        }
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    /**
+     * @return the UDP payload size advertised with EDNS0, 0 if disabled
+     */
+    public int getEDNSPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /**
+     * Set the number of persistent TCP connections used to retry truncated
+     * answers. Must be called before the first TCP query.
+     *
+     * @param tcpConnections the maximum number of connections
+     */
+    public synchronized void setTCPConnections(int tcpConnections) {
+        if (tcpConnections < 1) {
+            throw new IllegalArgumentException("At least one TCP connection is needed");
+        }
+        this.tcpConnections = tcpConnections;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getLocalDomainNames()
+     */
+    public List<String> getLocalDomainNames() {
+        List<String> names = new ArrayList<String>();
+
+        LOGGER.debug("Start Local ipaddress lookup");
+        try {
+            InetAddress ia[] = InetAddress.getAllByName(InetAddress
+                    .getLocalHost().getHostName());
+
+            for (int i = 0; i < ia.length; i++) {
+                String host = ia[i].getHostName();
+                names.add(host);
+
+                LOGGER.debug("Add hostname {} to list", host);
+            }
+        } catch (UnknownHostException e) {
+            // just ignore this..
+        }
+        return names;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordLimit()
+     */
+    public int getRecordLimit() {
+        return recordLimit;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setRecordLimit(int)
+     */
+    public void setRecordLimit(int recordLimit) {
+        this.recordLimit = recordLimit;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public List<String> getRecords(DNSRequest request) throws TimeoutException {
+        DNSRecords records = getDNSRecords(request);
+        return records != null ? records.asStrings() : null;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+        return getDNSRecordsAsync(request)
+            .thenApply(records -> records != null ? records.asStrings() : null);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+        int type = getDnsJavaType(request);
+        if (type == 0 || request.getName() == null) {
+            LOGGER.debug("No {} Record found for host: {}", Type.string(type), request.getHostname());
+            return null;
+        }
+        try {
+            return query(request.getName(), type, timeout).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrupted while querying " + request.getHostname());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) e.getCause();
+            }
+            throw new TimeoutException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+        int type = getDnsJavaType(request);
+        if (type == 0 || request.getName() == null) {
+            LOGGER.debug("No {} Record found for host: {}", Type.string(type), request.getHostname());
+            return CompletableFuture.completedFuture(null);
+        }
+        return query(request.getName(), type, timeout);
+    }
+
+    /**
+     * Stop the selector thread and fail all the pending queries.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        synchronized (this) {
+            if (tcpTransport != null) {
+                tcpTransport.close();
+            }
+        }
+        try {
+            selectorThread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the server this service queries
+     */
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    /**
+     * @return the dnsjava type for the given request, 0 if it is not supported
+     */
+    static int getDnsJavaType(DNSRequest request) {
+        switch (request.getRecordType()) {
+            case DNSRequest.A: return Type.A;
+            case DNSRequest.AAAA: return Type.AAAA;
+            case DNSRequest.MX: return Type.MX;
+            case DNSRequest.PTR: return Type.PTR;
+            case DNSRequest.TXT: return Type.TXT;
+            case DNSRequest.SPF: return Type.SPF;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Query the server, giving up after the given timeout.
+     *
+     * @param name the name to query
+     * @param type the dnsjava record type
+     * @param timeout the timeout in milliseconds
+     * @return a future completed with the records, null if there are none,
+     *         or with a TimeoutException. Cancelling it stops the query.
+     */
+    CompletableFuture<DNSRecords> query(Name name, int type, long timeout) {
+        PendingQuery query = new PendingQuery(type, timeout);
+        query(query, name);
+        query.future.whenComplete((records, e) -> {
+            if (e instanceof CancellationException) {
+                // let the selector thread drop the query
+                cancelled.add(query);
+                selector.wakeup();
+            }
+        });
+        return query.future;
+    }
+
+    /**
+     * Send the question for the given name, which is the queried name or
+     * the target of an alias found while answering it. The query is built
+     * completely before it is handed over to the selector thread, which
+     * gives it its id.
+     */
+    private void query(PendingQuery query, Name name) {
+        try {
+            if (!name.isAbsolute()) {
+                name = Name.concatenate(name, Name.root);
+            }
+        } catch (NameTooLongException e) {
+            query.future.complete(null);
+            return;
+        }
+        if (closed) {
+            query.future.completeExceptionally(new TimeoutException("DNS service closed"));
+            return;
+        }
+        LOGGER.debug("Start {}-Record lookup for : {}", Type.string(query.type), name);
+
+        ByteBuffer buffer = acquireBuffer();
+        buffer.put(getTemplate(name, query.type, query.plain ? 0 : ednsPayloadSize));
+        buffer.flip();
+        query.name = name;
+        query.buffer = buffer;
+
+        submitted.add(query);
+        if (closed && submitted.remove(query)) {
+            // the selector thread may be gone already
+            fail(query, new TimeoutException("DNS service closed"));
+            return;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Return the query for the given question, with a zero id. Templates
+     * are cached so that hot names are encoded only once.
+     */
+    private byte[] getTemplate(Name name, int type, int payloadSize) {
+        String templateKey = name.toString() + '/' + type + '/' + payloadSize;
+        byte[] template = templates.get(templateKey);
+        if (template == null) {
+            DNSOutput out = new DNSOutput(QUERY_BUFFER_SIZE);
+            out.writeU16(0);
+            out.writeU16(1 << (15 - Flags.RD));
+            out.writeU16(1);
+            out.writeU16(0);
+            out.writeU16(0);
+            out.writeU16(payloadSize > 0 ? 1 : 0);
+            name.toWire(out, null);
+            out.writeU16(type);
+            out.writeU16(DClass.IN);
+            if (payloadSize > 0) {
+                // OPT pseudo record: root name, payload size as class
+                out.writeU8(0);
+                out.writeU16(Type.OPT);
+                out.writeU16(payloadSize);
+                out.writeU32(0);
+                out.writeU16(0);
+            }
+            template = out.toByteArray();
+            if (templates.size() >= MAX_TEMPLATES) {
+                templates.clear();
+            }
+            templates.put(templateKey, template);
+        }
+        return template;
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(QUERY_BUFFER_SIZE);
+        }
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            bufferPool.offer(buffer);
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * The selector loop: registers the submitted queries, reads the answers,
+     * expires the queries which were not answered in time and sends the
+     * queued queries.
+     */
+    private void run() {
+        ByteBuffer in = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+        try {
+            while (!closed) {
+                try {
+                    selector.select(getSelectTimeout());
+                    selector.selectedKeys().clear();
+                    register();
+                    dropCancelled();
+                    receive(in);
+                    // expire first so the retransmissions are sent right away
+                    expire();
+                    flush();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Unexpected error in the DNS selector loop for {}", server, e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("DNS selector loop for {} failed", server, e);
+        } finally {
+            closed = true;
+            for (PendingQuery query : pending.values()) {
+                fail(query, new TimeoutException("DNS service closed"));
+            }
+            pending.clear();
+            PendingQuery query;
+            while ((query = submitted.poll()) != null) {
+                fail(query, new TimeoutException("DNS service closed"));
+            }
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error closing the DNS channel", e);
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        Deadline next = deadlines.peek();
+        if (next == null) {
+            return 0;
+        }
+        return Math.max(1, next.time - System.currentTimeMillis());
+    }
+
+    /**
+     * Give the submitted queries their id and queue them for sending.
+     */
+    private void register() {
+        long now = System.currentTimeMillis();
+        PendingQuery query;
+        while ((query = submitted.poll()) != null) {
+            if (query.future.isDone()) {
+                // cancelled before it was registered
+                fail(query, new TimeoutException("Cancelled query for " + query.name));
+                continue;
+            }
+            if (pending.size() >= MAX_PENDING) {
+                PendingQuery rejected = query;
+                callbackExecutor.execute(() -> fail(rejected, new TimeoutException("Too many pending queries")));
+                continue;
+            }
+            int id;
+            do {
+                id = random.nextInt(0x10000);
+            } while (pending.containsKey(Integer.valueOf(id)));
+            query.id = id;
+            query.buffer.put(0, (byte) (id >>> 8));
+            query.buffer.put(1, (byte) id);
+            query.retransmitted = false;
+            pending.put(Integer.valueOf(id), query);
+            schedule(query, now + query.timeout / 2);
+            outbox.add(query);
+        }
+    }
+
+    private void dropCancelled() {
+        PendingQuery query;
+        while ((query = cancelled.poll()) != null) {
+            if (pending.get(Integer.valueOf(query.id)) == query) {
+                pending.remove(Integer.valueOf(query.id));
+                PendingQuery dropped = query;
+                callbackExecutor.execute(() -> fail(dropped, new TimeoutException("Cancelled query for " + dropped.name)));
+            }
+        }
+    }
+
+    /**
+     * Set the time at which the query is retransmitted or expired. The
+     * previous deadlines of the query are left in the queue and skipped
+     * when they come up, unless they pile up.
+     */
+    private void schedule(PendingQuery query, long time) {
+        query.attempt++;
+        deadlines.add(new Deadline(time, query));
+        if (deadlines.size() > 2 * pending.size() + MAX_POOLED_BUFFERS) {
+            deadlines.removeIf(deadline -> !isCurrent(deadline));
+        }
+    }
+
+    private boolean isCurrent(Deadline deadline) {
+        PendingQuery query = deadline.query;
+        return deadline.attempt == query.attempt && pending.get(Integer.valueOf(query.id)) == query;
+    }
+
+    private void flush() throws IOException {
+        PendingQuery query;
+        while ((query = outbox.peek()) != null) {
+            // skip queries answered or expired while waiting in the outbox
+            if (pending.get(Integer.valueOf(query.id)) == query) {
+                try {
+                    if (channel.write(query.buffer.duplicate()) == 0) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } catch (PortUnreachableException e) {
+                    LOGGER.debug("DNS server {} unreachable", server);
+                }
+            }
+            outbox.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void receive(ByteBuffer in) throws IOException {
+        while (true) {
+            in.clear();
+            try {
+                if (channel.read(in) <= 0) {
+                    return;
+                }
+            } catch (PortUnreachableException e) {
+                LOGGER.debug("DNS server {} unreachable", server);
+                continue;
+            }
+            in.flip();
+            if (in.remaining() < HEADER_LENGTH) {
+                continue;
+            }
+            Integer id = Integer.valueOf(in.getShort(0) & 0xFFFF);
+            PendingQuery query = pending.get(id);
+            if (query == null) {
+                LOGGER.debug("Ignoring DNS answer with unknown id {}", id);
+                continue;
+            }
+            byte[] message = new byte[in.remaining()];
+            in.get(message);
+            Answer answer = parse(query, message);
+            if (answer != null) {
+                pending.remove(id);
+                callbackExecutor.execute(() -> onAnswer(query, answer));
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Deadline next;
+        while ((next = deadlines.peek()) != null && next.time <= now) {
+            deadlines.poll();
+            if (!isCurrent(next)) {
+                continue;
+            }
+            PendingQuery query = next.query;
+            if (!query.retransmitted) {
+                query.retransmitted = true;
+                schedule(query, now + query.timeout - query.timeout / 2);
+                outbox.add(query);
+            } else {
+                pending.remove(Integer.valueOf(query.id));
+                callbackExecutor.execute(() -> fail(query, new TimeoutException("Timed out querying " + query.name)));
+            }
+        }
+    }
+
+    private void onAnswer(PendingQuery query, Answer answer) {
+        if (answer.truncated) {
+            LOGGER.debug("Truncated answer for {}, retrying over TCP", query.name);
+            CompletableFuture<byte[]> tcpAnswer;
+            try {
+                tcpAnswer = getTCPTransport().query(query.buffer.duplicate(), query.timeout);
+            } catch (IOException e) {
+                fail(query, new TimeoutException(e.getMessage()));
+                return;
+            }
+            tcpAnswer.whenCompleteAsync((message, e) -> onTCPAnswer(query, message, e), callbackExecutor);
+            return;
+        }
+        releaseBuffer(query.buffer);
+        query.buffer = null;
+
+        if ((answer.rcode == Rcode.FORMERR || answer.rcode == Rcode.NOTIMP) && !query.plain && ednsPayloadSize > 0) {
+            // the server does not support EDNS0, ask again without it
+            query.plain = true;
+            query(query, query.name);
+        } else if (answer.rcode != Rcode.NOERROR && answer.rcode != Rcode.NXDOMAIN) {
+            query.future.completeExceptionally(new TimeoutException(Rcode.string(answer.rcode)));
+        } else if (answer.records != null) {
+            LOGGER.debug("Found {} {}-Records", answer.records.size(), Type.string(query.type));
+            query.future.complete(answer.records);
+        } else if (answer.alias != null && answer.rcode == Rcode.NOERROR && ++query.aliases < MAX_ALIASES) {
+            query(query, answer.alias);
+        } else {
+            LOGGER.debug("No {} Record found for host: {}", Type.string(query.type), query.name);
+            query.future.complete(null);
+        }
+    }
+
+    private void onTCPAnswer(PendingQuery query, byte[] message, Throwable e) {
+        if (e instanceof SocketTimeoutException) {
+            fail(query, new TimeoutException("Timed out querying " + query.name + " over TCP"));
+            return;
+        } else if (e != null) {
+            fail(query, new TimeoutException(e.getMessage()));
+            return;
+        }
+        Answer answer = parse(query, message);
+        if (answer == null || answer.truncated) {
+            fail(query, new TimeoutException("Invalid TCP answer for " + query.name));
+            return;
+        }
+        onAnswer(query, answer);
+    }
+
+    private void fail(PendingQuery query, TimeoutException e) {
+        if (query.buffer != null) {
+            releaseBuffer(query.buffer);
+            query.buffer = null;
+        }
+        query.future.completeExceptionally(e);
+    }
+
+    private synchronized DNSTCPTransport getTCPTransport() throws IOException {
+        if (tcpTransport == null) {
+            tcpTransport = new DNSTCPTransport(server, tcpConnections, TCP_IDLE_TIMEOUT);
+        }
+        return tcpTransport;
+    }
+
+    /**
+     * Decode the given answer to the query.
+     *
+     * @return the answer or null if it is malformed or does not match the
+     *         question
+     */
+    private static Answer parse(PendingQuery query, byte[] message) {
+        try {
+            DNSInput in = new DNSInput(message);
+            in.readU16();
+            int flags = in.readU16();
+            int qdcount = in.readU16();
+            int ancount = in.readU16();
+            in.readU16();
+            in.readU16();
+            if ((flags & (1 << (15 - Flags.QR))) == 0 || qdcount > 1) {
+                return null;
+            }
+            if (qdcount == 1) {
+                Name qname = new Name(in);
+                int qtype = in.readU16();
+                in.readU16();
+                if (qtype != query.type || !qname.equals(query.name)) {
+                    return null;
+                }
+            }
+
+            Answer answer = new Answer();
+            answer.rcode = flags & 0xF;
+            if ((flags & (1 << (15 - Flags.TC))) != 0) {
+                answer.truncated = true;
+                return answer;
+            }
+
+            Map<Name, Name> aliases = null;
+            Map<Name, List<Object>> values = null;
+            long ttl = -1;
+            for (int i = 0; i < ancount; i++) {
+                Name owner = new Name(in);
+                int type = in.readU16();
+                in.readU16();
+                long recordTTL = in.readU32();
+                if (type == Type.CNAME || type == query.type) {
+                    ttl = ttl < 0 ? recordTTL : Math.min(ttl, recordTTL);
+                }
+                int length = in.readU16();
+                in.setActive(length);
+                Object value = null;
+                if (type == Type.CNAME) {
+                    if (aliases == null) {
+                        aliases = new HashMap<Name, Name>();
+                    }
+                    aliases.put(owner, new Name(in));
+                } else if (type == query.type) {
+                    value = readValue(type, in, length);
+                }
+                if (value != null) {
+                    if (values == null) {
+                        values = new HashMap<Name, List<Object>>();
+                    }
+                    List<Object> list = values.get(owner);
+                    if (list == null) {
+                        list = new ArrayList<Object>();
+                        values.put(owner, list);
+                    }
+                    list.add(value);
+                }
+                if (in.remaining() > 0) {
+                    in.readByteArray();
+                }
+                in.clearActive();
+            }
+
+            Name name = query.name;
+            for (int hops = 0; aliases != null && aliases.containsKey(name) && hops < MAX_ALIASES; hops++) {
+                name = aliases.get(name);
+            }
+            List<Object> found = values != null ? values.get(name) : null;
+            if (found != null) {
+                answer.records = toRecords(query.type, found).withTTL(ttl);
+            } else if (!name.equals(query.name)) {
+                answer.alias = name;
+            }
+            return answer;
+        } catch (IOException e) {
+            LOGGER.debug("Malformed DNS answer for {}", query.name, e);
+            return null;
+        }
+    }
+
+    private static Object readValue(int type, DNSInput in, int length) throws IOException {
+        switch (type) {
+            case Type.A:
+            case Type.AAAA:
+                return in.readByteArray(length);
+            case Type.MX:
+                in.readU16();
+                return new Name(in);
+            case Type.PTR:
+                return new Name(in);
+            default:
+                // TXT and SPF: concatenate the character-strings
+                DNSOutput text = new DNSOutput(length);
+                while (in.remaining() > 0) {
+                    text.writeByteArray(in.readCountedString());
+                }
+                return text.toByteArray();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DNSRecords toRecords(int type, List<?> values) {
+        switch (type) {
+            case Type.A:
+            case Type.AAAA:
+                return DNSRecords.ofAddresses((List<byte[]>) values);
+            case Type.MX:
+                return DNSRecords.ofNames(DNSRequest.MX, (List<Name>) values);
+            case Type.PTR:
+                return DNSRecords.ofNames(DNSRequest.PTR, (List<Name>) values);
+            default:
+                return DNSRecords.ofTexts((List<byte[]>) values);
+        }
+    }
+
+    /**
+     * A query waiting for its answer. The name and the buffer are only
+     * changed before the query is submitted, the id, the attempt and the
+     * retransmitted flag only by the selector thread.
+     */
+    private static final class PendingQuery {
+
+        private final int type;
+
+        private final long timeout;
+
+        private final CompletableFuture<DNSRecords> future = new CompletableFuture<DNSRecords>();
+
+        private Name name;
+
+        private int id;
+
+        private ByteBuffer buffer;
+
+        private int attempt;
+
+        private boolean retransmitted;
+
+        private int aliases;
+
+        private boolean plain;
+
+        private PendingQuery(int type, long timeout) {
+            this.type = type;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * The time at which the given attempt of a query is retransmitted or
+     * expired.
+     */
+    private static final class Deadline implements Comparable<Deadline> {
+
+        private final long time;
+
+        private final PendingQuery query;
+
+        private final int attempt;
+
+        private Deadline(long time, PendingQuery query) {
+            this.time = time;
+            this.query = query;
+            this.attempt = query.attempt;
+        }
+
+        public int compareTo(Deadline o) {
+            return Long.compare(time, o.time);
+        }
+    }
+
+    /**
+     * The decoded answer: the records, or the alias to query next when the
+     * server only returned the CNAME chain.
+     */
+    private static final class Answer {
+
+        private int rcode;
+
+        private boolean truncated;
+
+        private DNSRecords records;
+
+        private Name alias;
+    }
+}
@@ -22,19 +22,15 @@ package org.apache.james.jspf.impl;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSService;
-import org.apache.james.jspf.core.IPAddr;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.AAAARecord;
-import org.xbill.DNS.ARecord;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.MXRecord;
 import org.xbill.DNS.Name;
@@ -43,7 +39,6 @@ import org.xbill.DNS.Record;
 import org.xbill.DNS.Resolver;
 import org.xbill.DNS.SPFRecord;
 import org.xbill.DNS.TXTRecord;
-import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 import org.xbill.DNS.lookup.LookupSession;
 
@@ -134,67 +129,84 @@ public class DNSServiceXBillImpl implements DNSService {
      */
     public List<String> getRecords(DNSRequest request)
             throws TimeoutException {
-        String recordTypeDescription;
-        int dnsJavaType;
-        switch (request.getRecordType()) {
-            case DNSRequest.A: recordTypeDescription = "A"; dnsJavaType = Type.A; break;
-            case DNSRequest.AAAA: recordTypeDescription = "AAAA"; dnsJavaType = Type.AAAA; break;
-            case DNSRequest.MX: recordTypeDescription = "MX"; dnsJavaType = Type.MX; break;
-            case DNSRequest.PTR: recordTypeDescription = "PTR"; dnsJavaType = Type.PTR; break;
-            case DNSRequest.TXT: recordTypeDescription = "TXT"; dnsJavaType = Type.TXT; break;
-            case DNSRequest.SPF: recordTypeDescription= "SPF"; dnsJavaType = Type.SPF; break;
-            default: // TODO fail!
-                return null;
+        DNSRecords records = getDNSRecords(request);
+        return records != null ? records.asStrings() : null;
+    }
+
+    @Override
+    public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+        return getDNSRecordsAsync(request)
+            .thenApply(records -> records != null ? records.asStrings() : null);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    @Override
+    public DNSRecords getDNSRecords(DNSRequest request)
+            throws TimeoutException {
+        int dnsJavaType = getDnsJavaType(request);
+        if (dnsJavaType == 0) {
+            // TODO fail!
+            return null;
+        }
+        if (request.getName() == null) {
+            // i think this is the best we could do
+            LOGGER.debug("No {} Record found for host: {}", Type.string(dnsJavaType), request.getHostname());
+            return null;
         }
-        try {
 
-            LOGGER.debug("Start {}-Record lookup for : {}", recordTypeDescription, request.getHostname());
+        LOGGER.debug("Start {}-Record lookup for : {}", Type.string(dnsJavaType), request.getHostname());
 
-            Lookup query = new Lookup(request.getHostname(), dnsJavaType);
-            query.setResolver(resolver);
+        Lookup query = new Lookup(request.getName(), dnsJavaType);
+        query.setResolver(resolver);
 
-            Record[] rr = query.run();
-            int queryResult = query.getResult();
-            
+        Record[] rr = query.run();
+        int queryResult = query.getResult();
 
-            if (queryResult == Lookup.TRY_AGAIN) {
-                throw new TimeoutException(query.getErrorString());
-            }
-            
-            List<String> records = convertRecordsToList(rr);
-            
-            LOGGER.debug("Found {} {}-Records", (rr != null ? rr.length : 0), recordTypeDescription);
-            return records;
-        } catch (TextParseException e) {
-            // i think this is the best we could do
-            LOGGER.debug("No {} Record found for host: {}", recordTypeDescription, request.getHostname());
-            return null;
+        if (queryResult == Lookup.TRY_AGAIN) {
+            throw new TimeoutException(query.getErrorString());
         }
+
+        DNSRecords records = convertRecords(rr);
+
+        LOGGER.debug("Found {} {}-Records", (rr != null ? rr.length : 0), Type.string(dnsJavaType));
+        return records;
     }
 
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
     @Override
-    public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
-        String recordTypeDescription;
-        int dnsJavaType;
-        switch (request.getRecordType()) {
-            case DNSRequest.A: recordTypeDescription = "A"; dnsJavaType = Type.A; break;
-            case DNSRequest.AAAA: recordTypeDescription = "AAAA"; dnsJavaType = Type.AAAA; break;
-            case DNSRequest.MX: recordTypeDescription = "MX"; dnsJavaType = Type.MX; break;
-            case DNSRequest.PTR: recordTypeDescription = "PTR"; dnsJavaType = Type.PTR; break;
-            case DNSRequest.TXT: recordTypeDescription = "TXT"; dnsJavaType = Type.TXT; break;
-            case DNSRequest.SPF: recordTypeDescription= "SPF"; dnsJavaType = Type.SPF; break;
-            default: // TODO fail!
-                throw new IllegalArgumentException();
+    public CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+        int dnsJavaType = getDnsJavaType(request);
+        if (dnsJavaType == 0) {
+            // TODO fail!
+            throw new IllegalArgumentException();
         }
-        LOGGER.debug("Start {}-Record lookup for : {}", recordTypeDescription, request.getHostname());
+        if (request.getName() == null) {
+            LOGGER.debug("No {} Record found for host: {}", Type.string(dnsJavaType), request.getHostname());
+            throw new IllegalArgumentException();
+        }
+        LOGGER.debug("Start {}-Record lookup for : {}", Type.string(dnsJavaType), request.getHostname());
         final LookupSession lookupSession = LookupSession.defaultBuilder().resolver(this.resolver).build();
 
-        try {
-            return lookupSession.lookupAsync(Name.fromString(request.getHostname()), dnsJavaType)
-                .thenApply(result -> convertRecordsToList(result.getRecords().toArray(new Record[0])));
-        } catch (TextParseException e) {
-            LOGGER.debug("No {} Record found for host: {}", recordTypeDescription, request.getHostname());
-            throw new IllegalArgumentException();
+        return lookupSession.lookupAsync(request.getName(), dnsJavaType)
+            .thenApply(result -> convertRecords(result.getRecords().toArray(new Record[0])));
+    }
+
+    /**
+     * @return the dnsjava type for the given request, 0 if it is not supported
+     */
+    private static int getDnsJavaType(DNSRequest request) {
+        switch (request.getRecordType()) {
+            case DNSRequest.A: return Type.A;
+            case DNSRequest.AAAA: return Type.AAAA;
+            case DNSRequest.MX: return Type.MX;
+            case DNSRequest.PTR: return Type.PTR;
+            case DNSRequest.TXT: return Type.TXT;
+            case DNSRequest.SPF: return Type.SPF;
+            default: return 0;
         }
     }
 
@@ -204,64 +216,91 @@ public class DNSServiceXBillImpl implements DNSService {
      * @param rr Record array
      * @return list
      */
-    @SuppressWarnings("unchecked")
-	public static List<String> convertRecordsToList(Record[] rr) {
-        List<String> records;
-        if (rr != null && rr.length > 0) {
-            records = new ArrayList<String>();
-            for (int i = 0; i < rr.length; i++) {
-                switch (rr[i].getType()) {
-                    case Type.A:
-                        ARecord a = (ARecord) rr[i];
-                        records.add(a.getAddress().getHostAddress());
-                        break;
-                    case Type.AAAA:
-                        AAAARecord aaaa = (AAAARecord) rr[i];
-                        records.add(aaaa.getAddress().getHostAddress());
-                        break;
-                    case Type.MX:
-                        MXRecord mx = (MXRecord) rr[i];
-                        records.add(mx.getTarget().toString());
-                        break;
-                    case Type.PTR:
-                        PTRRecord ptr = (PTRRecord) rr[i];
-                        records.add(IPAddr.stripDot(ptr.getTarget().toString()));
-                        break;
-                    case Type.TXT:
-                        TXTRecord txt = (TXTRecord) rr[i];
-                        if (txt.getStrings().size() == 1) {
-                            records.add((String)txt.getStrings().get(0));
-                        } else {
-                            StringBuffer sb = new StringBuffer();
-                            for (Iterator<String> it = txt.getStrings().iterator(); it
-                                    .hasNext();) {
-                                String k = (String) it.next();
-                                sb.append(k);
-                            }
-                            records.add(sb.toString());
-                        }
-                        break;
-                    case Type.SPF:
-                        SPFRecord spf = (SPFRecord) rr[i];
-                        if (spf.getStrings().size() == 1) {
-                            records.add((String)spf.getStrings().get(0));
-                        } else {
-                            StringBuffer sb = new StringBuffer();
-                            for (Iterator<String> it = spf.getStrings().iterator(); it
-                                    .hasNext();) {
-                                String k = (String) it.next();
-                                sb.append(k);
-                            }
-                            records.add(sb.toString());
-                        }
-                        break;
-                    default:
+    public static List<String> convertRecordsToList(Record[] rr) {
+        DNSRecords records = convertRecords(rr);
+        return records != null ? records.asStrings() : null;
+    }
+
+    /**
+     * Convert the given Record array to its typed form, keeping the raw
+     * addresses, names and texts of the records
+     * 
+     * @param rr Record array
+     * @return the records or null if the array is empty or contains
+     *         records of different or unsupported types
+     */
+    public static DNSRecords convertRecords(Record[] rr) {
+        if (rr == null || rr.length == 0) {
+            return null;
+        }
+        DNSRecords records = convertRecords(rr[0].getType(), rr);
+        if (records == null) {
+            return null;
+        }
+        long ttl = rr[0].getTTL();
+        for (int i = 1; i < rr.length; i++) {
+            ttl = Math.min(ttl, rr[i].getTTL());
+        }
+        return records.withTTL(ttl);
+    }
+
+    private static DNSRecords convertRecords(int type, Record[] rr) {
+        switch (type) {
+            case Type.A:
+            case Type.AAAA:
+                List<byte[]> addresses = new ArrayList<byte[]>(rr.length);
+                for (int i = 0; i < rr.length; i++) {
+                    if (rr[i].getType() != Type.A && rr[i].getType() != Type.AAAA) {
                         return null;
+                    }
+                    addresses.add(rr[i].rdataToWireCanonical());
                 }
-            }
-        } else {
-            records = null;
+                return DNSRecords.ofAddresses(addresses);
+            case Type.MX:
+            case Type.PTR:
+                List<Name> names = new ArrayList<Name>(rr.length);
+                for (int i = 0; i < rr.length; i++) {
+                    if (rr[i].getType() == Type.MX && type == Type.MX) {
+                        names.add(((MXRecord) rr[i]).getTarget());
+                    } else if (rr[i].getType() == Type.PTR && type == Type.PTR) {
+                        names.add(((PTRRecord) rr[i]).getTarget());
+                    } else {
+                        return null;
+                    }
+                }
+                return DNSRecords.ofNames(type == Type.MX ? DNSRequest.MX : DNSRequest.PTR, names);
+            case Type.TXT:
+            case Type.SPF:
+                List<byte[]> texts = new ArrayList<byte[]>(rr.length);
+                for (int i = 0; i < rr.length; i++) {
+                    if (rr[i].getType() == Type.TXT) {
+                        texts.add(concat(((TXTRecord) rr[i]).getStringsAsByteArrays()));
+                    } else if (rr[i].getType() == Type.SPF) {
+                        texts.add(concat(((SPFRecord) rr[i]).getStringsAsByteArrays()));
+                    } else {
+                        return null;
+                    }
+                }
+                return DNSRecords.ofTexts(texts);
+            default:
+                return null;
         }
-        return records;
+    }
+
+    private static byte[] concat(List<byte[]> strings) {
+        if (strings.size() == 1) {
+            return strings.get(0);
+        }
+        int length = 0;
+        for (byte[] string : strings) {
+            length += string.length;
+        }
+        byte[] result = new byte[length];
+        int pos = 0;
+        for (byte[] string : strings) {
+            System.arraycopy(string, 0, result, pos, string.length);
+            pos += string.length;
+        }
+        return result;
     }
 }
@@ -0,0 +1,511 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Master;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SPFRecord;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+/**
+ * A DNSService answering from zone data held in memory, without any
+ * network access. The records are loaded from RFC 1035 zone files or from
+ * the zone data of the YAML test suites, and the answer to every name and
+ * record type, with the CNAMEs followed, is computed once when the service
+ * is created.
+ *
+ * An optional latency can be simulated, for reproducible benchmarks. With
+ * a fallback service the loaded zones override the real DNS: the names
+ * at or below the SOA records of the data, or below the names of the data
+ * if it has no SOA record, are answered locally and the others are
+ * delegated.
+ */
+public class DNSServiceZoneImpl implements DNSService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DNSServiceZoneImpl.class);
+
+    // the TTL of the records of the YAML zone data
+    private static final long DEFAULT_TTL = 3600;
+
+    // the CNAMEs followed before giving up
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    // the dnsjava types, indexed by the DNSRequest types
+    private static final int[] TYPES = new int[] { 0, Type.A, Type.AAAA,
+            Type.MX, Type.PTR, Type.TXT, Type.SPF };
+
+    private final Map<Name, Node> nodes;
+
+    // the ancestors of the names, which exist without records
+    private final Set<Name> emptyNodes;
+
+    private final Set<Name> apexes;
+
+    private volatile long latency = 0;
+
+    private volatile DNSService fallback;
+
+    private volatile List<String> localDomainNames = Collections.emptyList();
+
+    private int recordLimit = 10;
+
+    /**
+     * @param records the records to answer with
+     */
+    public DNSServiceZoneImpl(List<Record> records) {
+        this(records, Collections.<Name>emptySet());
+    }
+
+    private DNSServiceZoneImpl(List<Record> records, Set<Name> timeouts) {
+        Map<Name, Map<Integer, List<Record>>> owners = new LinkedHashMap<Name, Map<Integer, List<Record>>>();
+        Map<Name, CNAMERecord> cnames = new HashMap<Name, CNAMERecord>();
+        Set<Name> apexes = new HashSet<Name>();
+        for (Record record : records) {
+            if (record.getDClass() != DClass.IN) {
+                continue;
+            }
+            Map<Integer, List<Record>> types = owners.get(record.getName());
+            if (types == null) {
+                types = new HashMap<Integer, List<Record>>();
+                owners.put(record.getName(), types);
+            }
+            if (record.getType() == Type.CNAME) {
+                cnames.put(record.getName(), (CNAMERecord) record);
+            } else if (record.getType() == Type.SOA) {
+                apexes.add(record.getName());
+            }
+            List<Record> rrs = types.get(record.getType());
+            if (rrs == null) {
+                rrs = new ArrayList<Record>();
+                types.put(record.getType(), rrs);
+            }
+            rrs.add(record);
+        }
+        for (Name name : timeouts) {
+            if (!owners.containsKey(name)) {
+                owners.put(name, Collections.<Integer, List<Record>>emptyMap());
+            }
+        }
+
+        Set<Name> emptyNodes = new HashSet<Name>();
+        for (Name name : owners.keySet()) {
+            for (int i = 1; i < name.labels() - 1; i++) {
+                Name parent = new Name(name, i);
+                if (!owners.containsKey(parent)) {
+                    emptyNodes.add(parent);
+                }
+            }
+        }
+        this.emptyNodes = Collections.unmodifiableSet(emptyNodes);
+
+        Map<Name, Node> nodes = new HashMap<Name, Node>();
+        for (Name name : owners.keySet()) {
+            nodes.put(name, null);
+        }
+        for (Name name : owners.keySet()) {
+            Node node = new Node();
+            for (int type = 1; type < TYPES.length; type++) {
+                resolve(node, type, name, owners, cnames, timeouts, nodes.keySet(), Long.MAX_VALUE, 0);
+            }
+            nodes.put(name, node);
+        }
+        this.nodes = Collections.unmodifiableMap(nodes);
+        this.apexes = Collections.unmodifiableSet(apexes.isEmpty() ? new HashSet<Name>(owners.keySet()) : apexes);
+    }
+
+    /**
+     * Set the answer of the given node to the given type, following the
+     * CNAMEs of the given owner.
+     */
+    private void resolve(Node node, int type, Name owner,
+            Map<Name, Map<Integer, List<Record>>> owners,
+            Map<Name, CNAMERecord> cnames, Set<Name> timeouts,
+            Set<Name> names, long ttl, int depth) {
+        List<Record> rrs = owners.get(owner).get(TYPES[type]);
+        if (rrs != null) {
+            DNSRecords records = DNSServiceXBillImpl.convertRecords(rrs.toArray(new Record[rrs.size()]));
+            if (records != null && depth > 0) {
+                records = records.withTTL(Math.min(ttl, records.getTTL()));
+            }
+            node.answers[type] = records;
+            return;
+        }
+        CNAMERecord cname = cnames.get(owner);
+        if (cname != null) {
+            if (depth < MAX_CNAME_CHAIN) {
+                Name target = find(cname.getTarget(), names, emptyNodes);
+                if (target != null) {
+                    resolve(node, type, target, owners, cnames, timeouts, names,
+                            Math.min(ttl, cname.getTTL()), depth + 1);
+                }
+            }
+        } else if (timeouts.contains(owner)) {
+            node.timeouts |= 1 << type;
+        }
+    }
+
+    /**
+     * @return the owner of the records of the given name, which may be a
+     *         wildcard, or null if the name has no records
+     */
+    private static Name find(Name name, Set<Name> names, Set<Name> emptyNodes) {
+        if (names.contains(name)) {
+            return name;
+        }
+        if (emptyNodes.contains(name)) {
+            return null;
+        }
+        // the wildcard of the closest existing ancestor
+        for (int i = 1; i < name.labels() - 1; i++) {
+            Name wild = name.wild(i);
+            if (names.contains(wild)) {
+                return wild;
+            }
+            Name parent = new Name(name, i);
+            if (names.contains(parent) || emptyNodes.contains(parent)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Load the records of an RFC 1035 zone file.
+     *
+     * @param origin the origin of the relative names of the file
+     * @param zoneFile the path of the file
+     * @return the service answering with the records of the file
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static DNSServiceZoneImpl fromZoneFile(String origin, String zoneFile) throws IOException {
+        if (!origin.endsWith(".")) {
+            origin += ".";
+        }
+        List<Record> records = new ArrayList<Record>();
+        Master master = new Master(zoneFile, Name.fromString(origin));
+        try {
+            Record record;
+            while ((record = master.nextRecord()) != null) {
+                records.add(record);
+            }
+        } finally {
+            master.close();
+        }
+        return new DNSServiceZoneImpl(records);
+    }
+
+    /**
+     * Load the zone data of a YAML test suite, mapping every name to the
+     * list of its records. A record is a map of the type to the value, or
+     * the TIMEOUT string for a name whose queries time out.
+     *
+     * @param zoneData the zone data, as parsed from YAML
+     * @return the service answering with the records of the data
+     * @throws IOException if a name or an address is invalid
+     * @throws IllegalStateException if a record type is not supported
+     */
+    @SuppressWarnings("unchecked")
+    public static DNSServiceZoneImpl fromZoneData(Map<String, List<?>> zoneData) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        Set<Name> timeouts = new HashSet<Name>();
+        Iterator<Map.Entry<String, List<?>>> hosts = zoneData.entrySet().iterator();
+        while (hosts.hasNext()) {
+            Map.Entry<String, List<?>> host = hosts.next();
+            Name hostname = toName(host.getKey());
+            if (host.getValue() == null) {
+                continue;
+            }
+            for (Object o : host.getValue()) {
+                if ("TIMEOUT".equals(o)) {
+                    timeouts.add(hostname);
+                } else if (o instanceof Map) {
+                    for (Map.Entry<String, ?> entry : ((Map<String, ?>) o).entrySet()) {
+                        String type = entry.getKey();
+                        Object value = entry.getValue();
+                        if ("MX".equals(type)) {
+                            Iterator<?> mxs = ((List<?>) value).iterator();
+                            while (mxs.hasNext()) {
+                                int priority = ((Number) mxs.next()).intValue();
+                                String target = (String) mxs.next();
+                                if (target != null) {
+                                    records.add(new MXRecord(hostname, DClass.IN, DEFAULT_TTL, priority, toName(target)));
+                                }
+                            }
+                        } else if ("A".equals(type)) {
+                            records.add(new ARecord(hostname, DClass.IN, DEFAULT_TTL, Address.getByAddress((String) value)));
+                        } else if ("AAAA".equals(type)) {
+                            records.add(new AAAARecord(hostname, DClass.IN, DEFAULT_TTL, Address.getByAddress((String) value)));
+                        } else if ("TXT".equals(type)) {
+                            records.add(value instanceof List
+                                ? new TXTRecord(hostname, DClass.IN, DEFAULT_TTL, (List<String>) value)
+                                : new TXTRecord(hostname, DClass.IN, DEFAULT_TTL, (String) value));
+                        } else if ("SPF".equals(type)) {
+                            records.add(value instanceof List
+                                ? new SPFRecord(hostname, DClass.IN, DEFAULT_TTL, (List<String>) value)
+                                : new SPFRecord(hostname, DClass.IN, DEFAULT_TTL, (String) value));
+                        } else if ("PTR".equals(type)) {
+                            records.add(new PTRRecord(hostname, DClass.IN, DEFAULT_TTL, toName((String) value)));
+                        } else if ("CNAME".equals(type)) {
+                            records.add(new CNAMERecord(hostname, DClass.IN, DEFAULT_TTL, toName((String) value)));
+                        } else {
+                            throw new IllegalStateException("Unsupported type: " + type);
+                        }
+                    }
+                } else {
+                    throw new IllegalStateException("Unexpected zone data: " + o);
+                }
+            }
+        }
+        return new DNSServiceZoneImpl(records, timeouts);
+    }
+
+    private static Name toName(String name) throws IOException {
+        if (name.length() == 0) {
+            return Name.root;
+        }
+        return Name.fromString(name.endsWith(".") ? name : name + ".");
+    }
+
+    /**
+     * Set a delay added to every answer, to simulate the network.
+     *
+     * @param latency the delay in milliseconds, 0 to answer at once
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @return the delay added to every answer in milliseconds
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Set the service asked for the names outside of the loaded zones.
+     *
+     * @param fallback the service, null to answer every name locally
+     */
+    public void setFallback(DNSService fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Set the names returned by {@link #getLocalDomainNames()}.
+     *
+     * @param localDomainNames the names
+     */
+    public void setLocalDomainNames(List<String> localDomainNames) {
+        this.localDomainNames = Collections.unmodifiableList(new ArrayList<String>(localDomainNames));
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getLocalDomainNames()
+     */
+    public List<String> getLocalDomainNames() {
+        DNSService fallback = this.fallback;
+        if (fallback != null && localDomainNames.isEmpty()) {
+            return fallback.getLocalDomainNames();
+        }
+        return localDomainNames;
+    }
+
+    /**
+     * Nothing is waited for locally, the timeout is given to the fallback.
+     *
+     * @see org.apache.james.jspf.core.DNSService#setTimeOut(int)
+     */
+    public void setTimeOut(int timeOut) {
+        DNSService fallback = this.fallback;
+        if (fallback != null) {
+            fallback.setTimeOut(timeOut);
+        }
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordLimit()
+     */
+    public int getRecordLimit() {
+        return recordLimit;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setRecordLimit(int)
+     */
+    public void setRecordLimit(int recordLimit) {
+        this.recordLimit = recordLimit;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public List<String> getRecords(DNSRequest request) throws TimeoutException {
+        DNSRecords records = getDNSRecords(request);
+        return records != null ? records.asStrings() : null;
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+        return getDNSRecordsAsync(request)
+            .thenApply(records -> records != null ? records.asStrings() : null);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+        DNSService fallback = this.fallback;
+        if (fallback != null && !isLocal(request.getName())) {
+            return fallback.getDNSRecords(request);
+        }
+        long latency = this.latency;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TimeoutException("Interrupted while querying " + request.getHostname());
+            }
+        }
+        return lookup(request);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<DNSRecords> getDNSRecordsAsync(final DNSRequest request) {
+        DNSService fallback = this.fallback;
+        if (fallback != null && !isLocal(request.getName())) {
+            return fallback.getDNSRecordsAsync(request);
+        }
+        final CompletableFuture<DNSRecords> result = new CompletableFuture<DNSRecords>();
+        long latency = this.latency;
+        if (latency > 0) {
+            CompletableFuture.delayedExecutor(latency, TimeUnit.MILLISECONDS).execute(() -> complete(result, request));
+        } else {
+            complete(result, request);
+        }
+        return result;
+    }
+
+    private void complete(CompletableFuture<DNSRecords> result, DNSRequest request) {
+        try {
+            result.complete(lookup(request));
+        } catch (TimeoutException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return the records of the request, null if there is none
+     * @throws TimeoutException if the name was loaded as timing out
+     */
+    private DNSRecords lookup(DNSRequest request) throws TimeoutException {
+        Name name = toAbsolute(request.getName());
+        int type = request.getRecordType();
+        if (name == null || type <= 0 || type >= TYPES.length) {
+            return null;
+        }
+        Name owner = find(name, nodes.keySet(), emptyNodes);
+        Node node = owner != null ? nodes.get(owner) : null;
+        if (node == null) {
+            LOGGER.debug("No {} Record found for host: {}", Type.string(TYPES[type]), request.getHostname());
+            return null;
+        }
+        if ((node.timeouts & (1 << type)) != 0) {
+            throw new TimeoutException("Timeout querying " + request.getHostname());
+        }
+        return node.answers[type];
+    }
+
+    /**
+     * @return true if the given name is at or below one of the apexes
+     */
+    private boolean isLocal(Name name) {
+        name = toAbsolute(name);
+        if (name == null) {
+            return true;
+        }
+        for (int i = 0; i < name.labels(); i++) {
+            if (apexes.contains(i == 0 ? name : new Name(name, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the given name relative to the root, null if it is too long
+     */
+    private static Name toAbsolute(Name name) {
+        if (name == null || name.isAbsolute()) {
+            return name;
+        }
+        try {
+            return Name.concatenate(name, Name.root);
+        } catch (NameTooLongException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The answers to the queries of a name.
+     */
+    private static final class Node {
+
+        // indexed by the DNSRequest types
+        private final DNSRecords[] answers = new DNSRecords[TYPES.length];
+
+        // the DNSRequest types whose queries time out
+        private int timeouts;
+    }
+}
@@ -0,0 +1,384 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DNS over TCP to a single server (RFC 7766).
+ *
+ * Queries are pipelined over a small pool of persistent connections,
+ * picking the least loaded one and opening a new connection only when all
+ * of them are busy. Each connection numbers its queries itself, so that the
+ * ids never clash, and hands back the answers with the id of the query.
+ * Queries left unanswered by a connection closed by the server are sent
+ * again once on a new connection.
+ */
+final class DNSTCPTransport implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DNSTCPTransport.class);
+
+    // Number of queries a connection takes before another one is opened
+    private static final int MAX_PIPELINED = 32;
+
+    private final InetSocketAddress server;
+
+    private final int maxConnections;
+
+    private final long idleTimeout;
+
+    private final Selector selector;
+
+    private final Thread selectorThread;
+
+    private final ConcurrentLinkedQueue<TCPQuery> submitted = new ConcurrentLinkedQueue<TCPQuery>();
+
+    // only used by the selector thread
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    private volatile int connectionCount = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param server the server to query
+     * @param maxConnections the maximum number of connections kept open
+     * @param idleTimeout the time in milliseconds after which idle connections are closed
+     */
+    DNSTCPTransport(InetSocketAddress server, int maxConnections, long idleTimeout) throws IOException {
+        this.server = server;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(this::run, "jspf-dns-tcp-" + server);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Send the given query.
+     *
+     * @param query the query message, without the length prefix
+     * @param timeout the time in milliseconds to wait for the answer
+     * @return a future completed with the answer message or with an
+     *         IOException (a SocketTimeoutException on timeout)
+     */
+    CompletableFuture<byte[]> query(ByteBuffer query, long timeout) {
+        TCPQuery tcpQuery = new TCPQuery(query, System.currentTimeMillis() + timeout);
+        if (closed) {
+            tcpQuery.future.completeExceptionally(new IOException("DNS transport closed"));
+        } else {
+            submitted.add(tcpQuery);
+            selector.wakeup();
+        }
+        return tcpQuery.future;
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Close all the connections and fail the pending queries.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select(getSelectTimeout());
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            connection.channel.finishConnect();
+                            connection.updateInterest();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.debug("DNS connection to {} failed", server, e);
+                        closeConnection(connection, e);
+                    }
+                }
+                dispatch();
+                expire();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("DNS selector loop for {} failed", server, e);
+        } finally {
+            closed = true;
+            IOException e = new IOException("DNS transport closed");
+            while (!connections.isEmpty()) {
+                closeConnection(connections.get(0), e);
+            }
+            TCPQuery query;
+            while ((query = submitted.poll()) != null) {
+                query.future.completeExceptionally(e);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Error closing the DNS selector", ex);
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        long next = Long.MAX_VALUE;
+        for (Connection connection : connections) {
+            for (TCPQuery query : connection.pending.values()) {
+                next = Math.min(next, query.deadline);
+            }
+            if (connection.pending.isEmpty()) {
+                next = Math.min(next, connection.lastActive + idleTimeout);
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, next - System.currentTimeMillis());
+    }
+
+    /**
+     * Assign the submitted queries to the least loaded connection.
+     */
+    private void dispatch() {
+        TCPQuery query;
+        while ((query = submitted.poll()) != null) {
+            Connection best = null;
+            for (Connection connection : connections) {
+                if (best == null || connection.pending.size() < best.pending.size()) {
+                    best = connection;
+                }
+            }
+            if (best == null || (best.pending.size() >= MAX_PIPELINED && connections.size() < maxConnections)) {
+                try {
+                    best = openConnection();
+                } catch (IOException e) {
+                    query.future.completeExceptionally(e);
+                    continue;
+                }
+            }
+            best.send(query);
+        }
+    }
+
+    private Connection openConnection() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            channel.connect(server);
+            connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            connections.add(connection);
+            connectionCount = connections.size();
+            LOGGER.debug("Opened DNS connection {} to {}", connections.size(), server);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void closeConnection(Connection connection, IOException cause) {
+        connections.remove(connection);
+        connectionCount = connections.size();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error closing the DNS connection", e);
+        }
+        for (TCPQuery query : connection.pending.values()) {
+            if (!closed && !query.resent) {
+                // the server may close idle or busy connections at any time
+                query.resent = true;
+                submitted.add(query);
+            } else {
+                query.future.completeExceptionally(cause);
+            }
+        }
+        connection.pending.clear();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            for (Iterator<TCPQuery> i = connection.pending.values().iterator(); i.hasNext();) {
+                TCPQuery query = i.next();
+                if (query.deadline <= now) {
+                    i.remove();
+                    query.future.completeExceptionally(new SocketTimeoutException("Timed out waiting for " + server));
+                }
+            }
+            if (connection.pending.isEmpty() && connection.lastActive + idleTimeout <= now) {
+                LOGGER.debug("Closing idle DNS connection to {}", server);
+                closeConnection(connection, new IOException("Idle connection closed"));
+            }
+        }
+    }
+
+    /**
+     * A query sent or to be sent over TCP.
+     */
+    private static final class TCPQuery {
+
+        private final ByteBuffer query;
+
+        private final int id;
+
+        private final long deadline;
+
+        private final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+        private boolean resent = false;
+
+        private TCPQuery(ByteBuffer query, long deadline) {
+            this.query = query;
+            this.id = query.getShort(query.position()) & 0xFFFF;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * A connection and the queries pipelined over it. Only used by the
+     * selector thread.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        private final Map<Integer, TCPQuery> pending = new HashMap<Integer, TCPQuery>();
+
+        private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+
+        private ByteBuffer message;
+
+        private int nextId = 0;
+
+        private long lastActive = System.currentTimeMillis();
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void send(TCPQuery query) {
+            int id;
+            do {
+                id = nextId;
+                nextId = (nextId + 1) & 0xFFFF;
+            } while (pending.containsKey(Integer.valueOf(id)));
+            pending.put(Integer.valueOf(id), query);
+
+            ByteBuffer out = ByteBuffer.allocate(query.query.remaining() + 2);
+            out.putShort((short) query.query.remaining());
+            out.put(query.query.duplicate());
+            out.putShort(2, (short) id);
+            out.flip();
+            writes.add(out);
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (!channel.isConnected()) {
+                return;
+            }
+            key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void write() throws IOException {
+            ByteBuffer out;
+            while ((out = writes.peek()) != null) {
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    return;
+                }
+                writes.poll();
+            }
+            lastActive = System.currentTimeMillis();
+            updateInterest();
+        }
+
+        private void read() throws IOException {
+            while (true) {
+                ByteBuffer target = message != null ? message : length;
+                int read = channel.read(target);
+                if (read < 0) {
+                    throw new IOException("Connection closed by " + server);
+                }
+                if (target.hasRemaining()) {
+                    return;
+                }
+                if (message == null) {
+                    message = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+                    continue;
+                }
+                byte[] answer = message.array();
+                length.clear();
+                message = null;
+                lastActive = System.currentTimeMillis();
+                if (answer.length < 2) {
+                    continue;
+                }
+                TCPQuery query = pending.remove(Integer.valueOf((answer[0] & 0xFF) << 8 | (answer[1] & 0xFF)));
+                if (query != null) {
+                    answer[0] = (byte) (query.id >>> 8);
+                    answer[1] = (byte) query.id;
+                    query.future.complete(answer);
+                }
+            }
+        }
+    }
+}
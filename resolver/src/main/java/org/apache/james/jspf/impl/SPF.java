@@ -21,8 +21,14 @@
 package org.apache.james.jspf.impl;
 
 import java.net.SocketException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
 import org.apache.james.jspf.core.DNSService;
@@ -43,9 +49,13 @@ import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
 import org.apache.james.jspf.core.exceptions.SPFResultException;
 import org.apache.james.jspf.core.exceptions.TempErrorException;
 import org.apache.james.jspf.executor.FutureSPFResult;
+import org.apache.james.jspf.executor.SPFCheckRequest;
 import org.apache.james.jspf.executor.SPFExecutor;
+import org.apache.james.jspf.executor.SPFIdentityResults;
 import org.apache.james.jspf.executor.SPFResult;
+import org.apache.james.jspf.executor.SharedLookups;
 import org.apache.james.jspf.executor.SynchronousSPFExecutor;
+import org.apache.james.jspf.parser.CachingSPFRecordParser;
 import org.apache.james.jspf.parser.RFC4408SPF1Parser;
 import org.apache.james.jspf.policies.InitialChecksPolicy;
 import org.apache.james.jspf.policies.NeutralIfNotMatchPolicy;
@@ -60,6 +70,8 @@ import org.apache.james.jspf.policies.local.DefaultExplanationPolicy;
 import org.apache.james.jspf.policies.local.FallbackPolicy;
 import org.apache.james.jspf.policies.local.OverridePolicy;
 import org.apache.james.jspf.policies.local.TrustedForwarderPolicy;
+import org.apache.james.jspf.terms.Directive;
+import org.apache.james.jspf.terms.Modifier;
 import org.apache.james.jspf.wiring.WiringServiceTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,33 +92,35 @@ public class SPF implements SPFChecker {
                 throws PermErrorException, TempErrorException,
                 NeutralException, NoneException {
             
-            SPF1Record spfRecord = (SPF1Record) spfData.getAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD);
+            SPF1Record spfRecord = spfData.get(SPF1Utils.SPF1_RECORD);
             // make sure we cleanup the record, for recursion support
-            spfData.removeAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD);
+            spfData.remove(SPF1Utils.SPF1_RECORD);
             
-            LinkedList<SPFChecker> policyCheckers = new LinkedList<SPFChecker>();
-            
-            Iterator<SPFChecker> i = spfRecord.iterator();
-            while (i.hasNext()) {
-                SPFChecker checker = i.next();
-                policyCheckers.add(checker);
+            // push in reverse order so that the directives get executed
+            // first, followed by the modifiers
+            List<Modifier> modifiers = spfRecord.getModifiers();
+            for (int i = modifiers.size() - 1; i >= 0; i--) {
+                spfData.pushChecker(modifiers.get(i));
             }
-
-            while (policyCheckers.size() > 0) {
-                SPFChecker removeLast = policyCheckers.removeLast();
-                spfData.pushChecker(removeLast);
+            List<Directive> directives = spfRecord.getDirectives();
+            for (int i = directives.size() - 1; i >= 0; i--) {
+                spfData.pushChecker(directives.get(i));
             }
 
             return null;
         }
     }
 
+    /**
+     * Pushes the compiled, immutable policy chain. A single instance is built
+     * for each configuration and shared among all the checks.
+     */
     private static final class PolicyChecker implements SPFChecker {
         
-        private LinkedList<SPFChecker> policies;
+        private final List<SPFChecker> policies;
         
-        public PolicyChecker(LinkedList<SPFChecker> policies) {
-            this.policies = policies;
+        public PolicyChecker(List<SPFChecker> policies) {
+            this.policies = Collections.unmodifiableList(new ArrayList<SPFChecker>(policies));
         }
         
         /**
@@ -116,9 +130,9 @@ public class SPF implements SPFChecker {
                 throws PermErrorException, TempErrorException,
                 NeutralException, NoneException {
             
-            while (policies.size() > 0) {
-                SPFChecker removeLast = policies.removeLast();
-                spfData.pushChecker(removeLast);
+            ListIterator<SPFChecker> i = policies.listIterator(policies.size());
+            while (i.hasPrevious()) {
+                spfData.pushChecker(i.previous());
             }
             
             return null;
@@ -141,10 +155,10 @@ public class SPF implements SPFChecker {
         public DNSLookupContinuation checkSPF(SPFSession spfData)
                 throws PermErrorException, TempErrorException,
                 NeutralException, NoneException {
-            SPF1Record res = (SPF1Record) spfData.getAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD);
+            SPF1Record res = spfData.get(SPF1Utils.SPF1_RECORD);
             if (res == null) {
                 res = policy.getSPFRecord(spfData.getCurrentDomain());
-                spfData.setAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD, res);
+                spfData.set(SPF1Utils.SPF1_RECORD, res);
             }
             return null;
         }
@@ -170,9 +184,9 @@ public class SPF implements SPFChecker {
         public DNSLookupContinuation checkSPF(SPFSession spfData)
                 throws PermErrorException, TempErrorException,
                 NeutralException, NoneException {
-            SPF1Record res = (SPF1Record) spfData.getAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD);
+            SPF1Record res = spfData.get(SPF1Utils.SPF1_RECORD);
             res = policy.getSPFRecord(spfData.getCurrentDomain(), res);
-            spfData.setAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD, res);
+            spfData.set(SPF1Utils.SPF1_RECORD, res);
             return null;
         }
         
@@ -202,6 +216,20 @@ public class SPF implements SPFChecker {
 
     private SPFExecutor executor;
 
+    private volatile SPFSessionPool sessionPool = null;
+
+    private volatile SPFChecker policyChecker;
+
+    private volatile long checkTimeout = 0;
+
+    private volatile int queryBudget = 0;
+
+    private volatile int voidLookupLimit = -1;
+
+    private volatile boolean cancelOnDeadline = true;
+
+    private volatile boolean lazyExplanation = false;
+
     /**
      * Creates an instance with the provided dnsService and executor.
      *
@@ -219,7 +247,12 @@ public class SPF implements SPFChecker {
         wiringService.put(DNSServiceEnabled.class, this.dnsProbe);
         this.macroExpand = new MacroExpand(this.dnsProbe);
         wiringService.put(MacroExpandEnabled.class, this.macroExpand);
-        this.parser = new RFC4408SPF1Parser(new DefaultTermsFactory(wiringService));
+        CachingSPFRecordParser cachingParser = new CachingSPFRecordParser(new RFC4408SPF1Parser(new DefaultTermsFactory(wiringService)));
+        if (dnsService instanceof DNSServiceCachingImpl) {
+            // let the DNS cache update the parsed records it refreshes
+            ((DNSServiceCachingImpl) dnsService).setRecordParser(cachingParser);
+        }
+        this.parser = cachingParser;
         // We add this after the parser creation because services cannot be null
         wiringService.put(SPFCheckEnabled.class, this);
     }
@@ -255,6 +288,10 @@ public class SPF implements SPFChecker {
     }
 
     
+    private static final SPFChecker RECORD_CHECKER = new SPFRecordChecker();
+
+    private static final DefaultSPFChecker RESULT_HANDLER = new DefaultSPFChecker();
+
     private static final class DefaultSPFChecker implements SPFChecker, SPFCheckerExceptionCatcher {
 
         /**
@@ -282,7 +319,10 @@ public class SPF implements SPFChecker {
             String result;
             if (exception instanceof SPFResultException) {
                 result = ((SPFResultException) exception).getResult();
-                if (!SPFErrorConstants.NEUTRAL_CONV.equals(result)) {
+                if (SPFErrorConstants.NONE_CONV.equals(result)) {
+                    // the usual outcome for domains without SPF
+                    LOGGER.debug("{} for domain {}", exception.getMessage(), session.getCurrentDomain());
+                } else if (!SPFErrorConstants.NEUTRAL_CONV.equals(result)) {
                     LOGGER.warn(exception.getMessage(),exception);
                 }
             } else if(exception instanceof NoSuchDomainException) {
@@ -315,19 +355,93 @@ public class SPF implements SPFChecker {
      * @return result The SPFResult
      */
     public SPFResult checkSPF(String ipAddress, String mailFrom, String hostName) {
+        return check(ipAddress, mailFrom, hostName, null);
+    }
+
+    /**
+     * Run the checks of the given requests together. All the checks share
+     * their DNS lookups, so the record of each domain is retrieved once,
+     * and parsed once by the default parser, whatever the order of the
+     * requests. The results are the same as the ones of
+     * {@link #checkSPF(String, String, String)}.
+     *
+     * @param requests the values to check
+     * @return the results, in the order of the requests
+     */
+    public List<CompletionStage<SPFResult>> checkSPFBatch(Collection<SPFCheckRequest> requests) {
+        SharedLookups lookups = new SharedLookups();
+        List<CompletionStage<SPFResult>> results = new ArrayList<CompletionStage<SPFResult>>(requests.size());
+        for (SPFCheckRequest request : requests) {
+            CompletableFuture<SPFResult> result = new CompletableFuture<SPFResult>();
+            check(request.getIpAddress(), request.getMailFrom(), request.getHostName(), lookups)
+                .addListener(result::complete);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Check both identities of RFC 7208: the HELO name, as
+     * postmaster@helo, and the MAIL FROM. The two checks share their DNS
+     * lookups and parsed records; they run concurrently with an
+     * asynchronous executor and one after the other with a
+     * {@link SynchronousSPFExecutor}. With the null sender both identities
+     * are the same and are checked once, so both results are the same
+     * object.
+     *
+     * @param ipAddress
+     *            The ipAddress the connection is comming from
+     * @param mailFrom
+     *            The mailFrom which was provided, empty or null for the null sender
+     * @param hostName
+     *            The hostname which was provided as HELO/EHLO
+     * @return the results of both checks
+     */
+    public CompletionStage<SPFIdentityResults> checkHeloAndMailFrom(String ipAddress, String mailFrom, String hostName) {
+        SharedLookups lookups = new SharedLookups();
+        CompletableFuture<SPFResult> helo = new CompletableFuture<SPFResult>();
+        check(ipAddress, "", hostName, lookups).addListener(helo::complete);
+        CompletableFuture<SPFResult> from = helo;
+        if (mailFrom != null && mailFrom.trim().length() > 0) {
+            from = new CompletableFuture<SPFResult>();
+            check(ipAddress, mailFrom, hostName, lookups).addListener(from::complete);
+        }
+        return helo.thenCombine(from, SPFIdentityResults::new);
+    }
+
+    private FutureSPFResult check(String ipAddress, String mailFrom, String hostName, SharedLookups lookups) {
         SPFSession spfData = null;
+        FutureSPFResult ret = null;
 
         // Setup the data
-        spfData = new SPFSession(mailFrom, hostName, ipAddress);
-      
+        SPFSessionPool pool = sessionPool;
+        if (pool != null) {
+            SPFSessionPool.PooledSPFResult pooled = pool.acquire(mailFrom, hostName, ipAddress);
+            spfData = pooled.getSession();
+            ret = pooled;
+        } else {
+            spfData = new SPFSession(mailFrom, hostName, ipAddress);
+            ret = new FutureSPFResult();
+        }
 
-        SPFChecker resultHandler = new DefaultSPFChecker();
-        
-        spfData.pushChecker(resultHandler);
+        long timeout = checkTimeout;
+        if (timeout > 0) {
+            spfData.setDeadline(System.currentTimeMillis() + timeout);
+            spfData.setCancelOnDeadline(cancelOnDeadline);
+        }
+        spfData.setQueryBudget(queryBudget);
+        spfData.setVoidLookupLimit(voidLookupLimit);
+        if (lazyExplanation) {
+            spfData.setLazyExplanation(true);
+            ret.setExplanationExecutor(executor);
+        }
+        if (lookups != null) {
+            lookups.attach(spfData);
+        }
+
+        spfData.pushChecker(RESULT_HANDLER);
         spfData.pushChecker(this);
         
-        FutureSPFResult ret = new FutureSPFResult();
-        
         executor.execute(spfData, ret);
 
         // if we call ret.getResult it waits the result ;-)
@@ -347,11 +461,8 @@ public class SPF implements SPFChecker {
 
         // if we already have a result we don't need to add further processing.
         if (spfData.getCurrentResultExpanded() == null && spfData.getCurrentResult() == null) {
-            SPFChecker policyChecker = new PolicyChecker(getPolicies());
-            SPFChecker recordChecker = new SPFRecordChecker();
-            
-            spfData.pushChecker(recordChecker);
-            spfData.pushChecker(policyChecker);
+            spfData.pushChecker(RECORD_CHECKER);
+            spfData.pushChecker(getPolicyChecker());
         }
         
         return null;
@@ -360,7 +471,7 @@ public class SPF implements SPFChecker {
     /**
      * Return a default policy for SPF
      */
-    public LinkedList<SPFChecker> getPolicies() {
+    public synchronized LinkedList<SPFChecker> getPolicies() {
 
         LinkedList<SPFChecker> policies = new LinkedList<SPFChecker>();
         
@@ -386,7 +497,7 @@ public class SPF implements SPFChecker {
             policies.add(new SPFPolicyPostFilterChecker(fallBack));
         }
 
-        policies.add(new SPFPolicyPostFilterChecker(new NoSPFRecordFoundPolicy()));
+        policies.add(new NoSPFRecordFoundPolicy());
         
         // trustedForwarder support is enabled
         if (useTrustedForwarder) {
@@ -399,6 +510,32 @@ public class SPF implements SPFChecker {
         
         return policies;
     }
+
+    /**
+     * Return the policy chain for the current configuration, building it
+     * from {@link #getPolicies()} on first use after a setting changed.
+     */
+    private SPFChecker getPolicyChecker() {
+        SPFChecker checker = policyChecker;
+        if (checker == null) {
+            synchronized (this) {
+                checker = policyChecker;
+                if (checker == null) {
+                    checker = new PolicyChecker(getPolicies());
+                    policyChecker = checker;
+                }
+            }
+        }
+        return checker;
+    }
+
+    /**
+     * Drop the built policy chain so the next check rebuilds it. Must be
+     * called whenever a setting used by {@link #getPolicies()} changes.
+     */
+    private synchronized void resetPolicies() {
+        this.policyChecker = null;
+    }
     
     /**
      * Set the amount of time (in seconds) before an TermError is returned when
@@ -411,6 +548,69 @@ public class SPF implements SPFChecker {
         dnsProbe.setTimeOut(timeOut);
     }
     
+    /**
+     * Set the amount of time (in milliseconds) a whole check may take. Once
+     * it is elapsed no further DNS lookup is sent, the outstanding one is
+     * cancelled and the result is a TempError. Default is 0 (no limit).
+     * 
+     * @param checkTimeout The timeout in milliseconds, 0 to disable it
+     */
+    public synchronized void setCheckTimeout(long checkTimeout) {
+        if (checkTimeout < 0) {
+            throw new IllegalArgumentException("Check timeout must not be negative: " + checkTimeout);
+        }
+        this.checkTimeout = checkTimeout;
+    }
+
+    /**
+     * Set to false to let the DNS lookup outstanding when the check timeout
+     * elapses complete in the background, so that its answer still warms
+     * the DNS cache. The result is a TempError either way. Default is true.
+     * 
+     * @param cancelLookups true to cancel the outstanding lookup
+     */
+    public synchronized void setCancelLookupsOnTimeout(boolean cancelLookups) {
+        this.cancelOnDeadline = cancelLookups;
+    }
+
+    /**
+     * Set the maximum number of DNS queries a check may send. Once it is
+     * reached the result is a TempError. Default is 0 (no limit).
+     * 
+     * @param queryBudget The maximum number of queries, 0 to disable it
+     */
+    public synchronized void setQueryBudget(int queryBudget) {
+        if (queryBudget < 0) {
+            throw new IllegalArgumentException("Query budget must not be negative: " + queryBudget);
+        }
+        this.queryBudget = queryBudget;
+    }
+
+    /**
+     * Set the maximum number of lookups of a check which may return no
+     * records before a PermError is returned. RFC 7208 Section 4.6.4
+     * recommends {@link SPFSession#MAX_VOID_LOOKUPS}, RFC 4408 has no such
+     * limit. Default is -1 (no limit).
+     * 
+     * @param voidLookupLimit The limit, a negative value to disable it
+     */
+    public synchronized void setVoidLookupLimit(int voidLookupLimit) {
+        this.voidLookupLimit = voidLookupLimit;
+    }
+
+    /**
+     * Set to true to look up the explanation of a fail, and expand the
+     * default one, only when {@link SPFResult#getExplanation()} or
+     * {@link SPFResult#getExplanationAsync()} is first called on the
+     * result. The result is then ready without waiting for the explanation
+     * lookups, which are never done if nobody reads it. Defaults false
+     * 
+     * @param lazyExplanation true or false
+     */
+    public synchronized void setLazyExplanation(boolean lazyExplanation) {
+        this.lazyExplanation = lazyExplanation;
+    }
+    
     /**
      * Set the default explanation which will be used if no explanation is found in the SPF Record
      *  
@@ -418,6 +618,7 @@ public class SPF implements SPFChecker {
      */
     public synchronized void setDefaultExplanation(String defaultExplanation) {
         this.defaultExplanation = defaultExplanation;      
+        resetPolicies();
     }
     
     /**
@@ -429,6 +630,7 @@ public class SPF implements SPFChecker {
      */
     public synchronized void setUseBestGuess(boolean useBestGuess) {
         this.useBestGuess  = useBestGuess;
+        resetPolicies();
     }
     
     
@@ -442,6 +644,7 @@ public class SPF implements SPFChecker {
         // Initialize fallback policy
         if (fallBack == null) {
             this.fallBack =  new FallbackPolicy(parser);
+            resetPolicies();
         }
         return fallBack;
     }
@@ -456,6 +659,7 @@ public class SPF implements SPFChecker {
      */
     public synchronized void setUseTrustedForwarder(boolean useTrustedForwarder) {
         this.useTrustedForwarder = useTrustedForwarder;
+        resetPolicies();
     }
     
     /**
@@ -467,6 +671,7 @@ public class SPF implements SPFChecker {
     public synchronized OverridePolicy getOverridePolicy() {
         if (override == null) {
             override = new OverridePolicy(parser);
+            resetPolicies();
         }
         return override;
     }
@@ -479,6 +684,24 @@ public class SPF implements SPFChecker {
      */
     public synchronized void setSPFMustEqualsTXT(boolean mustEquals) {
         this.mustEquals = mustEquals;
+        resetPolicies();
+    }
+
+    /**
+     * Set the maximum number of idle sessions and result holders kept for
+     * reuse. When enabled the {@link SPFResult} returned by
+     * {@link #checkSPF(String, String, String)} is a {@link FutureSPFResult}
+     * which should be released through {@link FutureSPFResult#release()}
+     * once the caller is done with it. Results which are never released are
+     * simply garbage collected. Defaults to 0 (pooling disabled).
+     * 
+     * @param poolSize the number of idle sessions to keep, 0 to disable pooling
+     */
+    public synchronized void setPoolSize(int poolSize) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("Pool size must not be negative: " + poolSize);
+        }
+        this.sessionPool = poolSize > 0 ? new SPFSessionPool(poolSize) : null;
     }
 
 
@@ -0,0 +1,326 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+
+import org.apache.james.jspf.executor.FutureSPFResult;
+import org.apache.james.jspf.executor.SPFCheckRequest;
+import org.apache.james.jspf.executor.SPFResult;
+
+/**
+ * A {@link Flow.Processor} checking the requests it receives and
+ * publishing their results to a single subscriber.
+ *
+ * Requests are only pulled from upstream while fewer than the given number
+ * of checks are running and the subscriber asked for more results than the
+ * ones already running or waiting to be delivered, so a burst upstream
+ * never overloads the DNS service. The results are published in the order
+ * of the requests, or as the checks complete if ordering was not
+ * requested.
+ *
+ * Once upstream completes or fails, the subscriber gets the results of the
+ * running checks first and then the same signal. A check failing to start
+ * cancels upstream and fails the subscriber at once. The given {@link SPF}
+ * should use an asynchronous executor.
+ */
+public class SPFCheckProcessor implements Flow.Processor<SPFCheckRequest, SPFResult> {
+
+    private final SPF spf;
+
+    private final int maxInFlight;
+
+    private final boolean ordered;
+
+    // in order: all the checks, else only the completed ones
+    private final ArrayDeque<Check> checks = new ArrayDeque<Check>();
+
+    private Flow.Subscription upstream;
+
+    private Flow.Subscriber<? super SPFResult> downstream;
+
+    private long demand = 0;
+
+    private long requested = 0;
+
+    private int inFlight = 0;
+
+    private int completed = 0;
+
+    private boolean done = false;
+
+    private Throwable error;
+
+    // an invalid request of the subscriber or a check which failed to start
+    private Throwable fatalError;
+
+    private boolean terminated = false;
+
+    private boolean draining = false;
+
+    private boolean missed = false;
+
+    /**
+     * @param spf the SPF checker to use
+     * @param maxInFlight the maximum number of checks running at once
+     * @param ordered true to publish the results in the order of the requests
+     */
+    public SPFCheckProcessor(SPF spf, int maxInFlight, boolean ordered) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Invalid maximum number of checks: " + maxInFlight);
+        }
+        this.spf = spf;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+    }
+
+    /**
+     * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+     */
+    public void subscribe(Flow.Subscriber<? super SPFResult> subscriber) {
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = subscriber;
+                subscriber = null;
+            }
+        }
+        if (subscriber != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+            return;
+        }
+        downstream.onSubscribe(new Subscription());
+        drain();
+    }
+
+    /**
+     * @see java.util.concurrent.Flow.Subscriber#onSubscribe(java.util.concurrent.Flow.Subscription)
+     */
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream == null && !terminated) {
+                upstream = subscription;
+                subscription = null;
+            }
+        }
+        if (subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * @see java.util.concurrent.Flow.Subscriber#onNext(java.lang.Object)
+     */
+    public void onNext(SPFCheckRequest request) {
+        Check check = new Check();
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            requested--;
+            inFlight++;
+            if (ordered) {
+                checks.add(check);
+            }
+        }
+        FutureSPFResult result;
+        try {
+            result = (FutureSPFResult) spf.checkSPF(request.getIpAddress(), request.getMailFrom(), request.getHostName());
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                inFlight--;
+                checks.remove(check);
+                if (fatalError == null) {
+                    fatalError = e;
+                }
+            }
+            drain();
+            return;
+        }
+        result.addListener(r -> complete(check, r));
+    }
+
+    /**
+     * @see java.util.concurrent.Flow.Subscriber#onError(java.lang.Throwable)
+     */
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            error = throwable;
+        }
+        drain();
+    }
+
+    /**
+     * @see java.util.concurrent.Flow.Subscriber#onComplete()
+     */
+    public void onComplete() {
+        synchronized (this) {
+            done = true;
+        }
+        drain();
+    }
+
+    private void complete(Check check, SPFResult result) {
+        synchronized (this) {
+            check.result = result;
+            inFlight--;
+            completed++;
+            if (!ordered) {
+                checks.add(check);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Deliver the results the subscriber asked for, pull more requests from
+     * upstream and deliver the final signal. Only one thread drains at a
+     * time, so the subscriber gets its signals one after the other.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                missed = true;
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            Flow.Subscriber<? super SPFResult> subscriber;
+            SPFResult next = null;
+            long pull = 0;
+            boolean finish = false;
+            Throwable failure = null;
+            Flow.Subscription cancel = null;
+            synchronized (this) {
+                subscriber = downstream;
+                if (terminated || subscriber == null) {
+                    if (!missed) {
+                        draining = false;
+                        return;
+                    }
+                    missed = false;
+                    continue;
+                }
+                if (fatalError != null) {
+                    cancel = upstream;
+                    terminated = true;
+                    finish = true;
+                    failure = fatalError;
+                } else if (demand > 0 && !checks.isEmpty() && checks.peek().result != null) {
+                    next = checks.poll().result;
+                    completed--;
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                } else if (done && inFlight == 0 && checks.isEmpty()) {
+                    terminated = true;
+                    finish = true;
+                    failure = error;
+                } else if (upstream != null && !done) {
+                    long outstanding = inFlight + completed + requested;
+                    pull = Math.min(maxInFlight - inFlight - requested, demand - outstanding);
+                    if (pull > 0) {
+                        requested += pull;
+                    }
+                }
+                if (next == null && !finish && pull <= 0) {
+                    if (!missed) {
+                        draining = false;
+                        return;
+                    }
+                    missed = false;
+                }
+            }
+            if (cancel != null) {
+                cancel.cancel();
+            }
+            if (next != null) {
+                subscriber.onNext(next);
+            } else if (finish) {
+                if (failure != null) {
+                    subscriber.onError(failure);
+                } else {
+                    subscriber.onComplete();
+                }
+            } else if (pull > 0) {
+                upstream.request(pull);
+            }
+        }
+    }
+
+    /**
+     * The subscription of the downstream subscriber.
+     */
+    private final class Subscription implements Flow.Subscription {
+
+        /**
+         * @see java.util.concurrent.Flow.Subscription#request(long)
+         */
+        public void request(long n) {
+            synchronized (SPFCheckProcessor.this) {
+                if (n <= 0) {
+                    if (fatalError == null) {
+                        fatalError = new IllegalArgumentException("Non-positive request: " + n);
+                    }
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        /**
+         * @see java.util.concurrent.Flow.Subscription#cancel()
+         */
+        public void cancel() {
+            Flow.Subscription subscription;
+            synchronized (SPFCheckProcessor.this) {
+                terminated = true;
+                checks.clear();
+                subscription = upstream;
+            }
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+
+    /**
+     * A check, with its result once done.
+     */
+    private static final class Check {
+
+        private SPFResult result;
+    }
+}
@@ -0,0 +1,725 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.executor.FutureSPFResult;
+import org.apache.james.jspf.executor.SPFResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long running server answering the Postfix SMTP access policy
+ * delegation requests with the SPF result of the sender.
+ *
+ * A request is a list of <code>name=value</code> lines ended by an empty
+ * line and is answered with an <code>action=...</code> line followed by an
+ * empty line:
+ * <ul>
+ * <li>fail is rejected with the explanation,</li>
+ * <li>temperror is deferred with DEFER_IF_PERMIT,</li>
+ * <li>the other results prepend a Received-SPF header.</li>
+ * </ul>
+ * A request with <code>request=stats</code> is answered with the counters
+ * of the server instead, one <code>name=value</code> line each, and any
+ * request other than <code>request=smtpd_access_policy</code> with
+ * <code>action=DUNNO</code>, without a check.
+ *
+ * All the connections, over TCP or Unix domain sockets, are served by one
+ * selector thread and the checks run on the {@link SPF} given at
+ * construction time, which should use an {@link AsynchronousSPFExecutor}:
+ * the selector thread never waits for DNS. Clients may pipeline their
+ * requests, which are answered in order. Once too many checks are in
+ * flight, or a client has too many unanswered requests, the server stops
+ * reading from the client until some checks complete.
+ */
+public class SPFPolicyServer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SPFPolicyServer.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    // Longer lines are not Postfix policy requests
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    // Postfix sends a few dozen attributes per request
+    private static final int MAX_ATTRIBUTES = 256;
+
+    private static final int MAX_REQUEST_LENGTH = 4 * MAX_LINE_LENGTH;
+
+    private static final String[] RESULTS = {
+        SPFErrorConstants.PASS_CONV, SPFErrorConstants.FAIL_CONV,
+        SPFErrorConstants.SOFTFAIL_CONV, SPFErrorConstants.NEUTRAL_CONV,
+        SPFErrorConstants.NONE_CONV, SPFErrorConstants.TEMP_ERROR_CONV,
+        SPFErrorConstants.PERM_ERROR_CONV
+    };
+
+    private final SPF spf;
+
+    private final DNSService dnsService;
+
+    private final Selector selector;
+
+    private final Thread selectorThread;
+
+    private final ConcurrentLinkedQueue<ServerSocketChannel> newServers = new ConcurrentLinkedQueue<ServerSocketChannel>();
+
+    private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+
+    private final List<Connection> paused = new ArrayList<Connection>();
+
+    private final List<Path> socketFiles = new ArrayList<Path>();
+
+    private final Map<String, AtomicLong> resultCounts = new HashMap<String, AtomicLong>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    private final AtomicLong connectionCount = new AtomicLong();
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong pauseCount = new AtomicLong();
+
+    private volatile int maxInFlight = 4096;
+
+    private volatile int maxPipelined = 64;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Serve the checks of a new {@link SPF} using an
+     * {@link AsynchronousSPFExecutor} on the given service.
+     *
+     * @param dnsService the DNS service, usually a {@link DNSServiceCachingImpl}
+     */
+    public SPFPolicyServer(DNSService dnsService) throws IOException {
+        this(new SPF(dnsService, new AsynchronousSPFExecutor(dnsService)), dnsService);
+    }
+
+    /**
+     * @param spf the SPF checker to use
+     * @param dnsService the DNS service used by the checker, whose cache
+     *            counters are reported by the stats request, or null
+     */
+    public SPFPolicyServer(SPF spf, DNSService dnsService) throws IOException {
+        this.spf = spf;
+        this.dnsService = dnsService;
+        for (String result : RESULTS) {
+            resultCounts.put(result, new AtomicLong());
+        }
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(this::run, "jspf-policy");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Listen for clients on the given TCP address.
+     *
+     * @param address the address, with port 0 for any free port
+     * @return the bound address
+     */
+    public SocketAddress bind(InetSocketAddress address) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        return listen(server, address);
+    }
+
+    /**
+     * Listen for clients on the given Unix domain socket, replacing any
+     * file left there. The file is removed when the server is closed.
+     * Unix domain sockets need Java 16 or later.
+     *
+     * @param path the path of the socket
+     * @return the bound address
+     */
+    public SocketAddress bind(Path path) throws IOException {
+        ServerSocketChannel server;
+        SocketAddress address;
+        try {
+            // looked up by reflection to keep running on Java 11
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, path);
+            server = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets are not supported by this Java runtime", e);
+        }
+        Files.deleteIfExists(path);
+        SocketAddress bound = listen(server, address);
+        synchronized (socketFiles) {
+            socketFiles.add(path);
+        }
+        return bound;
+    }
+
+    private SocketAddress listen(ServerSocketChannel server, SocketAddress address) throws IOException {
+        if (closed) {
+            server.close();
+            throw new IOException("Policy server closed");
+        }
+        try {
+            server.bind(address, 1024);
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        newServers.add(server);
+        selector.wakeup();
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Set the maximum number of checks running at the same time. Further
+     * requests wait in the socket buffers.
+     *
+     * @param maxInFlight the limit, 4096 by default
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Set the maximum number of unanswered requests of a connection.
+     *
+     * @param maxPipelined the limit, 64 by default
+     */
+    public void setMaxPipelined(int maxPipelined) {
+        this.maxPipelined = maxPipelined;
+    }
+
+    /**
+     * @return the number of checks running
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of policy requests received
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of connections accepted
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of times a connection stopped being read because
+     *         of the limits
+     */
+    public long getPauseCount() {
+        return pauseCount.get();
+    }
+
+    /**
+     * Stop listening, close all the connections and stop the selector
+     * thread. The checks in flight are not answered.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The selector loop: accepts the clients, reads their requests and
+     * writes the answers of the completed checks.
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                ServerSocketChannel server;
+                while ((server = newServers.poll()) != null) {
+                    server.register(selector, SelectionKey.OP_ACCEPT);
+                }
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    }
+                }
+                Connection connection;
+                while ((connection = completed.poll()) != null) {
+                    write(connection);
+                }
+                resume();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Policy server selector loop failed", e);
+        } finally {
+            closed = true;
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            ServerSocketChannel server;
+            while ((server = newServers.poll()) != null) {
+                closeQuietly(server);
+            }
+            closeQuietly(selector);
+            synchronized (socketFiles) {
+                for (Path path : socketFiles) {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        LOGGER.debug("Error removing the socket {}", path, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connectionCount.incrementAndGet();
+                activeConnections.incrementAndGet();
+            } catch (IOException e) {
+                LOGGER.debug("Error accepting a policy client", e);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            if (!connection.in.hasRemaining()) {
+                ByteBuffer in = ByteBuffer.allocate(connection.in.capacity() * 2);
+                connection.in.flip();
+                in.put(connection.in);
+                connection.in = in;
+            }
+            if (connection.channel.read(connection.in) < 0) {
+                disconnect(connection);
+                return;
+            }
+            process(connection);
+        } catch (IOException e) {
+            LOGGER.debug("Error reading from a policy client", e);
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Dispatch the complete requests read from the connection, unless the
+     * limits are reached, in which case the connection is paused. A request
+     * with too many attributes or too long ends the connection.
+     */
+    private void process(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        in.flip();
+        try {
+            int start = in.position();
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) != '\n') {
+                    continue;
+                }
+                int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                if (end == start) {
+                    if (inFlight.get() >= maxInFlight || connection.responses.size() >= maxPipelined) {
+                        pause(connection);
+                        break;
+                    }
+                    dispatch(connection);
+                } else {
+                    connection.requestLength += i + 1 - start;
+                    if (connection.requestLength > MAX_REQUEST_LENGTH) {
+                        throw new IOException("Policy request too long");
+                    }
+                    String line = new String(in.array(), start, end - start, StandardCharsets.UTF_8);
+                    int separator = line.indexOf('=');
+                    if (separator > 0) {
+                        connection.attributes.put(line.substring(0, separator), line.substring(separator + 1));
+                        if (connection.attributes.size() > MAX_ATTRIBUTES) {
+                            throw new IOException("Too many policy request attributes");
+                        }
+                    }
+                }
+                start = i + 1;
+                in.position(start);
+            }
+            if (!connection.paused && in.limit() - in.position() >= MAX_LINE_LENGTH) {
+                throw new IOException("Policy request line too long");
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void dispatch(Connection connection) {
+        Map<String, String> attributes = connection.attributes;
+        connection.attributes = new HashMap<String, String>();
+        connection.requestLength = 0;
+        Response response = new Response();
+        connection.responses.add(response);
+
+        if ("stats".equals(attributes.get("request"))) {
+            response.text = getStats();
+            completed.add(connection);
+            return;
+        }
+
+        requestCount.incrementAndGet();
+        String ipAddress = attributes.get("client_address");
+        if (!"smtpd_access_policy".equals(attributes.get("request")) || ipAddress == null) {
+            response.text = "action=DUNNO\n\n";
+            completed.add(connection);
+            return;
+        }
+        String sender = attributes.getOrDefault("sender", "");
+        String helo = attributes.getOrDefault("helo_name", "");
+        inFlight.incrementAndGet();
+        try {
+            FutureSPFResult result = (FutureSPFResult) spf.checkSPF(ipAddress, sender, helo);
+            result.addListener(r -> complete(connection, response, r));
+        } catch (RuntimeException e) {
+            LOGGER.error("Error checking {} from {}", sender, ipAddress, e);
+            inFlight.decrementAndGet();
+            response.text = "action=DEFER_IF_PERMIT SPF check failed\n\n";
+            completed.add(connection);
+        }
+    }
+
+    /**
+     * Called once a check is done, usually by a DNS thread. The answer to a
+     * fail waits for the explanation, whose lookups may still be needed,
+     * without blocking the calling thread.
+     */
+    private void complete(Connection connection, Response response, FutureSPFResult result) {
+        CompletionStage<String> explanation = SPFErrorConstants.FAIL_CONV.equals(result.getResult())
+                ? result.getExplanationAsync() : CompletableFuture.<String>completedFuture(null);
+        explanation.whenComplete((text, e) -> {
+            try {
+                response.text = toAction(result, e == null ? text : null);
+            } finally {
+                result.release();
+                inFlight.decrementAndGet();
+                completed.add(connection);
+                selector.wakeup();
+            }
+        });
+    }
+
+    private String toAction(SPFResult result, String explanation) {
+        String name = result.getResult();
+        AtomicLong count = resultCounts.get(name);
+        if (count != null) {
+            count.incrementAndGet();
+        }
+        if (SPFErrorConstants.FAIL_CONV.equals(name)) {
+            return "action=REJECT " + clean(explanation != null ? explanation : "SPF check failed") + "\n\n";
+        } else if (SPFErrorConstants.TEMP_ERROR_CONV.equals(name)) {
+            return "action=DEFER_IF_PERMIT SPF temporary error\n\n";
+        } else if (result.getHeaderText().length() > 0) {
+            return "action=PREPEND " + clean(result.getHeader()) + "\n\n";
+        }
+        return "action=DUNNO\n\n";
+    }
+
+    private static String clean(String text) {
+        return text.replace('\r', ' ').replace('\n', ' ').trim();
+    }
+
+    private String getStats() {
+        StringBuilder stats = new StringBuilder();
+        stats.append("connections=").append(connectionCount.get()).append('\n');
+        stats.append("active_connections=").append(activeConnections.get()).append('\n');
+        stats.append("requests=").append(requestCount.get()).append('\n');
+        stats.append("in_flight=").append(inFlight.get()).append('\n');
+        stats.append("pauses=").append(pauseCount.get()).append('\n');
+        for (String result : RESULTS) {
+            stats.append("result_").append(result).append('=').append(resultCounts.get(result).get()).append('\n');
+        }
+        if (dnsService instanceof DNSServiceCachingImpl) {
+            DNSServiceCachingImpl cache = (DNSServiceCachingImpl) dnsService;
+            stats.append("dns_cache_hits=").append(cache.getHitCount()).append('\n');
+            stats.append("dns_cache_misses=").append(cache.getMissCount()).append('\n');
+        }
+        return stats.append('\n').toString();
+    }
+
+    /**
+     * Write the answers ready at the head of the queue of the connection.
+     */
+    private void write(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (connection.out == null || !connection.out.hasRemaining()) {
+                    StringBuilder text = new StringBuilder();
+                    while (!connection.responses.isEmpty() && connection.responses.peek().text != null) {
+                        text.append(connection.responses.poll().text);
+                    }
+                    if (text.length() == 0) {
+                        connection.out = null;
+                        break;
+                    }
+                    connection.out = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                connection.channel.write(connection.out);
+                if (connection.out.hasRemaining()) {
+                    break;
+                }
+            }
+            int ops = connection.paused ? 0 : SelectionKey.OP_READ;
+            if (connection.out != null) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            connection.key.interestOps(ops);
+        } catch (IOException e) {
+            LOGGER.debug("Error writing to a policy client", e);
+            disconnect(connection);
+        }
+    }
+
+    private void pause(Connection connection) {
+        if (!connection.paused) {
+            connection.paused = true;
+            paused.add(connection);
+            if (!connection.resuming) {
+                pauseCount.incrementAndGet();
+            }
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Give the paused connections another chance, in the order they were
+     * paused.
+     */
+    private void resume() {
+        if (paused.isEmpty()) {
+            return;
+        }
+        List<Connection> candidates = new ArrayList<Connection>(paused);
+        paused.clear();
+        for (Connection connection : candidates) {
+            if (!connection.key.isValid()) {
+                continue;
+            }
+            connection.paused = false;
+            connection.resuming = true;
+            try {
+                process(connection);
+            } catch (IOException e) {
+                LOGGER.debug("Error reading from a policy client", e);
+                disconnect(connection);
+                continue;
+            } finally {
+                connection.resuming = false;
+            }
+            if (!connection.paused) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            }
+            write(connection);
+        }
+    }
+
+    private void disconnect(Connection connection) {
+        if (connection.key.isValid()) {
+            connection.key.cancel();
+            activeConnections.decrementAndGet();
+        }
+        closeQuietly(connection.channel);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error closing {}", closeable, e);
+        }
+    }
+
+    /**
+     * The state of a client connection, only used by the selector thread
+     * but for the text of the responses.
+     */
+    private static final class Connection {
+
+        private final SocketChannel channel;
+
+        private final ArrayDeque<Response> responses = new ArrayDeque<Response>();
+
+        private SelectionKey key;
+
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        private ByteBuffer out;
+
+        private Map<String, String> attributes = new HashMap<String, String>();
+
+        // Length of the lines of the request being read
+        private int requestLength = 0;
+
+        private boolean paused = false;
+
+        // Set while a paused connection is given another chance, which
+        // does not count as a new pause when it is paused again
+        private boolean resuming = false;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * The answer to a request, set once its check is done.
+     */
+    private static final class Response {
+
+        private volatile String text;
+    }
+
+    /**
+     * Run a policy server until the JVM is stopped.
+     *
+     * @param args
+     *            The commandline arguments to parse
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("l", "listen", true, "TCP address to listen on, host:port (default 127.0.0.1:10027)");
+        options.addOption("u", "unix", true, "Unix domain socket to listen on");
+        options.addOption("d", "dns", true, "DNS server to query, host[:port] (default: system resolver)");
+        options.addOption("t", "timeout", true, "Check timeout in seconds (default 20)");
+        options.addOption("m", "max-in-flight", true, "Maximum number of checks running at once");
+
+        CommandLine line;
+        try {
+            line = new PosixParser().parse(options, args);
+        } catch (ParseException e) {
+            new HelpFormatter().printHelp("SPFPolicyServer", options, true);
+            System.exit(1);
+            return;
+        }
+
+        DNSService resolver;
+        if (line.hasOption("d")) {
+            resolver = new DNSServiceNioImpl(parseAddress(line.getOptionValue("d"), 53));
+        } else {
+            resolver = new DNSServiceXBillImpl();
+        }
+        DNSServiceCachingImpl dnsService = new DNSServiceCachingImpl(resolver);
+        SPF spf = new SPF(dnsService, new AsynchronousSPFExecutor(dnsService));
+        spf.setCheckTimeout(Long.parseLong(line.getOptionValue("t", "20")) * 1000);
+        SPFPolicyServer server = new SPFPolicyServer(spf, dnsService);
+        if (line.hasOption("m")) {
+            server.setMaxInFlight(Integer.parseInt(line.getOptionValue("m")));
+        }
+        if (line.hasOption("u")) {
+            LOGGER.info("Listening on {}", server.bind(Paths.get(line.getOptionValue("u"))));
+        }
+        if (line.hasOption("l") || !line.hasOption("u")) {
+            LOGGER.info("Listening on {}", server.bind(parseAddress(line.getOptionValue("l", "127.0.0.1:10027"), 10027)));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closeQuietly(server);
+            closeQuietly(dnsService);
+            if (resolver instanceof Closeable) {
+                closeQuietly((Closeable) resolver);
+            }
+        }, "jspf-policy-shutdown"));
+        server.selectorThread.join();
+    }
+
+    private static InetSocketAddress parseAddress(String address, int defaultPort) {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0 || address.endsWith("]")) {
+            return new InetSocketAddress(address, defaultPort);
+        }
+        String host = address.substring(0, separator);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(address.substring(separator + 1)));
+    }
+}
@@ -19,6 +19,13 @@
 
 package org.apache.james.jspf.impl;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -27,6 +34,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
 import org.apache.james.jspf.executor.SPFResult;
 
 /**
@@ -75,6 +83,18 @@ public class SPFQuery {
     private final static String CMD_TRUSTED_FORWARDER = "enable-trusted-forwarder";
     private final static char CHAR_TRUSTED_FORWARDER = 't';
 
+    private final static String CMD_BATCH = "batch";
+    private final static char CHAR_BATCH = 'f';
+
+    private final static String CMD_MAX_IN_FLIGHT = "max-in-flight";
+    private final static char CHAR_MAX_IN_FLIGHT = 'm';
+
+    private final static String CMD_UNORDERED = "unordered";
+    private final static char CHAR_UNORDERED = 'u';
+
+    private final static String CMD_TIMING = "timing";
+    private final static char CHAR_TIMING = 'T';
+
     /**
      * @param args
      *            The commandline arguments to parse
@@ -100,8 +120,33 @@ public class SPFQuery {
             defaultExplanation = line.getOptionValue(CHAR_DEFAULT_EXP);
             useBestGuess = line.hasOption(CHAR_BEST_GUESS);
             useTrustedForwarder = line.hasOption(CHAR_TRUSTED_FORWARDER);
-            // check if all needed values was set
-            if (ip != null && sender != null && helo != null) {
+            if (line.hasOption(CHAR_BATCH)) {
+                DNSServiceCachingImpl dnsService = new DNSServiceCachingImpl(new DNSServiceXBillImpl());
+                SPF spf = new SPF(dnsService, new AsynchronousSPFExecutor(dnsService));
+                if (defaultExplanation != null) {
+                    spf.setDefaultExplanation(defaultExplanation);
+                }
+                spf.setUseBestGuess(useBestGuess);
+                spf.setUseTrustedForwarder(useTrustedForwarder);
+
+                SPFQueryBatch batch = new SPFQueryBatch(spf, dnsService);
+                if (line.hasOption(CHAR_MAX_IN_FLIGHT)) {
+                    batch.setMaxInFlight(Integer.parseInt(line.getOptionValue(CHAR_MAX_IN_FLIGHT)));
+                }
+                batch.setCompletionOrder(line.hasOption(CHAR_UNORDERED));
+                batch.setTiming(line.hasOption(CHAR_TIMING));
+                String file = line.getOptionValue(CHAR_BATCH);
+                try (InputStream in = "-".equals(file) ? System.in : new FileInputStream(file)) {
+                    batch.run(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), System.out, System.err);
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(UNKNOWN_RCODE);
+                } catch (InterruptedException e) {
+                    System.exit(UNKNOWN_RCODE);
+                }
+                System.exit(0);
+            } else if (ip != null && sender != null && helo != null) {
+                // all needed values were set
 
                 SPF spf = new DefaultSPF();
 
@@ -144,7 +189,6 @@ public class SPFQuery {
         OptionBuilder.withValueSeparator('=');
         OptionBuilder.withArgName("ip");
         OptionBuilder.withDescription("Sender IP address");
-        OptionBuilder.isRequired();
         OptionBuilder.hasArg();
         options.addOption(OptionBuilder.create(CHAR_IP));
        
@@ -153,7 +197,6 @@ public class SPFQuery {
         OptionBuilder.withValueSeparator('=');
         OptionBuilder.withArgName("sender");
         OptionBuilder.withDescription("Sender address");
-        OptionBuilder.isRequired();
         OptionBuilder.hasArg();
         options.addOption(OptionBuilder.create(CHAR_SENDER));
         
@@ -161,7 +204,6 @@ public class SPFQuery {
         OptionBuilder.withValueSeparator('=');
         OptionBuilder.withArgName("helo");
         OptionBuilder.withDescription("Helo name");
-        OptionBuilder.isRequired();
         OptionBuilder.hasArg();
         options.addOption(OptionBuilder.create(CHAR_HELO));
                 
@@ -182,6 +224,30 @@ public class SPFQuery {
         OptionBuilder.withDescription("Enable 'trusted forwarder' rule");
         options.addOption(OptionBuilder.create(CHAR_TRUSTED_FORWARDER));
 
+        OptionBuilder.withLongOpt(CMD_BATCH);
+        OptionBuilder.withValueSeparator('=');
+        OptionBuilder.withArgName("file");
+        OptionBuilder.withDescription("Check the ip, sender and helo of each line of the file (- for stdin), separated by tabs or commas");
+        OptionBuilder.hasArg();
+        options.addOption(OptionBuilder.create(CHAR_BATCH));
+
+        OptionBuilder.withLongOpt(CMD_MAX_IN_FLIGHT);
+        OptionBuilder.withValueSeparator('=');
+        OptionBuilder.withArgName("count");
+        OptionBuilder.withDescription("Maximum number of concurrent checks in batch mode (default 256)");
+        OptionBuilder.hasArg();
+        options.addOption(OptionBuilder.create(CHAR_MAX_IN_FLIGHT));
+
+        OptionBuilder.withLongOpt(CMD_UNORDERED);
+        OptionBuilder.withArgName("unordered");
+        OptionBuilder.withDescription("Write the batch results as they complete instead of in input order");
+        options.addOption(OptionBuilder.create(CHAR_UNORDERED));
+
+        OptionBuilder.withLongOpt(CMD_TIMING);
+        OptionBuilder.withArgName("timing");
+        OptionBuilder.withDescription("Write the time taken by each check in batch mode");
+        options.addOption(OptionBuilder.create(CHAR_TIMING));
+
         OptionBuilder.withLongOpt(CMD_DEBUG);
         OptionBuilder.withArgName("debug");
         OptionBuilder.withDescription("Enable debug");
@@ -0,0 +1,250 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+import org.apache.james.jspf.executor.FutureSPFResult;
+
+/**
+ * Check many (ip, sender, helo) triples read from a stream, as done by
+ * {@link SPFQuery} in batch mode.
+ *
+ * Each input line holds the ip, the sender and the helo separated by a tab
+ * or a comma. Empty lines, lines starting with # and "ip" header lines
+ * are skipped. Each result is written as a tab separated line with
+ * the ip, the sender, the helo, the result, the Received-SPF header text
+ * and optionally the time taken by the check in milliseconds.
+ *
+ * The checks run concurrently, at most {@link #setMaxInFlight(int)} at a
+ * time, so the given {@link SPF} should use an asynchronous executor.
+ */
+public class SPFQueryBatch {
+
+    private final SPF spf;
+
+    private final DNSServiceCachingImpl dnsService;
+
+    private final ArrayDeque<Check> pending = new ArrayDeque<Check>();
+
+    private long[] latencies = new long[1024];
+
+    private int count = 0;
+
+    private int maxInFlight = 256;
+
+    private boolean completionOrder = false;
+
+    private boolean timing = false;
+
+    /**
+     * @param spf the SPF checker to use
+     * @param dnsService the DNS cache used by the checker, whose counters
+     *            are reported in the summary, or null
+     */
+    public SPFQueryBatch(SPF spf, DNSServiceCachingImpl dnsService) {
+        this.spf = spf;
+        this.dnsService = dnsService;
+    }
+
+    /**
+     * @param maxInFlight the maximum number of checks running at once, 256 by default
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Invalid maximum number of checks: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param completionOrder true to write the results as the checks
+     *            complete instead of in input order
+     */
+    public void setCompletionOrder(boolean completionOrder) {
+        this.completionOrder = completionOrder;
+    }
+
+    /**
+     * @param timing true to write the time taken by each check
+     */
+    public void setTiming(boolean timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * Check all the triples read from the input and write a summary once
+     * all the results are written.
+     *
+     * @param in the input
+     * @param out where the results are written
+     * @param summary where the summary is written
+     * @return the number of checks
+     */
+    public int run(BufferedReader in, PrintStream out, PrintStream summary) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(maxInFlight);
+        long hits = dnsService != null ? dnsService.getHitCount() : 0;
+        long misses = dnsService != null ? dnsService.getMissCount() : 0;
+        long start = System.nanoTime();
+
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = parse(line);
+            if (fields == null) {
+                summary.println("Skipping line " + lineNumber + ": expected ip, sender and helo");
+                continue;
+            } else if (fields[0].equalsIgnoreCase("ip")) {
+                continue;
+            }
+            permits.acquire();
+            Check check = new Check(fields);
+            if (!completionOrder) {
+                synchronized (this) {
+                    pending.add(check);
+                }
+            }
+            check.start = System.nanoTime();
+            FutureSPFResult result;
+            try {
+                result = (FutureSPFResult) spf.checkSPF(fields[0], fields[1], fields[2]);
+            } catch (RuntimeException e) {
+                try {
+                    complete(check, "error", String.valueOf(e), out);
+                } finally {
+                    permits.release();
+                }
+                continue;
+            }
+            result.addListener(r -> {
+                try {
+                    complete(check, r, out);
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        permits.acquire(maxInFlight);
+        permits.release(maxInFlight);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        synchronized (this) {
+            out.flush();
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            summary.printf("%d checks in %.3f s (%.1f checks/s)%n", count, seconds, count / Math.max(seconds, 1e-9));
+            summary.printf("latency ms: p50=%.3f p90=%.3f p99=%.3f max=%.3f%n",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100));
+            if (dnsService != null) {
+                hits = dnsService.getHitCount() - hits;
+                misses = dnsService.getMissCount() - misses;
+                summary.printf("DNS lookups: %d (%d cached, %d queried)%n", hits + misses, hits, misses);
+            }
+            summary.flush();
+            return count;
+        }
+    }
+
+    private void complete(Check check, FutureSPFResult result, PrintStream out) {
+        try {
+            complete(check, result.getResult(), result.getHeaderText().trim(), out);
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * Write the result of the check, or of the checks queued behind it once
+     * it is the oldest one.
+     */
+    private synchronized void complete(Check check, String result, String headerText, PrintStream out) {
+        long latency = System.nanoTime() - check.start;
+        StringBuilder text = new StringBuilder();
+        text.append(check.fields[0]).append('\t').append(check.fields[1]).append('\t').append(check.fields[2])
+            .append('\t').append(result).append('\t').append(headerText);
+        if (timing) {
+            text.append('\t').append(String.format("%.3f", latency / 1e6));
+        }
+        check.text = text.toString();
+
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latency;
+
+        if (completionOrder) {
+            out.println(check.text);
+        } else {
+            while (!pending.isEmpty() && pending.peek().text != null) {
+                out.println(pending.poll().text);
+            }
+        }
+    }
+
+    /**
+     * @return the ip, the sender and the helo, or null if the line is malformed
+     */
+    private static String[] parse(String line) {
+        String[] fields = line.split(line.indexOf('\t') >= 0 ? "\t" : ",", -1);
+        if (fields.length < 3) {
+            return null;
+        }
+        String[] triple = new String[3];
+        for (int i = 0; i < 3; i++) {
+            String field = fields[i].trim();
+            if (field.length() > 1 && field.startsWith("\"") && field.endsWith("\"")) {
+                field = field.substring(1, field.length() - 1);
+            }
+            triple[i] = field;
+        }
+        return triple;
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static final class Check {
+
+        private final String[] fields;
+
+        private long start;
+
+        private String text;
+
+        private Check(String[] fields) {
+            this.fields = fields;
+        }
+    }
+}
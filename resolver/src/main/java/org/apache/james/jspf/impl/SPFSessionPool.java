@@ -0,0 +1,124 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.jspf.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.jspf.core.SPFSession;
+import org.apache.james.jspf.executor.FutureSPFResult;
+
+/**
+ * Bounded pool of {@link SPFSession} instances and their result holders,
+ * used by {@link SPF} when pooling is enabled.
+ */
+final class SPFSessionPool {
+
+    private final ConcurrentLinkedQueue<PooledSPFResult> idle = new ConcurrentLinkedQueue<PooledSPFResult>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final int capacity;
+
+    SPFSessionPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return a result holder whose session is initialized with the given
+     * values, reusing an idle one when available.
+     */
+    PooledSPFResult acquire(String mailFrom, String heloDomain, String clientIP) {
+        PooledSPFResult res = idle.poll();
+        if (res == null) {
+            return new PooledSPFResult(this, new SPFSession(mailFrom, heloDomain, clientIP));
+        }
+        idleCount.decrementAndGet();
+        res.reuse(mailFrom, heloDomain, clientIP);
+        return res;
+    }
+
+    private void recycle(PooledSPFResult res) {
+        if (idleCount.incrementAndGet() <= capacity) {
+            idle.offer(res);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of idle holders ready to be reused
+     */
+    int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * A {@link FutureSPFResult} which owns its {@link SPFSession} and hands
+     * both back to the pool once released.
+     */
+    static final class PooledSPFResult extends FutureSPFResult {
+
+        private final SPFSessionPool pool;
+
+        private final SPFSession session;
+
+        private boolean released = false;
+
+        PooledSPFResult(SPFSessionPool pool, SPFSession session) {
+            this.pool = pool;
+            this.session = session;
+        }
+
+        SPFSession getSession() {
+            return session;
+        }
+
+        private void reuse(String mailFrom, String heloDomain, String clientIP) {
+            reset();
+            session.reset(mailFrom, heloDomain, clientIP);
+        }
+
+        /**
+         * @see org.apache.james.jspf.executor.FutureSPFResult#reset()
+         */
+        protected synchronized void reset() {
+            super.reset();
+            released = false;
+        }
+
+        /**
+         * Hand this holder back to the pool. Results which are still being
+         * computed or were already released are left alone.
+         *
+         * @see org.apache.james.jspf.executor.FutureSPFResult#release()
+         */
+        public void release() {
+            synchronized (this) {
+                if (released || !isReady()) {
+                    return;
+                }
+                released = true;
+            }
+            pool.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.impl;
+
+import java.util.Arrays;
+
+/**
+ * Round trip time statistics of an upstream DNS server: a smoothed RTT and
+ * variation computed like the TCP retransmission timer (RFC 6298), and
+ * percentiles over a window of the most recent samples.
+ */
+final class UpstreamStats {
+
+    private static final int WINDOW = 64;
+
+    private final long[] samples = new long[WINDOW];
+
+    private int count = 0;
+
+    private int next = 0;
+
+    private long[] sorted;
+
+    private double srtt = -1;
+
+    private double rttvar = 0;
+
+    /**
+     * Record the round trip time of an answered query.
+     *
+     * @param rtt the time in milliseconds
+     */
+    synchronized void record(long rtt) {
+        samples[next] = rtt;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+        sorted = null;
+
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, -1 if no query
+     *         was answered yet
+     */
+    synchronized double getSmoothedRtt() {
+        return srtt;
+    }
+
+    /**
+     * @return the number of samples in the window
+     */
+    synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the round trip time in milliseconds below which the given
+     *         percentage of the recent samples are, -1 if there are none
+     */
+    synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        if (sorted == null) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+        }
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Return the timeout to use for a query: the smoothed RTT plus four
+     * times its variation, within the given bounds.
+     *
+     * @param min the minimum timeout in milliseconds
+     * @param max the maximum timeout, returned when nothing is known yet
+     * @return the timeout in milliseconds
+     */
+    synchronized long getTimeout(long min, long max) {
+        if (srtt < 0) {
+            return max;
+        }
+        long timeout = Math.round(srtt + 4 * rttvar);
+        return Math.max(min, Math.min(max, timeout));
+    }
+}
@@ -0,0 +1,142 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.parser;
+
+import org.apache.james.jspf.cache.TinyLFUCache;
+import org.apache.james.jspf.core.SPF1Record;
+import org.apache.james.jspf.core.SPFRecordParser;
+import org.apache.james.jspf.core.exceptions.NeutralException;
+import org.apache.james.jspf.core.exceptions.NoneException;
+import org.apache.james.jspf.core.exceptions.PermErrorException;
+import org.apache.james.jspf.core.exceptions.SPFResultException;
+
+/**
+ * An SPFRecordParser caching the records parsed by another one, keyed by
+ * their text. Syntax errors are cached as well.
+ *
+ * The returned records are copies sharing the cached terms, as the
+ * policies add their own modifiers to them.
+ *
+ * The cache is bounded by the estimated size of the parsed records and
+ * evicts with the {@link TinyLFUCache} policy.
+ */
+public class CachingSPFRecordParser implements SPFRecordParser {
+
+    private final SPFRecordParser parser;
+
+    private final TinyLFUCache<String, Object> cache;
+
+    /**
+     * @param parser the parser to cache
+     * @param maximumSize the maximum estimated size of the cached records in bytes
+     */
+    public CachingSPFRecordParser(SPFRecordParser parser, long maximumSize) {
+        this.parser = parser;
+        this.cache = new TinyLFUCache<String, Object>(maximumSize, CachingSPFRecordParser::weigh);
+    }
+
+    /**
+     * Create a cache of at most 1 MB of parsed records.
+     *
+     * @param parser the parser to cache
+     */
+    public CachingSPFRecordParser(SPFRecordParser parser) {
+        this(parser, 1024 * 1024);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.SPFRecordParser#parse(java.lang.String)
+     */
+    public SPF1Record parse(String spfRecord) throws PermErrorException,
+            NoneException, NeutralException {
+        Object parsed = cache.get(spfRecord);
+        if (parsed == null) {
+            parsed = load(spfRecord);
+        }
+
+        if (parsed instanceof PermErrorException) {
+            throw (PermErrorException) parsed;
+        } else if (parsed instanceof NoneException) {
+            throw (NoneException) parsed;
+        } else if (parsed instanceof NeutralException) {
+            throw (NeutralException) parsed;
+        }
+        return new SPF1Record((SPF1Record) parsed);
+    }
+
+    /**
+     * Parse the given record if it is not cached yet, so that the next
+     * {@link #parse(String)} of the same text is answered from the cache.
+     *
+     * @param spfRecord the record text
+     */
+    public void preload(String spfRecord) {
+        if (cache.peek(spfRecord) == null) {
+            load(spfRecord);
+        }
+    }
+
+    private Object load(String spfRecord) {
+        Object parsed;
+        try {
+            parsed = parser.parse(spfRecord);
+        } catch (SPFResultException e) {
+            parsed = e;
+        }
+        cache.put(spfRecord, parsed);
+        return parsed;
+    }
+
+    /**
+     * Estimate the memory used by a cached record, counting the terms as
+     * 96 bytes each.
+     */
+    private static int weigh(String spfRecord, Object parsed) {
+        int weight = 64 + 2 * spfRecord.length();
+        if (parsed instanceof SPF1Record) {
+            SPF1Record record = (SPF1Record) parsed;
+            weight += 64 + 96 * (record.getDirectives().size() + record.getModifiers().size());
+        } else {
+            weight += 64 + 2 * String.valueOf(((Exception) parsed).getMessage()).length();
+        }
+        return weight;
+    }
+
+    /**
+     * @return the number of records answered from the cache
+     */
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    /**
+     * @return the number of records which had to be parsed
+     */
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    /**
+     * Remove all the cached records.
+     */
+    public void clear() {
+        cache.clear();
+    }
+}
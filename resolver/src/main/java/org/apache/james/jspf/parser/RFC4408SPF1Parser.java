@@ -81,6 +81,8 @@ import java.util.regex.Pattern;
 public class RFC4408SPF1Parser implements SPFRecordParser {
     private static final Logger LOGGER = LoggerFactory.getLogger(RFC4408SPF1Parser.class);
 
+    private static final NeutralException EMPTY_RECORD = new NeutralException("Empty SPF Record");
+
     /**
      * Regex based on http://www.ietf.org/rfc/rfc4408.txt.
      * This will be the next official SPF-Spec
@@ -256,7 +258,7 @@ public class RFC4408SPF1Parser implements SPFRecordParser {
 
         // check the version "header"
         if (spfRecord.toLowerCase().startsWith(SPF1Constants.SPF_VERSION1 + " ") || spfRecord.equalsIgnoreCase(SPF1Constants.SPF_VERSION1)) {
-            if (!spfRecord.toLowerCase().startsWith(SPF1Constants.SPF_VERSION1 + " ")) throw new NeutralException("Empty SPF Record");
+            if (!spfRecord.toLowerCase().startsWith(SPF1Constants.SPF_VERSION1 + " ")) throw EMPTY_RECORD;
         } else {
             throw new NoneException("No valid SPF Record: " + spfRecord);
         }
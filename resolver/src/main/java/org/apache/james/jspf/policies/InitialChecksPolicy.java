@@ -44,7 +44,7 @@ public final class InitialChecksPolicy implements SPFChecker {
     public DNSLookupContinuation checkSPF(SPFSession spfData)
             throws PermErrorException, TempErrorException, NeutralException,
             NoneException {
-        SPF1Record res = (SPF1Record) spfData.getAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD);
+        SPF1Record res = spfData.get(SPF1Utils.SPF1_RECORD);
         if (res == null) {
 
             // Initial checks (spec 4.3)
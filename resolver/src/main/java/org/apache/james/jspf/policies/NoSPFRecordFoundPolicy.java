@@ -19,16 +19,26 @@
 
 package org.apache.james.jspf.policies;
 
+import org.apache.james.jspf.core.DNSLookupContinuation;
 import org.apache.james.jspf.core.SPF1Record;
+import org.apache.james.jspf.core.SPF1Utils;
+import org.apache.james.jspf.core.SPFChecker;
+import org.apache.james.jspf.core.SPFSession;
 import org.apache.james.jspf.core.exceptions.NeutralException;
 import org.apache.james.jspf.core.exceptions.NoneException;
 import org.apache.james.jspf.core.exceptions.PermErrorException;
 import org.apache.james.jspf.core.exceptions.TempErrorException;
 
 /**
- * Throws a NoneException if no record has been found
+ * Throws a NoneException if no record has been found.
+ * 
+ * When used as an {@link SPFChecker} the none result is signaled to the
+ * session instead, as most checks of domains without SPF end here.
  */
-public class NoSPFRecordFoundPolicy implements PolicyPostFilter {
+public class NoSPFRecordFoundPolicy implements PolicyPostFilter, SPFChecker {
+
+    private static final NoneException NO_SPF_RECORD = new NoneException("No SPF record found");
+
     /**
      * @see org.apache.james.jspf.policies.PolicyPostFilter#getSPFRecord(java.lang.String, org.apache.james.jspf.core.SPF1Record)
      */
@@ -39,4 +49,14 @@ public class NoSPFRecordFoundPolicy implements PolicyPostFilter {
             return res;
         }
     }
+
+    /**
+     * @see org.apache.james.jspf.core.SPFChecker#checkSPF(org.apache.james.jspf.core.SPFSession)
+     */
+    public DNSLookupContinuation checkSPF(SPFSession spfData) {
+        if (spfData.get(SPF1Utils.SPF1_RECORD) == null) {
+            spfData.signalResult(NO_SPF_RECORD);
+        }
+        return null;
+    }
 }
\ No newline at end of file
@@ -20,6 +20,7 @@
 package org.apache.james.jspf.policies;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSResponse;
 import org.apache.james.jspf.core.SPF1Constants;
@@ -53,12 +54,10 @@ public class SPFRetriever implements SPFChecker {
                 NoneException, TempErrorException,
                 NeutralException {
             
-            List<String> spfR;
             try {
-                spfR = response.getResponse();
-                String record = extractSPFRecord(spfR);
+                String record = extractSPFRecord(response.getRecords());
                 if (record != null) {
-                    session.setAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD, new SPF1Record(record));
+                    session.set(SPF1Utils.SPF1_RECORD, new SPF1Record(record));
                 }
             } catch (TimeoutException e) {
                 throw new TempErrorException("Timeout querying dns");
@@ -79,7 +78,7 @@ public class SPFRetriever implements SPFChecker {
                 throws PermErrorException, NoneException,
                 TempErrorException, NeutralException {
             try {
-                List<String> spfR = response.getResponse();
+                DNSRecords spfR = response.getRecords();
                 
                 if (spfR == null || spfR.isEmpty()) {
                     
@@ -90,7 +89,7 @@ public class SPFRetriever implements SPFChecker {
                     
                     String record = extractSPFRecord(spfR);
                     if (record != null) {
-                        session.setAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD, new SPF1Record(record));
+                        session.set(SPF1Utils.SPF1_RECORD, new SPF1Record(record));
                     }
                     
                 }
@@ -141,6 +140,34 @@ public class SPFRetriever implements SPFChecker {
         
         return returnValue;
     }
+
+    /**
+     * Return the extracted SPF-Record, scanning the raw TXT/SPF - Records
+     * for the version and converting only the matching one to a String
+     *  
+     * @param spfR the TXT/SPF - Records
+     * @return returnValue the extracted SPF-Record
+     * @throws PermErrorException if more then one SPF - Record was found in the 
+     *                            given records.
+     */
+    protected static String extractSPFRecord(DNSRecords spfR) throws PermErrorException {
+        if (spfR == null || spfR.isEmpty()) return null;
+
+        int found = -1;
+        for (int i = 0; i < spfR.size(); i++) {
+            if (spfR.hasTextTag(i, SPF1Constants.SPF_VERSION1)) {
+                if (found < 0) {
+                    found = i;
+                } else {
+                    throw new PermErrorException(
+                            "More than 1 SPF record found");
+                }
+            }
+        }
+
+        // DO NOT trim the result!
+        return found >= 0 ? spfR.getString(found) : null;
+    }
     
 
     /**
@@ -149,7 +176,7 @@ public class SPFRetriever implements SPFChecker {
     public DNSLookupContinuation checkSPF(SPFSession spfData)
             throws PermErrorException, TempErrorException, NeutralException,
             NoneException {
-        SPF1Record res = (SPF1Record) spfData.getAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD);
+        SPF1Record res = spfData.get(SPF1Utils.SPF1_RECORD);
         if (res == null) {
             String currentDomain = spfData.getCurrentDomain();
             if (CHECK_ONLY_TXT_RECORDS) {
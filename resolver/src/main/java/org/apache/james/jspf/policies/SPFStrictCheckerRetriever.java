@@ -20,6 +20,7 @@
 package org.apache.james.jspf.policies;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSResponse;
 import org.apache.james.jspf.core.SPF1Record;
@@ -32,8 +33,6 @@ import org.apache.james.jspf.core.exceptions.PermErrorException;
 import org.apache.james.jspf.core.exceptions.TempErrorException;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
 
-import java.util.List;
-
 /**
  * Get the raw dns txt or spf entry which contains a spf entry. If a domain
  * publish both, and both are not equals it throws a PermError
@@ -41,31 +40,30 @@ import java.util.List;
 public class SPFStrictCheckerRetriever extends SPFRetriever {
 
 
-    private static final String ATTRIBUTE_SPFSTRICT_CHECK_SPFRECORDS = "SPFStrictCheck.SPFRecords";
+    private static final SPFSession.Key<DNSRecords> ATTRIBUTE_SPFSTRICT_CHECK_SPFRECORDS = SPFSession.Key.register("SPFStrictCheck.SPFRecords");
     
     private static final class SPFStrictSPFRecordsDNSResponseListener implements SPFCheckerDNSResponseListener {
 
         /**
          * @see org.apache.james.jspf.core.SPFCheckerDNSResponseListener#onDNSResponse(org.apache.james.jspf.core.DNSResponse, org.apache.james.jspf.core.SPFSession)
          */
-        @SuppressWarnings("unchecked")
 		public DNSLookupContinuation onDNSResponse(
                 DNSResponse response, SPFSession session)
                 throws PermErrorException,
                 NoneException, TempErrorException,
                 NeutralException {
             
-            List<String> spfR = (List<String>) session.getAttribute(ATTRIBUTE_SPFSTRICT_CHECK_SPFRECORDS);
-            List<String> spfTxtR = null;
+            DNSRecords spfR = session.get(ATTRIBUTE_SPFSTRICT_CHECK_SPFRECORDS);
+            DNSRecords spfTxtR = null;
             try {
-                spfTxtR = response.getResponse();
+                spfTxtR = response.getRecords();
             } catch (TimeoutException e) {
                 throw new TempErrorException("Timeout querying dns");
             }
 
             String record = calculateSpfRecord(spfR, spfTxtR);
             if (record != null) {
-                session.setAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD, new SPF1Record(record));
+                session.set(SPF1Utils.SPF1_RECORD, new SPF1Record(record));
             }
 
             return null;
@@ -85,9 +83,9 @@ public class SPFStrictCheckerRetriever extends SPFRetriever {
                 throws PermErrorException, NoneException,
                 TempErrorException, NeutralException {
             try {
-                List<String> spfR = response.getResponse();
+                DNSRecords spfR = response.getRecords();
                 
-                session.setAttribute(ATTRIBUTE_SPFSTRICT_CHECK_SPFRECORDS, spfR);
+                session.set(ATTRIBUTE_SPFSTRICT_CHECK_SPFRECORDS, spfR);
                 
                 String currentDomain = session.getCurrentDomain();
                 return new DNSLookupContinuation(new DNSRequest(currentDomain, DNSRequest.TXT), new SPFStrictSPFRecordsDNSResponseListener());
@@ -107,7 +105,7 @@ public class SPFStrictCheckerRetriever extends SPFRetriever {
     public DNSLookupContinuation checkSPF(SPFSession spfData)
             throws PermErrorException, TempErrorException, NeutralException,
             NoneException {
-        SPF1Record res = (SPF1Record) spfData.getAttribute(SPF1Utils.ATTRIBUTE_SPF1_RECORD);
+        SPF1Record res = spfData.get(SPF1Utils.SPF1_RECORD);
         if (res == null) {
             String currentDomain = spfData.getCurrentDomain();
 
@@ -118,7 +116,7 @@ public class SPFStrictCheckerRetriever extends SPFRetriever {
     }
 
 
-    private static String calculateSpfRecord(List<String> spfR, List<String> spfTxtR)
+    private static String calculateSpfRecord(DNSRecords spfR, DNSRecords spfTxtR)
             throws PermErrorException {
         String spfR1 = null;
         String spfR2 = null;
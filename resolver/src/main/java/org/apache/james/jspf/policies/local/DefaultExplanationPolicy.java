@@ -51,7 +51,7 @@ public final class DefaultExplanationPolicy implements PolicyPostFilter {
                 throws PermErrorException,
                 NoneException, TempErrorException,
                 NeutralException {
-            String attExplanation = (String) spfData.getAttribute(ATTRIBUTE_DEFAULT_EXPLANATION_POLICY_EXPLANATION);
+            String attExplanation = spfData.get(ATTRIBUTE_DEFAULT_EXPLANATION_POLICY_EXPLANATION);
             try {
                 String explanation = macroExpand.expand(attExplanation, spfData, MacroExpand.EXPLANATION);
                 
@@ -74,6 +74,11 @@ public final class DefaultExplanationPolicy implements PolicyPostFilter {
         public DNSLookupContinuation checkSPF(SPFSession spfData) throws PermErrorException, NoneException, TempErrorException, NeutralException {
             
             if (SPF1Constants.FAIL.equals(spfData.getCurrentResult())) {  
+                if (spfData.isLazyExplanation()) {
+                    // decide once the explanation of the record is known
+                    spfData.deferExplanation(this);
+                    return null;
+                }
                 if (spfData.getExplanation()==null || spfData.getExplanation().equals("")) {
                     String explanation;
                     if (defExplanation == null) {
@@ -81,7 +86,7 @@ public final class DefaultExplanationPolicy implements PolicyPostFilter {
                     } else {
                         explanation = defExplanation;
                     }
-                    spfData.setAttribute(ATTRIBUTE_DEFAULT_EXPLANATION_POLICY_EXPLANATION, explanation);
+                    spfData.set(ATTRIBUTE_DEFAULT_EXPLANATION_POLICY_EXPLANATION, explanation);
                     spfData.pushChecker(explanationCheckr);
                     return macroExpand.checkExpand(explanation, spfData, MacroExpand.EXPLANATION);
                 }
@@ -107,7 +112,7 @@ public final class DefaultExplanationPolicy implements PolicyPostFilter {
 		}
     }
 
-    private static final String ATTRIBUTE_DEFAULT_EXPLANATION_POLICY_EXPLANATION = "DefaultExplanationPolicy.explanation";
+    private static final SPFSession.Key<String> ATTRIBUTE_DEFAULT_EXPLANATION_POLICY_EXPLANATION = SPFSession.Key.register("DefaultExplanationPolicy.explanation");
 
     /**
      * the default explanation
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSResponse;
 import org.apache.james.jspf.core.IPAddr;
@@ -48,7 +49,7 @@ import org.slf4j.LoggerFactory;
 public class AMechanism extends GenericMechanism implements SPFCheckerDNSResponseListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(AMechanism.class);
 
-    private static final String ATTRIBUTE_AMECHANISM_IPV4CHECK = "AMechanism.ipv4check";
+    private static final SPFSession.Key<Boolean> ATTRIBUTE_AMECHANISM_IPV4CHECK = SPFSession.Key.register("AMechanism.ipv4check");
 
     /**
      * ABNF: A = "a" [ ":" domain-spec ] [ dual-cidr-length ]
@@ -76,7 +77,7 @@ public class AMechanism extends GenericMechanism implements SPFCheckerDNSRespons
             // get the ipAddress
             try {
                 boolean validIPV4Address = Inet6Util.isValidIPV4Address(spfData.getIpAddress());
-                spfData.setAttribute(ATTRIBUTE_AMECHANISM_IPV4CHECK, Boolean.valueOf(validIPV4Address));
+                spfData.set(ATTRIBUTE_AMECHANISM_IPV4CHECK, Boolean.valueOf(validIPV4Address));
                 if (validIPV4Address) {
 
                     List<String> aRecords = getARecords(host);
@@ -169,11 +170,11 @@ public class AMechanism extends GenericMechanism implements SPFCheckerDNSRespons
 
             // Check for empty record
             if (ip != null) {
-                // set the mask in the address.
+                if (!IPAddr.isIPAddr(ip)) {
+                    throw new PermErrorException("Not a valid address: " + ip);
+                }
                 // TODO should we use cidr from the parameters or the input checkAddress cidr?
-                IPAddr ipAddr = IPAddr.getAddress(ip, checkAddress.getMaskLength());
-                if (checkAddress.getMaskedIPAddress().equals(
-                        ipAddr.getMaskedIPAddress())) {
+                if (checkAddress.contains(ip)) {
                     return true;
                 }
             }
@@ -181,6 +182,35 @@ public class AMechanism extends GenericMechanism implements SPFCheckerDNSRespons
         return false;
     }
 
+    /**
+     * Check if the given records contain an address in the network of the
+     * provided ip.
+     * 
+     * @param checkAddress
+     *            The ip (and mask) the addresses are checked against
+     * @param addressList
+     *            The A or AAAA records
+     * @return true or false
+     * @throws PermErrorException if a record is not a valid address
+     */
+    public boolean checkAddressList(IPAddr checkAddress, DNSRecords addressList) throws PermErrorException {
+        for (int i = 0; i < addressList.size(); i++) {
+            byte[] address = addressList.getAddress(i);
+            if (address == null) {
+                String ip = addressList.getString(i);
+                // Check for empty record
+                if (ip == null) {
+                    continue;
+                }
+                throw new PermErrorException("Not a valid address: " + ip);
+            }
+            if (checkAddress.contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @return Returns the ip4cidr.
      */
@@ -256,26 +286,26 @@ public class AMechanism extends GenericMechanism implements SPFCheckerDNSRespons
      */
     public DNSLookupContinuation onDNSResponse(DNSResponse response, SPFSession spfSession)
         throws PermErrorException, TempErrorException, NoneException, NeutralException {
-        List<String> listAData = null;
+        DNSRecords listAData = null;
         try {
-            listAData = response.getResponse();
+            listAData = response.getRecords();
         } catch (TimeoutException e) {
             throw new TempErrorException("Timeout querying dns server");
         }
         // no a records just return null
         if (listAData == null) {
-            spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+            spfSession.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
             return null;
         }
 
-        Boolean ipv4check = (Boolean) spfSession.getAttribute(ATTRIBUTE_AMECHANISM_IPV4CHECK);
+        Boolean ipv4check = spfSession.get(ATTRIBUTE_AMECHANISM_IPV4CHECK);
         if (ipv4check.booleanValue()) {
 
             IPAddr checkAddress = IPAddr.getAddress(spfSession.getIpAddress(),
                     getIp4cidr());
 
-            if (checkAddressList(checkAddress, listAData, getIp4cidr())) {
-                spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.TRUE);
+            if (checkAddressList(checkAddress, listAData)) {
+                spfSession.set(Directive.MECHANISM_RESULT, Boolean.TRUE);
                 return null;
             }
 
@@ -284,14 +314,14 @@ public class AMechanism extends GenericMechanism implements SPFCheckerDNSRespons
             IPAddr checkAddress = IPAddr.getAddress(spfSession.getIpAddress(),
                     getIp6cidr());
             
-            if (checkAddressList(checkAddress, listAData, getIp6cidr())) {
-                spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.TRUE);
+            if (checkAddressList(checkAddress, listAData)) {
+                spfSession.set(Directive.MECHANISM_RESULT, Boolean.TRUE);
                 return null;
             }
 
         }
         
-        spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+        spfSession.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
         return null;
     }
 
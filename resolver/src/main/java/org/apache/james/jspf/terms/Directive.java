@@ -46,7 +46,7 @@ public class Directive implements SPFChecker {
         public DNSLookupContinuation checkSPF(SPFSession spfData)
                 throws PermErrorException, TempErrorException,
                 NeutralException, NoneException {
-            Boolean res = (Boolean) spfData.getAttribute(ATTRIBUTE_MECHANISM_RESULT);
+            Boolean res = spfData.get(MECHANISM_RESULT);
             if (res != null ? res.booleanValue() : true) {
                 if (qualifier.equals("")) {
                     spfData.setCurrentResult(SPF1Constants.PASS);
@@ -65,6 +65,8 @@ public class Directive implements SPFChecker {
 
     public static final String ATTRIBUTE_MECHANISM_RESULT = "Mechanism.result";
 
+    public static final SPFSession.Key<Boolean> MECHANISM_RESULT = SPFSession.Key.register(ATTRIBUTE_MECHANISM_RESULT);
+
     protected String qualifier = "+";
 
     private Mechanism mechanism = null;
@@ -107,7 +109,7 @@ public class Directive implements SPFChecker {
         // if already have a current result we don't run this
         if (spfSession.getCurrentResult() == null && spfSession.getCurrentResultExpanded() == null) {
 
-            spfSession.removeAttribute(ATTRIBUTE_MECHANISM_RESULT);
+            spfSession.remove(MECHANISM_RESULT);
 
             spfSession.pushChecker(resultChecker);
             
@@ -21,6 +21,7 @@
 package org.apache.james.jspf.terms;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSResponse;
 import org.apache.james.jspf.core.MacroExpand;
@@ -34,7 +35,6 @@ import org.apache.james.jspf.core.exceptions.PermErrorException;
 import org.apache.james.jspf.core.exceptions.TempErrorException;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
 
-import java.util.List;
 
 /**
  * This class represent the exists mechanism
@@ -78,22 +78,22 @@ public class ExistsMechanism extends GenericMechanism implements SPFCheckerDNSRe
      * @see org.apache.james.jspf.core.SPFCheckerDNSResponseListener#onDNSResponse(org.apache.james.jspf.core.DNSResponse, org.apache.james.jspf.core.SPFSession)
      */
     public DNSLookupContinuation onDNSResponse(DNSResponse response, SPFSession spfSession) throws PermErrorException, TempErrorException {
-        List<String> aRecords;
+        DNSRecords aRecords;
         
         try {
-            aRecords = response.getResponse();
+            aRecords = response.getRecords();
         } catch (TimeoutException e) {
-            spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+            spfSession.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
             return null;
         }
         
-        if (aRecords != null && aRecords.size() > 0) {
-            spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.TRUE);
+        if (aRecords != null && !aRecords.isEmpty()) {
+            spfSession.set(Directive.MECHANISM_RESULT, Boolean.TRUE);
             return null;
         }
         
         // No match found
-        spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+        spfSession.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
         return null;
     }
 
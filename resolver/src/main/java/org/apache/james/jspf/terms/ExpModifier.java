@@ -57,7 +57,7 @@ public class ExpModifier extends GenericModifier implements MacroExpandEnabled,
                 throws PermErrorException, NoneException,
                 TempErrorException, NeutralException {
             try {
-                String exp = (String) spfData.getAttribute(ATTRIBUTE_EXPAND_EXPLANATION);
+                String exp = spfData.get(ATTRIBUTE_EXPAND_EXPLANATION);
                 String expandedExplanation = macroExpand.expand(exp, spfData, MacroExpand.EXPLANATION);
                 spfData.setExplanation(expandedExplanation);
             } catch (PermErrorException e) {
@@ -82,7 +82,20 @@ public class ExpModifier extends GenericModifier implements MacroExpandEnabled,
     }
 
 
-    private static final String ATTRIBUTE_EXPAND_EXPLANATION = "ExpModifier.ExpandExplanation";
+    private final class ExplanationChecker implements SPFChecker {
+
+        /**
+         * @see org.apache.james.jspf.core.SPFChecker#checkSPF(org.apache.james.jspf.core.SPFSession)
+         */
+        public DNSLookupContinuation checkSPF(SPFSession spfData) throws PermErrorException,
+                NoneException, TempErrorException, NeutralException {
+            spfData.pushChecker(expandedChecker);
+            return macroExpand.checkExpand(getHost(), spfData, MacroExpand.DOMAIN);
+        }
+    }
+
+
+    private static final SPFSession.Key<String> ATTRIBUTE_EXPAND_EXPLANATION = SPFSession.Key.register("ExpModifier.ExpandExplanation");
 
     /**
      * ABNF: explanation = "exp" "=" domain-spec
@@ -103,9 +116,12 @@ public class ExpModifier extends GenericModifier implements MacroExpandEnabled,
 
     private ExpandedExplanationChecker expandedExplanationChecker = new ExpandedExplanationChecker();
 
+    private ExplanationChecker explanationChecker = new ExplanationChecker();
+
     /**
      * Generate the explanation and set it in SPF1Data so it can be accessed
-     * easy later if needed
+     * easy later if needed, or defer it until it is asked for if the
+     * explanation is lazy
      * 
      * @param spfData
      *            The SPF1Data which should used
@@ -131,8 +147,12 @@ public class ExpModifier extends GenericModifier implements MacroExpandEnabled,
         if (spfData.getCurrentResult()== null || !spfData.getCurrentResult().equals(SPF1Constants.FAIL))
             return null;
 
-        spfData.pushChecker(expandedChecker);
-        return macroExpand.checkExpand(host, spfData, MacroExpand.DOMAIN);
+        if (spfData.isLazyExplanation()) {
+            spfData.deferExplanation(explanationChecker);
+            return null;
+        }
+
+        return explanationChecker.checkSPF(spfData);
     }
 
     /**
@@ -179,7 +199,7 @@ public class ExpModifier extends GenericModifier implements MacroExpandEnabled,
                     exp = exp.substring(1, exp.length() - 1);
                 }
 
-                spfData.setAttribute(ATTRIBUTE_EXPAND_EXPLANATION, exp);
+                spfData.set(ATTRIBUTE_EXPAND_EXPLANATION, exp);
                 
                 if ((exp != null) && (!exp.equals(""))) {
                     
@@ -91,10 +91,10 @@ public class IncludeMechanism implements Mechanism, ConfigurationEnabled, SPFChe
                 throw new TempErrorException("included checkSPF returned null");
             } else if (currentResult.equals(SPF1Constants.PASS)) {
                 // TODO this won't work asynchronously
-                spfData.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.TRUE);
+                spfData.set(Directive.MECHANISM_RESULT, Boolean.TRUE);
             } else if (currentResult.equals(SPF1Constants.FAIL) || currentResult.equals(SPF1Constants.SOFTFAIL) || currentResult.equals(SPF1Constants.NEUTRAL)) {
                 // TODO this won't work asynchronously
-                spfData.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+                spfData.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
             } else {
                 throw new TempErrorException("included checkSPF returned an Illegal result");
             }
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.james.jspf.core.DNSLookupContinuation;
+import org.apache.james.jspf.core.DNSRecords;
 import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSResponse;
 import org.apache.james.jspf.core.IPAddr;
@@ -39,6 +40,7 @@ import org.apache.james.jspf.core.exceptions.TempErrorException;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Name;
 
 /**
  * This class represent the mx mechanism
@@ -62,8 +64,8 @@ public class MXMechanism extends AMechanism implements SPFCheckerDNSResponseList
         }
     }
 
-    private static final String ATTRIBUTE_MX_RECORDS = "MXMechanism.mxRecords";
-    private static final String ATTRIBUTE_CHECK_RECORDS = "MXMechanism.checkRecords";
+    private static final SPFSession.Key<List<byte[]>> ATTRIBUTE_MX_RECORDS = SPFSession.Key.register("MXMechanism.mxRecords");
+    private static final SPFSession.Key<List<Name>> ATTRIBUTE_CHECK_RECORDS = SPFSession.Key.register("MXMechanism.checkRecords");
     /**
      * ABNF: MX = "mx" [ ":" domain-spec ] [ dual-cidr-length ]
      */
@@ -89,36 +91,44 @@ public class MXMechanism extends AMechanism implements SPFCheckerDNSResponseList
     /**
      * @see org.apache.james.jspf.terms.AMechanism#onDNSResponse(org.apache.james.jspf.core.DNSResponse, org.apache.james.jspf.core.SPFSession)
      */
-    @SuppressWarnings("unchecked")
 	public DNSLookupContinuation onDNSResponse(DNSResponse response, SPFSession spfSession)
         throws PermErrorException, TempErrorException, NoneException, NeutralException {
         try {
             
-            List<String> records = (List<String>) spfSession.getAttribute(ATTRIBUTE_CHECK_RECORDS);
-            List<String> mxR = (List<String>) spfSession.getAttribute(ATTRIBUTE_MX_RECORDS);
+            List<Name> records = spfSession.get(ATTRIBUTE_CHECK_RECORDS);
+            List<byte[]> mxR = spfSession.get(ATTRIBUTE_MX_RECORDS);
 
             if (records == null) {
             
-                records = response.getResponse();
+                DNSRecords mxRecords = response.getRecords();
 
-                if (records == null) {
+                if (mxRecords == null) {
                     // no mx record found
-                    spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+                    spfSession.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
                     return null;
                 }
                 
-                spfSession.setAttribute(ATTRIBUTE_CHECK_RECORDS, records);
+                records = new ArrayList<Name>(mxRecords.size());
+                for (int i = 0; i < mxRecords.size(); i++) {
+                    records.add(mxRecords.getName(i));
+                }
+                spfSession.set(ATTRIBUTE_CHECK_RECORDS, records);
                 
             } else {
                 
-                List<String> res = response.getResponse();
+                DNSRecords res = response.getRecords();
 
                 if (res != null) {
                     if (mxR == null) {
-                        mxR = new ArrayList<String>();
-                        spfSession.setAttribute(ATTRIBUTE_MX_RECORDS, mxR);
+                        mxR = new ArrayList<byte[]>();
+                        spfSession.set(ATTRIBUTE_MX_RECORDS, mxR);
+                    }
+                    for (int i = 0; i < res.size(); i++) {
+                        byte[] address = res.getAddress(i);
+                        if (address != null) {
+                            mxR.add(address);
+                        }
                     }
-                    mxR.addAll(res);
                 }
                 
             }
@@ -126,8 +136,8 @@ public class MXMechanism extends AMechanism implements SPFCheckerDNSResponseList
             // if the remote IP is an ipv6 we check ipv6 addresses, otherwise ip4
             boolean isIPv6 = IPAddr.isIPV6(spfSession.getIpAddress());
 
-            String mx;
-            while (records.size() > 0 && (mx = records.remove(0)) != null && mx.length() > 0) {
+            Name mx;
+            while (records.size() > 0 && (mx = records.remove(0)) != null) {
                 LOGGER.debug("Add MX-Record {} to list", mx);
 
                 return new DNSLookupContinuation(new DNSRequest(mx, isIPv6 ? DNSRequest.AAAA : DNSRequest.A), MXMechanism.this);
@@ -136,7 +146,7 @@ public class MXMechanism extends AMechanism implements SPFCheckerDNSResponseList
                 
             // no mx record found
             if (mxR == null || mxR.size() == 0) {
-                spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+                spfSession.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
                 return null;
             }
 
@@ -145,14 +155,14 @@ public class MXMechanism extends AMechanism implements SPFCheckerDNSResponseList
             checkAddress = IPAddr.getAddress(spfSession.getIpAddress(), isIPv6 ? getIp6cidr() : getIp4cidr());
             
             // clean up attributes
-            spfSession.removeAttribute(ATTRIBUTE_CHECK_RECORDS);
-            spfSession.removeAttribute(ATTRIBUTE_MX_RECORDS);
-            spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.valueOf(checkAddressList(checkAddress, mxR, getIp4cidr())));
+            spfSession.remove(ATTRIBUTE_CHECK_RECORDS);
+            spfSession.remove(ATTRIBUTE_MX_RECORDS);
+            spfSession.set(Directive.MECHANISM_RESULT, Boolean.valueOf(checkAddressList(checkAddress, DNSRecords.ofAddresses(mxR))));
             return null;
             
         } catch (TimeoutException e) {
-            spfSession.setAttribute(ATTRIBUTE_CHECK_RECORDS, null);
-            spfSession.setAttribute(ATTRIBUTE_MX_RECORDS, null);
+            spfSession.set(ATTRIBUTE_CHECK_RECORDS, null);
+            spfSession.set(ATTRIBUTE_MX_RECORDS, null);
             throw new TempErrorException("Timeout querying the dns server");
         }
     }
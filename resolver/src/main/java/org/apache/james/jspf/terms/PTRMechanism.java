@@ -20,15 +20,10 @@
 
 package org.apache.james.jspf.terms;
 
+import org.apache.james.jspf.core.ClientDomainResolver;
 import org.apache.james.jspf.core.DNSLookupContinuation;
-import org.apache.james.jspf.core.DNSRequest;
-import org.apache.james.jspf.core.DNSResponse;
-import org.apache.james.jspf.core.DNSService;
-import org.apache.james.jspf.core.DNSServiceEnabled;
-import org.apache.james.jspf.core.IPAddr;
 import org.apache.james.jspf.core.MacroExpand;
 import org.apache.james.jspf.core.SPFChecker;
-import org.apache.james.jspf.core.SPFCheckerDNSResponseListener;
 import org.apache.james.jspf.core.SPFSession;
 import org.apache.james.jspf.core.SPFTermsRegexps;
 import org.apache.james.jspf.core.exceptions.NeutralException;
@@ -37,30 +32,13 @@ import org.apache.james.jspf.core.exceptions.PermErrorException;
 import org.apache.james.jspf.core.exceptions.TempErrorException;
 import org.apache.james.jspf.core.exceptions.TimeoutException;
 
-import java.util.List;
-
 /**
  * This class represent the ptr mechanism
  * 
  */
-public class PTRMechanism extends GenericMechanism implements DNSServiceEnabled, SPFCheckerDNSResponseListener {
+public class PTRMechanism extends GenericMechanism implements ClientDomainResolver.Listener {
 
     private final class ExpandedChecker implements SPFChecker {
-        private CleanupChecker cleanupChecker = new CleanupChecker();
-
-        private final class CleanupChecker implements SPFChecker {
-
-            /**
-             * @see org.apache.james.jspf.core.SPFChecker#checkSPF(org.apache.james.jspf.core.SPFSession)
-             */
-            public DNSLookupContinuation checkSPF(SPFSession spfData)
-                    throws PermErrorException, TempErrorException,
-                    NeutralException, NoneException {
-                spfData.removeAttribute(ATTRIBUTE_DOMAIN_LIST);
-                spfData.removeAttribute(ATTRIBUTE_CURRENT_DOMAIN);
-                return null;
-            }
-        }
 
         /**
          * @see org.apache.james.jspf.core.SPFChecker#checkSPF(org.apache.james.jspf.core.SPFSession)
@@ -68,33 +46,23 @@ public class PTRMechanism extends GenericMechanism implements DNSServiceEnabled,
         public DNSLookupContinuation checkSPF(SPFSession spfData) throws PermErrorException,
                 TempErrorException, NeutralException, NoneException {
 
-            // Get PTR Records for the ipAddress which is provided by SPF1Data
-            IPAddr ip = IPAddr.getAddress(spfData.getIpAddress());
-
             // Get the right host.
             String host = expandHost(spfData);
             
-            spfData.setAttribute(ATTRIBUTE_EXPANDED_HOST, host);
-            
-            spfData.pushChecker(cleanupChecker);
+            spfData.set(ATTRIBUTE_EXPANDED_HOST, host);
 
-            return new DNSLookupContinuation(new DNSRequest(ip.getReverseIP(), DNSRequest.PTR), PTRMechanism.this);
+            // Get the validated names of the ipAddress which is provided by SPF1Data
+            return macroExpand.getClientDomainResolver().resolve(spfData, PTRMechanism.this);
         }
     }
 
-    private static final String ATTRIBUTE_CURRENT_DOMAIN = "PTRMechanism.currentDomain";
-
-    private static final String ATTRIBUTE_EXPANDED_HOST = "PTRMechanism.expandedHost";
-
-    private static final String ATTRIBUTE_DOMAIN_LIST = "PTRMechanism.domainListCheck";
+    private static final SPFSession.Key<String> ATTRIBUTE_EXPANDED_HOST = SPFSession.Key.register("PTRMechanism.expandedHost");
 
     /**
      * ABNF: PTR = "ptr" [ ":" domain-spec ]
      */
     public static final String REGEX = "[pP][tT][rR]" + "(?:\\:"
             + SPFTermsRegexps.DOMAIN_SPEC_REGEX + ")?";
-    
-    private DNSService dnsService;
 
     private SPFChecker expandedChecker = new ExpandedChecker();
 
@@ -111,91 +79,32 @@ public class PTRMechanism extends GenericMechanism implements DNSServiceEnabled,
     }
 
     /**
-     * @see org.apache.james.jspf.core.DNSServiceEnabled#enableDNSService(org.apache.james.jspf.core.DNSService)
-     */
-    public void enableDNSService(DNSService service) {
-        this.dnsService = service;
-    }
-
-    /**
-     * @see org.apache.james.jspf.core.SPFCheckerDNSResponseListener#onDNSResponse(org.apache.james.jspf.core.DNSResponse, org.apache.james.jspf.core.SPFSession)
+     * @see org.apache.james.jspf.core.ClientDomainResolver.Listener#onResolved(org.apache.james.jspf.core.ClientDomainResolver.ValidatedNames, org.apache.james.jspf.core.SPFSession)
      */
-    @SuppressWarnings("unchecked")
-	public DNSLookupContinuation onDNSResponse(DNSResponse response, SPFSession spfSession)
+    public DNSLookupContinuation onResolved(ClientDomainResolver.ValidatedNames names, SPFSession spfSession)
             throws PermErrorException, TempErrorException, NoneException, NeutralException {
-        
-        List<String> domainList = (List<String>) spfSession.getAttribute(ATTRIBUTE_DOMAIN_LIST);
+
+        String host = spfSession.remove(ATTRIBUTE_EXPANDED_HOST);
         try {
-            if (domainList == null) {
-            
-                domainList = response.getResponse();
-                
-                // No PTR records found
-                if (domainList == null) {
-                    spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
+            names.getPTRResponse().getRecords();
+
+            for (int i = 0; i < names.size(); i++) {
+                spfSession.countVoidLookup(names.getRequest(i), names.getResponse(i));
+                names.getResponse(i).getRecords();
+
+                String compareDomain = names.getName(i);
+                if (names.isValidated(i)
+                        && (compareDomain.equals(host) || compareDomain.endsWith("." + host))) {
+                    spfSession.set(Directive.MECHANISM_RESULT, Boolean.TRUE);
                     return null;
                 }
-        
-                // check if the maximum lookup count is reached
-                if (dnsService.getRecordLimit() > 0 && domainList.size() > dnsService.getRecordLimit()) {
-                    // Truncate the PTR list to getRecordLimit.
-                    // See #ptr-limit rfc4408 test
-                    domainList = domainList.subList(0, dnsService.getRecordLimit()-1);
-                    // throw new PermErrorException("Maximum PTR lookup count reached");
-                }
-                
-                spfSession.setAttribute(ATTRIBUTE_DOMAIN_LIST, domainList);
-                
-            } else {
-
-                String compareDomain = (String) spfSession.getAttribute(ATTRIBUTE_CURRENT_DOMAIN);
-                String host = (String) spfSession.getAttribute(ATTRIBUTE_EXPANDED_HOST);
-    
-                List<String> aList = response.getResponse();
-    
-
-                if (aList != null) {
-                    for (int j = 0; j < aList.size(); j++) {
-                        // Added the IPAddr parsing/toString to have matching in IPV6 multiple ways to 
-                        if (IPAddr.getAddress((String) aList.get(j)).getIPAddress().equals(IPAddr.getAddress(spfSession.getIpAddress()).getIPAddress())) {
-                            
-                            if (compareDomain.equals(host)
-                                    || compareDomain.endsWith("." + host)) {
-                                spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.TRUE);
-                                return null;
-                            }
-                        }
-                    }
-                }
-            
             }
         } catch (TimeoutException e) {
             throw new TempErrorException("Timeout querying the dns server");
         }
-        
-
-        if (domainList.size() > 0) {
-            String currentDomain = (String) domainList.remove(0);
-    
-            DNSRequest dnsRequest;
-            // check if the connecting ip is ip6. If so lookup AAAA record
-            if (IPAddr.isIPV6(spfSession.getIpAddress())) {
-                // Get aaaa record for this
-                dnsRequest = new DNSRequest(currentDomain, DNSRequest.AAAA);
-            } else {
-                // Get a record for this
-                dnsRequest = new DNSRequest(currentDomain, DNSRequest.A);
-            }
-            
-            spfSession.setAttribute(ATTRIBUTE_CURRENT_DOMAIN, currentDomain);
-            
-            return new DNSLookupContinuation(dnsRequest, PTRMechanism.this);
-        } else {
-            spfSession.setAttribute(Directive.ATTRIBUTE_MECHANISM_RESULT, Boolean.FALSE);
-            return null;
-        }
 
+        spfSession.set(Directive.MECHANISM_RESULT, Boolean.FALSE);
+        return null;
     }
 
-
 }
@@ -22,6 +22,7 @@ package org.apache.james.jspf;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -46,6 +47,7 @@ import org.apache.james.jspf.executor.StagedMultipleSPFExecutor;
 import org.apache.james.jspf.executor.SynchronousSPFExecutor;
 import org.apache.james.jspf.impl.DNSServiceAsynchSimulator;
 import org.apache.james.jspf.impl.DNSServiceXBillImpl;
+import org.apache.james.jspf.impl.DNSServiceZoneImpl;
 import org.apache.james.jspf.impl.DefaultTermsFactory;
 import org.apache.james.jspf.impl.SPF;
 import org.apache.james.jspf.parser.RFC4408SPF1Parser;
@@ -73,6 +75,7 @@ public abstract class AbstractYamlTest extends TestCase {
     protected static final int MOCK_SERVICE = 2;
     protected static final int FAKE_SERVER = 1;
     protected static final int REAL_SERVER = 3;
+    protected static final int ZONE_SERVICE = 4;
     private int dnsServiceMockStyle = MOCK_SERVICE;
 
     protected static final int SYNCHRONOUS_EXECUTOR = 1;
@@ -266,6 +269,7 @@ public abstract class AbstractYamlTest extends TestCase {
             case MOCK_SERVICE: return getDNSServiceMockedDNSService();
             case FAKE_SERVER: return getDNSServiceFakeServer();
             case REAL_SERVER: return getDNSServiceReal();
+            case ZONE_SERVICE: return getDNSServiceZoneService();
             default: 
                 throw new UnsupportedOperationException("Unsupported mock style");
         }
@@ -318,6 +322,20 @@ public abstract class AbstractYamlTest extends TestCase {
         return serviceXBillImpl;
     }
     
+    /**
+     * @return an in-process service answering from the zone data
+     */
+    @SuppressWarnings("unchecked")
+    protected DNSService getDNSServiceZoneService() {
+        try {
+            DNSServiceZoneImpl zoneService = DNSServiceZoneImpl.fromZoneData((Map<String, List<?>>) data.getZonedata());
+            zoneService.setLocalDomainNames(Collections.singletonList("localdomain.foo.bar"));
+            return zoneService;
+        } catch (IOException e) {
+            throw new RuntimeException("Error trying to load the zone data.", e);
+        }
+    }
+
     /**
      * @return a real dns resolver
      */
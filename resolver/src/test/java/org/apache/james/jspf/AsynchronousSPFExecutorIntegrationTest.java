@@ -20,15 +20,23 @@
 package org.apache.james.jspf;
 
 import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
 import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.executor.FutureSPFResult;
 import org.apache.james.jspf.impl.DefaultSPF;
 import org.apache.james.jspf.impl.SPF;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.SimpleResolver;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Class to run the tests using {@link AsynchronousSPFExecutor}
  */
@@ -52,4 +60,18 @@ public class AsynchronousSPFExecutorIntegrationTest extends SPFExecutorBaseTest
     protected SPF createCustomSPF(DNSService dnsService) {
         return new SPF(dnsService, new AsynchronousSPFExecutor(dnsService));
     }
+
+    @Test
+    public void shouldReturnTempErrorWhenTheCallerCancels() throws IOException {
+        String hostname = "shouldReturnTempErrorWhenTheCallerCancels.spfexecutor.fake";
+        String ip = "192.0.2.127";
+
+        HangingDNSService dnsService = new HangingDNSService(hangingResolver(hostname));
+        SPF spf = createCustomSPF(dnsService);
+
+        FutureSPFResult result = (FutureSPFResult) spf.checkSPF(ip, "a_user@" + hostname, hostname);
+        assertTrue(result.cancel());
+        assertEquals(SPFErrorConstants.TEMP_ERROR_CONV, result.getResult());
+        assertFalse(result.cancel());
+    }
 }
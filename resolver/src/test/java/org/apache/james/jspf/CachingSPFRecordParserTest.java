@@ -0,0 +1,64 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import org.apache.james.jspf.core.SPF1Record;
+import org.apache.james.jspf.core.exceptions.PermErrorException;
+import org.apache.james.jspf.impl.DefaultTermsFactory;
+import org.apache.james.jspf.parser.CachingSPFRecordParser;
+import org.apache.james.jspf.parser.RFC4408SPF1Parser;
+import org.apache.james.jspf.terms.Modifier;
+import org.junit.Test;
+
+public class CachingSPFRecordParserTest {
+
+    private final CachingSPFRecordParser parser = new CachingSPFRecordParser(new RFC4408SPF1Parser(new DefaultTermsFactory()));
+
+    @Test
+    public void shouldReturnCopiesOfTheCachedRecord() throws Exception {
+        SPF1Record first = parser.parse("v=spf1 mx -all");
+        first.getModifiers().add((Modifier) parser.parse("v=spf1 exp=example.com").getModifiers().get(0));
+
+        SPF1Record second = parser.parse("v=spf1 mx -all");
+        assertNotSame(first, second);
+        assertEquals(2, second.getDirectives().size());
+        assertEquals(0, second.getModifiers().size());
+        assertEquals(first.getDirectives().get(0), second.getDirectives().get(0));
+        assertEquals(1, parser.getHitCount());
+        assertEquals(2, parser.getMissCount());
+    }
+
+    @Test
+    public void shouldCacheSyntaxErrors() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            try {
+                parser.parse("v=spf1 foo:bar:baz");
+                fail("Expected a PermErrorException");
+            } catch (PermErrorException e) {
+                // expected
+            }
+        }
+        assertEquals(1, parser.getHitCount());
+    }
+}
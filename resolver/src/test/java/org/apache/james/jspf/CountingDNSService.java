@@ -0,0 +1,135 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.IPAddr;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+
+/**
+ * Counts the lookups sent to a DNSService, by record type and name.
+ */
+public class CountingDNSService implements DNSService {
+
+    private final DNSService dnsService;
+
+    private final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public CountingDNSService(DNSService service) {
+        this.dnsService = service;
+    }
+
+    /**
+     * @param key a record type, such as "PTR", or a type and a name, such
+     *        as "A:mail.example.com"
+     * @return the number of lookups of the type, or of the type and name
+     */
+    public int getLookupCount(String key) {
+        int count = 0;
+        for (Map.Entry<String, AtomicInteger> entry : lookups.entrySet()) {
+            if (entry.getKey().equals(key) || entry.getKey().startsWith(key + ":")) {
+                count += entry.getValue().get();
+            }
+        }
+        return count;
+    }
+
+    private void count(DNSRequest request) {
+        String type;
+        switch (request.getRecordType()) {
+        case DNSRequest.A: type = "A"; break;
+        case DNSRequest.AAAA: type = "AAAA"; break;
+        case DNSRequest.MX: type = "MX"; break;
+        case DNSRequest.PTR: type = "PTR"; break;
+        case DNSRequest.TXT: type = "TXT"; break;
+        default: type = "SPF"; break;
+        }
+        String key = type + ":" + IPAddr.stripDot(request.getHostname());
+        lookups.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public List<String> getRecords(DNSRequest request) throws TimeoutException {
+        count(request);
+        return dnsService.getRecords(request);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+        count(request);
+        return dnsService.getRecordsAsync(request);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecords(org.apache.james.jspf.core.DNSRequest)
+     */
+    public DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+        count(request);
+        return dnsService.getDNSRecords(request);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getDNSRecordsAsync(org.apache.james.jspf.core.DNSRequest)
+     */
+    public CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+        count(request);
+        return dnsService.getDNSRecordsAsync(request);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getLocalDomainNames()
+     */
+    public List<String> getLocalDomainNames() {
+        return dnsService.getLocalDomainNames();
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setTimeOut(int)
+     */
+    public void setTimeOut(int timeOut) {
+        dnsService.setTimeOut(timeOut);
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#getRecordLimit()
+     */
+    public int getRecordLimit() {
+        return dnsService.getRecordLimit();
+    }
+
+    /**
+     * @see org.apache.james.jspf.core.DNSService#setRecordLimit(int)
+     */
+    public void setRecordLimit(int recordLimit) {
+        dnsService.setRecordLimit(recordLimit);
+    }
+}
@@ -0,0 +1,302 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.apache.james.jspf.cache.OffHeapDNSCacheStore;
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.SPF1Record;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.impl.DNSServiceCachingImpl;
+import org.apache.james.jspf.parser.CachingSPFRecordParser;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DNSServiceCachingImplTest {
+
+    /**
+     * A DNSService answering with the configured outcome.
+     */
+    private static final class ScriptedDNSService implements DNSService {
+
+        private DNSRecords records;
+
+        private boolean failing = false;
+
+        private boolean hanging = false;
+
+        private int queries = 0;
+
+        public void setTimeOut(int timeOut) {
+        }
+
+        public List<String> getLocalDomainNames() {
+            return new ArrayList<String>();
+        }
+
+        public int getRecordLimit() {
+            return 10;
+        }
+
+        public void setRecordLimit(int recordLimit) {
+        }
+
+        public List<String> getRecords(DNSRequest request) throws TimeoutException {
+            DNSRecords result = getDNSRecords(request);
+            return result != null ? result.asStrings() : null;
+        }
+
+        public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+            return getDNSRecordsAsync(request).thenApply(result -> result != null ? result.asStrings() : null);
+        }
+
+        public synchronized DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+            queries++;
+            if (failing || hanging) {
+                throw new TimeoutException("Timed out");
+            }
+            return records;
+        }
+
+        public synchronized CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+            queries++;
+            CompletableFuture<DNSRecords> future = new CompletableFuture<DNSRecords>();
+            if (failing) {
+                future.completeExceptionally(new TimeoutException("Timed out"));
+            } else if (!hanging) {
+                future.complete(records);
+            }
+            return future;
+        }
+    }
+
+    private ScriptedDNSService upstream;
+
+    private DNSServiceCachingImpl dnsService;
+
+    private DNSRequest request;
+
+    @Before
+    public void setUp() throws Exception {
+        request = new DNSRequest("example.com", DNSRequest.TXT);
+        upstream = new ScriptedDNSService();
+        dnsService = new DNSServiceCachingImpl(upstream);
+        dnsService.setStaleAnswerTimeout(200);
+    }
+
+    private static DNSRecords txt(String text, long ttl) {
+        return DNSRecords.ofStrings(Arrays.asList(text)).withTTL(ttl);
+    }
+
+    @Test
+    public void shouldAnswerFromTheCacheWithinTheTTL() throws Exception {
+        upstream.records = txt("v=spf1 -all", 60);
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecords(request));
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecordsAsync(request).toCompletableFuture().get());
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecords(new DNSRequest("EXAMPLE.com.", DNSRequest.TXT)));
+        assertEquals(1, upstream.queries);
+    }
+
+    @Test
+    public void shouldRefreshExpiredAnswers() throws Exception {
+        upstream.records = txt("v=spf1 -all", 0);
+        dnsService.getRecords(request);
+        upstream.records = txt("v=spf1 +all", 60);
+        assertEquals(Arrays.asList("v=spf1 +all"), dnsService.getRecords(request));
+        assertEquals(0, dnsService.getStaleAnswerCount());
+    }
+
+    @Test
+    public void shouldServeExpiredAnswersWhenTheRefreshFails() throws Exception {
+        upstream.records = txt("v=spf1 -all", 0);
+        dnsService.getRecords(request);
+        upstream.failing = true;
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecords(request));
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecordsAsync(request).toCompletableFuture().get());
+        assertEquals(2, dnsService.getStaleAnswerCount());
+        // the failed refresh is not retried right away
+        assertEquals(2, upstream.queries);
+    }
+
+    @Test
+    public void shouldServeExpiredAnswersWhenTheRefreshIsSlow() throws Exception {
+        upstream.records = txt("v=spf1 -all", 0);
+        dnsService.getRecords(request);
+        upstream.hanging = true;
+        long start = System.currentTimeMillis();
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecordsAsync(request).toCompletableFuture().get());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, dnsService.getStaleAnswerCount());
+    }
+
+    @Test
+    public void shouldCacheMissingRecords() throws Exception {
+        assertNull(dnsService.getRecords(request));
+        assertNull(dnsService.getRecordsAsync(request).toCompletableFuture().get());
+        assertEquals(1, upstream.queries);
+    }
+
+    @Test
+    public void shouldFailOnceTheExpiredAnswerIsTooOld() throws Exception {
+        dnsService.setMaxStale(0);
+        upstream.records = txt("v=spf1 -all", 0);
+        dnsService.getRecords(request);
+        upstream.failing = true;
+        try {
+            dnsService.getRecords(request);
+            fail("Expected a TimeoutException");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldRefreshUsedAnswersAheadOfTheirExpiration() throws Exception {
+        dnsService.setRefreshAhead(100);
+        upstream.records = txt("v=spf1 -all", 60);
+        dnsService.getRecords(request);
+        upstream.records = txt("v=spf1 +all", 60);
+        // served from the cache, refreshed in the background
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecords(request));
+        assertEquals(1, dnsService.getRefreshAheadCount());
+        assertEquals(2, upstream.queries);
+        assertEquals(Arrays.asList("v=spf1 +all"), dnsService.getRecordsAsync(request).toCompletableFuture().get());
+        assertEquals(0, dnsService.getRefreshesAheadInFlight());
+    }
+
+    @Test
+    public void shouldBoundTheRefreshesAhead() throws Exception {
+        dnsService.setRefreshAhead(100);
+        dnsService.setMaxRefreshesAhead(1);
+        upstream.records = txt("v=spf1 -all", 60);
+        dnsService.getRecords(request);
+        dnsService.getRecords(new DNSRequest("example.org", DNSRequest.TXT));
+        upstream.hanging = true;
+        dnsService.getRecords(request);
+        dnsService.getRecords(new DNSRequest("example.org", DNSRequest.TXT));
+        assertEquals(1, dnsService.getRefreshAheadCount());
+        assertEquals(1, dnsService.getSkippedRefreshAheadCount());
+        assertEquals(1, dnsService.getRefreshesAheadInFlight());
+    }
+
+    @Test
+    public void shouldParseTheRefreshedRecordsWhoseTextChanged() throws Exception {
+        final List<String> parsed = new ArrayList<String>();
+        CachingSPFRecordParser parser = new CachingSPFRecordParser(spfRecord -> {
+            parsed.add(spfRecord);
+            return new SPF1Record(spfRecord);
+        });
+        dnsService.setRecordParser(parser);
+        dnsService.setRefreshAhead(100);
+        upstream.records = txt("v=spf1 -all", 60);
+        dnsService.getRecords(request);
+        dnsService.getRecords(request);
+        assertTrue(parsed.isEmpty());
+
+        upstream.records = DNSRecords.ofStrings(Arrays.asList("google-site-verification=abc", "v=spf1 +all")).withTTL(60);
+        dnsService.getRecords(request);
+        assertEquals(Arrays.asList("v=spf1 +all"), parsed);
+        assertEquals("v=spf1 +all", parser.parse("v=spf1 +all").getRecord());
+        assertEquals(1, parser.getHitCount());
+    }
+
+    @Test
+    public void shouldCacheTheAnswersOffHeap() throws Exception {
+        dnsService = new DNSServiceCachingImpl(upstream, new OffHeapDNSCacheStore(1024 * 1024));
+        upstream.records = txt("v=spf1 -all", 60);
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecords(request));
+        assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecordsAsync(request).toCompletableFuture().get());
+        assertEquals(1, upstream.queries);
+        assertEquals(1, dnsService.getHitCount());
+    }
+
+    @Test
+    public void shouldRestoreTheAnswersSavedInASnapshot() throws Exception {
+        Path file = Files.createTempFile("jspf-dns", ".snapshot");
+        try {
+            upstream.records = txt("v=spf1 -all", 60);
+            dnsService.getRecords(request);
+            upstream.records = txt("v=spf1 +all", 0);
+            dnsService.getRecords(new DNSRequest("expired.example.com", DNSRequest.TXT));
+            assertEquals(2, dnsService.saveSnapshot(file));
+
+            ScriptedDNSService restarted = new ScriptedDNSService();
+            dnsService = new DNSServiceCachingImpl(restarted);
+            dnsService.setSnapshotRefreshCount(0);
+            assertEquals(1, dnsService.loadSnapshot(file));
+            assertEquals(Arrays.asList("v=spf1 -all"), dnsService.getRecords(request));
+            assertEquals(0, restarted.queries);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void shouldRefreshTheMostUsedRestoredAnswers() throws Exception {
+        Path file = Files.createTempFile("jspf-dns", ".snapshot");
+        try {
+            upstream.records = txt("v=spf1 -all", 60);
+            dnsService.getRecords(request);
+            dnsService.getRecords(new DNSRequest("example.org", DNSRequest.TXT));
+            dnsService.saveSnapshot(file);
+
+            ScriptedDNSService restarted = new ScriptedDNSService();
+            restarted.records = txt("v=spf1 +all", 60);
+            dnsService = new DNSServiceCachingImpl(restarted);
+            dnsService.setSnapshotRefreshCount(1);
+            assertEquals(2, dnsService.loadSnapshot(file));
+            assertEquals(1, restarted.queries);
+            assertEquals(1, dnsService.getRefreshAheadCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidSnapshots() throws Exception {
+        Path file = Files.createTempFile("jspf-dns", ".snapshot");
+        try {
+            Files.write(file, "v=spf1 -all".getBytes("US-ASCII"));
+            try {
+                dnsService.loadSnapshot(file);
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.impl.DNSServiceMultiUpstreamImpl;
+import org.apache.james.jspf.tester.DNSTestingServer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DNSServiceMultiUpstreamImplTest {
+
+    private static final int SLOW_SERVER_PORT = 31350;
+
+    private static final int FAST_SERVER_PORT = 31351;
+
+    private static final long SLOW_SERVER_DELAY = 3000;
+
+    private static final InetSocketAddress SLOW_SERVER = new InetSocketAddress("127.0.0.1", SLOW_SERVER_PORT);
+
+    private static final InetSocketAddress FAST_SERVER = new InetSocketAddress("127.0.0.1", FAST_SERVER_PORT);
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 -all")));
+        zone.put("timeout.example.com", Arrays.asList("TIMEOUT"));
+
+        DNSTestingServer slow = new DNSTestingServer("127.0.0.1", "" + SLOW_SERVER_PORT);
+        slow.setData(zone);
+        slow.setDelay(SLOW_SERVER_DELAY);
+
+        DNSTestingServer fast = new DNSTestingServer("127.0.0.1", "" + FAST_SERVER_PORT);
+        fast.setData(zone);
+    }
+
+    @Test
+    public void shouldHedgeToTheFastUpstreamAndPreferIt() throws Exception {
+        DNSServiceMultiUpstreamImpl service = new DNSServiceMultiUpstreamImpl(Arrays.asList(SLOW_SERVER, FAST_SERVER));
+        try {
+            service.setTimeOut(8);
+            assertEquals(SLOW_SERVER, service.getUpstreamsByLatency().get(0));
+
+            long start = System.currentTimeMillis();
+            assertEquals(Arrays.asList("v=spf1 -all"),
+                    service.getRecords(new DNSRequest("example.com", DNSRequest.TXT)));
+            assertTrue(System.currentTimeMillis() - start < SLOW_SERVER_DELAY);
+
+            // the query left on the slow upstream is cancelled, and
+            // recorded as at least as slow as the hedged answer
+            assertEquals(FAST_SERVER, service.getUpstreamsByLatency().get(0));
+
+            start = System.currentTimeMillis();
+            assertEquals(Arrays.asList("v=spf1 -all"),
+                    service.getRecords(new DNSRequest("example.com", DNSRequest.TXT)));
+            assertTrue(System.currentTimeMillis() - start < SLOW_SERVER_DELAY);
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void shouldFailWithinTheTimeout() throws Exception {
+        DNSServiceMultiUpstreamImpl service = new DNSServiceMultiUpstreamImpl(Arrays.asList(FAST_SERVER, SLOW_SERVER));
+        try {
+            service.setTimeOut(2);
+            long start = System.currentTimeMillis();
+            try {
+                service.getRecords(new DNSRequest("timeout.example.com", DNSRequest.TXT));
+                fail("Expected a TimeoutException");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            assertTrue(System.currentTimeMillis() - start < 3000);
+        } finally {
+            service.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.impl.DNSServiceNioImpl;
+import org.apache.james.jspf.tester.DNSTestingServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DNSServiceNioImplTest {
+
+    private static final int SERVER_PORT = 31349;
+
+    // 12 records of 200 bytes do not fit in a 1232 bytes EDNS0 payload
+    private static final int BIG_TXT_RECORDS = 12;
+
+    private static DNSServiceNioImpl dnsService;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", Arrays.asList(
+                Collections.singletonMap("A", "192.0.2.1"),
+                Collections.singletonMap("A", "192.0.2.2"),
+                Collections.singletonMap("TXT", "v=spf1 mx -all"),
+                Collections.singletonMap("MX", Arrays.asList(Long.valueOf(10), "mx.example.com"))));
+        zone.put("alias.example.com", Arrays.asList(
+                Collections.singletonMap("CNAME", "example.com")));
+        zone.put("1.2.0.192.in-addr.arpa", Arrays.asList(
+                Collections.singletonMap("PTR", "example.com")));
+        zone.put("timeout.example.com", Arrays.asList("TIMEOUT"));
+        List<Object> bigTxt = new ArrayList<Object>();
+        for (int i = 0; i < BIG_TXT_RECORDS; i++) {
+            bigTxt.add(Collections.singletonMap("TXT", token(i)));
+        }
+        zone.put("big.example.com", bigTxt);
+        for (int i = 0; i < 20; i++) {
+            zone.put("host" + i + ".example.com", Arrays.asList(
+                    Collections.singletonMap("A", "192.0.2." + (100 + i))));
+        }
+
+        DNSTestingServer server = new DNSTestingServer("127.0.0.1", "" + SERVER_PORT);
+        server.setData(zone);
+
+        dnsService = new DNSServiceNioImpl(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        dnsService.setTimeOut(2);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        dnsService.close();
+    }
+
+    @Test
+    public void shouldResolveAllSupportedTypes() throws Exception {
+        assertEquals(Arrays.asList("192.0.2.1", "192.0.2.2"),
+                sorted(dnsService.getRecords(new DNSRequest("example.com", DNSRequest.A))));
+        assertEquals(Arrays.asList("v=spf1 mx -all"),
+                dnsService.getRecords(new DNSRequest("example.com", DNSRequest.TXT)));
+        assertEquals(Arrays.asList("mx.example.com."),
+                dnsService.getRecords(new DNSRequest("example.com", DNSRequest.MX)));
+        assertEquals(Arrays.asList("example.com"),
+                dnsService.getRecords(new DNSRequest("1.2.0.192.in-addr.arpa", DNSRequest.PTR)));
+    }
+
+    @Test
+    public void shouldFollowAliases() throws Exception {
+        assertEquals(Arrays.asList("v=spf1 mx -all"),
+                dnsService.getRecords(new DNSRequest("alias.example.com", DNSRequest.TXT)));
+    }
+
+    @Test
+    public void shouldReturnNullForMissingRecords() throws Exception {
+        assertNull(dnsService.getRecords(new DNSRequest("missing.example.com", DNSRequest.A)));
+        assertNull(dnsService.getRecords(new DNSRequest("example.com", DNSRequest.AAAA)));
+        assertNull(dnsService.getDNSRecordsAsync(new DNSRequest("example.com", 0)).toCompletableFuture().get());
+    }
+
+    @Test
+    public void shouldMultiplexConcurrentQueries() throws Exception {
+        List<CompletableFuture<List<String>>> futures = new ArrayList<CompletableFuture<List<String>>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(dnsService.getRecordsAsync(new DNSRequest("host" + i + ".example.com", DNSRequest.A))
+                    .toCompletableFuture());
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Arrays.asList("192.0.2." + (100 + i)), futures.get(i).get());
+        }
+    }
+
+    @Test
+    public void shouldServeQueriesSubmittedAndCancelledFromManyThreads() throws Exception {
+        List<DNSRequest> requests = new ArrayList<DNSRequest>();
+        for (int i = 0; i < 50; i++) {
+            requests.add(new DNSRequest(i % 2 == 0 ? "alias.example.com" : "host" + (i % 20) + ".example.com",
+                    i % 3 == 0 ? DNSRequest.TXT : DNSRequest.A));
+        }
+        List<CompletableFuture<List<String>>> futures = Collections.synchronizedList(new ArrayList<CompletableFuture<List<String>>>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < requests.size(); i++) {
+                    CompletableFuture<List<String>> future = dnsService.getRecordsAsync(requests.get(i)).toCompletableFuture();
+                    if (i % 5 == 0) {
+                        future.cancel(false);
+                    }
+                    futures.add(future);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (CompletableFuture<List<String>> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (CancellationException e) {
+                // cancelled above
+            }
+        }
+        assertEquals(Arrays.asList("v=spf1 mx -all"),
+                dnsService.getRecords(new DNSRequest("alias.example.com", DNSRequest.TXT)));
+    }
+
+    @Test
+    public void shouldTimeOutUnansweredQueries() throws Exception {
+        try {
+            dnsService.getRecords(new DNSRequest("timeout.example.com", DNSRequest.TXT));
+            fail("Expected a TimeoutException");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldRetryTruncatedAnswersOverTCP() throws Exception {
+        DNSServiceNioImpl service = new DNSServiceNioImpl(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        try {
+            service.setTimeOut(2);
+            service.setTCPConnections(1);
+            List<CompletableFuture<List<String>>> futures = new ArrayList<CompletableFuture<List<String>>>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(service.getRecordsAsync(new DNSRequest("big.example.com", DNSRequest.TXT))
+                        .toCompletableFuture());
+            }
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < BIG_TXT_RECORDS; i++) {
+                expected.add(token(i));
+            }
+            for (CompletableFuture<List<String>> future : futures) {
+                assertEquals(sorted(expected), sorted(future.get()));
+            }
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void shouldWorkWithoutEDNS() throws Exception {
+        DNSServiceNioImpl service = new DNSServiceNioImpl(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        try {
+            service.setTimeOut(2);
+            service.setEDNSPayloadSize(0);
+            assertEquals(Arrays.asList("v=spf1 mx -all"),
+                    service.getRecords(new DNSRequest("example.com", DNSRequest.TXT)));
+            assertEquals(BIG_TXT_RECORDS,
+                    service.getRecords(new DNSRequest("big.example.com", DNSRequest.TXT)).size());
+        } finally {
+            service.close();
+        }
+    }
+
+    private static String token(int i) {
+        StringBuilder sb = new StringBuilder("verification-token-" + i + "=");
+        while (sb.length() < 200) {
+            sb.append((char) ('a' + sb.length() % 26));
+        }
+        return sb.toString();
+    }
+
+    private static List<String> sorted(List<String> records) {
+        List<String> result = new ArrayList<String>(records);
+        Collections.sort(result);
+        return result;
+    }
+}
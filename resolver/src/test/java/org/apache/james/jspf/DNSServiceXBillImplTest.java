@@ -20,21 +20,32 @@
 
 package org.apache.james.jspf;
 
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.IPAddr;
 import org.apache.james.jspf.impl.DNSServiceXBillImpl;
 import org.junit.Test;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
 import org.xbill.DNS.DClass;
+import org.xbill.DNS.MXRecord;
 import org.xbill.DNS.Name;
+import org.xbill.DNS.PTRRecord;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SPFRecord;
 import org.xbill.DNS.TXTRecord;
 import org.xbill.DNS.Type;
 
+import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class DNSServiceXBillImplTest {
     @Test
@@ -73,4 +84,47 @@ public class DNSServiceXBillImplTest {
         assertEquals("quoted string", records.get(0));
     }
 
+    @Test
+    public void testConvertRecords() throws Exception {
+        Name owner = Name.fromString("test.local.");
+        DNSRecords records = DNSServiceXBillImpl.convertRecords(new Record[]{
+                new ARecord(owner, DClass.IN, 0, InetAddress.getByName("192.0.2.1")),
+                new AAAARecord(owner, DClass.IN, 0, InetAddress.getByName("2001:db8::1"))});
+        assertNotNull(records);
+        assertEquals(4, records.getAddress(0).length);
+        assertEquals(16, records.getAddress(1).length);
+        assertTrue(IPAddr.getAddress("192.0.2.0", 24).contains(records.getAddress(0)));
+        assertTrue(IPAddr.getAddress("2001:db8:0:0:0:0:0:1").isSameAddress(records.getAddress(1)));
+        assertEquals(Arrays.asList("192.0.2.1", "2001:db8:0:0:0:0:0:1"), records.asStrings());
+
+        records = DNSServiceXBillImpl.convertRecords(new Record[]{
+                new MXRecord(owner, DClass.IN, 0, 10, Name.fromString("mx.test.local."))});
+        assertNotNull(records);
+        assertEquals(Name.fromString("mx.test.local."), records.getName(0));
+        assertEquals("mx.test.local.", records.asStrings().get(0));
+
+        records = DNSServiceXBillImpl.convertRecords(new Record[]{
+                new PTRRecord(owner, DClass.IN, 0, Name.fromString("host.test.local."))});
+        assertNotNull(records);
+        assertEquals("host.test.local", records.asStrings().get(0));
+
+        TXTRecord txt = new TXTRecord(owner, DClass.IN, 0, Arrays.asList("v=spf1 \"a\"", "\u00e9\\"));
+        records = DNSServiceXBillImpl.convertRecords(new Record[]{txt});
+        assertNotNull(records);
+        assertEquals(String.join("", txt.getStrings()), records.asStrings().get(0));
+
+        assertNull(DNSServiceXBillImpl.convertRecords(new Record[0]));
+    }
+
+    @Test
+    public void testStringRecordsAreConvertedOnAccess() throws Exception {
+        DNSRecords records = DNSRecords.ofStrings(Arrays.asList("192.0.2.1", "not an ip", ""));
+        assertEquals(4, records.getAddress(0).length);
+        assertNull(records.getAddress(1));
+        assertNull(records.getName(2));
+        assertEquals(Name.fromString("192.0.2.1"), records.getName(0));
+        assertNull(DNSRecords.ofStrings(null));
+        assertEquals("mx.test.local", new DNSRequest(Name.fromString("mx.test.local"), DNSRequest.A).getHostname());
+    }
+
 }
@@ -0,0 +1,158 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.impl.DNSServiceZoneImpl;
+import org.apache.james.jspf.impl.SPF;
+import org.junit.Test;
+
+public class DNSServiceZoneImplTest {
+
+    private static final String ZONE_FILE = Paths.get("src/test/resources/dnszones", "SPFExecutorIntegrationTest-1.zone").toString();
+
+    @Test
+    public void shouldAnswerFromAZoneFile() throws Exception {
+        DNSServiceZoneImpl dns = DNSServiceZoneImpl.fromZoneFile("spfexecutor.fake", ZONE_FILE);
+
+        List<String> records = dns.getRecords(new DNSRequest("shouldReturnPassIfMultipleStrings.spfexecutor.fake", DNSRequest.TXT));
+        assertEquals(1, records.size());
+        assertTrue(records.get(0).endsWith("ip4:4.3.2.1 ip4:4.3.2.1 -all"));
+        assertEquals(2, dns.getRecords(new DNSRequest("shouldReturnErrorIfMoreThanOneTxtSpf1Record.spfexecutor.fake", DNSRequest.TXT)).size());
+        assertNull(dns.getRecords(new DNSRequest("unknown.spfexecutor.fake", DNSRequest.TXT)));
+        assertEquals(30, dns.getDNSRecords(new DNSRequest("shouldReturnPassIfJustOneTxtSpf1Record.spfexecutor.fake", DNSRequest.TXT)).getTTL());
+
+        SPF spf = new SPF(dns, new AsynchronousSPFExecutor(dns));
+        assertEquals("permerror", spf.checkSPF("192.0.2.127", "user@shouldReturnErrorIfMoreThanOneTxtSpf1Record.spfexecutor.fake", "helo.example.com").getResult());
+        assertEquals("fail", spf.checkSPF("192.0.2.1", "user@shouldReturnPassIfMultipleStrings.spfexecutor.fake", "helo.example.com").getResult());
+    }
+
+    @Test
+    public void shouldFollowCNAMEsAndWildcards() throws Exception {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 a:mail.example.com -all"),
+                Collections.singletonMap("MX", Arrays.asList(10L, "mx.example.com"))));
+        zone.put("mail.example.com", Arrays.asList(Collections.singletonMap("CNAME", "host.example.net")));
+        zone.put("host.example.net", Arrays.asList(Collections.singletonMap("A", "192.0.2.10")));
+        zone.put("*.example.org", Arrays.asList(Collections.singletonMap("TXT", "v=spf1 -all")));
+        zone.put("sub.example.org", Arrays.asList(Collections.singletonMap("A", "192.0.2.20")));
+        DNSServiceZoneImpl dns = DNSServiceZoneImpl.fromZoneData(zone);
+
+        assertEquals(Arrays.asList("192.0.2.10"), dns.getRecords(new DNSRequest("MAIL.example.com", DNSRequest.A)));
+        assertEquals(Arrays.asList("mx.example.com."), dns.getRecords(new DNSRequest("example.com", DNSRequest.MX)));
+        assertNull(dns.getRecords(new DNSRequest("mail.example.com", DNSRequest.TXT)));
+        assertEquals(Arrays.asList("v=spf1 -all"), dns.getRecords(new DNSRequest("a.b.example.org", DNSRequest.TXT)));
+        // an existing name does not match the wildcard
+        assertNull(dns.getRecords(new DNSRequest("sub.example.org", DNSRequest.TXT)));
+        assertNull(dns.getRecords(new DNSRequest("x.sub.example.org", DNSRequest.TXT)));
+        assertNull(dns.getRecords(new DNSRequest("example.net", DNSRequest.TXT)));
+    }
+
+    @Test
+    public void shouldTimeOutTheNamesMarkedAsTimingOut() throws Exception {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("slow.example.com", Arrays.asList(Collections.singletonMap("A", "192.0.2.1"), "TIMEOUT"));
+        DNSServiceZoneImpl dns = DNSServiceZoneImpl.fromZoneData(zone);
+
+        assertEquals(Arrays.asList("192.0.2.1"), dns.getRecords(new DNSRequest("slow.example.com", DNSRequest.A)));
+        try {
+            dns.getRecords(new DNSRequest("slow.example.com", DNSRequest.TXT));
+            fail("Expected a TimeoutException");
+        } catch (TimeoutException e) {
+        }
+        try {
+            dns.getRecordsAsync(new DNSRequest("slow.example.com", DNSRequest.TXT)).toCompletableFuture().get();
+            fail("Expected a TimeoutException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void shouldSimulateTheLatency() throws Exception {
+        DNSServiceZoneImpl dns = DNSServiceZoneImpl.fromZoneFile("spfexecutor.fake", ZONE_FILE);
+        DNSRequest request = new DNSRequest("shouldReturnPassIfJustOneTxtSpf1Record.spfexecutor.fake", DNSRequest.TXT);
+        assertTrue(dns.getRecordsAsync(request).toCompletableFuture().isDone());
+
+        dns.setLatency(200);
+        long start = System.nanoTime();
+        CompletableFuture<List<String>> records = dns.getRecordsAsync(request).toCompletableFuture();
+        assertFalse(records.isDone());
+        assertEquals(1, records.get(5, TimeUnit.SECONDS).size());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void shouldDelegateTheNamesOutsideTheZone() throws Exception {
+        DNSServiceZoneImpl dns = DNSServiceZoneImpl.fromZoneFile("spfexecutor.fake", ZONE_FILE);
+        dns.setFallback(new FallbackDNSService());
+
+        assertEquals(Arrays.asList("fallback"), dns.getRecords(new DNSRequest("example.com", DNSRequest.TXT)));
+        assertEquals(Arrays.asList("fallback"), dns.getRecordsAsync(new DNSRequest("example.com", DNSRequest.TXT)).toCompletableFuture().get());
+        assertNull(dns.getRecords(new DNSRequest("unknown.spfexecutor.fake", DNSRequest.TXT)));
+        assertEquals(2, dns.getRecords(new DNSRequest("shouldReturnErrorIfMoreThanOneTxtSpf1Record.spfexecutor.fake", DNSRequest.TXT)).size());
+    }
+
+    private static final class FallbackDNSService implements DNSService {
+
+        public List<String> getRecords(DNSRequest request) {
+            return Collections.singletonList("fallback");
+        }
+
+        public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+            return CompletableFuture.completedFuture(getRecords(request));
+        }
+
+        public List<String> getLocalDomainNames() {
+            return Collections.emptyList();
+        }
+
+        public void setTimeOut(int timeOut) {
+        }
+
+        public int getRecordLimit() {
+            return 10;
+        }
+
+        public void setRecordLimit(int recordLimit) {
+        }
+    }
+}
@@ -122,14 +122,13 @@ public class LoggingDNSService implements DNSService {
 
     @Override
     public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
-        return getRecordsAsync(request)
-            .thenApply(res -> {
-                debugLog(request, res);
-                return res;
-            })
-            .exceptionally(e -> {
-                LOGGER.debug("getRecords({}) = TempErrorException[{}]", request.getHostname(), e.getMessage());
-                return null;
+        return dnsService.getRecordsAsync(request)
+            .whenComplete((res, e) -> {
+                if (e == null) {
+                    debugLog(request, res);
+                } else {
+                    LOGGER.debug("getRecords({}) = TempErrorException[{}]", request.getHostname(), e.getMessage());
+                }
             });
     }
 }
\ No newline at end of file
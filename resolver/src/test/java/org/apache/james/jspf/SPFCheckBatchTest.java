@@ -0,0 +1,189 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.executor.SPFCheckRequest;
+import org.apache.james.jspf.executor.SPFIdentityResults;
+import org.apache.james.jspf.executor.SPFResult;
+import org.apache.james.jspf.impl.DNSServiceNioImpl;
+import org.apache.james.jspf.impl.SPF;
+import org.apache.james.jspf.tester.DNSTestingServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SPFCheckBatchTest {
+
+    private static final int SERVER_PORT = 31354;
+
+    private static DNSServiceNioImpl resolver;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 include:_spf.example.com -all")));
+        zone.put("_spf.example.com", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 ip4:192.0.2.0/28 ~all")));
+        zone.put("mail.example.com", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 include:_spf.example.com -all")));
+        zone.put("example.org", Arrays.asList(
+                Collections.singletonMap("A", "192.0.2.50"),
+                Collections.singletonMap("TXT", "v=spf1 a -all")));
+
+        DNSTestingServer server = new DNSTestingServer("127.0.0.1", "" + SERVER_PORT);
+        server.setData(zone);
+
+        resolver = new DNSServiceNioImpl(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        resolver.setTimeOut(2);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        resolver.close();
+    }
+
+    @Test
+    public void shouldLookUpEachRecordOncePerBatch() throws Exception {
+        List<SPFCheckRequest> requests = new ArrayList<SPFCheckRequest>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(new SPFCheckRequest("192.0.2." + (i * 5), "user" + i + "@example.com", "mail.example.com"));
+            requests.add(new SPFCheckRequest("192.0.2." + (40 + i), "user" + i + "@example.org", "mail.example.org"));
+        }
+        requests.add(new SPFCheckRequest("192.0.2.50", "", "example.org"));
+
+        CountingDNSService counting = new CountingDNSService(resolver);
+        SPF batchSPF = new SPF(counting, new AsynchronousSPFExecutor(counting));
+        List<CompletionStage<SPFResult>> batch = batchSPF.checkSPFBatch(requests);
+        List<SPFResult> batchResults = new ArrayList<SPFResult>();
+        for (CompletionStage<SPFResult> result : batch) {
+            batchResults.add(result.toCompletableFuture().get(10, TimeUnit.SECONDS));
+        }
+        // SPF and TXT of the 3 domains and A of example.org
+        assertEquals(7, counting.lookups.get());
+
+        SPF spf = new SPF(resolver, new AsynchronousSPFExecutor(resolver));
+        List<SPFResult> results = new ArrayList<SPFResult>();
+        for (SPFCheckRequest request : requests) {
+            results.add(spf.checkSPF(request.getIpAddress(), request.getMailFrom(), request.getHostName()));
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            SPFCheckRequest request = requests.get(i);
+            SPFResult expected = results.get(i);
+            SPFResult actual = batchResults.get(i);
+            assertEquals(request.toString(), expected.getResult(), actual.getResult());
+            assertEquals(request.toString(), expected.getHeader(), actual.getHeader());
+            assertEquals(request.toString(), expected.getExplanation(), actual.getExplanation());
+        }
+        assertEquals("pass", batchResults.get(0).getResult());
+        assertEquals("fail", batchResults.get(8).getResult());
+        assertEquals("fail", batchResults.get(1).getResult());
+        assertEquals("pass", batchResults.get(21).getResult());
+        assertEquals("pass", batchResults.get(40).getResult());
+    }
+
+    @Test
+    public void shouldShareTheLookupsOfTheHeloAndMailFromChecks() throws Exception {
+        CountingDNSService counting = new CountingDNSService(resolver);
+        SPF spf = new SPF(counting, new AsynchronousSPFExecutor(counting));
+
+        SPFIdentityResults results = spf.checkHeloAndMailFrom("192.0.2.3", "user@example.com", "mail.example.com")
+            .toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals("pass", results.getHeloResult().getResult());
+        assertEquals("pass", results.getMailFromResult().getResult());
+        // SPF and TXT of the 2 domains and of the include they share
+        assertEquals(6, counting.lookups.get());
+        assertEquals(spf.checkSPF("192.0.2.3", "", "mail.example.com").getHeader(), results.getHeloResult().getHeader());
+        assertEquals(spf.checkSPF("192.0.2.3", "user@example.com", "mail.example.com").getHeader(), results.getMailFromResult().getHeader());
+
+        counting.lookups.set(0);
+        results = spf.checkHeloAndMailFrom("192.0.2.3", "", "mail.example.com")
+            .toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertSame(results.getHeloResult(), results.getMailFromResult());
+        assertEquals("pass", results.getMailFromResult().getResult());
+        assertEquals(4, counting.lookups.get());
+
+        results = spf.checkHeloAndMailFrom("192.0.2.3", null, "mail.example.com")
+            .toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertSame(results.getHeloResult(), results.getMailFromResult());
+        assertEquals("pass", results.getMailFromResult().getResult());
+    }
+
+    private static final class CountingDNSService implements DNSService {
+
+        private final DNSService dnsService;
+
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        private CountingDNSService(DNSService dnsService) {
+            this.dnsService = dnsService;
+        }
+
+        public List<String> getRecords(DNSRequest request) throws TimeoutException {
+            lookups.incrementAndGet();
+            return dnsService.getRecords(request);
+        }
+
+        public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+            lookups.incrementAndGet();
+            return dnsService.getRecordsAsync(request);
+        }
+
+        public CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+            lookups.incrementAndGet();
+            return dnsService.getDNSRecordsAsync(request);
+        }
+
+        public List<String> getLocalDomainNames() {
+            return dnsService.getLocalDomainNames();
+        }
+
+        public void setTimeOut(int timeOut) {
+            dnsService.setTimeOut(timeOut);
+        }
+
+        public int getRecordLimit() {
+            return dnsService.getRecordLimit();
+        }
+
+        public void setRecordLimit(int recordLimit) {
+            dnsService.setRecordLimit(recordLimit);
+        }
+    }
+}
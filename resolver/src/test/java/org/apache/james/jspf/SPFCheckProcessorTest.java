@@ -0,0 +1,238 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.executor.SPFCheckRequest;
+import org.apache.james.jspf.executor.SPFResult;
+import org.apache.james.jspf.impl.SPF;
+import org.apache.james.jspf.impl.SPFCheckProcessor;
+import org.junit.Test;
+
+public class SPFCheckProcessorTest {
+
+    private static final int REQUESTS = 200;
+
+    private static final int MAX_IN_FLIGHT = 8;
+
+    @Test
+    public void shouldPublishTheResultsInOrderWithinTheLimits() throws Exception {
+        SlowDNSService dnsService = new SlowDNSService();
+        SPFCheckProcessor processor = new SPFCheckProcessor(new SPF(dnsService, new AsynchronousSPFExecutor(dnsService)), MAX_IN_FLIGHT, true);
+        RequestPublisher publisher = new RequestPublisher();
+        publisher.subscribe(processor);
+        ResultSubscriber subscriber = new ResultSubscriber(5);
+        processor.subscribe(subscriber);
+
+        assertTrue(subscriber.completed.await(30, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertEquals(REQUESTS, subscriber.results.size());
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals(i % 2 == 0 ? "pass" : "fail", subscriber.results.get(i).getResult());
+            assertTrue(subscriber.results.get(i).getHeaderText().contains("client-ip=192.0.2." + (i % 2 == 0 ? 1 : 100 + i % 100)));
+        }
+        assertTrue(dnsService.maxConcurrent.get() <= MAX_IN_FLIGHT);
+        assertTrue(publisher.maxOutstanding <= MAX_IN_FLIGHT);
+    }
+
+    @Test
+    public void shouldPublishAllTheResultsWithoutOrdering() throws Exception {
+        SlowDNSService dnsService = new SlowDNSService();
+        SPFCheckProcessor processor = new SPFCheckProcessor(new SPF(dnsService, new AsynchronousSPFExecutor(dnsService)), MAX_IN_FLIGHT, false);
+        new RequestPublisher().subscribe(processor);
+        ResultSubscriber subscriber = new ResultSubscriber(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+
+        assertTrue(subscriber.completed.await(30, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertEquals(REQUESTS, subscriber.results.size());
+        int passes = 0;
+        for (SPFResult result : subscriber.results) {
+            if ("pass".equals(result.getResult())) {
+                passes++;
+            }
+        }
+        assertEquals(REQUESTS / 2, passes);
+        assertTrue(dnsService.maxConcurrent.get() <= MAX_IN_FLIGHT);
+    }
+
+    @Test
+    public void shouldFailWhenACheckCannotStart() throws Exception {
+        SlowDNSService dnsService = new SlowDNSService();
+        IllegalStateException failure = new IllegalStateException("broken check");
+        SPF spf = new SPF(dnsService, new AsynchronousSPFExecutor(dnsService)) {
+            public SPFResult checkSPF(String ipAddress, String mailFrom, String hostName) {
+                if (mailFrom.equals("user10@example.com")) {
+                    throw failure;
+                }
+                return super.checkSPF(ipAddress, mailFrom, hostName);
+            }
+        };
+        SPFCheckProcessor processor = new SPFCheckProcessor(spf, MAX_IN_FLIGHT, true);
+        new RequestPublisher().subscribe(processor);
+        ResultSubscriber subscriber = new ResultSubscriber(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+
+        assertTrue(subscriber.completed.await(30, TimeUnit.SECONDS));
+        assertSame(failure, subscriber.error);
+        assertTrue(subscriber.results.size() <= 10);
+    }
+
+    private static SPFCheckRequest newRequest(int i) {
+        return new SPFCheckRequest(i % 2 == 0 ? "192.0.2.1" : "192.0.2." + (100 + i % 100), "user" + i + "@example.com", "mail.example.com");
+    }
+
+    /**
+     * Publish the requests synchronously, checking that they are not asked
+     * for faster than the processor can check them.
+     */
+    private static final class RequestPublisher implements Flow.Publisher<SPFCheckRequest> {
+
+        private int next = 0;
+
+        private long outstanding = 0;
+
+        private long maxOutstanding = 0;
+
+        public void subscribe(Flow.Subscriber<? super SPFCheckRequest> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                    synchronized (RequestPublisher.this) {
+                        outstanding += n;
+                        maxOutstanding = Math.max(maxOutstanding, outstanding);
+                    }
+                    for (long i = 0; i < n && next < REQUESTS; i++) {
+                        synchronized (RequestPublisher.this) {
+                            outstanding--;
+                        }
+                        subscriber.onNext(newRequest(next++));
+                        if (next == REQUESTS) {
+                            subscriber.onComplete();
+                        }
+                    }
+                }
+
+                public void cancel() {
+                }
+            });
+        }
+    }
+
+    /**
+     * Ask for the given number of results at a time, recording the results
+     * and the error. The latch is released once the stream ends either way.
+     */
+    private static final class ResultSubscriber implements Flow.Subscriber<SPFResult> {
+
+        private final long batch;
+
+        private final List<SPFResult> results = Collections.synchronizedList(new ArrayList<SPFResult>());
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private volatile Throwable error;
+
+        private Flow.Subscription subscription;
+
+        private long received = 0;
+
+        private ResultSubscriber(long batch) {
+            this.batch = batch;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(batch);
+        }
+
+        public void onNext(SPFResult item) {
+            results.add(item);
+            if (++received % batch == 0) {
+                subscription.request(batch);
+            }
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    /**
+     * Answer after a random delay, recording how many lookups run at once.
+     */
+    private static final class SlowDNSService implements DNSService {
+
+        private final AtomicInteger concurrent = new AtomicInteger();
+
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        public List<String> getRecords(DNSRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        public CompletionStage<List<String>> getRecordsAsync(DNSRequest request) {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            List<String> records = request.getRecordType() == DNSRequest.TXT
+                ? Collections.singletonList("v=spf1 ip4:192.0.2.1 -all")
+                : Collections.<String>emptyList();
+            return CompletableFuture.supplyAsync(() -> {
+                concurrent.decrementAndGet();
+                return records;
+            }, CompletableFuture.delayedExecutor(ThreadLocalRandom.current().nextInt(5), TimeUnit.MILLISECONDS));
+        }
+
+        public List<String> getLocalDomainNames() {
+            return Collections.emptyList();
+        }
+
+        public void setTimeOut(int timeOut) {
+        }
+
+        public int getRecordLimit() {
+            return 10;
+        }
+
+        public void setRecordLimit(int recordLimit) {
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package org.apache.james.jspf;
 
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
 import org.apache.james.jspf.core.DNSService;
 import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
+import org.apache.james.jspf.executor.FutureSPFResult;
 import org.apache.james.jspf.executor.SPFResult;
 import org.apache.james.jspf.helpers.FakeResolver;
 import org.apache.james.jspf.impl.DNSServiceXBillImpl;
@@ -20,11 +23,17 @@ import org.xbill.DNS.TextParseException;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public abstract class SPFExecutorBaseTest {
     protected final String zonesDir = "src/test/resources/dnszones";
@@ -33,6 +42,33 @@ public abstract class SPFExecutorBaseTest {
 
     protected abstract SPF createCustomSPF(DNSService dnsService);
 
+    /**
+     * A DNSService which never answers the asynchronous lookups of the
+     * hosts starting with "hanging."
+     */
+    protected static class HangingDNSService extends DNSServiceXBillImpl {
+        protected final CompletableFuture<DNSRecords> hanging = new CompletableFuture<DNSRecords>();
+
+        public HangingDNSService(Resolver resolver) {
+            super(resolver);
+        }
+
+        @Override
+        public CompletionStage<DNSRecords> getDNSRecordsAsync(DNSRequest request) {
+            if (request.getHostname().startsWith("hanging.")) {
+                return hanging;
+            }
+            return super.getDNSRecordsAsync(request);
+        }
+    }
+
+    protected static FakeResolver hangingResolver(String hostname) throws IOException {
+        FakeResolver fakeResolver = new FakeResolver();
+        fakeResolver.addRecord(new TXTRecord(Name.fromString(hostname + "."),
+                DClass.IN, 30L, "v=spf1 a:hanging." + hostname + " -all"));
+        return fakeResolver;
+    }
+
     @Before
     public void clearDnsCache() {
         Lookup.getDefaultCache(DClass.IN).clearCache();
@@ -261,4 +297,127 @@ public abstract class SPFExecutorBaseTest {
                 result.getHeader());
         assertEquals(SPFErrorConstants.PASS_CONV, result.getResult());
     }
+
+    @Test
+    public void shouldReuseReleasedResultsWhenPoolingIsEnabled() throws IOException {
+        String testDomain = "spfexecutor.fake";
+        String passHostname = "shouldReturnPassIfMultipleStrings." + testDomain;
+        String errorHostname = "shouldReturnPermErrorIfIncludeDomainNotFound." + testDomain;
+        String ip = "192.0.2.127";
+
+        //setup resolver
+        FakeResolver fakeResolver = new FakeResolver();
+        fakeResolver.fromZoneFile(testDomain, getZonePath("SPFExecutorIntegrationTest-1.zone"));
+
+        SPF spf = createCustomSPF(new DNSServiceXBillImpl(fakeResolver));
+        spf.setPoolSize(1);
+
+        FutureSPFResult first = (FutureSPFResult) spf.checkSPF(ip, "a_user@" + errorHostname, errorHostname);
+        assertEquals(SPFErrorConstants.PERM_ERROR_CONV, first.getResult());
+        first.release();
+
+        FutureSPFResult second = (FutureSPFResult) spf.checkSPF(ip, "a_user@" + passHostname, passHostname);
+        assertSame(first, second);
+        assertEquals(String.format(
+                        "Received-SPF: %3$s (spfCheck: domain of %2$s designates %1$s as permitted sender) client-ip=%1$s; envelope-from=a_user@%2$s; helo=%2$s;",
+                        ip, passHostname, SPFErrorConstants.PASS_CONV),
+                second.getHeader());
+        assertEquals(SPFErrorConstants.PASS_CONV, second.getResult());
+
+        // not released, so a new holder is needed
+        FutureSPFResult third = (FutureSPFResult) spf.checkSPF(ip, "a_user@" + errorHostname, errorHostname);
+        assertNotSame(second, third);
+        assertEquals(SPFErrorConstants.PERM_ERROR_CONV, third.getResult());
+    }
+
+    @Test
+    public void shouldApplyConfigurationChangesToFollowingChecks() throws IOException {
+        String hostname = "shouldApplyConfigurationChangesToFollowingChecks.spfexecutor.fake";
+        String ip = "192.0.2.127";
+
+        //setup resolver
+        FakeResolver fakeResolver = new FakeResolver();
+        fakeResolver.addRecord(new TXTRecord(Name.fromString(hostname + "."), DClass.IN, 30L, "v=spf1 -all"));
+
+        SPF spf = createCustomSPF(new DNSServiceXBillImpl(fakeResolver));
+        SPFResult result = spf.checkSPF(ip, "a_user@" + hostname, hostname);
+        assertEquals(SPFErrorConstants.FAIL_CONV, result.getResult());
+        assertTrue(result.getExplanation().startsWith("http://www.openspf.org/why.html?sender="));
+
+        spf.setDefaultExplanation("%{i} is not allowed to send for %{d}");
+        result = spf.checkSPF(ip, "a_user@" + hostname, hostname);
+        assertEquals(SPFErrorConstants.FAIL_CONV, result.getResult());
+        assertEquals(ip + " is not allowed to send for " + hostname, result.getExplanation());
+    }
+
+    @Test
+    public void shouldReturnTempErrorOnceTheCheckTimeoutElapses() throws IOException {
+        String hostname = "shouldReturnTempErrorOnceTheCheckTimeoutElapses.spfexecutor.fake";
+        String ip = "192.0.2.127";
+
+        HangingDNSService dnsService = new HangingDNSService(hangingResolver(hostname));
+        SPF spf = createCustomSPF(dnsService);
+        spf.setCheckTimeout(500);
+
+        long start = System.currentTimeMillis();
+        SPFResult result = spf.checkSPF(ip, "a_user@" + hostname, hostname);
+        assertEquals(SPFErrorConstants.TEMP_ERROR_CONV, result.getResult());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(dnsService.hanging.isCancelled());
+    }
+
+    @Test
+    public void shouldLeaveTheOutstandingLookupRunningWhenAsked() throws IOException {
+        String hostname = "shouldLeaveTheOutstandingLookupRunningWhenAsked.spfexecutor.fake";
+        String ip = "192.0.2.127";
+
+        HangingDNSService dnsService = new HangingDNSService(hangingResolver(hostname));
+        SPF spf = createCustomSPF(dnsService);
+        spf.setCheckTimeout(500);
+        spf.setCancelLookupsOnTimeout(false);
+
+        SPFResult result = spf.checkSPF(ip, "a_user@" + hostname, hostname);
+        assertEquals(SPFErrorConstants.TEMP_ERROR_CONV, result.getResult());
+        assertFalse(dnsService.hanging.isDone());
+    }
+
+    @Test
+    public void shouldReturnTempErrorWhenTheQueryBudgetIsExhausted() throws IOException {
+        String hostname = "shouldReturnTempErrorWhenTheQueryBudgetIsExhausted.spfexecutor.fake";
+        String ip = "192.0.2.127";
+
+        //setup resolver
+        FakeResolver fakeResolver = new FakeResolver();
+        fakeResolver.addRecord(new TXTRecord(Name.fromString(hostname + "."), DClass.IN, 30L,
+                String.format("v=spf1 a:a1.%1$s a:a2.%1$s -all", hostname)));
+
+        SPF spf = createCustomSPF(new DNSServiceXBillImpl(fakeResolver));
+        assertEquals(SPFErrorConstants.FAIL_CONV, spf.checkSPF(ip, "a_user@" + hostname, hostname).getResult());
+
+        spf.setQueryBudget(2);
+        assertEquals(SPFErrorConstants.TEMP_ERROR_CONV, spf.checkSPF(ip, "a_user@" + hostname, hostname).getResult());
+    }
+
+    /*
+     * Test the void lookup limit described in RFC7208 section "4.6.4.  DNS Lookup Limits"
+     */
+    @Test
+    public void shouldReturnPermErrorOnTooManyVoidLookups() throws IOException {
+        String hostname = "shouldReturnPermErrorOnTooManyVoidLookups.spfexecutor.fake";
+        String ip = "192.0.2.127";
+
+        //setup resolver
+        FakeResolver fakeResolver = new FakeResolver();
+        fakeResolver.addRecord(new TXTRecord(Name.fromString(hostname + "."), DClass.IN, 30L,
+                String.format("v=spf1 a:void1.%1$s a:void2.%1$s a:void3.%1$s -all", hostname)));
+
+        SPF spf = createCustomSPF(new DNSServiceXBillImpl(fakeResolver));
+        assertEquals(SPFErrorConstants.FAIL_CONV, spf.checkSPF(ip, "a_user@" + hostname, hostname).getResult());
+
+        spf.setVoidLookupLimit(3);
+        assertEquals(SPFErrorConstants.FAIL_CONV, spf.checkSPF(ip, "a_user@" + hostname, hostname).getResult());
+
+        spf.setVoidLookupLimit(2);
+        assertEquals(SPFErrorConstants.PERM_ERROR_CONV, spf.checkSPF(ip, "a_user@" + hostname, hostname).getResult());
+    }
 }
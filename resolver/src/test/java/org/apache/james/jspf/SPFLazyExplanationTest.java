@@ -0,0 +1,118 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.executor.SPFResult;
+import org.apache.james.jspf.impl.DNSServiceZoneImpl;
+import org.apache.james.jspf.impl.SPF;
+import org.junit.Test;
+
+public class SPFLazyExplanationTest {
+
+    private static final String EXPLANATION = "192.0.2.1 is not one of example.com's designated mail servers.";
+
+    @Test
+    public void shouldLookUpTheExplanationOnlyWhenAskedFor() throws Exception {
+        CountingDNSService dns = zone();
+        SPF spf = new SPF(dns);
+        spf.setLazyExplanation(true);
+
+        SPFResult result = spf.checkSPF("192.0.2.1", "user@example.com", "mail.example.com");
+        assertEquals("fail", result.getResult());
+        assertEquals(0, dns.getLookupCount("TXT:explain.example.com"));
+
+        assertEquals(EXPLANATION, result.getExplanation());
+        assertEquals(EXPLANATION, result.getExplanation());
+        assertEquals(1, dns.getLookupCount("TXT:explain.example.com"));
+    }
+
+    @Test
+    public void shouldBuildTheExplanationAsynchronously() throws Exception {
+        CountingDNSService dns = zone();
+        SPF spf = new SPF(dns, new AsynchronousSPFExecutor(dns));
+        spf.setLazyExplanation(true);
+
+        SPFResult result = spf.checkSPF("192.0.2.1", "user@example.com", "mail.example.com");
+        CompletionStage<String> explanation = result.getExplanationAsync();
+        assertEquals(EXPLANATION, explanation.toCompletableFuture().get(10, TimeUnit.SECONDS));
+        assertEquals(EXPLANATION, result.getExplanation());
+        assertEquals(1, dns.getLookupCount("TXT:explain.example.com"));
+    }
+
+    @Test
+    public void shouldNotLookUpTheExplanationOnceTheDeadlineIsPassed() throws Exception {
+        CountingDNSService dns = zone();
+        SPF spf = new SPF(dns);
+        spf.setLazyExplanation(true);
+        spf.setCheckTimeout(200);
+
+        SPFResult result = spf.checkSPF("192.0.2.1", "user@example.com", "mail.example.com");
+        assertEquals("fail", result.getResult());
+        Thread.sleep(400);
+        result.getExplanation();
+        assertEquals(0, dns.getLookupCount("TXT:explain.example.com"));
+    }
+
+    @Test
+    public void shouldGiveTheSameExplanationsAsEagerChecks() throws Exception {
+        CountingDNSService dns = zone();
+        SPF eager = new SPF(dns);
+        eager.setDefaultExplanation("See http://%{d}/why.html?s=%{s}");
+        SPF lazy = new SPF(dns);
+        lazy.setDefaultExplanation("See http://%{d}/why.html?s=%{s}");
+        lazy.setLazyExplanation(true);
+
+        for (String sender : Arrays.asList("user@example.com", "user@example.org", "user@example.net")) {
+            SPFResult expected = eager.checkSPF("192.0.2.1", sender, "mail.example.com");
+            SPFResult actual = lazy.checkSPF("192.0.2.1", sender, "mail.example.com");
+            assertEquals(sender, expected.getResult(), actual.getResult());
+            assertEquals(sender, expected.getHeader(), actual.getHeader());
+            assertEquals(sender, expected.getExplanation(), actual.getExplanation());
+        }
+    }
+
+    /**
+     * @return the zone of the tests, counting the lookups
+     */
+    private static CountingDNSService zone() throws IOException {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", txt("v=spf1 -all exp=explain.example.com"));
+        zone.put("explain.example.com", txt("%{i} is not one of %{d}'s designated mail servers."));
+        zone.put("example.org", txt("v=spf1 -all"));
+        zone.put("example.net", txt("v=spf1 ip4:192.0.2.1 -all exp=explain.example.com"));
+        return new CountingDNSService(DNSServiceZoneImpl.fromZoneData(zone));
+    }
+
+    private static List<?> txt(String text) {
+        return Arrays.asList(Collections.singletonMap("TXT", text));
+    }
+}
@@ -0,0 +1,210 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.impl.DNSServiceCachingImpl;
+import org.apache.james.jspf.impl.DNSServiceNioImpl;
+import org.apache.james.jspf.impl.SPF;
+import org.apache.james.jspf.impl.SPFPolicyServer;
+import org.apache.james.jspf.tester.DNSTestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SPFPolicyServerTest {
+
+    private static final int SERVER_PORT = 31352;
+
+    private DNSServiceNioImpl resolver;
+
+    private DNSServiceCachingImpl dnsService;
+
+    private SPFPolicyServer server;
+
+    private SocketAddress address;
+
+    @BeforeClass
+    public static void setUpServer() throws Exception {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 ip4:192.0.2.1 -all")));
+        zone.put("timeout.example.com", Arrays.asList("TIMEOUT"));
+
+        DNSTestingServer dnsServer = new DNSTestingServer("127.0.0.1", "" + SERVER_PORT);
+        dnsServer.setData(zone);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new DNSServiceNioImpl(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        resolver.setTimeOut(1);
+        dnsService = new DNSServiceCachingImpl(resolver);
+        SPF spf = new SPF(dnsService, new AsynchronousSPFExecutor(dnsService));
+        server = new SPFPolicyServer(spf, dnsService);
+        address = server.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        dnsService.close();
+        resolver.close();
+    }
+
+    @Test
+    public void shouldAnswerPipelinedRequestsInOrder() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, request("192.0.2.1", "user@example.com")
+                    + request("192.0.2.2", "user@example.com")
+                    + request("192.0.2.3", "user@timeout.example.com")
+                    + request("192.0.2.1", ""));
+            BufferedReader reader = reader(socket);
+
+            assertTrue(readResponse(reader).get(0).startsWith("action=PREPEND Received-SPF: pass "));
+            assertTrue(readResponse(reader).get(0).startsWith("action=REJECT "));
+            assertEquals("action=DEFER_IF_PERMIT SPF temporary error", readResponse(reader).get(0));
+            // the null sender is checked as postmaster@helo
+            assertTrue(readResponse(reader).get(0).startsWith("action=PREPEND Received-SPF: pass "));
+
+            send(socket, "request=junk\nclient_address=192.0.2.2\nsender=user@example.com\n\n");
+            assertEquals("action=DUNNO", readResponse(reader).get(0));
+
+            send(socket, "request=stats\n\n");
+            List<String> stats = readResponse(reader);
+            assertTrue(stats.toString(), stats.contains("requests=5"));
+            assertTrue(stats.toString(), stats.contains("result_pass=2"));
+            assertTrue(stats.toString(), stats.contains("result_fail=1"));
+            assertTrue(stats.toString(), stats.contains("result_temperror=1"));
+            assertTrue(stats.toString(), stats.contains("in_flight=0"));
+        }
+    }
+
+    @Test
+    public void shouldStopReadingOnceTooManyChecksAreInFlight() throws Exception {
+        server.setMaxInFlight(1);
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Socket socket = connect();
+                sockets.add(socket);
+                StringBuilder requests = new StringBuilder();
+                for (int j = 0; j < 5; j++) {
+                    requests.append(request("192.0.2." + j, "user@example.com"));
+                }
+                send(socket, requests.toString());
+            }
+            for (Socket socket : sockets) {
+                BufferedReader reader = reader(socket);
+                for (int j = 0; j < 5; j++) {
+                    String action = readResponse(reader).get(0);
+                    assertTrue(action, action.startsWith(j == 1 ? "action=PREPEND" : "action=REJECT"));
+                }
+            }
+            assertEquals(15, server.getRequestCount());
+            assertTrue(server.getPauseCount() > 0);
+            // a connection paused again while resumed is still the same pause
+            assertTrue(String.valueOf(server.getPauseCount()), server.getPauseCount() <= 15);
+            assertEquals(0, server.getInFlightCount());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void shouldCloseConnectionsSendingTooManyAttributes() throws Exception {
+        try (Socket socket = connect()) {
+            StringBuilder attributes = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                attributes.append("attribute").append(i).append("=value\n");
+            }
+            send(socket, attributes.toString());
+            try {
+                assertNull(reader(socket).readLine());
+            } catch (SocketException e) {
+                // reset by the server
+            }
+        }
+        try (Socket socket = connect()) {
+            send(socket, request("192.0.2.1", "user@example.com"));
+            assertTrue(readResponse(reader(socket)).get(0).startsWith("action=PREPEND Received-SPF: pass "));
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(address);
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static String request(String ip, String sender) {
+        return "request=smtpd_access_policy\n"
+            + "protocol_state=RCPT\n"
+            + "protocol_name=ESMTP\n"
+            + "client_address=" + ip + "\n"
+            + "helo_name=example.com\n"
+            + "sender=" + sender + "\n"
+            + "recipient=postmaster@example.org\n"
+            + "\n";
+    }
+
+    private static void send(Socket socket, String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static List<String> readResponse(BufferedReader reader) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,146 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.executor.SPFResult;
+import org.apache.james.jspf.impl.DNSServiceCachingImpl;
+import org.apache.james.jspf.impl.DNSServiceNioImpl;
+import org.apache.james.jspf.impl.SPF;
+import org.apache.james.jspf.impl.SPFQueryBatch;
+import org.apache.james.jspf.tester.DNSTestingServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SPFQueryBatchTest {
+
+    private static final int SERVER_PORT = 31353;
+
+    private static DNSServiceNioImpl resolver;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 ip4:192.0.2.1 -all")));
+        zone.put("example.org", Arrays.asList(
+                Collections.singletonMap("TXT", "v=spf1 ?all")));
+
+        DNSTestingServer server = new DNSTestingServer("127.0.0.1", "" + SERVER_PORT);
+        server.setData(zone);
+
+        resolver = new DNSServiceNioImpl(new InetSocketAddress("127.0.0.1", SERVER_PORT));
+        resolver.setTimeOut(2);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        resolver.close();
+    }
+
+    @Test
+    public void shouldWriteTheResultsInInputOrder() throws Exception {
+        DNSServiceCachingImpl dnsService = new DNSServiceCachingImpl(resolver);
+        SPFQueryBatch batch = new SPFQueryBatch(new SPF(dnsService, new AsynchronousSPFExecutor(dnsService)), dnsService);
+        batch.setMaxInFlight(4);
+        batch.setTiming(true);
+
+        StringBuilder input = new StringBuilder("ip,sender,helo\n# quarantined mail\n");
+        for (int i = 0; i < 20; i++) {
+            input.append(i % 2 == 0 ? "192.0.2.1\tuser@example.com\tmail.example.com\n" : "\"192.0.2.9\",user@example.org,mail.example.org\n");
+        }
+        input.append("malformed\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+
+        int count = batch.run(new BufferedReader(new StringReader(input.toString())),
+                new PrintStream(out, true, "UTF-8"), new PrintStream(summary, true, "UTF-8"));
+
+        assertEquals(20, count);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(20, lines.length);
+        for (int i = 0; i < 20; i++) {
+            String[] fields = lines[i].split("\t");
+            assertEquals(6, fields.length);
+            assertEquals(i % 2 == 0 ? "192.0.2.1" : "192.0.2.9", fields[0]);
+            assertEquals(i % 2 == 0 ? "pass" : "neutral", fields[3]);
+            assertTrue(fields[4].startsWith(fields[3] + " (spfCheck: "));
+        }
+        String report = new String(summary.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("Skipping line 23"));
+        assertTrue(report, report.contains("20 checks in "));
+        assertTrue(report, report.contains("latency ms: p50="));
+        assertTrue(report, report.contains("DNS lookups: "));
+    }
+
+    @Test
+    public void shouldReportTheChecksFailingToStart() throws Exception {
+        DNSServiceCachingImpl dnsService = new DNSServiceCachingImpl(resolver);
+        SPF spf = new SPF(dnsService, new AsynchronousSPFExecutor(dnsService)) {
+            public SPFResult checkSPF(String ipAddress, String mailFrom, String hostName) {
+                if (mailFrom.startsWith("broken@")) {
+                    throw new IllegalStateException("broken check");
+                }
+                return super.checkSPF(ipAddress, mailFrom, hostName);
+            }
+        };
+        SPFQueryBatch batch = new SPFQueryBatch(spf, dnsService);
+        batch.setMaxInFlight(1);
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            input.append(i % 2 == 0 ? "192.0.2.1,broken@example.com,mail.example.com\n" : "192.0.2.1,user@example.com,mail.example.com\n");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int count = batch.run(new BufferedReader(new StringReader(input.toString())),
+                new PrintStream(out, true, "UTF-8"), new PrintStream(new ByteArrayOutputStream(), true, "UTF-8"));
+
+        assertEquals(4, count);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(4, lines.length);
+        for (int i = 0; i < 4; i++) {
+            String[] fields = lines[i].split("\t");
+            assertEquals(i % 2 == 0 ? "error" : "pass", fields[3]);
+        }
+        assertTrue(lines[0], lines[0].endsWith("\tjava.lang.IllegalStateException: broken check"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectANonPositiveMaximumInFlight() {
+        new SPFQueryBatch(new SPF(resolver), null).setMaxInFlight(0);
+    }
+}
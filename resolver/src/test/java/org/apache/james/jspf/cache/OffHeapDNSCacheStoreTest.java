@@ -0,0 +1,133 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.junit.Test;
+import org.xbill.DNS.Name;
+
+public class OffHeapDNSCacheStoreTest {
+
+    private final OffHeapDNSCacheStore store = new OffHeapDNSCacheStore(4096, 64);
+
+    private static CachedAnswer answer(DNSRecords records) {
+        return new CachedAnswer(records, 1, 2, 3);
+    }
+
+    @Test
+    public void shouldDecodeTheStoredAnswers() throws Exception {
+        store.put("1:a.example.com", answer(DNSRecords.ofAddresses(Arrays.asList(new byte[] { (byte) 192, 0, 2, 1 })).withTTL(300)));
+        store.put("3:example.com", answer(DNSRecords.ofNames(DNSRequest.MX, Arrays.asList(Name.fromString("mx.example.com.")))));
+        store.put("5:example.com", answer(DNSRecords.ofTexts(Arrays.asList("v=spf1 -all".getBytes("US-ASCII")))));
+        store.put("5:example.org", answer(DNSRecords.ofStrings(Arrays.asList("v=spf1 +all", "caf\u00e9"))));
+        store.put("5:example.net", answer(null));
+
+        CachedAnswer address = store.get("1:a.example.com");
+        assertArrayEquals(new byte[] { (byte) 192, 0, 2, 1 }, address.getRecords().getAddress(0));
+        assertEquals(300, address.getRecords().getTTL());
+        assertEquals(1, address.getRefreshAt());
+        assertEquals(2, address.getExpires());
+        assertEquals(3, address.getStaleUntil());
+        assertEquals(Arrays.asList("mx.example.com."), store.get("3:example.com").getRecords().asStrings());
+        assertEquals(Arrays.asList("v=spf1 -all"), store.get("5:example.com").getRecords().asStrings());
+        assertEquals(Arrays.asList("v=spf1 +all", "caf\u00e9"), store.get("5:example.org").getRecords().asStrings());
+        assertNull(store.get("5:example.net").getRecords());
+        assertNull(store.get("5:missing.example.net"));
+        assertEquals(5, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+    }
+
+    @Test
+    public void shouldReplaceTheAnswerOfAKey() {
+        assertNull(store.put("5:example.com", answer(DNSRecords.ofStrings(Arrays.asList("v=spf1 -all")))));
+        CachedAnswer previous = store.put("5:example.com", answer(DNSRecords.ofStrings(Arrays.asList("v=spf1 +all"))));
+        assertEquals(Arrays.asList("v=spf1 -all"), previous.getRecords().asStrings());
+        assertEquals(Arrays.asList("v=spf1 +all"), store.get("5:example.com").getRecords().asStrings());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void shouldEvictTheOldestAnswersWhenTheLogIsFull() {
+        for (int i = 0; i < 1000; i++) {
+            store.put("5:host" + i + ".example.com", answer(DNSRecords.ofStrings(Arrays.asList("v=spf1 ip4:192.0.2." + (i % 256) + " -all"))));
+            assertTrue(store.getUsedBytes() <= 4096);
+        }
+        assertTrue(store.size() <= 64);
+        assertEquals(1000, store.size() + store.getEvictionCount());
+        assertNull(store.get("5:host0.example.com"));
+        for (int i = 1000 - store.size(); i < 1000; i++) {
+            assertEquals(Arrays.asList("v=spf1 ip4:192.0.2." + (i % 256) + " -all"),
+                    store.get("5:host" + i + ".example.com").getRecords().asStrings());
+        }
+    }
+
+    @Test
+    public void shouldBoundTheNumberOfAnswers() {
+        OffHeapDNSCacheStore small = new OffHeapDNSCacheStore(4096, 3);
+        for (int i = 0; i < 10; i++) {
+            small.put("1:host" + i, answer(null));
+        }
+        assertEquals(3, small.size());
+        assertNull(small.peek("1:host6"));
+        assertNotNull(small.peek("1:host9"));
+    }
+
+    @Test
+    public void shouldVisitTheAnswersStillCached() {
+        store.put("5:example.com", answer(DNSRecords.ofStrings(Arrays.asList("v=spf1 -all"))));
+        store.put("5:example.org", answer(null));
+        store.put("5:example.com", answer(DNSRecords.ofStrings(Arrays.asList("v=spf1 +all"))));
+        List<String> visited = new ArrayList<String>();
+        store.forEach((key, answer) -> visited.add(key + "=" + (answer.getRecords() != null ? answer.getRecords().asStrings() : null)));
+        assertEquals(Arrays.asList("5:example.org=null", "5:example.com=[v=spf1 +all]"), visited);
+    }
+
+    @Test
+    public void shouldVisitInChunksWhileTheStoreChanges() {
+        OffHeapDNSCacheStore small = new OffHeapDNSCacheStore(64 * 1024, 1000);
+        for (int i = 0; i < 1000; i++) {
+            small.put("1:host" + i, answer(null));
+        }
+        List<String> visited = new ArrayList<String>();
+        small.forEach((key, answer) -> {
+            visited.add(key);
+            // evicts the oldest answers, which were already visited or are skipped
+            small.put("1:new" + visited.size(), answer(null));
+            small.put("1:other" + visited.size(), answer(null));
+        });
+        assertTrue(visited.size() > 256);
+        assertTrue(visited.size() < 1000);
+        assertEquals("1:host0", visited.get(0));
+        for (String key : visited) {
+            assertTrue(key, key.startsWith("1:host"));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TinyLFUCacheTest {
+
+    @Test
+    public void shouldRespectTheMaximumWeight() {
+        TinyLFUCache<String, String> cache = new TinyLFUCache<String, String>(1000, (key, value) -> value.length());
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "0123456789012345678901234567890123456789");
+            assertTrue(cache.weightedSize() <= 1000);
+        }
+        assertEquals(100, cache.size() + cache.getEvictionCount());
+
+        cache.put("huge", new String(new char[1001]));
+        assertNull(cache.peek("huge"));
+    }
+
+    @Test
+    public void shouldKeepFrequentlyUsedEntriesOverOneHitWonders() {
+        TinyLFUCache<String, Integer> cache = new TinyLFUCache<String, Integer>(100);
+        for (int i = 0; i < 100; i++) {
+            cache.put("popular" + i, i);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                cache.get("popular" + i);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.get("once" + i);
+            cache.put("once" + i, i);
+        }
+        int popular = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.peek("popular" + i) != null) {
+                popular++;
+            }
+        }
+        assertTrue("Only " + popular + " popular entries left", popular >= 95);
+    }
+
+    @Test
+    public void shouldHitMoreOftenThanLRUWhenMostKeysAreUsedOnce() {
+        final int maximumSize = 500;
+        Map<Integer, Integer> lru = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        TinyLFUCache<Integer, Integer> tinyLFU = new TinyLFUCache<Integer, Integer>(maximumSize);
+
+        // a skewed set of 2000 popular domains mixed with as many domains
+        // looked up only once, as during a spam run
+        Random random = new Random(42);
+        int lruHits = 0;
+        int oneHitWonder = 1000000;
+        int lookups = 200000;
+        for (int i = 0; i < lookups; i++) {
+            int key = random.nextBoolean()
+                ? (int) (2000 * Math.pow(random.nextDouble(), 3))
+                : oneHitWonder++;
+            if (lru.get(key) != null) {
+                lruHits++;
+            } else {
+                lru.put(key, key);
+            }
+            if (tinyLFU.get(key) == null) {
+                tinyLFU.put(key, key);
+            }
+        }
+
+        double lruRatio = (double) lruHits / lookups;
+        double tinyLFURatio = (double) tinyLFU.getHitCount() / lookups;
+        assertTrue("TinyLFU " + tinyLFURatio + " vs LRU " + lruRatio, tinyLFURatio > lruRatio + 0.05);
+    }
+
+    @Test
+    public void shouldStayConsistentUnderConcurrentUse() throws Exception {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<Integer, Integer>(100);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            Random random = new Random(t);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    int key = random.nextInt(300);
+                    if (cache.get(key) == null) {
+                        cache.put(key, key);
+                    }
+                    if (i % 10000 == 0) {
+                        cache.clear();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(200000, cache.getHitCount() + cache.getMissCount());
+        assertTrue(cache.size() <= 100);
+        assertEquals(cache.size(), cache.weightedSize());
+        int[] visited = new int[1];
+        cache.forEach((key, value) -> {
+            assertEquals(key, value);
+            visited[0]++;
+        });
+        assertEquals(cache.size(), visited[0]);
+    }
+}
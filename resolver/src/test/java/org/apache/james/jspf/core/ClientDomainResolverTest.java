@@ -0,0 +1,115 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.james.jspf.CountingDNSService;
+import org.apache.james.jspf.executor.AsynchronousSPFExecutor;
+import org.apache.james.jspf.executor.SynchronousSPFExecutor;
+import org.apache.james.jspf.impl.DNSServiceZoneImpl;
+import org.apache.james.jspf.impl.SPF;
+import org.junit.Test;
+
+public class ClientDomainResolverTest {
+
+    @Test
+    public void shouldResolveTheValidatedNamesOncePerClient() throws Exception {
+        CountingDNSService dns = zone();
+        SPF spf = new SPF(dns, new AsynchronousSPFExecutor(dns));
+
+        assertEquals("pass", spf.checkSPF("192.0.2.1", "user@example.com", "mail.example.com").getResult());
+        // the ptr mechanism and the %{p} macro share the lookups
+        assertEquals(1, dns.getLookupCount("PTR"));
+        assertEquals(3, dns.getLookupCount("A:a.example.com") + dns.getLookupCount("A:b.example.org") + dns.getLookupCount("A:mail.example.com"));
+
+        // %{p} is the first validated name, none being in example.net
+        assertEquals("pass", spf.checkSPF("192.0.2.1", "user@example.net", "mail.example.com").getResult());
+        assertEquals(1, dns.getLookupCount("A:b.example.org.x.example.net"));
+        assertEquals(1, dns.getLookupCount("PTR"));
+
+        assertEquals("fail", spf.checkSPF("192.0.2.2", "user@example.com", "mail.example.com").getResult());
+        assertEquals(2, dns.getLookupCount("PTR"));
+    }
+
+    @Test
+    public void shouldMatchOnlyValidatedNames() throws Exception {
+        CountingDNSService dns = zone();
+        SPF spf = new SPF(dns, new SynchronousSPFExecutor(dns));
+
+        // a.example.com does not lead back to the client
+        assertEquals("fail", spf.checkSPF("192.0.2.1", "user@example.org", "mail.example.com").getResult());
+        assertEquals("pass", spf.checkSPF("192.0.2.1", "user@example.info", "mail.example.com").getResult());
+        assertEquals(1, dns.getLookupCount("PTR"));
+    }
+
+    @Test
+    public void shouldValidateTheOtherNamesWhenALookupTimesOut() throws Exception {
+        CountingDNSService dns = zone();
+        SPF spf = new SPF(dns, new AsynchronousSPFExecutor(dns));
+
+        // %{p} is host.example.com even if the lookup of slow.example.com timed out
+        assertEquals("pass", spf.checkSPF("192.0.2.3", "user@example.biz", "mail.example.com").getResult());
+        // not remembered because of the timeout
+        assertEquals("pass", spf.checkSPF("192.0.2.3", "user@example.biz", "mail.example.com").getResult());
+        assertEquals(2, dns.getLookupCount("PTR"));
+    }
+
+    /**
+     * @return the zone of the tests, counting the lookups of each name. The
+     *         lookups of slow.example.com time out.
+     */
+    private static CountingDNSService zone() throws IOException {
+        Map<String, List<?>> zone = new HashMap<String, List<?>>();
+        zone.put("example.com", txt("v=spf1 ptr:nomatch.test exists:%{p}.x.example.com -all"));
+        zone.put("example.net", txt("v=spf1 exists:%{p}.x.example.net -all"));
+        zone.put("example.org", txt("v=spf1 ptr:a.example.com -all"));
+        zone.put("example.info", txt("v=spf1 ptr:example.org -all"));
+        zone.put("example.biz", txt("v=spf1 exists:%{p}.x.example.biz -all"));
+        zone.put("1.2.0.192.in-addr.arpa", Arrays.asList(Collections.singletonMap("PTR", "a.example.com"),
+                Collections.singletonMap("PTR", "b.example.org"), Collections.singletonMap("PTR", "mail.example.com")));
+        zone.put("3.2.0.192.in-addr.arpa", Arrays.asList(Collections.singletonMap("PTR", "slow.example.com"),
+                Collections.singletonMap("PTR", "host.example.com")));
+        zone.put("a.example.com", a("192.0.2.9"));
+        zone.put("slow.example.com", Arrays.asList("TIMEOUT"));
+        zone.put("host.example.com", a("192.0.2.3"));
+        zone.put("host.example.com.x.example.biz", a("127.0.0.2"));
+        zone.put("b.example.org", a("192.0.2.1"));
+        zone.put("mail.example.com", a("192.0.2.1"));
+        zone.put("mail.example.com.x.example.com", a("127.0.0.2"));
+        zone.put("b.example.org.x.example.net", a("127.0.0.2"));
+        return new CountingDNSService(DNSServiceZoneImpl.fromZoneData(zone));
+    }
+
+    private static List<?> txt(String text) {
+        return Arrays.asList(Collections.singletonMap("TXT", text));
+    }
+
+    private static List<?> a(String address) {
+        return Arrays.asList(Collections.singletonMap("A", address));
+    }
+}
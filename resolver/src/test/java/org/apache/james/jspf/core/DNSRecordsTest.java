@@ -0,0 +1,65 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DNSRecordsTest {
+
+    private static final List<String> TEXTS = Arrays.asList(
+            "v=spf1 -all", "V=SPF1 mx -all", "  v=spf1 a", "v=spf1", "v=spf1   ",
+            "v=spf10 -all", "v=spf1\t-all", "\tv=spf1 -all", "v=spf", "", "google-site-verification=abc",
+            "\"v=spf1 -all\"", "v=Spf1 ~all é");
+
+    @Test
+    public void shouldFindTheTagInRawTextsLikeInStrings() {
+        List<byte[]> raw = new ArrayList<byte[]>();
+        for (String text : TEXTS) {
+            raw.add(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        DNSRecords texts = DNSRecords.ofTexts(raw);
+        DNSRecords strings = DNSRecords.ofStrings(texts.asStrings());
+        DNSRecords unconverted = DNSRecords.ofTexts(raw);
+        for (int i = 0; i < TEXTS.size(); i++) {
+            String string = texts.asStrings().get(i);
+            boolean expected = string.toLowerCase().trim().startsWith("v=spf1 ") || string.trim().equalsIgnoreCase("v=spf1");
+            assertEquals(string, expected, unconverted.hasTextTag(i, SPF1Constants.SPF_VERSION1));
+            assertEquals(string, expected, strings.hasTextTag(i, SPF1Constants.SPF_VERSION1));
+            assertEquals(string, texts.asStrings().get(i), unconverted.getString(i));
+        }
+    }
+
+    @Test
+    public void shouldTrimControlCharactersOfStrings() {
+        DNSRecords strings = DNSRecords.ofStrings(Arrays.asList("\tv=spf1 -all", "v=spf1\t"));
+        assertTrue(strings.hasTextTag(0, SPF1Constants.SPF_VERSION1));
+        assertTrue(strings.hasTextTag(1, SPF1Constants.SPF_VERSION1));
+        assertFalse(strings.hasTextTag(1, "v=spf2"));
+    }
+}
@@ -125,4 +125,64 @@ public class IPAddrTest extends TestCase {
         }
     }
 
+    public void testIsIPAddr() {
+        assertTrue(IPAddr.isIPAddr("192.0.2.1"));
+        assertTrue(IPAddr.isIPAddr(" 192.0.2.1. "));
+        assertTrue(IPAddr.isIPAddr("2001:db8::1"));
+        assertFalse(IPAddr.isIPAddr("localhost"));
+        assertFalse(IPAddr.isIPAddr("mail.example.com"));
+        assertFalse(IPAddr.isIPAddr("1.2.3"));
+        assertFalse(IPAddr.isIPAddr(""));
+    }
+
+    public void testParseAddress() {
+        byte[] dst = new byte[16];
+        assertEquals(4, Inet6Util.parseAddress("10.0.255.1", 0, 10, dst));
+        assertEquals(10, dst[0]);
+        assertEquals(-1, dst[2]);
+        assertEquals(1, dst[3]);
+
+        assertEquals(16, Inet6Util.parseAddress("[2001:db8::1:2]", 0, 15, dst));
+        assertEquals(0x20, dst[0]);
+        assertEquals(0x01, dst[1]);
+        assertEquals(0, dst[4]);
+        assertEquals(0, dst[11]);
+        assertEquals(1, dst[13]);
+        assertEquals(2, dst[15]);
+
+        assertEquals(16, Inet6Util.parseAddress("::13.1.68.3", 0, 11, dst));
+        assertEquals(4, Inet6Util.parseAddress("::FFFF:129.144.52.38", 0, 20, dst));
+        assertEquals((byte) 129, dst[0]);
+        assertEquals(38, dst[3]);
+
+        assertEquals(0, Inet6Util.parseAddress("1::2::3", 0, 7, dst));
+        assertEquals(0, Inet6Util.parseAddress("1:2:3:4:5:6:7:8::", 0, 17, dst));
+        assertEquals(0, Inet6Util.parseAddress("1.2.3.4.5", 0, 9, dst));
+    }
+
+    public void testContains() throws PermErrorException {
+        IPAddr ip4 = IPAddr.getAddress("192.0.2.10", 24);
+        assertTrue(ip4.contains("192.0.2.200"));
+        assertFalse(ip4.contains("192.0.3.10"));
+        assertFalse(ip4.contains("2001:db8::1"));
+        assertFalse(ip4.contains("invalid"));
+
+        IPAddr ip6 = IPAddr.getAddress("2001:db8::1", 64);
+        assertTrue(ip6.contains("2001:DB8:0:0:ffff::"));
+        assertFalse(ip6.contains("2001:db8:0:1::1"));
+    }
+
+    public void testIsSameAddress() throws PermErrorException {
+        assertTrue(IPAddr.getAddress("2001:db8::1").isSameAddress("2001:0DB8:0:0:0:0:0:1"));
+        assertFalse(IPAddr.getAddress("2001:db8::1").isSameAddress("2001:db8::2"));
+        assertTrue(IPAddr.getAddress("::ffff:192.0.2.1").isSameAddress("192.0.2.1"));
+    }
+
+    public void testGetReadableIP() throws PermErrorException {
+        assertEquals("cafe:babe:0:0:0:0:0:1", IPAddr.getReadableIP("CAFE:BABE::1"));
+        assertEquals("192.0.2.1", IPAddr.getReadableIP("192.0.2.1"));
+        assertEquals("192.0.2.1", IPAddr.getProperIpAddress("::ffff:192.0.2.1"));
+        assertEquals("2001:db8::1", IPAddr.getProperIpAddress("2001:db8::1"));
+    }
+
 }
@@ -19,9 +19,13 @@
 
 package org.apache.james.jspf.core;
 
+import org.apache.james.jspf.core.exceptions.NoneException;
+import org.apache.james.jspf.core.exceptions.PermErrorException;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public class SPFSessionTest {
     @Test
@@ -62,4 +66,82 @@ public class SPFSessionTest {
         SPFSession spfSession = new SPFSession("", "", "192.168.1.1");
         assertEquals("in-addr", spfSession.getInAddress());
     }
+
+    @Test
+    public void shouldStoreTypedValues() {
+        SPFSession.Key<String> key = SPFSession.Key.register("SPFSessionTest.typed");
+        SPFSession spfSession = new SPFSession("", "", "192.168.1.1");
+        assertNull(spfSession.get(key));
+        spfSession.set(key, "value");
+        assertEquals("value", spfSession.get(key));
+        assertEquals("value", spfSession.remove(key));
+        assertNull(spfSession.get(key));
+    }
+
+    @Test
+    public void shouldShareRegisteredKeysWithStringAttributes() {
+        SPFSession.Key<String> key = SPFSession.Key.register("SPFSessionTest.shared");
+        assertSame(key, SPFSession.Key.register("SPFSessionTest.shared"));
+        SPFSession spfSession = new SPFSession("", "", "192.168.1.1");
+        spfSession.setAttribute("SPFSessionTest.shared", "value");
+        assertEquals("value", spfSession.get(key));
+        spfSession.set(key, "other");
+        assertEquals("other", spfSession.getAttribute("SPFSessionTest.shared"));
+        assertEquals("other", spfSession.removeAttribute("SPFSessionTest.shared"));
+        assertNull(spfSession.get(key));
+    }
+
+    @Test
+    public void shouldKeepUnregisteredStringAttributes() {
+        SPFSession spfSession = new SPFSession("", "", "192.168.1.1");
+        assertNull(spfSession.getAttribute("SPFSessionTest.unregistered"));
+        spfSession.setAttribute("SPFSessionTest.unregistered", Boolean.TRUE);
+        assertEquals(Boolean.TRUE, spfSession.getAttribute("SPFSessionTest.unregistered"));
+        assertEquals(Boolean.TRUE, spfSession.removeAttribute("SPFSessionTest.unregistered"));
+    }
+
+    @Test
+    public void shouldAcceptKeysRegisteredAfterSessionCreation() {
+        SPFSession spfSession = new SPFSession("", "", "192.168.1.1");
+        SPFSession.Key<Integer> key = SPFSession.Key.register("SPFSessionTest.late");
+        spfSession.set(key, 42);
+        assertEquals(Integer.valueOf(42), spfSession.get(key));
+    }
+
+    @Test
+    public void shouldClearStateOnReset() {
+        SPFSession.Key<String> key = SPFSession.Key.register("SPFSessionTest.reset");
+        SPFSession spfSession = new SPFSession("a_user@example.com", "example.com", "300.1.1.1");
+        spfSession.set(key, "value");
+        spfSession.setAttribute("SPFSessionTest.unregistered", Boolean.TRUE);
+        spfSession.setCurrentResult("-");
+        spfSession.pushChecker(s -> null);
+        assertEquals("permerror", spfSession.getCurrentResultExpanded());
+
+        spfSession.reset("", "other.example", "192.168.1.1");
+        assertNull(spfSession.get(key));
+        assertNull(spfSession.getAttribute("SPFSessionTest.unregistered"));
+        assertNull(spfSession.getCurrentResult());
+        assertNull(spfSession.getCurrentResultExpanded());
+        assertNull(spfSession.popChecker());
+        assertEquals("postmaster@other.example", spfSession.getMailFrom());
+        assertEquals("other.example", spfSession.getCurrentDomain());
+        assertEquals("in-addr", spfSession.getInAddress());
+    }
+
+    @Test
+    public void shouldHandOutSignaledResultOnce() {
+        SPFSession spfSession = new SPFSession("", "example.com", "192.168.1.1");
+        assertNull(spfSession.takeSignaledResult());
+        NoneException none = new NoneException("No SPF record found");
+        spfSession.signalResult(none);
+        assertSame(none, spfSession.takeSignaledResult());
+        assertNull(spfSession.takeSignaledResult());
+    }
+
+    @Test
+    public void resultExceptionsShouldNotCaptureStackTraces() {
+        assertEquals(0, new NoneException("none").getStackTrace().length);
+        assertEquals(0, new PermErrorException("permerror").getStackTrace().length);
+    }
 }
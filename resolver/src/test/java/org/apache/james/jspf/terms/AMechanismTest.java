@@ -0,0 +1,82 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.terms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.james.jspf.core.DNSRecords;
+import org.apache.james.jspf.core.DNSRequest;
+import org.apache.james.jspf.core.DNSService;
+import org.apache.james.jspf.core.IPAddr;
+import org.apache.james.jspf.core.exceptions.PermErrorException;
+import org.apache.james.jspf.core.exceptions.TimeoutException;
+import org.apache.james.jspf.impl.DNSServiceZoneImpl;
+import org.apache.james.jspf.impl.SPF;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.TXTRecord;
+
+public class AMechanismTest {
+
+    @Test
+    public void shouldRejectRecordsWhichAreNotAddresses() throws Exception {
+        AMechanism mechanism = new AMechanism();
+        IPAddr checkAddress = IPAddr.getAddress("192.0.2.1", 32);
+
+        assertTrue(mechanism.checkAddressList(checkAddress, DNSRecords.ofStrings(Arrays.asList("192.0.2.1."))));
+        assertFalse(mechanism.checkAddressList(checkAddress, DNSRecords.ofStrings(Arrays.asList((String) null))));
+        try {
+            mechanism.checkAddressList(checkAddress, DNSRecords.ofStrings(Arrays.asList("192.0.2.256", "192.0.2.1")));
+            fail("Expected a PermErrorException");
+        } catch (PermErrorException e) {
+        }
+        try {
+            mechanism.checkAddressList(checkAddress, Arrays.asList("mail.example.com"), 32);
+            fail("Expected a PermErrorException");
+        } catch (PermErrorException e) {
+        }
+    }
+
+    @Test
+    public void shouldGivePermErrorForAnInvalidAddressRecord() throws Exception {
+        List<Record> zone = Arrays.<Record>asList(
+                new TXTRecord(Name.fromString("example.com."), DClass.IN, 3600, "v=spf1 a -all"));
+        // a zone only holds valid addresses, so the invalid one is added
+        DNSService dns = new DNSServiceZoneImpl(zone) {
+            public DNSRecords getDNSRecords(DNSRequest request) throws TimeoutException {
+                if (request.getRecordType() == DNSRequest.A) {
+                    return DNSRecords.ofStrings(Arrays.asList("not.an.address"));
+                }
+                return super.getDNSRecords(request);
+            }
+        };
+        SPF spf = new SPF(dns);
+
+        assertEquals("permerror", spf.checkSPF("192.0.2.1", "user@example.com", "mail.example.com").getResult());
+    }
+}
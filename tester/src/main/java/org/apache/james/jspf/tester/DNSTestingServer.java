@@ -89,49 +89,122 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A DNS server answering from the zone data of the YAML test suites.
+ *
+ * The server runs on a few NIO event loops. The responses to the usual
+ * questions about the names of the zone are encoded when the data is set,
+ * and the responses to other questions the first time they are asked, so
+ * that answering a query only needs a lookup and the copy of the query id
+ * and question. Names marked as TIMEOUT get no answer.
+ */
 public class DNSTestingServer implements ResponseGenerator {
 
     static final int FLAG_DNSSECOK = 1;
 
     static final int FLAG_SIGONLY = 2;
 
-    protected Zone zone;
-    
-    private Set<Name> timeoutServers;
-    
-    Random random = new Random();
+    // the types whose responses are computed with the data
+    private static final int[] PRECOMPUTED_TYPES = new int[] { Type.A,
+            Type.AAAA, Type.MX, Type.TXT, Type.SPF, Type.PTR, Type.CNAME };
+
+    // the responses remembered, beyond which new questions are answered
+    // from the zone every time
+    private static final int MAX_RESPONSES = 100000;
+
+    // remembered for the questions which time out
+    private static final byte[] TIMEOUT = new byte[0];
+
+    private volatile ZoneData data;
+
+    private final EventLoop[] eventLoops;
+
+    private volatile long delay = 0;
+
+    private volatile int jitter = 500;
 
     public DNSTestingServer(String address, String porta)
             throws TextParseException, IOException {
+        this(address, porta, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param address the address to listen on, null for all of them
+     * @param porta the port to listen on, null for 53
+     * @param threads the number of event loop threads
+     */
+    public DNSTestingServer(String address, String porta, int threads)
+            throws TextParseException, IOException {
 
         Integer port = new Integer(porta != null ? porta : "53");
         InetAddress addr = Address.getByAddress(address != null ? address
                 : "0.0.0.0");
 
-        Thread t;
-        t = new Thread(new TCPListener(addr, port.intValue(), this));
-        t.setDaemon(true);
-        t.start();
+        eventLoops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("DNSTestingServer-" + port + "-" + i);
+        }
+        try {
+            new TCPListener(addr, port.intValue(), this, eventLoops);
+            new UDPListener(addr, port.intValue(), this, eventLoops[0]);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop listening and close the connections.
+     */
+    public void close() {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i].close();
+        }
+    }
 
-        t = new Thread(new UDPListener(addr, port.intValue(), this));
-        t.setDaemon(true);
-        t.start();
+    /**
+     * Set a delay added to every answer, to simulate a slow server.
+     * 
+     * @param delay the delay in milliseconds
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Set the bound of the random delay added to every answer, to make the
+     * order of the answers vary. Defaults to 500 milliseconds.
+     * 
+     * @param jitter the bound in milliseconds, 0 to answer in order
+     */
+    public void setJitter(int jitter) {
+        this.jitter = jitter;
+    }
 
-        zone = null;
+    /**
+     * @see org.apache.james.jspf.tester.ResponseGenerator#getResponseDelay()
+     */
+    public long getResponseDelay() {
+        int jitter = this.jitter;
+        return delay + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter) : 0);
     }
 
     @SuppressWarnings("unchecked")
     public synchronized void setData(Map<String, List<?>> map) {
         try {
-            this.timeoutServers = new HashSet<Name>();
+            Set<Name> timeoutServers = new HashSet<Name>();
+            Set<Name> names = new LinkedHashSet<Name>();
             List<Record> records = new LinkedList<Record>();
 
             records.add(new SOARecord(Name.root, DClass.IN, 3600, Name.root,
@@ -147,6 +220,7 @@ public class DNSTestingServer implements ResponseGenerator {
                 } else {
                     hostname = Name.fromString(host);
                 }
+                names.add(hostname);
 
                 List<?> l = map.get(host);
                 if (l != null)
@@ -232,8 +306,10 @@ public class DNSTestingServer implements ResponseGenerator {
                     }
             }
 
-            zone = new Zone(Name.root, (Record[]) records
-                    .toArray(new Record[] {}));
+            ZoneData data = new ZoneData(new Zone(Name.root, (Record[]) records
+                    .toArray(new Record[] {})), timeoutServers);
+            precompute(data, names);
+            this.data = data;
             
         } catch (TextParseException e) {
             // TODO Auto-generated catch block
@@ -247,12 +323,35 @@ public class DNSTestingServer implements ResponseGenerator {
         }
     }
 
-    private SOARecord findSOARecord() {
-        return zone.getSOA();
+    /**
+     * Compute the responses to the questions about the given names, with
+     * and without EDNS0.
+     */
+    private void precompute(ZoneData data, Set<Name> names) throws IOException {
+        for (Name name : names) {
+            for (int i = 0; i < PRECOMPUTED_TYPES.length; i++) {
+                Message query = Message.newQuery(Record.newRecord(name,
+                        PRECOMPUTED_TYPES[i], DClass.IN));
+                precompute(data, query);
+                query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+                precompute(data, query);
+            }
+        }
+    }
+
+    private void precompute(ZoneData data, Message query) throws IOException {
+        byte[] in = query.toWire();
+        byte[] response = generateReply(data, query, true);
+        data.responses.put(Question.parse(in, in.length).key,
+                response != null ? response : TIMEOUT);
+    }
+
+    private SOARecord findSOARecord(ZoneData data) {
+        return data.zone.getSOA();
     }
 
-    private RRset findNSRecords() {
-        return zone.getNS();
+    private RRset findNSRecords(ZoneData data) {
+        return data.zone.getNS();
     }
 
     // TODO verify why enabling this lookup will make some test to fail!
@@ -261,26 +360,15 @@ public class DNSTestingServer implements ResponseGenerator {
         //return zone.findExactMatch(name, Type.A);
     }
 
-    private SetResponse findRecords(Name name, int type) {
-        SetResponse sr = zone.findRecords(name, type);
+    private SetResponse findRecords(ZoneData data, Name name, int type) {
+        SetResponse sr = data.zone.findRecords(name, type);
         
         if (sr == null || sr.answers() == null || sr.answers().size() == 0) {
-            boolean timeout = timeoutServers.contains(name);
-            if (timeout) {
-                try {
-                    Thread.sleep(2100);
-                }
-                catch (InterruptedException e) {
-                }
+            if (data.timeoutServers.contains(name)) {
                 return null;
             }
         }
         
-        try {
-            Thread.sleep(random.nextInt(500));
-        }
-        catch (Exception e) {} 
-        
         return sr;
     }
 
@@ -332,7 +420,7 @@ public class DNSTestingServer implements ResponseGenerator {
         addAdditional2(response, Section.AUTHORITY, flags);
     }
 
-    byte addAnswer(Message response, Name name, int type, int dclass,
+    byte addAnswer(ZoneData data, Message response, Name name, int type, int dclass,
             int iterations, int flags) {
         SetResponse sr;
         byte rcode = Rcode.NOERROR;
@@ -345,7 +433,7 @@ public class DNSTestingServer implements ResponseGenerator {
             flags |= FLAG_SIGONLY;
         }
 
-        sr = findRecords(name, type);
+        sr = findRecords(data, name, type);
 
         // TIMEOUT
         if (sr == null) {
@@ -356,7 +444,7 @@ public class DNSTestingServer implements ResponseGenerator {
             if (sr.isNXDOMAIN())
                 response.getHeader().setRcode(Rcode.NXDOMAIN);
 
-            response.addRecord(findSOARecord(), Section.AUTHORITY);
+            response.addRecord(findSOARecord(data), Section.AUTHORITY);
 
             if (iterations == 0)
                 response.getHeader().setFlag(Flags.AA);
@@ -373,7 +461,7 @@ public class DNSTestingServer implements ResponseGenerator {
             addRRset(name, response, rrset, Section.ANSWER, flags);
             if (iterations == 0)
                 response.getHeader().setFlag(Flags.AA);
-            rcode = addAnswer(response, cname.getTarget(), type, dclass,
+            rcode = addAnswer(data, response, cname.getTarget(), type, dclass,
                     iterations + 1, flags);
         } else if (sr.isDNAME()) {
             DNAMERecord dname = sr.getDNAME();
@@ -389,14 +477,14 @@ public class DNSTestingServer implements ResponseGenerator {
             addRRset(name, response, rrset, Section.ANSWER, flags);
             if (iterations == 0)
                 response.getHeader().setFlag(Flags.AA);
-            rcode = addAnswer(response, newname, type, dclass, iterations + 1,
+            rcode = addAnswer(data, response, newname, type, dclass, iterations + 1,
                     flags);
         } else if (sr.isSuccessful()) {
             List<RRset> rrsets = sr.answers();
             for (int i = 0; i < rrsets.size(); i++)
                 addRRset(name, response, rrsets.get(i), Section.ANSWER, flags);
 
-            RRset findNSRecords = findNSRecords();
+            RRset findNSRecords = findNSRecords(data);
             addRRset(findNSRecords.getName(), response, findNSRecords,
                     Section.AUTHORITY, flags);
 
@@ -408,6 +496,17 @@ public class DNSTestingServer implements ResponseGenerator {
 
     public byte[] generateReply(Message query, int length, Socket s)
             throws IOException {
+        return generateReply(query, s != null);
+    }
+
+    byte[] generateReply(Message query, boolean tcp)
+            throws IOException {
+        ZoneData data = this.data;
+        return data != null ? generateReply(data, query, tcp) : null;
+    }
+
+    private byte[] generateReply(ZoneData data, Message query, boolean tcp)
+            throws IOException {
         Header header;
         int maxLength;
         int flags = 0;
@@ -426,7 +525,7 @@ public class DNSTestingServer implements ResponseGenerator {
         if (queryOPT != null && queryOPT.getVersion() > 0) {
         }
 
-        if (s != null)
+        if (tcp)
             maxLength = 65535;
         else if (queryOPT != null)
             maxLength = Math.max(queryOPT.getPayloadSize(), 512);
@@ -448,7 +547,7 @@ public class DNSTestingServer implements ResponseGenerator {
         if (!Type.isRR(type) && type != Type.ANY)
             return errorMessage(query, Rcode.NOTIMP);
 
-        byte rcode = addAnswer(response, name, type, dclass, 0, flags);
+        byte rcode = addAnswer(data, response, name, type, dclass, 0, flags);
         
         // TIMEOUT
         if (rcode == -1) {
@@ -496,15 +595,158 @@ public class DNSTestingServer implements ResponseGenerator {
     }
 
     public byte[] generateReply(byte[] in, int length) {
+        return reply(in, length, false);
+    }
+
+    public byte[] generateTCPReply(byte[] in, int length) {
+        return reply(in, length, true);
+    }
+
+    /**
+     * Answer a plain query with a copy of the response computed for its
+     * question, patched with its id and its question, whose case may
+     * differ. Other queries are answered from the zone.
+     */
+    private byte[] reply(byte[] in, int length, boolean tcp) {
+        ZoneData data = this.data;
+        Question question = data != null ? Question.parse(in, length) : null;
+        if (question == null) {
+            return generateReply(data, in, length, tcp);
+        }
+        byte[] response = data.responses.get(question.key);
+        if (response == null) {
+            response = generateReply(data, in, length, true);
+            if (response == null) {
+                response = TIMEOUT;
+            }
+            if (data.responses.size() < MAX_RESPONSES) {
+                data.responses.putIfAbsent(question.key, response);
+            }
+        }
+        if (response == TIMEOUT) {
+            return null;
+        }
+        if (!tcp && response.length > question.maxLength) {
+            // truncated, which is rare enough not to be remembered
+            return generateReply(data, in, length, false);
+        }
+        byte[] reply = response.clone();
+        reply[0] = in[0];
+        reply[1] = in[1];
+        if (reply[4] == 0 && reply[5] == 1) {
+            System.arraycopy(in, 12, reply, 12, question.nameLength);
+        }
+        return reply;
+    }
+
+    private byte[] generateReply(ZoneData data, byte[] in, int length, boolean tcp) {
+        if (data == null) {
+            return null;
+        }
         Message query;
         byte[] response = null;
         try {
-            query = new Message(in);
-            response = generateReply(query, length, null);
+            query = new Message(length < in.length ? Arrays.copyOf(in, length) : in);
+            response = generateReply(data, query, tcp);
         } catch (IOException e) {
             response = formerrMessage(in);
         }
         return response;
     }
 
+    private static int readU16(byte[] in, int pos) {
+        return ((in[pos] & 0xFF) << 8) | (in[pos + 1] & 0xFF);
+    }
+
+    /**
+     * The question of a plain query, read without decoding the message.
+     */
+    private static final class Question {
+
+        // the lower cased question and the flags changing the response
+        private final String key;
+
+        private final int nameLength;
+
+        // the largest response which fits in a UDP answer
+        private final int maxLength;
+
+        private Question(String key, int nameLength, int maxLength) {
+            this.key = key;
+            this.nameLength = nameLength;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * @return the question of the given query, null if the query is not
+         *         a query for a single question with at most an OPT record
+         */
+        static Question parse(byte[] in, int length) {
+            // QR, opcode and rcode must be 0
+            if (length < 12 || (in[2] & 0xF8) != 0 || (in[3] & 0x0F) != 0
+                    || readU16(in, 4) != 1 || readU16(in, 6) != 0
+                    || readU16(in, 8) != 0 || readU16(in, 10) > 1) {
+                return null;
+            }
+            int pos = 12;
+            int label;
+            do {
+                if (pos >= length) {
+                    return null;
+                }
+                label = in[pos] & 0xFF;
+                // no compression is expected in the question
+                if (label > 63) {
+                    return null;
+                }
+                pos += 1 + label;
+            } while (label > 0);
+            int nameLength = pos - 12;
+            int end = pos + 4;
+            if (nameLength > 255 || end > length) {
+                return null;
+            }
+
+            int flags = in[2] & 0x01;
+            int maxLength = 512;
+            if (readU16(in, 10) == 1) {
+                if (end + 11 > length || in[end] != 0
+                        || readU16(in, end + 1) != Type.OPT
+                        || end + 11 + readU16(in, end + 9) != length) {
+                    return null;
+                }
+                maxLength = Math.max(readU16(in, end + 3), 512);
+                flags |= (in[end + 7] & 0x80) != 0 ? 6 : 2;
+            } else if (end != length) {
+                return null;
+            }
+
+            char[] key = new char[end - 12 + 1];
+            for (int i = 12; i < end; i++) {
+                int c = in[i] & 0xFF;
+                key[i - 12] = (char) (i < pos && c >= 'A' && c <= 'Z' ? c + 32 : c);
+            }
+            key[key.length - 1] = (char) flags;
+            return new Question(new String(key), nameLength, maxLength);
+        }
+    }
+
+    /**
+     * The zone set with {@link DNSTestingServer#setData(Map)} and the
+     * responses computed from it.
+     */
+    private static final class ZoneData {
+
+        private final Zone zone;
+
+        private final Set<Name> timeoutServers;
+
+        private final Map<String, byte[]> responses = new ConcurrentHashMap<String, byte[]>();
+
+        private ZoneData(Zone zone, Set<Name> timeoutServers) {
+            this.zone = zone;
+            this.timeoutServers = timeoutServers;
+        }
+    }
+
 }
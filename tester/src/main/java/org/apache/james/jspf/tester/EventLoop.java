@@ -0,0 +1,192 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.jspf.tester;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread serving the channels registered with its selector. The handlers
+ * and the scheduled tasks all run on this thread, so they need no locking.
+ * A handler that fails only closes its own channel, and a task that fails
+ * is logged and skipped.
+ */
+final class EventLoop implements Runnable {
+
+    /**
+     * Handles the operations a channel is ready for.
+     */
+    interface Handler {
+
+        void handle(SelectionKey key) throws IOException;
+    }
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Run the given task on the loop thread. May be called from any thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Register the given channel, which must be non-blocking, with the loop.
+     * May be called from any thread.
+     */
+    void register(final SelectableChannel channel, final int ops, final Handler handler) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    channel.register(selector, ops, handler);
+                } catch (IOException e) {
+                    System.out.println("EventLoop: " + e);
+                    close(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the given task on the loop thread after the given delay. Must be
+     * called from the loop thread.
+     */
+    void schedule(Runnable task, long delay) {
+        timers.add(new Timer(System.nanoTime() + delay * 1000000L, task));
+    }
+
+    /**
+     * Close the registered channels and stop the loop.
+     */
+    void close() {
+        execute(new Runnable() {
+            public void run() {
+                for (SelectionKey key : selector.keys()) {
+                    EventLoop.close(key.channel());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        });
+    }
+
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select(runTimers());
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    run(task);
+                }
+                if (!selector.isOpen()) {
+                    break;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        ((Handler) key.attachment()).handle(key);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("EventLoop: " + e);
+                        close(key.channel());
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+        } catch (IOException e) {
+            System.out.println("EventLoop: " + e);
+        }
+    }
+
+    /**
+     * Run the expired timers.
+     *
+     * @return the milliseconds until the next timer, 0 if there is none
+     */
+    private long runTimers() {
+        while (!timers.isEmpty()) {
+            long wait = timers.peek().deadline - System.nanoTime();
+            if (wait > 0) {
+                return Math.max(1, wait / 1000000L);
+            }
+            run(timers.poll().task);
+        }
+        return 0;
+    }
+
+    /**
+     * Run the given task, keeping the loop alive if it fails.
+     */
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.out.println("EventLoop: " + e);
+        }
+    }
+
+    private static void close(SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+
+        private final long deadline;
+
+        private final Runnable task;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public int compareTo(Timer o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+}
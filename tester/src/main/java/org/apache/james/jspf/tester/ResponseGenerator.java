@@ -24,4 +24,20 @@ public interface ResponseGenerator {
 
     public byte[] generateReply(byte[] in, int length);
 
+    /**
+     * Generate the reply to a query received over TCP, which is not
+     * limited to the UDP message size.
+     */
+    public byte[] generateTCPReply(byte[] in, int length);
+
+    /**
+     * Return the delay to wait before sending the next reply, to simulate
+     * a slow server.
+     *
+     * @return the delay in milliseconds
+     */
+    public default long getResponseDelay() {
+        return 0;
+    }
+
 }
@@ -56,80 +56,164 @@
 
 package org.apache.james.jspf.tester;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 
-public final class TCPListener implements Runnable {
+/**
+ * Accepts the TCP connections and spreads them over the given
+ * {@link EventLoop}s, the first of which also serves the accepts.
+ */
+public final class TCPListener implements EventLoop.Handler {
     
-    private final static class TCPServer implements Runnable {
-        private final Socket serverSocket;
+    /**
+     * Serves the queries of a connection until the client closes it. The
+     * queries may be pipelined (RFC 7766): the answers are written as soon
+     * as they are ready, so they can come back out of order.
+     */
+    private final static class TCPServer implements EventLoop.Handler {
+        private final SocketChannel channel;
+
+        private final EventLoop eventLoop;
 
         private ResponseGenerator responseGenerator;
 
-        private TCPServer(Socket s, ResponseGenerator rg) {
-            this.serverSocket = s;
+        // a length prefix and the largest message
+        private final ByteBuffer in = ByteBuffer.allocate(2 + 65535);
+
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+        private SelectionKey key;
+
+        // the answers waiting for their delay
+        private int delayed = 0;
+
+        private boolean closing = false;
+
+        private TCPServer(SocketChannel channel, EventLoop eventLoop, ResponseGenerator rg) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
             this.responseGenerator = rg;
         }
 
-        public void run() {
+        public void handle(SelectionKey key) throws IOException {
+            this.key = key;
+            if (key.isReadable()) {
+                if (channel.read(in) < 0) {
+                    closing = true;
+                }
+                in.flip();
+                while (in.remaining() >= 2 && in.remaining() >= 2 + (in.getShort(in.position()) & 0xFFFF)) {
+                    byte[] query = new byte[in.getShort() & 0xFFFF];
+                    in.get(query);
+                    final byte[] response = responseGenerator.generateTCPReply(query, query.length);
+                    if (response == null) {
+                        continue;
+                    }
+                    long delay = responseGenerator.getResponseDelay();
+                    if (delay > 0) {
+                        delayed++;
+                        eventLoop.schedule(new Runnable() {
+                            public void run() {
+                                delayed--;
+                                write(response);
+                            }
+                        }, delay);
+                    } else {
+                        write(response);
+                    }
+                }
+                in.compact();
+                if (closing && out.isEmpty()) {
+                    key.interestOps(0);
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            closeIfDone();
+        }
+
+        private void write(byte[] response) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(2 + response.length);
+            buffer.putShort((short) response.length);
+            buffer.put(response);
+            buffer.flip();
+            out.add(buffer);
             try {
-                int inLength;
-                DataInputStream dataIn;
-                DataOutputStream dataOut;
-                byte[] in;
-
-                InputStream is = serverSocket.getInputStream();
-                dataIn = new DataInputStream(is);
-                inLength = dataIn.readUnsignedShort();
-                in = new byte[inLength];
-                dataIn.readFully(in);
-
-                int length = in.length;
-                byte[] response = responseGenerator.generateReply(in, length);
-                if (response == null) return;
-                dataOut = new DataOutputStream(serverSocket.getOutputStream());
-                dataOut.writeShort(response.length);
-                dataOut.write(response);
+                flush();
             } catch (IOException e) {
-                System.out.println("TCPclient("
-                        + serverSocket.getLocalAddress().getHostAddress() + "#" + serverSocket.getLocalPort()
-                        + "): " + e);
-            } finally {
-                try {
-                    serverSocket.close();
-                } catch (IOException e) {
+                System.out.println("TCPclient(" + channel + "): " + e);
+                close();
+            }
+            closeIfDone();
+        }
+
+        private void flush() throws IOException {
+            while (!out.isEmpty()) {
+                channel.write(out.peek());
+                if (out.peek().hasRemaining()) {
+                    key.interestOps(closing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
                 }
+                out.poll();
+            }
+            key.interestOps(closing ? 0 : SelectionKey.OP_READ);
+        }
+
+        private void closeIfDone() {
+            if (closing && delayed == 0 && out.isEmpty()) {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
             }
         }
 
     }
 
-    private final int port;
+    private final ServerSocketChannel channel;
 
-    private final InetAddress addr;
+    private final EventLoop[] eventLoops;
 
     private ResponseGenerator responseGenerator;
 
-    public TCPListener(InetAddress addr, int port, ResponseGenerator rg) {
-        this.port = port;
-        this.addr = addr;
+    private int next = 0;
+
+    TCPListener(InetAddress addr, int port, ResponseGenerator rg, EventLoop[] eventLoops) throws IOException {
+        this.channel = ServerSocketChannel.open();
+        this.channel.bind(new InetSocketAddress(addr, port), 128);
+        this.channel.configureBlocking(false);
+        this.eventLoops = eventLoops;
         this.responseGenerator = rg;
+        eventLoops[0].register(channel, SelectionKey.OP_ACCEPT, this);
     }
 
-    public void run() {
+    public void handle(SelectionKey key) {
+        SocketChannel client;
         try {
-            ServerSocket sock = new ServerSocket(port, 128, addr);
-            while (true) {
-                new Thread(new TCPServer(sock.accept(), responseGenerator)).start();
+            while ((client = channel.accept()) != null) {
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                EventLoop eventLoop = eventLoops[next++ % eventLoops.length];
+                eventLoop.register(client, SelectionKey.OP_READ, new TCPServer(client, eventLoop, responseGenerator));
             }
         } catch (IOException e) {
-            System.out.println("serveTCP(" + addr.getHostAddress() + "#" + port + "): "
-                    + e);
+            System.out.println("serveTCP(" + channel + "): " + e);
         }
     }
-}
\ No newline at end of file
+
+}
@@ -57,91 +57,73 @@
 package org.apache.james.jspf.tester;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 
-public final class UDPListener implements Runnable {
+/**
+ * Answers the queries received over UDP from an {@link EventLoop}, without
+ * a thread per packet.
+ */
+public final class UDPListener implements EventLoop.Handler {
 
-    private final static class UDPResponder implements Runnable {
-        private ResponseGenerator responseGenerator;
+    // the queries read before giving the other channels a chance
+    private static final int MAX_READS = 64;
 
-        private DatagramSocket sock;
-        private InetAddress addr;
-        private int port;
-        private byte[] in;
+    private final DatagramChannel channel;
 
-        private UDPResponder(DatagramSocket sock, InetAddress addr, int port, byte[] in, ResponseGenerator rg) {
-            this.sock = sock;
-            this.addr = addr;
-            this.port = port;
-            this.in = in;
-            this.responseGenerator = rg;
-        }
-
-        public void run() {
-            try {
-                DatagramPacket outdp = null;
-                byte[] response = responseGenerator.generateReply(in, in.length);
-                if (response == null)
-                    return;
-                if (outdp == null) {
-                    outdp = new DatagramPacket(response, response.length,
-                            addr, port);
-                } else {
-                    outdp.setData(response);
-                    outdp.setLength(response.length);
-                    outdp.setAddress(addr);
-                    outdp.setPort(port);
-                }
-                sock.send(outdp);
-            } catch (IOException e) {
-                System.out.println("UDPResponder(" + addr.getHostAddress() + "#" + port + "): "
-                        + e);
-            }
-        }
-
-    }
-
-
-    
-    private final InetAddress addr;
+    private final EventLoop eventLoop;
 
-    private final int port;
+    private final ResponseGenerator responseGenerator;
 
-    private ResponseGenerator responseGenerator;
+    private final ByteBuffer in = ByteBuffer.allocate(4096);
 
-    UDPListener(InetAddress addr, int port, ResponseGenerator rg) {
-        this.addr = addr;
-        this.port = port;
+    UDPListener(InetAddress addr, int port, ResponseGenerator rg, EventLoop eventLoop) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(addr, port));
+        this.channel.configureBlocking(false);
+        this.eventLoop = eventLoop;
         this.responseGenerator = rg;
+        eventLoop.register(channel, SelectionKey.OP_READ, this);
     }
 
-    public void run() {
-        try {
-            DatagramSocket sock = new DatagramSocket(port, addr);
-            final short udpLength = 512;
-            byte[] in = new byte[udpLength];
-            DatagramPacket indp = new DatagramPacket(in, in.length);
-            while (true) {
-                indp.setLength(in.length);
-                try {
-                    sock.receive(indp);
-                } catch (InterruptedIOException e) {
-                    continue;
-                }
+    public void handle(SelectionKey key) throws IOException {
+        for (int i = 0; i < MAX_READS; i++) {
+            in.clear();
+            final SocketAddress client = channel.receive(in);
+            if (client == null) {
+                return;
+            }
+            byte[] local = new byte[in.position()];
+            in.flip();
+            in.get(local);
 
-                byte[] local = new byte[indp.getLength()];
-                System.arraycopy(in, 0, local, 0, indp.getLength());
-                Runnable runnable = new UDPResponder(sock, indp.getAddress(), indp.getPort(), local, responseGenerator);
-                
-                new Thread(runnable).start();
+            final byte[] response = responseGenerator.generateReply(local, local.length);
+            if (response == null) {
+                continue;
             }
+            long delay = responseGenerator.getResponseDelay();
+            if (delay > 0) {
+                eventLoop.schedule(new Runnable() {
+                    public void run() {
+                        send(response, client);
+                    }
+                }, delay);
+            } else {
+                send(response, client);
+            }
+        }
+    }
+
+    private void send(byte[] response, SocketAddress client) {
+        try {
+            channel.send(ByteBuffer.wrap(response), client);
         } catch (IOException e) {
-            System.out.println("UDPListener(" + addr.getHostAddress() + "#" + port + "): "
-                    + e);
+            System.out.println("UDPResponder(" + client + "): " + e);
         }
     }
 
-}
\ No newline at end of file
+}